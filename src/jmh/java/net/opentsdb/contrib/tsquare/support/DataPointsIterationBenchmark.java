@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.web.view.DataPointsTimeGrouper;
+import net.opentsdb.core.Aggregators;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Range;
+
+/**
+ * Iteration over query results, the way writers consume them.  Each operation
+ * is one data point, so the score is points per second and, with {@code -prof gc},
+ * {@code gc.alloc.rate.norm} is bytes allocated per point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPointsIterationBenchmark {
+    @Param({"true", "false"})
+    private boolean integers;
+    
+    private MaterializedDataPoints small;
+    private MaterializedDataPoints large;
+    private Range<Long> smallRange;
+    private Range<Long> largeRange;
+    
+    @Setup
+    public void setUp() {
+        small = SyntheticDataPoints.newSeries("bench.small", SyntheticDataPoints.SMALL, integers);
+        large = SyntheticDataPoints.newSeries("bench.large", SyntheticDataPoints.LARGE, integers);
+        smallRange = Range.closed(SyntheticDataPoints.START_MILLIS, SyntheticDataPoints.endMillis(SyntheticDataPoints.SMALL));
+        largeRange = Range.closed(SyntheticDataPoints.START_MILLIS, SyntheticDataPoints.endMillis(SyntheticDataPoints.LARGE));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public double sumAsDoublesSmall() {
+        return Aggregators.SUM.runDouble(new DataPointsAsDoubles(small));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public double sumAsDoublesLarge() {
+        return Aggregators.SUM.runDouble(new DataPointsAsDoubles(large));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public double sumAsDoublesInRangeSmall() {
+        return Aggregators.SUM.runDouble(new DataPointsAsDoubles(small, smallRange));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public double sumAsDoublesInRangeLarge() {
+        return Aggregators.SUM.runDouble(new DataPointsAsDoubles(large, largeRange));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public void timeGrouperSmall(final Blackhole blackhole) {
+        group(small, smallRange, blackhole);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public void timeGrouperLarge(final Blackhole blackhole) {
+        group(large, largeRange, blackhole);
+    }
+    
+    private static void group(final MaterializedDataPoints points, final Range<Long> range, final Blackhole blackhole) {
+        final DataPointsTimeGrouper grouper = new DataPointsTimeGrouper(points);
+        while (!grouper.isExhausted()) {
+            blackhole.consume(grouper.getCurrentTimestamp());
+            blackhole.consume(grouper.getThenAdvanceIfWithinRange(range));
+        }
+    }
+}
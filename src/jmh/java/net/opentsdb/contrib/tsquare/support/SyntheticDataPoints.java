@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Builds in-memory series for benchmarks.  Values follow a seeded random walk so
+ * that output (and therefore the cost of formatting numbers) is realistic but
+ * repeatable between runs.
+ */
+public final class SyntheticDataPoints {
+    /** Points in a "small" series, e.g. an hour of 30 second samples. */
+    public static final int SMALL = 120;
+    /** Points in a "large" series, e.g. a month of 30 second samples. */
+    public static final int LARGE = 86400;
+    
+    public static final long START_MILLIS = 1380000000000L;
+    public static final long STEP_MILLIS = 30000L;
+    
+    private SyntheticDataPoints() {}
+    
+    /**
+     * @param metricName
+     * @param size number of points
+     * @param integers whether values are longs or doubles
+     * @return series starting at {@link #START_MILLIS}, one point every {@link #STEP_MILLIS}.
+     */
+    public static MaterializedDataPoints newSeries(final String metricName, final int size, final boolean integers) {
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(metricName, Collections.singletonMap("host", "bench01"));
+        final Random random = new Random(size);
+        
+        double value = 1000;
+        for (int i=0; i<size; i++) {
+            value = Math.max(0, value + random.nextGaussian() * 10);
+            
+            final long timestamp = START_MILLIS + i * STEP_MILLIS;
+            if (integers) {
+                builder.add(timestamp, Math.round(value));
+            } else {
+                builder.add(timestamp, value);
+            }
+        }
+        
+        return builder.build();
+    }
+    
+    /**
+     * @return timestamp of the last point of a series with the given size.
+     */
+    public static long endMillis(final int size) {
+        return START_MILLIS + (size - 1) * STEP_MILLIS;
+    }
+}
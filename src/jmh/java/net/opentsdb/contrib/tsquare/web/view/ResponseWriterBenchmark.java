@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.support.SyntheticDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
+import net.opentsdb.core.Aggregators;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.collect.Range;
+
+/**
+ * Complete responses (begin, write, end) of the response writers for a single series.
+ * Output is counted and discarded.  Each operation is one data point, so the score
+ * is points per second and, with {@code -prof gc}, {@code gc.alloc.rate.norm} is
+ * bytes allocated per point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+    @Param({"true", "false"})
+    private boolean integers;
+    
+    @Param({"true", "false"})
+    private boolean millisecondResolution;
+    
+    @Param({"true", "false"})
+    private boolean jsonp;
+    
+    private MockHttpServletRequest request;
+    private DiscardingResponse response;
+    private AnnotatedDataPoints small;
+    private AnnotatedDataPoints large;
+    
+    @Setup
+    public void setUp() {
+        request = new MockHttpServletRequest("GET", "/graphite/render");
+        if (jsonp) {
+            request.addParameter("jsonp", "callback");
+        }
+        
+        response = new DiscardingResponse();
+        small = newAnnotatedSeries(SyntheticDataPoints.SMALL);
+        large = newAnnotatedSeries(SyntheticDataPoints.LARGE);
+    }
+    
+    private AnnotatedDataPoints newAnnotatedSeries(final int size) {
+        final String name = "bench.series" + size;
+        final Metric metric = new Metric("sum:" + name, name, Aggregators.SUM);
+        final Range<Long> range = Range.closed(SyntheticDataPoints.START_MILLIS, SyntheticDataPoints.endMillis(size));
+        return new AnnotatedDataPoints(metric, range, SyntheticDataPoints.newSeries(name, size, integers));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public long graphiteJsonSmall() throws IOException {
+        return writeSingle(new GraphiteJsonResponseWriter(millisecondResolution), small);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public long graphiteJsonLarge() throws IOException {
+        return writeSingle(new GraphiteJsonResponseWriter(millisecondResolution), large);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public long summarizedJsonSmall() throws IOException {
+        return writeGrouped(new SummarizedJsonResponseWriter(millisecondResolution), small);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public long summarizedJsonLarge() throws IOException {
+        return writeGrouped(new SummarizedJsonResponseWriter(millisecondResolution), large);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public long columnarJsonSmall() throws IOException {
+        return writeSingle(new ColumnarJsonResponseWriter(millisecondResolution), small);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public long columnarJsonLarge() throws IOException {
+        return writeSingle(new ColumnarJsonResponseWriter(millisecondResolution), large);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.SMALL)
+    public long messagePackSmall() throws IOException {
+        return writeSingle(new MessagePackResponseWriter(millisecondResolution), small);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SyntheticDataPoints.LARGE)
+    public long messagePackLarge() throws IOException {
+        return writeSingle(new MessagePackResponseWriter(millisecondResolution), large);
+    }
+    
+    private long writeSingle(final SingleSeriesWriter writer, final AnnotatedDataPoints points) throws IOException {
+        final ResponseContext context = new ResponseContext(request, response);
+        response.stream.count = 0;
+        writer.beginResponse(context);
+        writer.write(points, context);
+        writer.endResponse(context);
+        context.finish();
+        return response.stream.count;
+    }
+    
+    private long writeGrouped(final GroupedSeriesWriter writer, final AnnotatedDataPoints points) throws IOException {
+        final List<AnnotatedDataPoints> group = Collections.singletonList(points);
+        final ResponseContext context = new ResponseContext(request, response);
+        response.stream.count = 0;
+        writer.beginResponse(context);
+        writer.write(group, context);
+        writer.endResponse(context);
+        context.finish();
+        return response.stream.count;
+    }
+    
+    /**
+     * Response that counts, rather than keeps, the bytes of its body.
+     */
+    private static final class DiscardingResponse extends MockHttpServletResponse {
+        private final CountingOutputStream stream = new CountingOutputStream();
+        
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return stream;
+        }
+    }
+    
+    private static final class CountingOutputStream extends ServletOutputStream {
+        private long count = 0;
+        
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+        
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package net.opentsdb.contrib.tsquare;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.MoreObjects.ToStringHelper;
+import com.google.common.base.Objects;
 
 import net.opentsdb.core.Aggregator;
 import net.opentsdb.core.Query;
@@ -43,6 +44,18 @@ public class Metric {
         this.rate = false;
     }
     
+    /**
+     * @return a copy of this metric that can be changed without affecting this one.
+     */
+    public Metric copy() {
+        final Metric copy = new Metric(rawMetric, name, aggregator);
+        copy.tags = tags;
+        copy.downsampleIntervalSeconds = downsampleIntervalSeconds;
+        copy.downsampler = downsampler;
+        copy.rate = rate;
+        return copy;
+    }
+    
     public Query contributeToQuery(final Query query) {
         query.setTimeSeries(
                 name,
@@ -57,6 +70,37 @@ public class Metric {
         return query;
     }
     
+    /**
+     * Two metrics are equal if they produce the same query.  The raw metric string
+     * is deliberately not compared, since different spellings of the same metric
+     * (e.g. auto-detected vs. explicit aggregators) are equivalent.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name, tags, aggregator, downsampler, downsampleIntervalSeconds, rate);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (!(obj instanceof Metric)) {
+            return false;
+        }
+        
+        final Metric other = (Metric) obj;
+        return Objects.equal(name, other.name)
+                && Objects.equal(tags, other.tags)
+                && Objects.equal(aggregator, other.aggregator)
+                && Objects.equal(downsampler, other.downsampler)
+                && downsampleIntervalSeconds == other.downsampleIntervalSeconds
+                && rate == other.rate;
+    }
+    
     @Override
     public String toString() {
         final ToStringHelper helper = MoreObjects.toStringHelper(this);
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Thrown (or set as an asynchronous result) when a query did not finish before its
+ * deadline.  Outstanding work for the query is aborted when this is raised.
+ */
+public class QueryTimeoutException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final long timeoutMillis;
+    
+    public QueryTimeoutException(final long timeoutMillis) {
+        super("Query did not complete within " + timeoutMillis + "ms");
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+    
+    /**
+     * @return description of this error for responses to clients, in the form
+     * <code>{"error": {"type": "timeout", "message": ..., "timeoutMillis": ...}}</code>.
+     */
+    public Map<String, Object> toErrorObject() {
+        final Map<String, Object> error = ImmutableMap.<String, Object> of(
+                "type", "timeout",
+                "message", getMessage(),
+                "timeoutMillis", Long.valueOf(timeoutMillis));
+        return ImmutableMap.<String, Object> of("error", error);
+    }
+}
@@ -15,12 +15,17 @@
  */
 package net.opentsdb.contrib.tsquare;
 
+import net.opentsdb.contrib.tsquare.support.TsWebUtils;
+
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 
 /**
  * @author James Royalty (jroyalty) <i>[Jun 21, 2013]</i>
  */
 public final class Uid {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
     private String name;
     private String kind;
     
@@ -29,6 +34,46 @@ public final class Uid {
         this.kind = kind;
     }
     
+    /**
+     * @param order the {@link UidQuery#getOrder() order} of the query that returned this UID.
+     * @return an opaque, URL safe token for this UID; see {@link #fromCursor(String, String)}.
+     */
+    public String toCursor(final String order) {
+        final byte[] bytes = TsWebUtils.toBytes(order + '\n' + kind + '\n' + name);
+        final StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            buf.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * @param cursor a token returned by {@link #toCursor(String)}.
+     * @param order the {@link UidQuery#getOrder() order} of the query to resume.
+     * @return the UID the token was created from.
+     * @throws IllegalArgumentException if the token is malformed, or was created 
+     * for a query of another order.
+     */
+    public static Uid fromCursor(final String cursor, final String order) {
+        Preconditions.checkArgument(cursor.length() % 2 == 0, "Invalid cursor: %s", cursor);
+        
+        final byte[] bytes = new byte[cursor.length() / 2];
+        for (int i=0; i<bytes.length; i++) {
+            final int high = Character.digit(cursor.charAt(2 * i), 16);
+            final int low = Character.digit(cursor.charAt(2 * i + 1), 16);
+            Preconditions.checkArgument(high >= 0 && low >= 0, "Invalid cursor: %s", cursor);
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        
+        final String decoded = TsWebUtils.toString(bytes);
+        final int orderEnd = decoded.indexOf('\n');
+        final int kindEnd = decoded.indexOf('\n', orderEnd + 1);
+        Preconditions.checkArgument(orderEnd > 0 && kindEnd > orderEnd + 1, "Invalid cursor: %s", cursor);
+        Preconditions.checkArgument(decoded.substring(0, orderEnd).equals(order), 
+                "Cursor is from a query of another order, start over without it: %s", cursor);
+        return new Uid(decoded.substring(kindEnd + 1), decoded.substring(orderEnd + 1, kindEnd));
+    }
+    
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
@@ -17,6 +17,8 @@ package net.opentsdb.contrib.tsquare;
 
 import org.hbase.async.HBaseException;
 
+import com.stumbleupon.async.Deferred;
+
 /**
  * @author James Royalty (jroyalty) <i>[Jun 18, 2013]</i>
  */
@@ -27,5 +29,40 @@ public interface UidQuery {
     
     void includeKind(String kind);
     
+    /**
+     * @param after if not {@code null}, the query returns only UIDs that come after
+     * this one, which is normally the last UID of an earlier run of the same query.
+     * Scans resume at that UID rather than starting over.
+     */
+    void setStartAfter(Uid after);
+    
+    /**
+     * @return name of the order in which this query returns UIDs.  A UID given to
+     * {@link #setStartAfter(Uid)} only resumes a query of the same order, so cursors
+     * record it (see {@link Uid#toCursor(String)}).
+     */
+    String getOrder();
+    
+    /**
+     * @param timeoutMillis if positive, the query is abandoned (and any scanner
+     * closed) once it has run this long, and fails with a {@link QueryTimeoutException}.
+     */
+    void setTimeoutMillis(long timeoutMillis);
+    
     void run(QueryCallback<Uid> callback) throws HBaseException;
+    
+    /**
+     * Same as {@link #run(QueryCallback)}, without blocking the calling thread.
+     * The callback is invoked from I/O threads, so it must not block either.
+     * 
+     * @param callback
+     * @return fires with {@code null} when the query has finished.
+     */
+    Deferred<Object> runAsync(QueryCallback<Uid> callback);
+    
+    /**
+     * @return rows of the UID table read so far by this query; zero for queries
+     * answered without a scan.
+     */
+    long getScannedRowCount();
 }
@@ -18,33 +18,84 @@ package net.opentsdb.contrib.tsquare;
 import java.util.Collections;
 import java.util.Map;
 
+import net.opentsdb.contrib.tsquare.support.WildcardMatcher;
 import net.opentsdb.core.Aggregator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.PatternMatchUtils;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
+ * Picks the aggregator of a metric from the first wildcard (in the sense of
+ * {@link org.springframework.util.PatternMatchUtils#simpleMatch(String, String)})
+ * that matches its name.  Wildcards are compiled into a {@link WildcardMatcher},
+ * and the aggregators of recently seen metrics are remembered, up to
+ * {@code maxCachedMetrics}.  Both are replaced whenever the wildcards change.
+ * 
  * @author James Royalty (jroyalty) <i>[Jun 4, 2013]</i>
  */
 public class WildcardAggregatorFactory implements MetricAggregatorFactory {
     private static final Logger log = LoggerFactory.getLogger(WildcardAggregatorFactory.class);
     
     private Map<String, Aggregator> aggregatorsByWildcard = Collections.emptyMap();
+    private int maxCachedMetrics = 10000;
+    
+    private volatile Compiled compiled = new Compiled(aggregatorsByWildcard, maxCachedMetrics);
     
     @Override
     public Aggregator getAggregatorForMetric(String metricName) {
-        for (final Map.Entry<String, Aggregator> entry : aggregatorsByWildcard.entrySet()) {
-            if (PatternMatchUtils.simpleMatch(entry.getKey(), metricName)) {
-                log.debug("Metric {} matched wildcard {} -> {}", metricName, entry.getKey(), entry.getValue());
-                return entry.getValue();
+        if (metricName == null) {
+            return null;
+        }
+        
+        final Compiled current = compiled;
+        
+        Optional<Aggregator> agg = current.aggregatorsByMetric.getIfPresent(metricName);
+        if (agg == null) {
+            final int index = current.matcher.indexOf(metricName);
+            if (index < 0) {
+                agg = Optional.absent();
+            } else {
+                log.debug("Metric {} matched wildcard {} -> {}", metricName, current.matcher.getPattern(index), current.matcher.getValue(index));
+                agg = Optional.fromNullable(current.matcher.getValue(index));
             }
+            current.aggregatorsByMetric.put(metricName, agg);
         }
         
-        return null;
+        return agg.orNull();
     }
 
     public void setAggregatorsByWildcard(Map<String, Aggregator> aggregatorsByWildcard) {
         this.aggregatorsByWildcard = aggregatorsByWildcard;
+        this.compiled = new Compiled(aggregatorsByWildcard, maxCachedMetrics);
+    }
+    
+    /**
+     * @param maxCachedMetrics number of metric names to remember the aggregator of.
+     */
+    public void setMaxCachedMetrics(int maxCachedMetrics) {
+        Preconditions.checkArgument(maxCachedMetrics >= 0, "Max cached metrics must not be negative: %s", maxCachedMetrics);
+        this.maxCachedMetrics = maxCachedMetrics;
+        this.compiled = new Compiled(aggregatorsByWildcard, maxCachedMetrics);
+    }
+    
+    /**
+     * Wildcards and the metrics they've been matched to, replaced together so
+     * lookups never mix old and new configuration.
+     */
+    private static final class Compiled {
+        final WildcardMatcher<Aggregator> matcher;
+        final Cache<String, Optional<Aggregator>> aggregatorsByMetric;
+        
+        Compiled(final Map<String, Aggregator> aggregatorsByWildcard, final int maxCachedMetrics) {
+            this.matcher = new WildcardMatcher<Aggregator>(aggregatorsByWildcard);
+            this.aggregatorsByMetric = CacheBuilder.newBuilder()
+                    .maximumSize(maxCachedMetrics)
+                    .build();
+        }
     }
 }
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.contrib.tsquare.web.DirectDataQueryRunner;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Caches query results in aligned, fixed-size time buckets.  Buckets that end
+ * before {@code now - mutableWindowMillis} are considered immutable and, once
+ * fetched, are served from memory.  Only the trailing, still-mutable part of a
+ * query's time range is fetched from TSDB on every request.
+ * <p>
+ * Cached buckets are keyed on the name, tags, aggregator and downsampling of the metric
+ * and are evicted, least recently used first, once the total number of cached points
+ * exceeds {@code maxCachedPoints}.  Results from each bucket are merged per series and
+ * clipped to the time range of the original query.
+ * <p>
+ * Keep in mind that TSDB starts downsampling, rate calculations and interpolation
+ * afresh in each fetched range: downsampling windows start at the first point of
+ * the range, and spans are only interpolated between points within it.  So results
+ * are only cached where they can't depend on where a range starts, i.e. for metrics
+ * without downsampling or rates whose series each come from a single time series.
+ * Series are merged on the values of the query's group-by tags.  If a merged series
+ * turns out to aggregate more than one time series, the query is run again as a
+ * whole, and later queries for the metric go straight to TSDB.  So do downsampled
+ * and rate queries.
+ * <p>
+ * If a {@link SegmentFileCache} is set, immutable buckets are also written to disk,
+ * and buckets evicted from (or never held in) memory are read back from there.  Buckets
+ * read from disk are not put back in memory: their points are decoded from the mapped
+ * segment as the merged results are iterated (see {@link ConcatenatedDataPoints}).
+ */
+public class CachingDataQueryRunner implements DataQueryRunner, InitializingBean {
+    private static final Logger log = LoggerFactory.getLogger(CachingDataQueryRunner.class);
+    
+    @Autowired
+    private TsdbManager tsdbManager;
+    private DataQueryRunner delegate = new DirectDataQueryRunner();
+    
+    private long bucketMillis = TimeUnit.HOURS.toMillis(1);
+    private long mutableWindowMillis = TimeUnit.MINUTES.toMillis(10);
+    private long maxCachedPoints = 10000000L;
+    private SegmentFileCache segmentCache = null;
+    
+    private Cache<String, MaterializedDataPoints[]> cache;
+    /** Metrics (keyed like buckets, without the bucket) with series made of several time series. */
+    private final Cache<String, Boolean> aggregating = CacheBuilder.newBuilder().maximumSize(10000).build();
+    
+    @Override
+    public void afterPropertiesSet() {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCachedPoints)
+                .weigher(new Weigher<String, MaterializedDataPoints[]>() {
+                    @Override
+                    public int weigh(final String key, final MaterializedDataPoints[] value) {
+                        // Empty buckets still count for something, otherwise they'd never be evicted.
+                        int points = 1;
+                        for (final MaterializedDataPoints series : value) {
+                            points += series.size();
+                        }
+                        return points;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+    
+    @Override
+    public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+        final Metric metric = dataQuery.getMetric();
+        final long startMillis = dataQuery.getQuery().getStartTime();
+        final long endMillis = dataQuery.getQuery().getEndTime();
+        
+        if (!isCacheable(metric) || aggregating.getIfPresent(metricKey(metric)) != null) {
+            return delegate.run(dataQuery);
+        }
+        
+        final long bucketSize = bucketMillis;
+        
+        // Buckets that end on or before this time will not change anymore.
+        final long immutableBefore = alignDown(System.currentTimeMillis() - mutableWindowMillis, bucketSize);
+        final long firstBucket = alignDown(startMillis, bucketSize);
+        final long cacheableEnd = Math.min(immutableBefore, alignDown(endMillis, bucketSize) + bucketSize);
+        
+        if (cacheableEnd <= firstBucket) {
+            // The entire query falls within the mutable window.
+            return delegate.run(dataQuery);
+        }
+        
+        // Walk the buckets in time order, collapsing consecutive cache misses into a
+        // single fetch from TSDB.
+        final List<Deferred<DataPoints[]>> segments = Lists.newArrayList();
+        long missingFrom = -1;
+        int hits = 0;
+        
+        for (long bucket = firstBucket; bucket < cacheableEnd; bucket += bucketSize) {
+            final DataPoints[] cached = getCached(metric, bucket, bucketSize);
+            
+            if (cached == null) {
+                if (missingFrom < 0) {
+                    missingFrom = bucket;
+                }
+            } else {
+                if (missingFrom >= 0) {
+                    segments.add(widen(fetchAndCache(metric, missingFrom, bucket, bucketSize)));
+                    missingFrom = -1;
+                }
+                segments.add(Deferred.fromResult(cached));
+                hits++;
+            }
+        }
+        
+        if (missingFrom >= 0) {
+            segments.add(widen(fetchAndCache(metric, missingFrom, cacheableEnd, bucketSize)));
+        }
+        
+        // Anything left is too recent to cache.  TSDB rejects empty ranges, and
+        // the extra millisecond is clipped by the merge.
+        if (endMillis >= cacheableEnd) {
+            segments.add(widen(fetch(metric, cacheableEnd, Math.max(endMillis, cacheableEnd + 1))));
+        }
+        
+        log.debug("{} cached bucket(s) used for {}", hits, metric);
+        
+        return merge(dataQuery, segments);
+    }
+    
+    private Deferred<MaterializedDataPoints[]> fetch(final Metric metric, final long startMillis, final long endMillis) {
+        final Query query = tsdbManager.newMetricsQuery();
+        query.setStartTime(startMillis);
+        query.setEndTime(endMillis);
+        metric.contributeToQuery(query);
+        
+        final Deferred<MaterializedDataPoints[]> result = delegate.run(new AnnotatedDataQuery(metric, query))
+            .addCallbackDeferring(new Callback<Deferred<MaterializedDataPoints[]>, DataPoints[]>() {
+                @Override
+                public Deferred<MaterializedDataPoints[]> call(final DataPoints[] points) {
+                    return MaterializedDataPoints.materializeAll(points);
+                }
+            });
+        
+        return result;
+    }
+    
+    private static Deferred<DataPoints[]> widen(final Deferred<MaterializedDataPoints[]> points) {
+        return points.addCallback(new Callback<DataPoints[], MaterializedDataPoints[]>() {
+            @Override
+            public DataPoints[] call(final MaterializedDataPoints[] result) {
+                return result;
+            }
+        });
+    }
+    
+    /**
+     * Fetches all buckets in {@code [fromBucket, toBucket)} using a single query and
+     * caches the result of each bucket individually.  Nothing is cached if any series
+     * aggregates more than one time series.
+     */
+    private Deferred<MaterializedDataPoints[]> fetchAndCache(final Metric metric, final long fromBucket, final long toBucket, final long bucketSize) {
+        return fetch(metric, fromBucket, toBucket - 1).addCallback(new Callback<MaterializedDataPoints[], MaterializedDataPoints[]>() {
+            @Override
+            public MaterializedDataPoints[] call(final MaterializedDataPoints[] result) {
+                if (isAggregate(result)) {
+                    return result;
+                }
+                
+                for (long bucket = fromBucket; bucket < toBucket; bucket += bucketSize) {
+                    final List<MaterializedDataPoints> bucketSeries = Lists.newArrayListWithCapacity(result.length);
+                    
+                    for (final MaterializedDataPoints series : result) {
+                        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(series.metricName(), series.getTags())
+                                .addAggregatedTags(series.getAggregatedTags())
+                                .addTsuids(series.getTSUIDs())
+                                .addAll(series, bucket, bucket + bucketSize - 1);
+                        
+                        if (builder.size() > 0) {
+                            bucketSeries.add(builder.build());
+                        }
+                    }
+                    
+                    final MaterializedDataPoints[] bucketResult = bucketSeries.toArray(new MaterializedDataPoints[bucketSeries.size()]);
+                    final String key = bucketKey(metric, bucket, bucketSize);
+                    cache.put(key, bucketResult);
+                    if (segmentCache != null) {
+                        segmentCache.put(key, bucketResult);
+                    }
+                }
+                
+                return result;
+            }
+        });
+    }
+    
+    /**
+     * @return the cached bucket, from memory or else from disk; {@code null} if it isn't cached.
+     */
+    private DataPoints[] getCached(final Metric metric, final long bucket, final long bucketSize) {
+        final String key = bucketKey(metric, bucket, bucketSize);
+        final DataPoints[] cached = cache.getIfPresent(key);
+        
+        if (cached == null && segmentCache != null) {
+            return segmentCache.get(key);
+        }
+        
+        return cached;
+    }
+    
+    /**
+     * @return a key for the bucket, built from immutable values so that it is also 
+     * stable across restarts.
+     */
+    private static String bucketKey(final Metric metric, final long bucket, final long bucketSize) {
+        return Joiner.on('|').join(metricKey(metric), bucket, bucketSize);
+    }
+    
+    private static String metricKey(final Metric metric) {
+        return Joiner.on('|').join(
+                metric.getName(), 
+                new TreeMap<String, String>(tagsOf(metric)), 
+                nameOf(metric.getAggregator()), 
+                nameOf(metric.getDownsampler()), 
+                metric.getDownsampleIntervalSeconds(), 
+                metric.isRate());
+    }
+    
+    private static Map<String, String> tagsOf(final Metric metric) {
+        return (metric.getTags() == null ? Collections.<String, String> emptyMap() : metric.getTags());
+    }
+    
+    /**
+     * @return the tags the metric groups by, i.e. those with a {@code *} or 
+     * {@code a|b} value, in sorted order.
+     */
+    private static List<String> groupByTags(final Metric metric) {
+        final List<String> groupBy = Lists.newArrayList();
+        for (final Map.Entry<String, String> tag : tagsOf(metric).entrySet()) {
+            if (tag.getValue().equals("*") || tag.getValue().indexOf('|') >= 0) {
+                groupBy.add(tag.getKey());
+            }
+        }
+        Collections.sort(groupBy);
+        return groupBy;
+    }
+    
+    /**
+     * TSDB's aggregators are named by {@link Object#toString()}; others by their class.
+     */
+    private static String nameOf(final Aggregator aggregator) {
+        if (aggregator == null) {
+            return "";
+        }
+        
+        final String className = aggregator.getClass().getName();
+        final String name = aggregator.toString();
+        return (name.startsWith(className + "@") ? className : name);
+    }
+    
+    /**
+     * Concatenates the series of all segments, which must be given in time order, 
+     * merging series with the same values for the group-by tags of the query.  Tags
+     * that differ between the parts of a series become aggregated tags, the same as
+     * TSDB does.  If a merged series aggregates more than one time series, the result
+     * could differ from TSDB's, which interpolates across parts, so the query is run
+     * uncached instead.
+     */
+    private Deferred<DataPoints[]> merge(final AnnotatedDataQuery dataQuery, final List<Deferred<DataPoints[]>> segments) {
+        final Metric metric = dataQuery.getMetric();
+        final long startMillis = dataQuery.getQuery().getStartTime();
+        final long endMillis = dataQuery.getQuery().getEndTime();
+        final List<String> groupBy = groupByTags(metric);
+        
+        final DataPoints[][] parts = new DataPoints[segments.size()][];
+        final List<Deferred<DataPoints[]>> pending = Lists.newArrayListWithCapacity(segments.size());
+        
+        for (int i=0; i<segments.size(); i++) {
+            final int index = i;
+            pending.add(segments.get(i).addCallback(new Callback<DataPoints[], DataPoints[]>() {
+                @Override
+                public DataPoints[] call(final DataPoints[] part) {
+                    parts[index] = part;
+                    return part;
+                }
+            }));
+        }
+        
+        final Deferred<DataPoints[]> result = Deferred.group(pending).addCallbackDeferring(new Callback<Deferred<DataPoints[]>, ArrayList<DataPoints[]>>() {
+            @Override
+            public Deferred<DataPoints[]> call(final ArrayList<DataPoints[]> ignored) {
+                final Map<List<Object>, List<DataPoints>> merged = Maps.newLinkedHashMap();
+                
+                for (final DataPoints[] part : parts) {
+                    for (final DataPoints series : part) {
+                        final List<Object> seriesKey = Lists.newArrayListWithCapacity(groupBy.size() + 1);
+                        seriesKey.add(series.metricName());
+                        for (final String tagName : groupBy) {
+                            seriesKey.add(series.getTags().get(tagName));
+                        }
+                        
+                        List<DataPoints> seriesParts = merged.get(seriesKey);
+                        if (seriesParts == null) {
+                            seriesParts = Lists.newArrayListWithCapacity(parts.length);
+                            merged.put(seriesKey, seriesParts);
+                        }
+                        seriesParts.add(series);
+                    }
+                }
+                
+                final DataPoints[] results = new DataPoints[merged.size()];
+                int i = 0;
+                for (final List<DataPoints> seriesParts : merged.values()) {
+                    final DataPoints first = seriesParts.get(0);
+                    final Map<String, String> tags = Maps.newTreeMap();
+                    tags.putAll(first.getTags());
+                    final Set<String> aggregatedTags = Sets.newLinkedHashSet();
+                    final Set<String> tsuids = Sets.newLinkedHashSet();
+                    
+                    for (final DataPoints series : seriesParts) {
+                        aggregatedTags.addAll(series.getAggregatedTags());
+                        tsuids.addAll(series.getTSUIDs());
+                        
+                        for (final String tagName : ImmutableSet.copyOf(Sets.union(tags.keySet(), series.getTags().keySet()))) {
+                            if (!Objects.equal(tags.get(tagName), series.getTags().get(tagName))) {
+                                tags.remove(tagName);
+                                aggregatedTags.add(tagName);
+                            }
+                        }
+                    }
+                    
+                    if (tsuids.size() > 1) {
+                        log.debug("{} aggregates more than one time series, running it uncached", metric);
+                        aggregating.put(metricKey(metric), Boolean.TRUE);
+                        return delegate.run(dataQuery);
+                    }
+                    
+                    results[i++] = new ConcatenatedDataPoints(first.metricName(), tags, aggregatedTags, tsuids, seriesParts, startMillis, endMillis);
+                }
+                return Deferred.fromResult(results);
+            }
+        });
+        
+        return result;
+    }
+    
+    private static boolean isAggregate(final DataPoints[] result) {
+        for (final DataPoints series : result) {
+            if (series.getTSUIDs().size() > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return {@code true} if the points of each series don't depend on where the
+     * query starts, i.e. there is no downsampling and no rate.
+     */
+    private static boolean isCacheable(final Metric metric) {
+        return !metric.isRate() && (metric.getDownsampler() == null || metric.getDownsampleIntervalSeconds() <= 0);
+    }
+    
+    private static long alignDown(final long timestamp, final long bucketSize) {
+        return timestamp - (timestamp % bucketSize);
+    }
+    
+    /**
+     * @return hit/miss and eviction counts for cached buckets.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+    
+    public long getCachedPoints() {
+        long points = 0;
+        for (final MaterializedDataPoints[] bucket : cache.asMap().values()) {
+            for (final MaterializedDataPoints series : bucket) {
+                points += series.size();
+            }
+        }
+        return points;
+    }
+    
+    public void setTsdbManager(TsdbManager tsdbManager) {
+        this.tsdbManager = tsdbManager;
+    }
+    
+    public void setDelegate(DataQueryRunner delegate) {
+        this.delegate = delegate;
+    }
+    
+    /**
+     * @param bucketMillis size of each cached time bucket.  Queries are fetched and 
+     * cached in multiples of this size.
+     */
+    public void setBucketMillis(long bucketMillis) {
+        Preconditions.checkArgument(bucketMillis > 0, "Invalid bucket size: %s", bucketMillis);
+        this.bucketMillis = bucketMillis;
+    }
+    
+    /**
+     * @param mutableWindowMillis data newer than this (relative to NOW) may still
+     * change, e.g. because of late writes, and is never cached.
+     */
+    public void setMutableWindowMillis(long mutableWindowMillis) {
+        this.mutableWindowMillis = mutableWindowMillis;
+    }
+    
+    /**
+     * @param segmentCache second level of cached buckets, on disk; {@code null} for none.
+     */
+    public void setSegmentCache(SegmentFileCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
+    
+    /**
+     * @param maxCachedPoints upper bound on the total number of data points held by the cache.
+     */
+    public void setMaxCachedPoints(long maxCachedPoints) {
+        this.maxCachedPoints = maxCachedPoints;
+    }
+}
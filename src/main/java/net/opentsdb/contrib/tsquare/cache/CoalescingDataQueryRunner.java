@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.contrib.tsquare.web.DirectDataQueryRunner;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Lets concurrent, identical queries share a single execution ("single flight").
+ * When many clients refresh the same dashboard at once, only the first request for
+ * a query runs it; requests arriving while it is in flight wait for its result.
+ * <p>
+ * Queries are identical if their {@link Metric}s are equal and their time ranges
+ * are the same after aligning the start down, and the end up, to {@code alignMillis}.
+ * The shared query runs over the aligned range, and every waiting request gets the
+ * result clipped to its own range.  Shared results are materialized (see
+ * {@link MaterializedDataPoints}), so each request can stream them independently.
+ */
+public class CoalescingDataQueryRunner implements DataQueryRunner {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingDataQueryRunner.class);
+    
+    @Autowired
+    private TsdbManager tsdbManager;
+    private DataQueryRunner delegate = new DirectDataQueryRunner();
+    private long alignMillis = 0;
+    
+    private final ConcurrentMap<FlightKey, Flight> inFlight = Maps.newConcurrentMap();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    
+    @Override
+    public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+        final long startMillis = dataQuery.getQuery().getStartTime();
+        final long endMillis = dataQuery.getQuery().getEndTime();
+        final FlightKey key = new FlightKey(dataQuery.getMetric(), alignDown(startMillis), alignUp(endMillis));
+        
+        while (true) {
+            final Flight existing = inFlight.get(key);
+            
+            if (existing != null) {
+                final Deferred<DataPoints[]> joined = existing.join(startMillis, endMillis);
+                if (joined != null) {
+                    coalescedCount.incrementAndGet();
+                    log.debug("Joined in-flight query for {}", key.metric);
+                    return joined;
+                }
+                
+                // The flight just landed; it's removed from the map shortly.
+                inFlight.remove(key, existing);
+                continue;
+            }
+            
+            final Flight flight = new Flight(key);
+            if (inFlight.putIfAbsent(key, flight) == null) {
+                final Deferred<DataPoints[]> result = flight.join(startMillis, endMillis);
+                executedCount.incrementAndGet();
+                launch(flight, dataQuery);
+                return result;
+            }
+        }
+    }
+    
+    private void launch(final Flight flight, final AnnotatedDataQuery dataQuery) {
+        final FlightKey key = flight.key;
+        final AnnotatedDataQuery aligned;
+        
+        if (key.startMillis == dataQuery.getQuery().getStartTime() && key.endMillis == dataQuery.getQuery().getEndTime()) {
+            aligned = dataQuery;
+        } else {
+            final Query query = tsdbManager.newMetricsQuery();
+            query.setStartTime(key.startMillis);
+            query.setEndTime(key.endMillis);
+            key.metric.contributeToQuery(query);
+            aligned = new AnnotatedDataQuery(dataQuery.getMetric(), query);
+        }
+        
+        Deferred<DataPoints[]> running;
+        try {
+            running = delegate.run(aligned);
+        } catch (RuntimeException e) {
+            running = Deferred.fromError(e);
+        }
+        
+        running.addCallbacks(
+                new Callback<Object, DataPoints[]>() {
+                    @Override
+                    public Object call(final DataPoints[] result) {
+                        land(flight, result);
+                        return null;
+                    }
+                },
+                new Callback<Object, Exception>() {
+                    @Override
+                    public Object call(final Exception e) {
+                        inFlight.remove(flight.key, flight);
+                        flight.fail(e);
+                        return null;
+                    }
+                });
+    }
+    
+    private void land(final Flight flight, final DataPoints[] result) {
+        inFlight.remove(flight.key, flight);
+        final List<Waiter> waiters = flight.close();
+        
+        if (waiters.size() == 1 && waiters.get(0).coversAll(flight.key)) {
+            // Nobody joined; no need to copy the result.
+            waiters.get(0).deferred.callback(result);
+            return;
+        }
+        
+        MaterializedDataPoints.materializeAll(result).addCallbacks(
+                new Callback<Object, MaterializedDataPoints[]>() {
+                    @Override
+                    public Object call(final MaterializedDataPoints[] shared) {
+                        for (final Waiter waiter : waiters) {
+                            waiter.deferred.callback(waiter.clip(shared));
+                        }
+                        return null;
+                    }
+                },
+                new Callback<Object, Exception>() {
+                    @Override
+                    public Object call(final Exception e) {
+                        for (final Waiter waiter : waiters) {
+                            waiter.deferred.callback(e);
+                        }
+                        return null;
+                    }
+                });
+    }
+    
+    private long alignDown(final long timestamp) {
+        return alignMillis > 0 ? timestamp - (timestamp % alignMillis) : timestamp;
+    }
+    
+    private long alignUp(final long timestamp) {
+        final long down = alignDown(timestamp);
+        return down == timestamp ? timestamp : down + alignMillis;
+    }
+    
+    /**
+     * @return number of queries that were actually run by the delegate.
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+    
+    /**
+     * @return number of queries that shared the execution of an in-flight query.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+    
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+    
+    public void setTsdbManager(TsdbManager tsdbManager) {
+        this.tsdbManager = tsdbManager;
+    }
+    
+    public void setDelegate(DataQueryRunner delegate) {
+        this.delegate = delegate;
+    }
+    
+    /**
+     * @param alignMillis query start and end times are aligned to multiples of this
+     * before comparing them, so that queries relative to NOW issued moments apart
+     * still match.  Zero (the default) requires exactly equal times.
+     */
+    public void setAlignMillis(long alignMillis) {
+        Preconditions.checkArgument(alignMillis >= 0, "Invalid alignment: %s", alignMillis);
+        this.alignMillis = alignMillis;
+    }
+    
+    /**
+     * One execution of a query, and the requests waiting on it.  Suasync
+     * {@link Deferred}s must not be shared between callers (callbacks change their
+     * result), so each request gets a Deferred of its own.
+     */
+    private static final class Flight {
+        private final FlightKey key;
+        private final List<Waiter> waiters = Lists.newArrayList();
+        private boolean closed = false;
+        
+        Flight(final FlightKey key) {
+            this.key = key;
+        }
+        
+        /**
+         * @return result for a request with the given range, or {@code null} if this
+         * flight no longer takes new requests.
+         */
+        synchronized Deferred<DataPoints[]> join(final long startMillis, final long endMillis) {
+            if (closed) {
+                return null;
+            }
+            
+            final Waiter waiter = new Waiter(startMillis, endMillis);
+            waiters.add(waiter);
+            return waiter.deferred;
+        }
+        
+        synchronized List<Waiter> close() {
+            closed = true;
+            return waiters;
+        }
+        
+        void fail(final Exception e) {
+            for (final Waiter waiter : close()) {
+                waiter.deferred.callback(e);
+            }
+        }
+    }
+    
+    private static final class Waiter {
+        private final long startMillis;
+        private final long endMillis;
+        private final Deferred<DataPoints[]> deferred = new Deferred<DataPoints[]>();
+        
+        Waiter(final long startMillis, final long endMillis) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+        
+        boolean coversAll(final FlightKey key) {
+            return startMillis == key.startMillis && endMillis == key.endMillis;
+        }
+        
+        /**
+         * Series with no points in this request's range are left out, as they
+         * would be had the request been run on its own.
+         */
+        DataPoints[] clip(final MaterializedDataPoints[] shared) {
+            final List<DataPoints> clipped = Lists.newArrayListWithCapacity(shared.length);
+            for (final MaterializedDataPoints series : shared) {
+                final MaterializedDataPoints slice = series.slice(startMillis, endMillis);
+                if (slice.size() > 0 || series.size() == 0) {
+                    clipped.add(slice);
+                }
+            }
+            return clipped.toArray(new DataPoints[clipped.size()]);
+        }
+    }
+    
+    private static final class FlightKey {
+        private final Metric metric;
+        private final long startMillis;
+        private final long endMillis;
+        
+        FlightKey(final Metric metric, final long startMillis, final long endMillis) {
+            this.metric = metric;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(metric, startMillis, endMillis);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FlightKey)) {
+                return false;
+            }
+            
+            final FlightKey other = (FlightKey) obj;
+            return startMillis == other.startMillis && endMillis == other.endMillis && metric.equals(other.metric);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.meta.Annotation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * One series made of consecutive parts of it (e.g. cached buckets), clipped to
+ * {@code [startMillis, endMillis]}.  Points are read from the parts each time the
+ * series is iterated, so parts backed by memory mapped segments are never copied
+ * to the heap.  Like {@code DerivedDataPoints}, index based access copies the
+ * points once and keeps them.
+ */
+final class ConcatenatedDataPoints implements DataPoints {
+    private final String metricName;
+    private final Map<String, String> tags;
+    private final List<String> aggregatedTags;
+    private final List<String> tsuids;
+    private final List<DataPoints> parts;
+    private final long startMillis;
+    private final long endMillis;
+    
+    // Guarded by "this".
+    private int size = -1;
+    private MaterializedDataPoints materialized;
+    
+    /**
+     * @param parts in time order, with non-overlapping time ranges.
+     */
+    ConcatenatedDataPoints(final String metricName, final Map<String, String> tags, final Collection<String> aggregatedTags, 
+            final Collection<String> tsuids, final List<DataPoints> parts, final long startMillis, final long endMillis) {
+        this.metricName = metricName;
+        this.tags = ImmutableMap.copyOf(tags);
+        this.aggregatedTags = ImmutableList.copyOf(aggregatedTags);
+        this.tsuids = ImmutableList.copyOf(tsuids);
+        this.parts = ImmutableList.copyOf(parts);
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+    }
+    
+    private synchronized MaterializedDataPoints materialized() {
+        if (materialized == null) {
+            final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(metricName, tags)
+                .addAggregatedTags(aggregatedTags)
+                .addTsuids(tsuids);
+            
+            final SeekableView it = iterator();
+            while (it.hasNext()) {
+                builder.add(it.next());
+            }
+            
+            materialized = builder.build();
+        }
+        
+        return materialized;
+    }
+    
+    @Override
+    public String metricName() {
+        return metricName;
+    }
+    
+    @Override
+    public Deferred<String> metricNameAsync() {
+        return Deferred.fromResult(metricName);
+    }
+    
+    @Override
+    public Map<String, String> getTags() {
+        return tags;
+    }
+    
+    @Override
+    public Deferred<Map<String, String>> getTagsAsync() {
+        return Deferred.fromResult(tags);
+    }
+    
+    @Override
+    public List<String> getAggregatedTags() {
+        return aggregatedTags;
+    }
+    
+    @Override
+    public Deferred<List<String>> getAggregatedTagsAsync() {
+        return Deferred.fromResult(aggregatedTags);
+    }
+    
+    @Override
+    public List<String> getTSUIDs() {
+        return tsuids;
+    }
+    
+    @Override
+    public List<Annotation> getAnnotations() {
+        return Collections.emptyList();
+    }
+    
+    /**
+     * Counts the points in range once, without keeping them.
+     */
+    @Override
+    public synchronized int size() {
+        if (size < 0) {
+            int count = 0;
+            final SeekableView it = iterator();
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            size = count;
+        }
+        return size;
+    }
+    
+    @Override
+    public int aggregatedSize() {
+        return size();
+    }
+    
+    @Override
+    public SeekableView iterator() {
+        return new Cursor();
+    }
+    
+    @Override
+    public long timestamp(final int i) {
+        return materialized().timestamp(i);
+    }
+    
+    @Override
+    public boolean isInteger(final int i) {
+        return materialized().isInteger(i);
+    }
+    
+    @Override
+    public long longValue(final int i) {
+        return materialized().longValue(i);
+    }
+    
+    @Override
+    public double doubleValue(final int i) {
+        return materialized().doubleValue(i);
+    }
+    
+    @Override
+    public String toString() {
+        return "ConcatenatedDataPoints(" + metricName + ", " + tags + ", " + parts.size() + " parts)";
+    }
+    
+    /**
+     * Iterates the parts in turn, reading one point ahead so that points past
+     * {@link #endMillis} are never returned.  The iterators of the parts reuse
+     * the points they return, so the point read ahead is copied.  Like TSDB
+     * iterators, this is also the {@link DataPoint} it returns.
+     */
+    private final class Cursor implements SeekableView, DataPoint {
+        private int part;
+        private SeekableView current;
+        
+        private boolean hasPending;
+        private long nextTimestamp;
+        private boolean nextInteger;
+        private long nextLong;
+        private double nextDouble;
+        
+        private long timestamp;
+        private boolean integer;
+        private long longValue;
+        private double doubleValue;
+        
+        Cursor() {
+            seek(startMillis);
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return hasPending;
+        }
+        
+        @Override
+        public DataPoint next() {
+            if (!hasPending) {
+                throw new NoSuchElementException();
+            }
+            
+            timestamp = nextTimestamp;
+            integer = nextInteger;
+            longValue = nextLong;
+            doubleValue = nextDouble;
+            readAhead();
+            return this;
+        }
+        
+        private void readAhead() {
+            hasPending = false;
+            
+            while (current != null) {
+                if (current.hasNext()) {
+                    final DataPoint p = current.next();
+                    if (p.timestamp() > endMillis) {
+                        current = null;
+                        return;
+                    }
+                    
+                    hasPending = true;
+                    nextTimestamp = p.timestamp();
+                    nextInteger = p.isInteger();
+                    if (nextInteger) {
+                        nextLong = p.longValue();
+                    } else {
+                        nextDouble = p.doubleValue();
+                    }
+                    return;
+                }
+                
+                nextPart();
+            }
+        }
+        
+        private void nextPart() {
+            part++;
+            current = (part < parts.size()) ? parts.get(part).iterator() : null;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void seek(final long target) {
+            part = -1;
+            nextPart();
+            
+            while (current != null) {
+                current.seek(Math.max(target, startMillis));
+                if (current.hasNext()) {
+                    break;
+                }
+                nextPart();
+            }
+            
+            readAhead();
+        }
+        
+        @Override
+        public long timestamp() {
+            return timestamp;
+        }
+        
+        @Override
+        public boolean isInteger() {
+            return integer;
+        }
+        
+        @Override
+        public long longValue() {
+            if (!integer) {
+                throw new ClassCastException("Value at " + timestamp + " is not an integer");
+            }
+            return longValue;
+        }
+        
+        @Override
+        public double doubleValue() {
+            if (integer) {
+                throw new ClassCastException("Value at " + timestamp + " is not a float");
+            }
+            return doubleValue;
+        }
+        
+        @Override
+        public double toDouble() {
+            return integer ? (double) longValue : doubleValue;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.rollup.RollupBuckets;
+import net.opentsdb.contrib.tsquare.rollup.RollupFunction;
+import net.opentsdb.contrib.tsquare.rollup.RollupStore;
+import net.opentsdb.contrib.tsquare.rollup.RollupTier;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.contrib.tsquare.web.DirectDataQueryRunner;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.DataPoints;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Answers downsampled queries from the pre-aggregates of a {@link RollupStore},
+ * without reading raw points from TSDB.  The coarsest tier whose width evenly
+ * divides the query's downsample interval, and that holds the whole time range,
+ * is used.  Everything else is passed on to the delegate:
+ * <ul>
+ *   <li>queries that don't downsample, or compute a rate</li>
+ *   <li>downsamplers with no {@link RollupFunction} equivalent</li>
+ *   <li>metrics that aren't rolled up, or whose rollups lag behind by more than
+ *   {@code maxStalenessMillis}</li>
+ * </ul>
+ * Results differ from TSDB's in two ways: points are stamped with the start of
+ * their (aligned) interval, and series are aggregated without interpolation,
+ * only over the series that have a point in each interval.
+ */
+public class RollupDataQueryRunner implements DataQueryRunner {
+    private static final Logger log = LoggerFactory.getLogger(RollupDataQueryRunner.class);
+    
+    @Autowired
+    private RollupStore rollupStore;
+    private DataQueryRunner delegate = new DirectDataQueryRunner();
+    private long maxStalenessMillis = TimeUnit.MINUTES.toMillis(2);
+    
+    private final AtomicLong servedCount = new AtomicLong();
+    private final AtomicLong delegatedCount = new AtomicLong();
+    
+    @Override
+    public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+        final Metric metric = dataQuery.getMetric();
+        final long startMillis = dataQuery.getQuery().getStartTime();
+        final long endMillis = dataQuery.getQuery().getEndTime();
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(metric.getDownsampleIntervalSeconds());
+        
+        final RollupFunction function = (metric.getDownsampler() == null ? null : RollupFunction.forDownsampler(metric.getDownsampler()));
+        final RollupStore.MetricRollups rollups = rollupStore.get(metric.getName());
+        final long nowMillis = System.currentTimeMillis();
+        
+        if (function == null || intervalMillis <= 0 || metric.isRate() || metric.getAggregator() == null 
+                || rollups == null || rollups.getWatermarkMillis() < Math.min(endMillis, nowMillis) - maxStalenessMillis) {
+            delegatedCount.incrementAndGet();
+            return delegate.run(dataQuery);
+        }
+        
+        final List<RollupTier> tiers = rollupStore.getTiers();
+        for (int i=tiers.size() - 1; i>=0; i--) {
+            final RollupTier tier = tiers.get(i);
+            if (intervalMillis % tier.getWidthMillis() == 0 && rollups.covers(tier, startMillis, nowMillis)) {
+                log.debug("Answering {} from {} rollups", metric, tier);
+                servedCount.incrementAndGet();
+                return Deferred.<DataPoints[]> fromResult(evaluate(metric, function, rollups, i, intervalMillis, startMillis, endMillis));
+            }
+        }
+        
+        delegatedCount.incrementAndGet();
+        return delegate.run(dataQuery);
+    }
+    
+    private DataPoints[] evaluate(final Metric metric, final RollupFunction function, final RollupStore.MetricRollups rollups, 
+            final int tier, final long intervalMillis, final long startMillis, final long endMillis) {
+        final Map<String, String> filters = (metric.getTags() == null ? Maps.<String, String> newHashMap() : metric.getTags());
+        final Set<String> groupBy = Sets.newTreeSet();
+        for (final Map.Entry<String, String> filter : filters.entrySet()) {
+            if (isGrouping(filter.getValue())) {
+                groupBy.add(filter.getKey());
+            }
+        }
+        
+        // Matching series, grouped on the values of their group-by tags.
+        final Map<List<String>, List<RollupStore.Series>> groups = Maps.newLinkedHashMap();
+        for (final RollupStore.Series series : rollups.getSeries()) {
+            if (!matches(filters, series.getTags())) {
+                continue;
+            }
+            
+            final List<String> groupKey = Lists.newArrayListWithCapacity(groupBy.size());
+            for (final String key : groupBy) {
+                groupKey.add(series.getTags().get(key));
+            }
+            
+            List<RollupStore.Series> group = groups.get(groupKey);
+            if (group == null) {
+                group = Lists.newArrayList();
+                groups.put(groupKey, group);
+            }
+            group.add(series);
+        }
+        
+        final long from = startMillis - (startMillis % intervalMillis);
+        final List<DataPoints> results = Lists.newArrayListWithCapacity(groups.size());
+        
+        for (final List<RollupStore.Series> group : groups.values()) {
+            final MaterializedDataPoints result = aggregate(metric, function, group, tier, intervalMillis, from, endMillis + 1);
+            if (result.size() > 0) {
+                results.add(result);
+            }
+        }
+        
+        return results.toArray(new DataPoints[results.size()]);
+    }
+    
+    /**
+     * Downsamples each series of the group, then aggregates them interval by interval.
+     */
+    private static MaterializedDataPoints aggregate(final Metric metric, final RollupFunction function, final List<RollupStore.Series> group, 
+            final int tier, final long intervalMillis, final long fromMillis, final long untilMillis) {
+        final RollupBuckets[] downsampled = new RollupBuckets[group.size()];
+        final int[] positions = new int[group.size()];
+        
+        // Tags shared (with the same value) by all series are the tags of the result.
+        final Map<String, String> tags = Maps.newHashMap(group.get(0).getTags());
+        final Set<String> aggregatedTags = Sets.newTreeSet();
+        
+        for (int i=0; i<downsampled.length; i++) {
+            final RollupStore.Series series = group.get(i);
+            downsampled[i] = series.getBuckets(tier).rollUp(intervalMillis, fromMillis, untilMillis);
+            
+            for (final String key : Sets.union(tags.keySet(), series.getTags().keySet())) {
+                if (!Objects.equal(tags.get(key), series.getTags().get(key))) {
+                    aggregatedTags.add(key);
+                }
+            }
+        }
+        tags.keySet().removeAll(aggregatedTags);
+        
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(metric.getName(), tags)
+            .addAggregatedTags(aggregatedTags);
+        final Values values = new Values(downsampled.length);
+        final Aggregator aggregator = metric.getAggregator();
+        
+        while (true) {
+            // Earliest interval not yet aggregated.
+            long timestamp = Long.MAX_VALUE;
+            for (int i=0; i<downsampled.length; i++) {
+                if (positions[i] < downsampled[i].size()) {
+                    timestamp = Math.min(timestamp, downsampled[i].start(positions[i]));
+                }
+            }
+            
+            if (timestamp == Long.MAX_VALUE) {
+                break;
+            }
+            
+            values.clear();
+            for (int i=0; i<downsampled.length; i++) {
+                if (positions[i] < downsampled[i].size() && downsampled[i].start(positions[i]) == timestamp) {
+                    values.add(function.valueOf(downsampled[i], positions[i]));
+                    positions[i]++;
+                }
+            }
+            
+            builder.add(timestamp, aggregator.runDouble(values));
+        }
+        
+        return builder.build();
+    }
+    
+    private static boolean matches(final Map<String, String> filters, final Map<String, String> tags) {
+        for (final Map.Entry<String, String> filter : filters.entrySet()) {
+            final String value = tags.get(filter.getKey());
+            if (value == null) {
+                return false;
+            }
+            
+            if ("*".equals(filter.getValue())) {
+                continue;
+            }
+            
+            if (filter.getValue().indexOf('|') >= 0) {
+                if (!ImmutableSet.copyOf(Splitter.on('|').split(filter.getValue())).contains(value)) {
+                    return false;
+                }
+            } else if (!filter.getValue().equals(value)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean isGrouping(final String value) {
+        return "*".equals(value) || value.indexOf('|') >= 0;
+    }
+    
+    /**
+     * @return number of queries answered from rollups.
+     */
+    public long getServedCount() {
+        return servedCount.get();
+    }
+    
+    /**
+     * @return number of queries passed on to the delegate.
+     */
+    public long getDelegatedCount() {
+        return delegatedCount.get();
+    }
+    
+    public void setRollupStore(RollupStore rollupStore) {
+        this.rollupStore = rollupStore;
+    }
+    
+    public void setDelegate(DataQueryRunner delegate) {
+        this.delegate = delegate;
+    }
+    
+    /**
+     * @param maxStalenessMillis queries that end within this long of the latest
+     * rolled up point may be answered from rollups.
+     */
+    public void setMaxStalenessMillis(long maxStalenessMillis) {
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+    
+    /**
+     * Values of one interval, from all series that have a point in it.
+     */
+    private static final class Values implements Aggregator.Doubles {
+        private final double[] values;
+        private int size = 0;
+        private int next = 0;
+        
+        Values(final int capacity) {
+            this.values = new double[capacity];
+        }
+        
+        void clear() {
+            size = 0;
+            next = 0;
+        }
+        
+        void add(final double value) {
+            values[size++] = value;
+        }
+        
+        @Override
+        public boolean hasNextValue() {
+            return next < size;
+        }
+        
+        @Override
+        public double nextDoubleValue() {
+            return values[next++];
+        }
+    }
+}
@@ -0,0 +1,640 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.meta.Annotation;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Binary format of the segment files written by {@link SegmentFileCache}.  A segment
+ * holds the series of one cached bucket.  Each series is stored as three columns:
+ * <ul>
+ *   <li>timestamps: delta-of-delta encoded, as zig-zag variable length integers</li>
+ *   <li>types: one bit per point, set for floating point values</li>
+ *   <li>values: the 64 bits of each value (integers as is, doubles as their raw bits)
+ *   XOR-ed with the previous value and bit-packed, as in Facebook's Gorilla</li>
+ * </ul>
+ * Segments are decoded straight from (memory mapped) buffers: {@link #open(ByteBuffer)}
+ * reads only the names and tags of each series, and points are decoded each time a
+ * series is iterated.
+ */
+final class SegmentCodec {
+    private static final int MAGIC = 0x54535347;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private SegmentCodec() {
+    }
+    
+    /**
+     * @param key stored in the segment, so that it can be verified when read.
+     * @param series
+     * @return encoded segment.
+     */
+    static byte[] encode(final String key, final MaterializedDataPoints[] series) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        out.writeInt(series.length);
+        
+        for (final MaterializedDataPoints s : series) {
+            writeString(out, s.metricName());
+            out.writeInt(s.getTags().size());
+            for (final Map.Entry<String, String> tag : s.getTags().entrySet()) {
+                writeString(out, tag.getKey());
+                writeString(out, tag.getValue());
+            }
+            writeStrings(out, s.getAggregatedTags());
+            writeStrings(out, s.getTSUIDs());
+            
+            final int size = s.size();
+            final BitWriter timestamps = new BitWriter();
+            final BitWriter types = new BitWriter();
+            final BitWriter values = new BitWriter();
+            final XorEncoder encoder = new XorEncoder(values);
+            
+            long previousTimestamp = 0;
+            long previousDelta = 0;
+            
+            for (int i=0; i<size; i++) {
+                final long timestamp = s.timestamp(i);
+                final long delta = timestamp - previousTimestamp;
+                timestamps.writeVarLong(zigZag(delta - previousDelta));
+                previousTimestamp = timestamp;
+                previousDelta = delta;
+                
+                final boolean integer = s.isInteger(i);
+                types.writeBits(integer ? 0 : 1, 1);
+                encoder.write(integer ? s.longValue(i) : Double.doubleToRawLongBits(s.doubleValue(i)));
+            }
+            
+            out.writeInt(size);
+            timestamps.writeTo(out);
+            types.writeTo(out);
+            values.writeTo(out);
+        }
+        
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * @return key stored in the segment.
+     * @throws IllegalArgumentException if the buffer doesn't hold a segment.
+     */
+    static String readKey(final ByteBuffer buffer) {
+        final ByteBuffer in = buffer.duplicate();
+        Preconditions.checkArgument(in.getInt() == MAGIC, "Not a segment");
+        Preconditions.checkArgument(in.getInt() == VERSION, "Unsupported segment version");
+        return readString(in);
+    }
+    
+    /**
+     * @return the series of the segment in the given buffer, copied to the heap.
+     * @throws IllegalArgumentException if the buffer doesn't hold a segment.
+     */
+    static MaterializedDataPoints[] decode(final ByteBuffer buffer) {
+        final MappedSeries[] mapped = open(buffer);
+        final MaterializedDataPoints[] series = new MaterializedDataPoints[mapped.length];
+        
+        for (int s=0; s<mapped.length; s++) {
+            series[s] = mapped[s].materialized();
+        }
+        
+        return series;
+    }
+    
+    /**
+     * Reads the names and tags of the series of the segment in the given buffer.
+     * Points stay in the buffer, which must not change while the series are used.
+     * 
+     * @return the series of the segment.
+     * @throws IllegalArgumentException if the buffer doesn't hold a segment.
+     */
+    static MappedSeries[] open(final ByteBuffer buffer) {
+        final ByteBuffer in = buffer.duplicate();
+        Preconditions.checkArgument(in.getInt() == MAGIC, "Not a segment");
+        Preconditions.checkArgument(in.getInt() == VERSION, "Unsupported segment version");
+        readString(in);
+        
+        final MappedSeries[] series = new MappedSeries[in.getInt()];
+        
+        for (int s=0; s<series.length; s++) {
+            final String metricName = readString(in);
+            final int numTags = in.getInt();
+            final Map<String, String> tags = Maps.newHashMapWithExpectedSize(numTags);
+            for (int i=0; i<numTags; i++) {
+                tags.put(readString(in), readString(in));
+            }
+            
+            final List<String> aggregatedTags = readStrings(in);
+            final List<String> tsuids = readStrings(in);
+            
+            final int size = in.getInt();
+            final int timestamps = skipRegion(in);
+            final int types = skipRegion(in);
+            final int values = skipRegion(in);
+            
+            series[s] = new MappedSeries(metricName, tags, aggregatedTags, tsuids, size, buffer, timestamps, types, values);
+        }
+        
+        return series;
+    }
+    
+    /**
+     * Moves the buffer past a region written by {@link BitWriter#writeTo(DataOutputStream)}.
+     * 
+     * @return offset of the region's bits.
+     */
+    private static int skipRegion(final ByteBuffer in) {
+        final int length = in.getInt();
+        final int offset = in.position();
+        Preconditions.checkArgument(length >= 0 && length <= in.remaining(), "Truncated segment");
+        in.position(offset + length);
+        return offset;
+    }
+    
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] b = value.getBytes(UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    
+    private static void writeStrings(final DataOutputStream out, final Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (final String value : values) {
+            writeString(out, value);
+        }
+    }
+    
+    private static String readString(final ByteBuffer in) {
+        final byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, UTF_8);
+    }
+    
+    private static List<String> readStrings(final ByteBuffer in) {
+        final int count = in.getInt();
+        final List<String> values = Lists.newArrayListWithCapacity(count);
+        for (int i=0; i<count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+    
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    /**
+     * Gorilla-style XOR compression of 64 bit words.  A word equal to the previous
+     * one takes a single bit.  Otherwise the XOR with the previous word is stored,
+     * either within the previous window of meaningful bits or with a new window
+     * (5 bits of leading zeros, 6 bits of length).
+     */
+    private static final class XorEncoder {
+        private final BitWriter out;
+        private boolean first = true;
+        private long previous;
+        private int leading = -1;
+        private int trailing;
+        
+        XorEncoder(final BitWriter out) {
+            this.out = out;
+        }
+        
+        void write(final long value) {
+            if (first) {
+                out.writeBits(value, 64);
+                first = false;
+                previous = value;
+                return;
+            }
+            
+            final long xor = value ^ previous;
+            previous = value;
+            
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            
+            out.writeBits(1, 1);
+            final int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            final int newTrailing = Long.numberOfTrailingZeros(xor);
+            
+            if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+                out.writeBits(0, 1);
+                out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                final int length = 64 - newLeading - newTrailing;
+                out.writeBits(1, 1);
+                out.writeBits(newLeading, 5);
+                out.writeBits(length - 1, 6);
+                out.writeBits(xor >>> newTrailing, length);
+                leading = newLeading;
+                trailing = newTrailing;
+            }
+        }
+    }
+    
+    private static final class XorDecoder {
+        private final BitReader in;
+        private boolean first = true;
+        private long previous;
+        private int leading;
+        private int trailing;
+        
+        XorDecoder(final BitReader in) {
+            this.in = in;
+        }
+        
+        long read() {
+            if (first) {
+                first = false;
+                previous = in.readBits(64);
+            } else if (in.readBits(1) == 1) {
+                if (in.readBits(1) == 1) {
+                    leading = (int) in.readBits(5);
+                    final int length = (int) in.readBits(6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                previous ^= in.readBits(64 - leading - trailing) << trailing;
+            }
+            return previous;
+        }
+    }
+    
+    private static final class BitWriter {
+        private byte[] buffer = new byte[64];
+        private long position = 0;
+        
+        void writeBits(final long value, int count) {
+            while (count > 0) {
+                ensureCapacity();
+                final int free = 8 - (int) (position & 7);
+                final int take = Math.min(free, count);
+                final int bits = (int) ((value >>> (count - take)) & ((1 << take) - 1));
+                buffer[(int) (position >>> 3)] |= bits << (free - take);
+                position += take;
+                count -= take;
+            }
+        }
+        
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+        
+        private void ensureCapacity() {
+            if ((position >>> 3) >= buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        
+        /**
+         * Writes the length, in bytes, followed by the bits written so far.
+         */
+        void writeTo(final DataOutputStream out) throws IOException {
+            final int length = (int) ((position + 7) >>> 3);
+            out.writeInt(length);
+            out.write(buffer, 0, length);
+        }
+    }
+    
+    /**
+     * Reads bits from a region of a buffer, without copying it.
+     */
+    private static final class BitReader {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private long position = 0;
+        
+        BitReader(final ByteBuffer buffer, final int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+        
+        long readBits(int count) {
+            long result = 0;
+            while (count > 0) {
+                final int available = 8 - (int) (position & 7);
+                final int take = Math.min(available, count);
+                final int b = buffer.get(offset + (int) (position >>> 3)) & 0xFF;
+                result = (result << take) | ((b >>> (available - take)) & ((1 << take) - 1));
+                position += take;
+                count -= take;
+            }
+            return result;
+        }
+        
+        long readVarLong() {
+            long result = 0;
+            int shift = 0;
+            long b;
+            do {
+                b = readBits(8);
+                result |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+    }
+    
+    /**
+     * One series of a segment, decoded from the segment's buffer each time it is
+     * iterated.  Like {@code DerivedDataPoints}, index based access copies the
+     * points to the heap once and keeps them.
+     */
+    static final class MappedSeries implements DataPoints {
+        private final String metricName;
+        private final Map<String, String> tags;
+        private final List<String> aggregatedTags;
+        private final List<String> tsuids;
+        private final int size;
+        
+        private final ByteBuffer buffer;
+        private final int timestampsOffset;
+        private final int typesOffset;
+        private final int valuesOffset;
+        
+        private MaterializedDataPoints materialized;
+        
+        MappedSeries(final String metricName, final Map<String, String> tags, final List<String> aggregatedTags, 
+                final List<String> tsuids, final int size, final ByteBuffer buffer, 
+                final int timestampsOffset, final int typesOffset, final int valuesOffset) {
+            this.metricName = metricName;
+            this.tags = ImmutableMap.copyOf(tags);
+            this.aggregatedTags = ImmutableList.copyOf(aggregatedTags);
+            this.tsuids = ImmutableList.copyOf(tsuids);
+            this.size = size;
+            this.buffer = buffer;
+            this.timestampsOffset = timestampsOffset;
+            this.typesOffset = typesOffset;
+            this.valuesOffset = valuesOffset;
+        }
+        
+        synchronized MaterializedDataPoints materialized() {
+            if (materialized == null) {
+                final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(metricName, tags)
+                    .addAggregatedTags(aggregatedTags)
+                    .addTsuids(tsuids);
+                
+                final Cursor cursor = new Cursor();
+                while (cursor.hasNext()) {
+                    builder.add(cursor.next());
+                }
+                
+                materialized = builder.build();
+            }
+            
+            return materialized;
+        }
+        
+        @Override
+        public String metricName() {
+            return metricName;
+        }
+        
+        @Override
+        public Deferred<String> metricNameAsync() {
+            return Deferred.fromResult(metricName);
+        }
+        
+        @Override
+        public Map<String, String> getTags() {
+            return tags;
+        }
+        
+        @Override
+        public Deferred<Map<String, String>> getTagsAsync() {
+            return Deferred.fromResult(tags);
+        }
+        
+        @Override
+        public List<String> getAggregatedTags() {
+            return aggregatedTags;
+        }
+        
+        @Override
+        public Deferred<List<String>> getAggregatedTagsAsync() {
+            return Deferred.fromResult(aggregatedTags);
+        }
+        
+        @Override
+        public List<String> getTSUIDs() {
+            return tsuids;
+        }
+        
+        @Override
+        public List<Annotation> getAnnotations() {
+            return Collections.emptyList();
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public int aggregatedSize() {
+            return size;
+        }
+        
+        @Override
+        public SeekableView iterator() {
+            return new Cursor();
+        }
+        
+        @Override
+        public long timestamp(final int i) {
+            return materialized().timestamp(i);
+        }
+        
+        @Override
+        public boolean isInteger(final int i) {
+            return materialized().isInteger(i);
+        }
+        
+        @Override
+        public long longValue(final int i) {
+            return materialized().longValue(i);
+        }
+        
+        @Override
+        public double doubleValue(final int i) {
+            return materialized().doubleValue(i);
+        }
+        
+        @Override
+        public String toString() {
+            return "MappedSeries(" + metricName + ", " + tags + ", " + size + " points)";
+        }
+        
+        /**
+         * Decodes points one at a time, reading one point ahead.  Like TSDB iterators,
+         * it is also the {@link DataPoint} it returns.
+         */
+        private final class Cursor implements SeekableView, DataPoint {
+            private BitReader timestamps;
+            private BitReader types;
+            private XorDecoder values;
+            private int decoded;
+            private long delta;
+            
+            private long nextTimestamp;
+            private long nextBits;
+            private boolean nextInteger;
+            private boolean hasPending;
+            
+            private boolean returned;
+            private long timestamp;
+            private long bits;
+            private boolean integer;
+            
+            Cursor() {
+                rewind();
+            }
+            
+            private void rewind() {
+                timestamps = new BitReader(buffer, timestampsOffset);
+                types = new BitReader(buffer, typesOffset);
+                values = new XorDecoder(new BitReader(buffer, valuesOffset));
+                decoded = 0;
+                delta = 0;
+                nextTimestamp = 0;
+                hasPending = false;
+                returned = false;
+                decodeNext();
+            }
+            
+            private void decodeNext() {
+                if (decoded >= size) {
+                    hasPending = false;
+                    return;
+                }
+                
+                delta += unZigZag(timestamps.readVarLong());
+                nextTimestamp += delta;
+                nextBits = values.read();
+                nextInteger = (types.readBits(1) == 0);
+                decoded++;
+                hasPending = true;
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return hasPending;
+            }
+            
+            @Override
+            public DataPoint next() {
+                if (!hasPending) {
+                    throw new NoSuchElementException();
+                }
+                
+                timestamp = nextTimestamp;
+                bits = nextBits;
+                integer = nextInteger;
+                returned = true;
+                decodeNext();
+                return this;
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            /**
+             * Moves to the first point at or after the given timestamp.  Seeking
+             * backwards decodes the series again from the start.
+             */
+            @Override
+            public void seek(final long target) {
+                if (returned && timestamp >= target) {
+                    rewind();
+                }
+                while (hasPending && nextTimestamp < target) {
+                    decodeNext();
+                }
+            }
+            
+            @Override
+            public long timestamp() {
+                return timestamp;
+            }
+            
+            @Override
+            public boolean isInteger() {
+                return integer;
+            }
+            
+            @Override
+            public long longValue() {
+                if (!integer) {
+                    throw new ClassCastException("Value at " + timestamp + " is not an integer");
+                }
+                return bits;
+            }
+            
+            @Override
+            public double doubleValue() {
+                if (integer) {
+                    throw new ClassCastException("Value at " + timestamp + " is not a float");
+                }
+                return Double.longBitsToDouble(bits);
+            }
+            
+            @Override
+            public double toDouble() {
+                return integer ? (double) bits : Double.longBitsToDouble(bits);
+            }
+        }
+    }
+}
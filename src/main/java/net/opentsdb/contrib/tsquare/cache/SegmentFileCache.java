@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoints;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Persistent cache of immutable query results, one segment file (see {@link SegmentCodec})
+ * per cached bucket, in a local directory.  Segments are read through memory mapped
+ * buffers, so the cache can be much larger than the heap, and survive restarts: the
+ * directory is indexed on startup.  The series returned by {@link #get(String)} decode
+ * their points from the mapped buffer as they are iterated, without copying them to
+ * the heap.  The mappings of the {@code maxOpenSegments} most recently read segments
+ * are kept open.
+ * <p>
+ * Segments are written in the background.  Once the total size of all segments
+ * exceeds {@code maxBytes}, the least recently used ones are deleted.  Recency is
+ * kept in the modification time of each file, so it survives restarts as well.
+ * <p>
+ * There is no default {@code directory}: it must be set to somewhere with room for
+ * {@code maxBytes} of segments.
+ */
+public class SegmentFileCache implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(SegmentFileCache.class);
+    
+    private static final String SUFFIX = ".seg";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private File directory;
+    private long maxBytes = 10L * 1024 * 1024 * 1024;
+    private int maxOpenSegments = 1024;
+    
+    // Sizes of segment files by name, least recently used first.  Guarded by "this".
+    private final LinkedHashMap<String, Long> segments = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+    private long totalBytes = 0;
+    
+    // Mapped segment files by name, least recently used first.  Guarded by "this".
+    private final LinkedHashMap<String, MappedByteBuffer> openSegments = new LinkedHashMap<String, MappedByteBuffer>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, MappedByteBuffer> eldest) {
+            // Unmapped once no reader refers to it anymore.
+            return size() > maxOpenSegments;
+        }
+    };
+    
+    private ExecutorService writer;
+    
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Preconditions.checkState(directory != null, "No segment directory set");
+        
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create segment directory " + directory);
+        }
+        
+        final File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Longs.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        
+        synchronized (this) {
+            for (final File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    segments.put(file.getName(), Long.valueOf(file.length()));
+                    totalBytes += file.length();
+                } else {
+                    // Left over from an interrupted write.
+                    file.delete();
+                }
+            }
+            evict();
+        }
+        
+        log.info("Indexed {} segments ({} bytes) in {}", segments.size(), totalBytes, directory);
+        
+        writer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("segment-writer-%d").build());
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+    
+    /**
+     * @param key
+     * @return the series stored under the given key, backed by the segment's mapped
+     * buffer; {@code null} if there are none.
+     */
+    public DataPoints[] get(final String key) {
+        final String name = fileNameOf(key);
+        MappedByteBuffer buffer;
+        
+        synchronized (this) {
+            if (segments.get(name) == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            buffer = openSegments.get(name);
+        }
+        
+        final File file = new File(directory, name);
+        try {
+            if (buffer == null) {
+                buffer = map(file);
+                synchronized (this) {
+                    if (segments.containsKey(name)) {
+                        openSegments.put(name, buffer);
+                    }
+                }
+            }
+            
+            if (!key.equals(SegmentCodec.readKey(buffer))) {
+                // Hash collision; treat as a miss.
+                missCount.incrementAndGet();
+                return null;
+            }
+            
+            final DataPoints[] series = SegmentCodec.open(buffer);
+            file.setLastModified(System.currentTimeMillis());
+            hitCount.incrementAndGet();
+            return series;
+        } catch (Exception e) {
+            log.warn("Discarding unreadable segment " + file, e);
+            remove(name);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+    
+    /**
+     * Stores the given series under the given key, in the background.
+     */
+    public void put(final String key, final MaterializedDataPoints[] series) {
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(key, series);
+                    } catch (Exception e) {
+                        log.warn("Unable to write segment for " + key, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+    
+    private void write(final String key, final MaterializedDataPoints[] series) throws IOException {
+        final String name = fileNameOf(key);
+        final byte[] segment = SegmentCodec.encode(key, series);
+        
+        // Write to a temporary file first, so that readers never see a partial segment.
+        final File temp = new File(directory, name + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(segment);
+        } finally {
+            out.close();
+        }
+        
+        final File file = new File(directory, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        
+        synchronized (this) {
+            openSegments.remove(name);
+            final Long previous = segments.put(name, Long.valueOf(segment.length));
+            totalBytes += segment.length - (previous == null ? 0 : previous.longValue());
+            evict();
+        }
+        
+        writeCount.incrementAndGet();
+    }
+    
+    private static MappedByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private synchronized void remove(final String name) {
+        openSegments.remove(name);
+        final Long size = segments.remove(name);
+        if (size != null) {
+            totalBytes -= size.longValue();
+        }
+        new File(directory, name).delete();
+    }
+    
+    /**
+     * Deletes least recently used segments until the total size is within bounds.
+     */
+    private synchronized void evict() {
+        final Iterator<Map.Entry<String, Long>> it = segments.entrySet().iterator();
+        
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            openSegments.remove(eldest.getKey());
+            totalBytes -= eldest.getValue().longValue();
+            // Readers that have already mapped the file keep their mapping.
+            new File(directory, eldest.getKey()).delete();
+            evictionCount.incrementAndGet();
+        }
+    }
+    
+    static String fileNameOf(final String key) {
+        return Hashing.sha1().hashString(key, UTF_8).toString() + SUFFIX;
+    }
+    
+    /**
+     * @return counts of hits, misses, writes and evictions, the number of segments
+     * and their total size.
+     */
+    public synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("hits", Long.valueOf(hitCount.get()));
+        stats.put("misses", Long.valueOf(missCount.get()));
+        stats.put("writes", Long.valueOf(writeCount.get()));
+        stats.put("evictions", Long.valueOf(evictionCount.get()));
+        stats.put("segments", Integer.valueOf(segments.size()));
+        stats.put("openSegments", Integer.valueOf(openSegments.size()));
+        stats.put("bytes", Long.valueOf(totalBytes));
+        return stats;
+    }
+    
+    /**
+     * @param directory where segment files are kept.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * @param maxOpenSegments number of segment files whose mappings are kept open
+     * between reads.
+     */
+    public void setMaxOpenSegments(int maxOpenSegments) {
+        Preconditions.checkArgument(maxOpenSegments >= 0, "Invalid max open segments: %s", maxOpenSegments);
+        this.maxOpenSegments = maxOpenSegments;
+    }
+    
+    /**
+     * @param maxBytes upper bound on the total size of all segment files.
+     */
+    public void setMaxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "Invalid max bytes: %s", maxBytes);
+        this.maxBytes = maxBytes;
+    }
+}
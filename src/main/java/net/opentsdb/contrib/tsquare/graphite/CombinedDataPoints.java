@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Combines several series into one with an {@link Aggregator}, the way Graphite's
+ * {@code sumSeries}, {@code averageSeries} and friends do.  The input series are
+ * merged by timestamp, and at each timestamp the aggregator is applied to one value
+ * from every series whose time range covers it.  Like TSDB's own aggregation (see
+ * {@code SpanGroup}), series that don't have a point at that exact timestamp
+ * contribute a value interpolated linearly between their points on either side, so
+ * raw series written at different times still add up.  Series that haven't started
+ * yet, or have already ended, are left out.
+ */
+public class CombinedDataPoints extends DerivedDataPoints {
+    private final List<DataPoints> series;
+    private final Aggregator aggregator;
+    
+    public CombinedDataPoints(final String name, final List<DataPoints> series, final Aggregator aggregator) {
+        this(name, series, aggregator, Maps.<String, String>newHashMap(), Lists.<String>newArrayList());
+    }
+    
+    private CombinedDataPoints(final String name, final List<DataPoints> series, final Aggregator aggregator,
+            final Map<String, String> tags, final List<String> aggregatedTags) {
+        super(name, combine(series, tags, aggregatedTags), aggregatedTags);
+        this.series = ImmutableList.copyOf(series);
+        this.aggregator = aggregator;
+    }
+    
+    private static Map<String, String> combine(final List<DataPoints> series, final Map<String, String> tags, final List<String> aggregatedTags) {
+        combineTags(series, tags, aggregatedTags);
+        return tags;
+    }
+    
+    @Override
+    protected SeekableView newIterator() {
+        return new MergingIterator();
+    }
+    
+    /**
+     * K-way merge of the input series using a binary heap of series indexes,
+     * ordered by the timestamp of each series' next point.
+     */
+    private final class MergingIterator extends PointIterator implements Aggregator.Doubles {
+        private final SeekableView[] iterators;
+        /** Next point of each series, if {@link #pending}. */
+        private final long[] timestamps;
+        private final double[] values;
+        private final boolean[] pending;
+        /** Last point of each series before the current timestamp, if {@link #started}. */
+        private final long[] previousTimestamps;
+        private final double[] previousValues;
+        private final boolean[] started;
+        
+        private final int[] heap;
+        private int heapSize = 0;
+        /** Series with a point at the current timestamp. */
+        private final int[] exact;
+        
+        /** Values at the current timestamp, fed to the aggregator. */
+        private final double[] group;
+        private int groupSize = 0;
+        private int groupNext = 0;
+        
+        MergingIterator() {
+            final int n = series.size();
+            iterators = new SeekableView[n];
+            timestamps = new long[n];
+            values = new double[n];
+            pending = new boolean[n];
+            previousTimestamps = new long[n];
+            previousValues = new double[n];
+            started = new boolean[n];
+            heap = new int[n];
+            exact = new int[n];
+            group = new double[n];
+            
+            for (int i=0; i<n; i++) {
+                iterators[i] = series.get(i).iterator();
+                pending[i] = advance(i);
+                if (pending[i]) {
+                    push(i);
+                }
+            }
+        }
+        
+        private boolean advance(final int i) {
+            if (!iterators[i].hasNext()) {
+                return false;
+            }
+            
+            final DataPoint p = iterators[i].next();
+            timestamps[i] = p.timestamp();
+            values[i] = p.toDouble();
+            return true;
+        }
+        
+        @Override
+        protected boolean computeNext() {
+            if (heapSize == 0) {
+                return false;
+            }
+            
+            final long timestamp = timestamps[heap[0]];
+            groupSize = 0;
+            
+            // Series with a point at this timestamp.
+            int exactSize = 0;
+            while (heapSize > 0 && timestamps[heap[0]] == timestamp) {
+                final int i = pop();
+                group[groupSize++] = values[i];
+                exact[exactSize++] = i;
+            }
+            
+            // Series with points on either side of it.
+            for (int i=0; i<iterators.length; i++) {
+                if (started[i] && pending[i] && timestamps[i] != timestamp) {
+                    final double fraction = (double) (timestamp - previousTimestamps[i]) / (timestamps[i] - previousTimestamps[i]);
+                    group[groupSize++] = previousValues[i] + (values[i] - previousValues[i]) * fraction;
+                }
+            }
+            
+            for (int k=0; k<exactSize; k++) {
+                final int i = exact[k];
+                previousTimestamps[i] = timestamp;
+                previousValues[i] = values[i];
+                started[i] = true;
+                pending[i] = advance(i);
+                if (pending[i]) {
+                    push(i);
+                }
+            }
+            
+            groupNext = 0;
+            setNext(timestamp, aggregator.runDouble(this));
+            return true;
+        }
+        
+        @Override
+        public boolean hasNextValue() {
+            return groupNext < groupSize;
+        }
+        
+        @Override
+        public double nextDoubleValue() {
+            return group[groupNext++];
+        }
+        
+        private void push(final int i) {
+            int pos = heapSize++;
+            while (pos > 0) {
+                final int parent = (pos - 1) >>> 1;
+                if (timestamps[heap[parent]] <= timestamps[i]) {
+                    break;
+                }
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = i;
+        }
+        
+        private int pop() {
+            final int top = heap[0];
+            final int last = heap[--heapSize];
+            int pos = 0;
+            
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && timestamps[heap[child + 1]] < timestamps[heap[child]]) {
+                    child++;
+                }
+                if (timestamps[last] <= timestamps[heap[child]]) {
+                    break;
+                }
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            
+            if (heapSize > 0) {
+                heap[pos] = last;
+            }
+            return top;
+        }
+    }
+}
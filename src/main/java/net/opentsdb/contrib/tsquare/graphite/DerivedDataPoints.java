@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.meta.Annotation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Base class for series computed from other series.  Points are computed each
+ * time the series is iterated, so evaluating a function costs nothing until a
+ * writer streams its result.  Index based access (including {@link #size()})
+ * computes the points once and keeps them.
+ */
+public abstract class DerivedDataPoints implements DataPoints {
+    private final String name;
+    private final Map<String, String> tags;
+    private final List<String> aggregatedTags;
+    
+    private MaterializedDataPoints materialized;
+    
+    protected DerivedDataPoints(final String name, final Map<String, String> tags, final List<String> aggregatedTags) {
+        this.name = name;
+        this.tags = ImmutableMap.copyOf(tags);
+        this.aggregatedTags = ImmutableList.copyOf(aggregatedTags);
+    }
+    
+    /**
+     * A series derived from a single other series, keeping its tags.
+     */
+    protected DerivedDataPoints(final String name, final DataPoints source) {
+        this(name, source.getTags(), source.getAggregatedTags());
+    }
+    
+    /**
+     * @return a new iterator over the computed points.
+     */
+    protected abstract SeekableView newIterator();
+    
+    @Override
+    public final SeekableView iterator() {
+        synchronized (this) {
+            if (materialized != null) {
+                return materialized.iterator();
+            }
+        }
+        
+        return newIterator();
+    }
+    
+    private synchronized MaterializedDataPoints materialized() {
+        if (materialized == null) {
+            final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(name, tags)
+                .addAggregatedTags(aggregatedTags);
+            
+            final SeekableView it = newIterator();
+            while (it.hasNext()) {
+                builder.add(it.next());
+            }
+            
+            materialized = builder.build();
+        }
+        
+        return materialized;
+    }
+    
+    @Override
+    public String metricName() {
+        return name;
+    }
+    
+    @Override
+    public Deferred<String> metricNameAsync() {
+        return Deferred.fromResult(name);
+    }
+    
+    @Override
+    public Map<String, String> getTags() {
+        return tags;
+    }
+    
+    @Override
+    public Deferred<Map<String, String>> getTagsAsync() {
+        return Deferred.fromResult(tags);
+    }
+    
+    @Override
+    public List<String> getAggregatedTags() {
+        return aggregatedTags;
+    }
+    
+    @Override
+    public Deferred<List<String>> getAggregatedTagsAsync() {
+        return Deferred.fromResult(aggregatedTags);
+    }
+    
+    @Override
+    public List<String> getTSUIDs() {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public List<Annotation> getAnnotations() {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public int size() {
+        return materialized().size();
+    }
+    
+    @Override
+    public int aggregatedSize() {
+        return size();
+    }
+    
+    @Override
+    public long timestamp(final int i) {
+        return materialized().timestamp(i);
+    }
+    
+    @Override
+    public boolean isInteger(final int i) {
+        return materialized().isInteger(i);
+    }
+    
+    @Override
+    public long longValue(final int i) {
+        return materialized().longValue(i);
+    }
+    
+    @Override
+    public double doubleValue(final int i) {
+        return materialized().doubleValue(i);
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + name + ")";
+    }
+    
+    /**
+     * Tags with the same value in every given series are kept; all other
+     * tags become aggregated tags.  This mirrors how TSDB groups series.
+     * 
+     * @param series
+     * @param tags receives the common tags.
+     * @param aggregatedTags receives the aggregated tags.
+     */
+    static void combineTags(final List<DataPoints> series, final Map<String, String> tags, final List<String> aggregatedTags) {
+        final Map<String, String> common = Maps.newHashMap();
+        if (!series.isEmpty()) {
+            common.putAll(series.get(0).getTags());
+        }
+        
+        for (final DataPoints points : series) {
+            common.entrySet().retainAll(points.getTags().entrySet());
+        }
+        
+        final List<String> aggregated = Lists.newArrayList();
+        for (final DataPoints points : series) {
+            for (final String tag : Iterables.concat(points.getAggregatedTags(), points.getTags().keySet())) {
+                if (!common.containsKey(tag) && !aggregated.contains(tag)) {
+                    aggregated.add(tag);
+                }
+            }
+        }
+        
+        tags.putAll(common);
+        aggregatedTags.addAll(aggregated);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+
+import net.opentsdb.core.DataPoints;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Evaluated arguments of a {@link FunctionTarget}, with typed accessors that
+ * report invalid arguments using {@link IllegalArgumentException}.
+ */
+public final class FunctionArgs {
+    private final String functionName;
+    private final List<Object> values;
+    private final List<String> texts;
+    
+    FunctionArgs(final String functionName, final List<Object> values, final List<String> texts) {
+        this.functionName = functionName;
+        this.values = values;
+        this.texts = texts;
+    }
+    
+    public String getFunctionName() {
+        return functionName;
+    }
+    
+    public int size() {
+        return values.size();
+    }
+    
+    /**
+     * @return the series list at the given position.
+     */
+    @SuppressWarnings("unchecked")
+    public List<DataPoints> getSeriesList(final int index) {
+        final Object value = get(index);
+        Preconditions.checkArgument(value instanceof List, "%s: argument %s must be a series list", functionName, index + 1);
+        return (List<DataPoints>) value;
+    }
+    
+    /**
+     * @return all series of all arguments, which must all be series lists.
+     */
+    public List<DataPoints> getAllSeries() {
+        Preconditions.checkArgument(!values.isEmpty(), "%s: at least one series list is required", functionName);
+        
+        final List<DataPoints> series = Lists.newArrayList();
+        for (int i=0; i<values.size(); i++) {
+            series.addAll(getSeriesList(i));
+        }
+        return series;
+    }
+    
+    public double getNumber(final int index) {
+        final Object value = get(index);
+        Preconditions.checkArgument(value instanceof Double, "%s: argument %s must be a number", functionName, index + 1);
+        return ((Double) value).doubleValue();
+    }
+    
+    public int getInt(final int index) {
+        final double value = getNumber(index);
+        Preconditions.checkArgument(value == Math.rint(value), "%s: argument %s must be an integer", functionName, index + 1);
+        return (int) value;
+    }
+    
+    public String getString(final int index) {
+        final Object value = get(index);
+        Preconditions.checkArgument(value instanceof String, "%s: argument %s must be a string", functionName, index + 1);
+        return (String) value;
+    }
+    
+    public String getString(final int index, final String defaultValue) {
+        return (index < values.size()) ? getString(index) : defaultValue;
+    }
+    
+    public boolean getBoolean(final int index, final boolean defaultValue) {
+        if (index >= values.size()) {
+            return defaultValue;
+        }
+        
+        final Object value = values.get(index);
+        Preconditions.checkArgument(value instanceof Boolean, "%s: argument %s must be true or false", functionName, index + 1);
+        return ((Boolean) value).booleanValue();
+    }
+    
+    public Object get(final int index) {
+        Preconditions.checkArgument(index < values.size(), "%s: missing argument %s", functionName, index + 1);
+        return values.get(index);
+    }
+    
+    /**
+     * @return the given argument as it appeared in the target.
+     */
+    public String getText(final int index) {
+        return texts.get(index);
+    }
+    
+    /**
+     * @return all arguments, separated by commas, as they appeared in the target.
+     */
+    public String getAllText() {
+        return Joiner.on(',').join(texts);
+    }
+}
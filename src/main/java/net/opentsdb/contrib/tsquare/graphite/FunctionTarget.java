@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.core.DataPoints;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * A call to a {@link SeriesFunction}.  Arguments are either nested
+ * {@link TargetExpression}s or literals ({@link Double}, {@link String}
+ * or {@link Boolean}).
+ */
+public final class FunctionTarget extends TargetExpression {
+    private final String name;
+    private final SeriesFunction function;
+    private final List<Object> args;
+    private final List<String> argTexts;
+    
+    public FunctionTarget(final String name, final SeriesFunction function, final List<Object> args, final List<String> argTexts) {
+        this.name = name;
+        this.function = function;
+        this.args = ImmutableList.copyOf(args);
+        this.argTexts = ImmutableList.copyOf(argTexts);
+    }
+    
+    @Override
+    public List<Metric> getMetrics() {
+        final List<Metric> metrics = Lists.newArrayList();
+        for (final Object arg : args) {
+            if (arg instanceof TargetExpression) {
+                metrics.addAll(((TargetExpression) arg).getMetrics());
+            }
+        }
+        return metrics;
+    }
+    
+    @Override
+    public List<DataPoints> evaluate(final SeriesSource source) {
+        final List<Object> values = Lists.newArrayListWithCapacity(args.size());
+        for (final Object arg : args) {
+            if (arg instanceof TargetExpression) {
+                values.add(((TargetExpression) arg).evaluate(source));
+            } else {
+                values.add(arg);
+            }
+        }
+        
+        return function.apply(new FunctionArgs(name, values, argTexts));
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public String toString() {
+        return name + "(" + Joiner.on(',').join(argTexts) + ")";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.core.DataPoints;
+
+/**
+ * A plain metric, e.g. {@code sum:1m-avg:sys.cpu.user{host=*}}.
+ */
+public final class MetricTarget extends TargetExpression {
+    private final Metric metric;
+    private final String text;
+    
+    public MetricTarget(final Metric metric, final String text) {
+        this.metric = metric;
+        this.text = text;
+    }
+    
+    @Override
+    public List<Metric> getMetrics() {
+        return Collections.singletonList(metric);
+    }
+    
+    @Override
+    public List<DataPoints> evaluate(final SeriesSource source) {
+        return Arrays.asList(source.fetch(metric));
+    }
+    
+    public Metric getMetric() {
+        return metric;
+    }
+    
+    @Override
+    public String toString() {
+        return text;
+    }
+}
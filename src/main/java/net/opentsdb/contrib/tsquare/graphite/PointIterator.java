@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.SeekableView;
+
+/**
+ * Base class for iterators over computed points.  Like TSDB iterators, the
+ * iterator is also the {@link DataPoint} it returns.  Computed values are
+ * always floating point.
+ */
+public abstract class PointIterator implements SeekableView, DataPoint {
+    private long timestamp;
+    private double value;
+    
+    private long nextTimestamp;
+    private double nextValue;
+    private boolean hasPending = false;
+    private boolean done = false;
+    
+    /**
+     * Computes the next point and passes it to {@link #setNext(long, double)}.
+     * 
+     * @return {@code false} if there are no more points.
+     */
+    protected abstract boolean computeNext();
+    
+    protected final void setNext(final long timestamp, final double value) {
+        this.nextTimestamp = timestamp;
+        this.nextValue = value;
+    }
+    
+    @Override
+    public final boolean hasNext() {
+        if (!hasPending && !done) {
+            hasPending = computeNext();
+            done = !hasPending;
+        }
+        return hasPending;
+    }
+    
+    @Override
+    public final DataPoint next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        timestamp = nextTimestamp;
+        value = nextValue;
+        hasPending = false;
+        return this;
+    }
+    
+    @Override
+    public final void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Skips forward to the first point at or after the given timestamp.  Points
+     * are still computed (and discarded) along the way, so stateful functions
+     * produce the same values as they would without seeking.
+     */
+    @Override
+    public void seek(final long timestamp) {
+        while (hasNext() && nextTimestamp < timestamp) {
+            hasPending = false;
+        }
+    }
+    
+    @Override
+    public final long timestamp() {
+        return timestamp;
+    }
+    
+    @Override
+    public final boolean isInteger() {
+        return false;
+    }
+    
+    @Override
+    public final long longValue() {
+        throw new ClassCastException("Computed values are not integers");
+    }
+    
+    @Override
+    public final double doubleValue() {
+        return value;
+    }
+    
+    @Override
+    public final double toDouble() {
+        return value;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+
+import net.opentsdb.core.DataPoints;
+
+/**
+ * A Graphite series function, such as {@code sumSeries} or {@code scale}.
+ * Implementations should return lazily evaluated series (see {@link DerivedDataPoints})
+ * rather than computing all points up front.
+ * 
+ * @see SeriesFunctions
+ */
+public interface SeriesFunction {
+    /**
+     * @param args evaluated arguments of the function call.
+     * @return resulting series.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    List<DataPoints> apply(FunctionArgs args);
+}
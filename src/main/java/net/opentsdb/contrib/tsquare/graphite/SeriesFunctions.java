@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.DateTimeExpressionParser;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Doubles;
+
+/**
+ * The Graphite series functions supported by {@code /graphite/render}.  Semantics
+ * follow http://graphite.readthedocs.org/en/latest/functions.html as closely as
+ * TSDB data allows; all computed values are floating point.
+ */
+public final class SeriesFunctions {
+    private static final List<String> SUMMARIZE_FUNCS = ImmutableList.of("sum", "avg", "max", "min", "last");
+    
+    private SeriesFunctions() {
+    }
+    
+    /**
+     * @return all built-in functions, by name.
+     */
+    public static ImmutableMap<String, SeriesFunction> defaults() {
+        return ImmutableMap.<String, SeriesFunction>builder()
+                .put("sumSeries", new Combine(Aggregators.SUM))
+                .put("sum", new Combine(Aggregators.SUM))
+                .put("averageSeries", new Combine(Aggregators.AVG))
+                .put("avg", new Combine(Aggregators.AVG))
+                .put("maxSeries", new Combine(Aggregators.MAX))
+                .put("minSeries", new Combine(Aggregators.MIN))
+                .put("stddevSeries", new Combine(Aggregators.DEV))
+                .put("scale", new Scale())
+                .put("offset", new Offset())
+                .put("absolute", new Absolute())
+                .put("derivative", new Derivative(false))
+                .put("nonNegativeDerivative", new Derivative(true))
+                .put("movingAverage", new MovingAverage())
+                .put("summarize", new Summarize())
+                .put("highestCurrent", new Select(Rank.CURRENT, true))
+                .put("lowestCurrent", new Select(Rank.CURRENT, false))
+                .put("highestAverage", new Select(Rank.AVERAGE, true))
+                .put("lowestAverage", new Select(Rank.AVERAGE, false))
+                .put("highestMax", new Select(Rank.MAX, true))
+                .put("limit", new Limit())
+                .put("alias", new Alias())
+                .build();
+    }
+    
+    /**
+     * Parses a Graphite interval such as {@code 5min} or {@code 1h}.
+     */
+    static long parseIntervalMillis(final String interval) {
+        final long millis = new DateTimeExpressionParser()
+            .setBaseTimeMillis(0) // ... parse a relative duration
+            .setPositiveOffset(true)
+            .parseRequired(interval);
+        Preconditions.checkArgument(millis > 0, "Invalid interval: %s", interval);
+        return millis;
+    }
+    
+    static String formatNumber(final double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+    
+    /**
+     * Iterator over one source series; subclasses read the source with {@link #nextSource()}.
+     */
+    private abstract static class SourceIterator extends PointIterator {
+        private final SeekableView source;
+        protected long sourceTimestamp;
+        protected double sourceValue;
+        
+        SourceIterator(final DataPoints points) {
+            this.source = points.iterator();
+        }
+        
+        protected final boolean nextSource() {
+            if (!source.hasNext()) {
+                return false;
+            }
+            
+            final DataPoint p = source.next();
+            sourceTimestamp = p.timestamp();
+            sourceValue = p.toDouble();
+            return true;
+        }
+    }
+    
+    /**
+     * Base for functions that transform each series on its own.
+     */
+    private abstract static class PerSeries implements SeriesFunction {
+        @Override
+        public List<DataPoints> apply(final FunctionArgs args) {
+            final List<DataPoints> input = args.getSeriesList(0);
+            final List<DataPoints> output = Lists.newArrayListWithCapacity(input.size());
+            
+            for (final DataPoints series : input) {
+                output.add(apply(series, args));
+            }
+            return output;
+        }
+        
+        protected abstract DataPoints apply(DataPoints series, FunctionArgs args);
+    }
+    
+    /**
+     * Base for functions that map every value independently of the others.
+     */
+    private abstract static class MapValues extends PerSeries {
+        @Override
+        protected DataPoints apply(final DataPoints series, final FunctionArgs args) {
+            final String name = name(series, args);
+            final double argument = (args.size() > 1) ? args.getNumber(1) : Double.NaN;
+            
+            return new DerivedDataPoints(name, series) {
+                @Override
+                protected SeekableView newIterator() {
+                    return new SourceIterator(series) {
+                        @Override
+                        protected boolean computeNext() {
+                            if (!nextSource()) {
+                                return false;
+                            }
+                            setNext(sourceTimestamp, map(sourceValue, argument));
+                            return true;
+                        }
+                    };
+                }
+            };
+        }
+        
+        protected String name(final DataPoints series, final FunctionArgs args) {
+            return args.getFunctionName() + "(" + series.metricName() + ")";
+        }
+        
+        protected abstract double map(double value, double argument);
+    }
+    
+    /** sumSeries(seriesList, ...), averageSeries, maxSeries, minSeries, stddevSeries */
+    private static final class Combine implements SeriesFunction {
+        private final Aggregator aggregator;
+        
+        Combine(final Aggregator aggregator) {
+            this.aggregator = aggregator;
+        }
+        
+        @Override
+        public List<DataPoints> apply(final FunctionArgs args) {
+            final List<DataPoints> series = args.getAllSeries();
+            if (series.isEmpty()) {
+                return Collections.emptyList();
+            }
+            
+            final String name = args.getFunctionName() + "(" + args.getAllText() + ")";
+            return Collections.<DataPoints>singletonList(new CombinedDataPoints(name, series, aggregator));
+        }
+    }
+    
+    /** scale(seriesList, factor) */
+    private static final class Scale extends MapValues {
+        @Override
+        protected String name(final DataPoints series, final FunctionArgs args) {
+            return "scale(" + series.metricName() + "," + formatNumber(args.getNumber(1)) + ")";
+        }
+        
+        @Override
+        protected double map(final double value, final double factor) {
+            return value * factor;
+        }
+    }
+    
+    /** offset(seriesList, amount) */
+    private static final class Offset extends MapValues {
+        @Override
+        protected String name(final DataPoints series, final FunctionArgs args) {
+            return "offset(" + series.metricName() + "," + formatNumber(args.getNumber(1)) + ")";
+        }
+        
+        @Override
+        protected double map(final double value, final double amount) {
+            return value + amount;
+        }
+    }
+    
+    /** absolute(seriesList) */
+    private static final class Absolute extends MapValues {
+        @Override
+        protected double map(final double value, final double ignored) {
+            return Math.abs(value);
+        }
+    }
+    
+    /** derivative(seriesList) and nonNegativeDerivative(seriesList, [maxValue]) */
+    private static final class Derivative extends PerSeries {
+        private final boolean nonNegative;
+        
+        Derivative(final boolean nonNegative) {
+            this.nonNegative = nonNegative;
+        }
+        
+        @Override
+        protected DataPoints apply(final DataPoints series, final FunctionArgs args) {
+            final double maxValue = (nonNegative && args.size() > 1) ? args.getNumber(1) : Double.NaN;
+            
+            return new DerivedDataPoints(args.getFunctionName() + "(" + series.metricName() + ")", series) {
+                @Override
+                protected SeekableView newIterator() {
+                    return new SourceIterator(series) {
+                        private boolean first = true;
+                        private double previous;
+                        
+                        @Override
+                        protected boolean computeNext() {
+                            while (nextSource()) {
+                                final double value = sourceValue;
+                                double delta = value - previous;
+                                final boolean skip = first;
+                                
+                                first = false;
+                                previous = value;
+                                
+                                if (skip) {
+                                    continue;
+                                }
+                                
+                                if (nonNegative && delta < 0) {
+                                    if (Double.isNaN(maxValue) || value > maxValue) {
+                                        // Counter reset; Graphite reports None.
+                                        continue;
+                                    }
+                                    // Counter wrapped.
+                                    delta += maxValue + 1;
+                                }
+                                
+                                setNext(sourceTimestamp, delta);
+                                return true;
+                            }
+                            return false;
+                        }
+                    };
+                }
+            };
+        }
+    }
+    
+    /**
+     * movingAverage(seriesList, windowSize) where the window is either a number of
+     * points or an interval such as {@code "5min"}.  A second iterator over the
+     * source trails the first by the window size, so no points are buffered.
+     */
+    private static final class MovingAverage extends PerSeries {
+        @Override
+        protected DataPoints apply(final DataPoints series, final FunctionArgs args) {
+            final Object window = args.get(1);
+            final int windowPoints;
+            final long windowMillis;
+            final String windowText;
+            
+            if (window instanceof String) {
+                windowPoints = -1;
+                windowMillis = parseIntervalMillis((String) window);
+                windowText = "\"" + window + "\"";
+            } else {
+                windowPoints = args.getInt(1);
+                windowMillis = -1;
+                windowText = Integer.toString(windowPoints);
+                Preconditions.checkArgument(windowPoints > 0, "movingAverage: window size must be positive: %s", windowPoints);
+            }
+            
+            final String name = "movingAverage(" + series.metricName() + "," + windowText + ")";
+            
+            return new DerivedDataPoints(name, series) {
+                @Override
+                protected SeekableView newIterator() {
+                    return new SourceIterator(series) {
+                        private final SeekableView trailing = series.iterator();
+                        /** Oldest point in the window. */
+                        private long oldestTimestamp;
+                        private double oldestValue;
+                        
+                        private double sum = 0;
+                        private int count = 0;
+                        
+                        @Override
+                        protected boolean computeNext() {
+                            if (!nextSource()) {
+                                return false;
+                            }
+                            
+                            if (count == 0) {
+                                nextOldest();
+                            }
+                            
+                            sum += sourceValue;
+                            count++;
+                            
+                            while (windowPoints > 0 ? count > windowPoints : (count > 1 && oldestTimestamp <= sourceTimestamp - windowMillis)) {
+                                sum -= oldestValue;
+                                count--;
+                                // The trailing iterator never passes the leading one, so there is a next point.
+                                nextOldest();
+                            }
+                            
+                            setNext(sourceTimestamp, sum / count);
+                            return true;
+                        }
+                        
+                        private void nextOldest() {
+                            final DataPoint p = trailing.next();
+                            oldestTimestamp = p.timestamp();
+                            oldestValue = p.toDouble();
+                        }
+                    };
+                }
+            };
+        }
+    }
+    
+    /**
+     * summarize(seriesList, intervalString, func="sum", alignToFrom=false) where
+     * {@code func} is one of sum, avg, max, min or last.  Buckets are aligned to
+     * multiples of the interval or, with {@code alignToFrom}, to the first point
+     * of each series.
+     */
+    private static final class Summarize extends PerSeries {
+        @Override
+        protected DataPoints apply(final DataPoints series, final FunctionArgs args) {
+            final String intervalText = args.getString(1);
+            final long intervalMillis = parseIntervalMillis(intervalText);
+            final String func = args.getString(2, "sum");
+            final boolean alignToFrom = args.getBoolean(3, false);
+            
+            Preconditions.checkArgument(SUMMARIZE_FUNCS.contains(func), "summarize: unsupported function: %s", func);
+            
+            final String name = "summarize(" + series.metricName() + ", \"" + intervalText + "\", \"" + func + "\""
+                    + (alignToFrom ? ", true" : "") + ")";
+            
+            return new DerivedDataPoints(name, series) {
+                @Override
+                protected SeekableView newIterator() {
+                    return new SourceIterator(series) {
+                        private boolean started = false;
+                        private boolean pending = false;
+                        private long origin;
+                        
+                        private long bucket;
+                        private double sum;
+                        private double min;
+                        private double max;
+                        private double last;
+                        private int count;
+                        
+                        @Override
+                        protected boolean computeNext() {
+                            while (pending || nextSource()) {
+                                pending = false;
+                                
+                                if (!started) {
+                                    origin = alignToFrom ? sourceTimestamp : 0;
+                                    started = true;
+                                    reset(bucketOf(sourceTimestamp));
+                                }
+                                
+                                final long b = bucketOf(sourceTimestamp);
+                                if (b != bucket) {
+                                    // Emit the finished bucket; the current point starts the next one.
+                                    setNext(bucket, result());
+                                    reset(b);
+                                    pending = true;
+                                    return true;
+                                }
+                                
+                                sum += sourceValue;
+                                min = Math.min(min, sourceValue);
+                                max = Math.max(max, sourceValue);
+                                last = sourceValue;
+                                count++;
+                            }
+                            
+                            if (count > 0) {
+                                setNext(bucket, result());
+                                count = 0;
+                                return true;
+                            }
+                            return false;
+                        }
+                        
+                        private long bucketOf(final long timestamp) {
+                            final long offset = timestamp - origin;
+                            return timestamp - (((offset % intervalMillis) + intervalMillis) % intervalMillis);
+                        }
+                        
+                        private void reset(final long b) {
+                            bucket = b;
+                            sum = 0;
+                            min = Double.POSITIVE_INFINITY;
+                            max = Double.NEGATIVE_INFINITY;
+                            count = 0;
+                        }
+                        
+                        private double result() {
+                            if ("avg".equals(func)) {
+                                return sum / count;
+                            } else if ("max".equals(func)) {
+                                return max;
+                            } else if ("min".equals(func)) {
+                                return min;
+                            } else if ("last".equals(func)) {
+                                return last;
+                            } else {
+                                return sum;
+                            }
+                        }
+                    };
+                }
+            };
+        }
+    }
+    
+    /**
+     * How {@link Select} ranks series.
+     */
+    private enum Rank {
+        CURRENT, AVERAGE, MAX;
+        
+        double of(final DataPoints series) {
+            double current = Double.NaN;
+            double sum = 0;
+            double max = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            
+            final SeekableView it = series.iterator();
+            while (it.hasNext()) {
+                final double value = it.next().toDouble();
+                current = value;
+                sum += value;
+                max = Math.max(max, value);
+                count++;
+            }
+            
+            switch (this) {
+            case AVERAGE:
+                return (count == 0) ? Double.NaN : sum / count;
+            case MAX:
+                return (count == 0) ? Double.NaN : max;
+            default:
+                return current;
+            }
+        }
+    }
+    
+    /**
+     * highestCurrent(seriesList, n), lowestCurrent, highestAverage, lowestAverage and
+     * highestMax.  Ranking reads each series once; the selected series are returned
+     * as they are.  Empty series rank last.
+     */
+    private static final class Select implements SeriesFunction {
+        private final Rank rank;
+        private final boolean highest;
+        
+        Select(final Rank rank, final boolean highest) {
+            this.rank = rank;
+            this.highest = highest;
+        }
+        
+        @Override
+        public List<DataPoints> apply(final FunctionArgs args) {
+            final List<DataPoints> input = args.getSeriesList(0);
+            final int n = (args.size() > 1) ? args.getInt(1) : 1;
+            Preconditions.checkArgument(n >= 0, "%s: n must not be negative: %s", args.getFunctionName(), n);
+            
+            final List<Ranked> ranked = Lists.newArrayListWithCapacity(input.size());
+            for (final DataPoints series : input) {
+                ranked.add(new Ranked(series, rank.of(series)));
+            }
+            
+            Collections.sort(ranked, new Comparator<Ranked>() {
+                @Override
+                public int compare(final Ranked a, final Ranked b) {
+                    // NaN (empty series) sorts last either way.
+                    if (Double.isNaN(a.value) || Double.isNaN(b.value)) {
+                        return Booleans.compare(Double.isNaN(a.value), Double.isNaN(b.value));
+                    }
+                    return highest ? Doubles.compare(b.value, a.value) : Doubles.compare(a.value, b.value);
+                }
+            });
+            
+            final List<DataPoints> output = Lists.newArrayListWithCapacity(Math.min(n, ranked.size()));
+            for (final Ranked r : ranked.subList(0, Math.min(n, ranked.size()))) {
+                output.add(r.series);
+            }
+            return output;
+        }
+    }
+    
+    private static final class Ranked {
+        final DataPoints series;
+        final double value;
+        
+        Ranked(final DataPoints series, final double value) {
+            this.series = series;
+            this.value = value;
+        }
+    }
+    
+    /** limit(seriesList, n) */
+    private static final class Limit implements SeriesFunction {
+        @Override
+        public List<DataPoints> apply(final FunctionArgs args) {
+            final List<DataPoints> input = args.getSeriesList(0);
+            final int n = args.getInt(1);
+            Preconditions.checkArgument(n >= 0, "limit: n must not be negative: %s", n);
+            return input.subList(0, Math.min(n, input.size()));
+        }
+    }
+    
+    /** alias(seriesList, newName) */
+    private static final class Alias extends PerSeries {
+        @Override
+        protected DataPoints apply(final DataPoints series, final FunctionArgs args) {
+            return new DerivedDataPoints(args.getString(1), series) {
+                @Override
+                protected SeekableView newIterator() {
+                    return series.iterator();
+                }
+            };
+        }
+    }
+}
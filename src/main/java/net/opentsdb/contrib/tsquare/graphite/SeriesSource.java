@@ -13,15 +13,18 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package net.opentsdb.core;
+package net.opentsdb.contrib.tsquare.graphite;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.core.DataPoints;
 
 /**
- * @author James Royalty (jroyalty) <i>[Jun 21, 2013]</i>
+ * Supplies query results to {@link TargetExpression#evaluate(SeriesSource)}.
  */
-final class QueryAbortedException extends Exception {
-    private static final long serialVersionUID = 1L;
-
-    QueryAbortedException() {
-        super();
-    }
+public interface SeriesSource {
+    /**
+     * @param metric one of the metrics returned by {@link TargetExpression#getMetrics()}.
+     * @return all series returned by the query for the given metric.
+     */
+    DataPoints[] fetch(Metric metric);
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.core.DataPoints;
+
+/**
+ * A parsed Graphite target: either a plain metric or a (possibly nested)
+ * call to a {@link SeriesFunction}.  See {@link TargetParser}.
+ */
+public abstract class TargetExpression {
+    /**
+     * @return every metric this expression reads, in order of appearance.
+     */
+    public abstract List<Metric> getMetrics();
+    
+    /**
+     * Evaluates this expression.  Function results are lazy: points are computed
+     * as the returned series are iterated.
+     * 
+     * @param source supplies query results for the metrics of this expression.
+     * @return resulting series, in order.
+     */
+    public abstract List<DataPoints> evaluate(SeriesSource source);
+    
+    /**
+     * @return the expression as text, in the same form it was parsed from.
+     */
+    @Override
+    public abstract String toString();
+}
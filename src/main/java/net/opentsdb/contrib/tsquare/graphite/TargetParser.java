@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import net.opentsdb.contrib.tsquare.MetricParser;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Parses Graphite target expressions, e.g.
+ * {@code alias(sumSeries(sum:1m-avg:sys.cpu.user{host=web*,dc=east}), "cpu")}.
+ * Metrics are parsed by the given {@link MetricParser}; commas and parentheses
+ * inside a metric's tag block belong to the metric.  Function arguments can also
+ * be numbers, quoted strings, or {@code true} and {@code false}.
+ * 
+ * <p>Instances are thread safe.
+ */
+public class TargetParser {
+    private static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+    
+    private final MetricParser metricParser;
+    private final Map<String, SeriesFunction> functions;
+    
+    public TargetParser(final MetricParser metricParser, final Map<String, SeriesFunction> functions) {
+        this.metricParser = metricParser;
+        this.functions = ImmutableMap.copyOf(functions);
+    }
+    
+    /**
+     * @param target
+     * @return the parsed expression.
+     * @throws IllegalArgumentException if the target is not a valid expression.
+     */
+    public TargetExpression parse(final String target) {
+        final Parse p = new Parse(target);
+        final Object result = p.parseArgument();
+        
+        p.skipWhitespace();
+        Preconditions.checkArgument(p.pos == target.length(), "Unexpected '%s' at position %s of target: %s",
+                p.pos < target.length() ? target.charAt(p.pos) : ' ', p.pos, target);
+        Preconditions.checkArgument(result instanceof TargetExpression, "Target is not a series expression: %s", target);
+        
+        return (TargetExpression) result;
+    }
+    
+    /**
+     * State of a single parse.
+     */
+    private final class Parse {
+        private final String text;
+        private int pos = 0;
+        
+        Parse(final String text) {
+            this.text = text;
+        }
+        
+        /**
+         * @return a {@link TargetExpression}, or a literal {@link Double}, {@link String} or {@link Boolean}.
+         */
+        Object parseArgument() {
+            skipWhitespace();
+            Preconditions.checkArgument(pos < text.length(), "Unexpected end of target: %s", text);
+            
+            final char ch = text.charAt(pos);
+            if (ch == '"' || ch == '\'') {
+                return parseString(ch);
+            }
+            
+            // Is this a function call?
+            int end = pos;
+            while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                end++;
+            }
+            
+            if (end > pos && end < text.length() && text.charAt(end) == '(') {
+                final String name = text.substring(pos, end);
+                final SeriesFunction function = functions.get(name);
+                Preconditions.checkArgument(function != null, "Unknown function: %s", name);
+                
+                pos = end + 1;
+                return parseCall(name, function);
+            }
+            
+            final String token = scanMetric();
+            Preconditions.checkArgument(!token.isEmpty(), "Expected an argument at position %s of target: %s", pos, text);
+            
+            if (NUMBER.matcher(token).matches()) {
+                return Double.valueOf(token);
+            } else if ("true".equalsIgnoreCase(token) || "false".equalsIgnoreCase(token)) {
+                return Boolean.valueOf(token);
+            } else {
+                return new MetricTarget(metricParser.parseMetric(token), token);
+            }
+        }
+        
+        private FunctionTarget parseCall(final String name, final SeriesFunction function) {
+            final List<Object> args = Lists.newArrayList();
+            final List<String> argTexts = Lists.newArrayList();
+            
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == ')') {
+                pos++;
+                return new FunctionTarget(name, function, args, argTexts);
+            }
+            
+            while (true) {
+                skipWhitespace();
+                final int start = pos;
+                args.add(parseArgument());
+                argTexts.add(text.substring(start, pos).trim());
+                
+                skipWhitespace();
+                Preconditions.checkArgument(pos < text.length(), "Missing ')' in target: %s", text);
+                
+                final char ch = text.charAt(pos++);
+                if (ch == ')') {
+                    return new FunctionTarget(name, function, args, argTexts);
+                }
+                Preconditions.checkArgument(ch == ',', "Unexpected '%s' at position %s of target: %s", ch, pos - 1, text);
+            }
+        }
+        
+        private String parseString(final char quote) {
+            final int end = text.indexOf(quote, pos + 1);
+            Preconditions.checkArgument(end > 0, "Unterminated string in target: %s", text);
+            
+            final String value = text.substring(pos + 1, end);
+            pos = end + 1;
+            return value;
+        }
+        
+        /**
+         * @return text up to the next comma or closing parenthesis that is
+         * not inside a tag block.
+         */
+        private String scanMetric() {
+            final int start = pos;
+            int braces = 0;
+            
+            while (pos < text.length()) {
+                final char ch = text.charAt(pos);
+                if (ch == '{') {
+                    braces++;
+                } else if (ch == '}') {
+                    braces--;
+                } else if (braces == 0 && (ch == ',' || ch == ')')) {
+                    break;
+                }
+                pos++;
+            }
+            
+            Preconditions.checkArgument(braces == 0, "Unbalanced braces in target: %s", text);
+            return text.substring(start, pos).trim();
+        }
+        
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
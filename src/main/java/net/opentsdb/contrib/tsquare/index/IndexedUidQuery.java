@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.index;
+
+import net.opentsdb.contrib.tsquare.QueryCallback;
+import net.opentsdb.contrib.tsquare.Uid;
+import net.opentsdb.contrib.tsquare.UidQuery;
+
+import com.google.common.base.Preconditions;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * {@link UidQuery} answered from a {@link UidIndex} rather than a scan of the UID table.
+ */
+public final class IndexedUidQuery implements UidQuery {
+    /** See {@link UidIndex#grep(String, String, Uid, QueryCallback)}. */
+    public static final String ORDER = "kind,name-ci";
+    
+    private final UidIndex index;
+    private String regex;
+    private String includeKind;
+    private Uid startAfter;
+    
+    public IndexedUidQuery(final UidIndex index, final String initialKind) {
+        this.index = index;
+        this.includeKind = initialKind;
+    }
+    
+    @Override
+    public void run(final QueryCallback<Uid> callback) {
+        Preconditions.checkState(regex != null, "No regex has been set");
+        
+        try {
+            index.grep(regex, includeKind, startAfter, callback);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("UID query callback threw an exception.", e);
+        }
+    }
+    
+    /**
+     * The index is in memory, so this runs the query right away.
+     */
+    @Override
+    public Deferred<Object> runAsync(final QueryCallback<Uid> callback) {
+        try {
+            run(callback);
+            return Deferred.fromResult(null);
+        } catch (RuntimeException e) {
+            return Deferred.fromError(e);
+        }
+    }
+    
+    /**
+     * @return zero; the UID table isn't read.
+     */
+    @Override
+    public long getScannedRowCount() {
+        return 0;
+    }
+    
+    @Override
+    public void setRegex(String expression) {
+        regex = expression;
+    }
+    
+    @Override
+    public void includeAllKinds() {
+        this.includeKind = null;
+    }
+    
+    @Override
+    public void includeKind(String kind) {
+        this.includeKind = kind;
+    }
+    
+    @Override
+    public void setStartAfter(Uid after) {
+        this.startAfter = after;
+    }
+    
+    @Override
+    public String getOrder() {
+        return ORDER;
+    }
+    
+    /**
+     * Ignored; the index is in memory so queries don't hold any resources
+     * worth abandoning.
+     */
+    @Override
+    public void setTimeoutMillis(long timeoutMillis) {
+    }
+}
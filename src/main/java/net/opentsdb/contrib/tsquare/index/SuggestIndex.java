@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.index;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+/**
+ * In-memory token index of UID names for ranked, typo tolerant autocompletion.
+ * Names are split into lower case tokens at anything that isn't a letter or digit
+ * ({@code sys.cpu.idle} has the tokens {@code sys}, {@code cpu} and {@code idle}).
+ * A query is split the same way, and its tokens may come in any order.  Each query
+ * token matches name tokens exactly, by prefix or within a small edit distance,
+ * in decreasing order of weight.  Names are ranked by the sum of the best weight
+ * of each query token, with bonuses for matching every query token, for names
+ * with few other tokens and for names that start with the first query token.
+ * 
+ * <p>The index of a kind is built in full when all of its names are loaded, and
+ * names that are added later are merged into it (see {@code net.opentsdb.core.TsdbUidIndexUpdater}).
+ * Either way it is replaced atomically, so queries never wait for a build.
+ */
+public class SuggestIndex {
+    private static final float EXACT_WEIGHT = 1.0f;
+    private static final float PREFIX_WEIGHT = 0.5f;
+    private static final float FUZZY_WEIGHT = 0.4f;
+    private static final float COMPLETE_BONUS = 1.0f;
+    private static final float LEADING_BONUS = 0.5f;
+    private static final float COVERAGE_BONUS = 0.5f;
+    private static final int MAX_QUERY_TOKENS = 8;
+    
+    private volatile ImmutableMap<String, Tokens> tokensByKind = ImmutableMap.of();
+    
+    public boolean isLoaded() {
+        return !tokensByKind.isEmpty();
+    }
+    
+    /**
+     * Replaces the index of one kind.
+     * 
+     * @param kind
+     * @param names all names of the kind.
+     */
+    public synchronized void update(final String kind, final List<String> names) {
+        put(kind, Tokens.EMPTY.merge(names));
+    }
+    
+    /**
+     * Adds names to the index of one kind.  Only the added names are tokenized.
+     * 
+     * @param kind
+     * @param names names that aren't in the index yet, e.g. of newly assigned UIDs.
+     */
+    public synchronized void addAll(final String kind, final Collection<String> names) {
+        final Tokens tokens = tokensByKind.get(kind);
+        put(kind, (tokens == null ? Tokens.EMPTY : tokens).merge(names));
+    }
+    
+    private void put(final String kind, final Tokens tokens) {
+        final ImmutableMap.Builder<String, Tokens> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, Tokens> entry : tokensByKind.entrySet()) {
+            if (!entry.getKey().equals(kind)) {
+                builder.put(entry);
+            }
+        }
+        builder.put(kind, tokens);
+        tokensByKind = builder.build();
+    }
+    
+    /**
+     * @param query tokens to look for, in any order, e.g. {@code cpu idle web}.
+     * Only the first {@value #MAX_QUERY_TOKENS} tokens are used.
+     * @param kind the kind of names to search; {@code null} or empty for all kinds.
+     * @param limit maximum number of suggestions.
+     * @return best matches first.
+     */
+    public List<Suggestion> suggest(final String query, final String kind, final int limit) {
+        List<String> queryTokens = tokenize(query);
+        if (queryTokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        if (queryTokens.size() > MAX_QUERY_TOKENS) {
+            queryTokens = queryTokens.subList(0, MAX_QUERY_TOKENS);
+        }
+        
+        // Worst of the best suggestions at the head.
+        final PriorityQueue<Suggestion> best = new PriorityQueue<Suggestion>(limit + 1, Suggestion.RANKING.reverse());
+        final Map<String, Tokens> snapshot = tokensByKind;
+        
+        for (final String entryKind : Ordering.natural().sortedCopy(snapshot.keySet())) {
+            if (!Strings.isNullOrEmpty(kind) && !kind.equals(entryKind)) {
+                continue;
+            }
+            
+            final Tokens tokens = snapshot.get(entryKind);
+            final Matches matches = tokens.match(queryTokens);
+            
+            for (int i=0; i<matches.weights.length; i++) {
+                if (matches.matched[i] == 0) {
+                    continue;
+                }
+                
+                final String name = tokens.names.get(i);
+                final float score = score(name, queryTokens, matches.weights[i], matches.matched[i], tokens.tokenCounts[i]);
+                if (best.size() >= limit && score < best.peek().score) {
+                    continue;
+                }
+                
+                best.add(new Suggestion(name, entryKind, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        
+        final List<Suggestion> result = Lists.newArrayList(best);
+        Collections.sort(result, Suggestion.RANKING);
+        return result;
+    }
+    
+    /**
+     * @param weight sum of the best weight of each query token.
+     * @param matched number of query tokens that matched.
+     * @param nameTokens number of tokens of the name.
+     */
+    private static float score(final String name, final List<String> queryTokens, final float weight, 
+            final int matched, final int nameTokens) {
+        float score = weight + COVERAGE_BONUS * Math.min(1f, (float) matched / Math.max(nameTokens, 1));
+        
+        if (matched == queryTokens.size()) {
+            score += COMPLETE_BONUS;
+        }
+        
+        final String first = queryTokens.get(0);
+        if (name.regionMatches(true, 0, first, 0, first.length())) {
+            score += LEADING_BONUS;
+        }
+        
+        return score;
+    }
+    
+    /**
+     * @return lower case tokens of the given string, in order.
+     */
+    static List<String> tokenize(final String s) {
+        final List<String> tokens = Lists.newArrayList();
+        int start = -1;
+        
+        for (int i=0; i<=s.length(); i++) {
+            final boolean inToken = (i < s.length() && Character.isLetterOrDigit(s.charAt(i)));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                tokens.add(s.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        
+        return tokens;
+    }
+    
+    /**
+     * @return edits allowed for a fuzzy match of a query token of the given length.
+     */
+    static int maxEdits(final int length) {
+        if (length >= 6) {
+            return 2;
+        }
+        return (length >= 3) ? 1 : 0;
+    }
+    
+    /**
+     * @return Levenshtein distance between the given strings, or {@code max + 1} if
+     * it is more than {@code max}.
+     */
+    static int editDistance(final String a, final String b, final int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j=0; j<=b.length(); j++) {
+            previous[j] = j;
+        }
+        
+        for (int i=1; i<=a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            
+            for (int j=1; j<=b.length(); j++) {
+                final int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            
+            if (rowMin > max) {
+                return max + 1;
+            }
+            
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        
+        return Math.min(previous[b.length()], max + 1);
+    }
+    
+    /**
+     * Per name weights of one query, indexed like the names of a {@link Tokens}.
+     */
+    private static final class Matches {
+        /** Sum of the best weight of each query token. */
+        final float[] weights;
+        /** Number of query tokens that matched. */
+        final byte[] matched;
+        /** 1 + the last query token that matched. */
+        final byte[] lastQueryToken;
+        
+        Matches(final int size) {
+            weights = new float[size];
+            matched = new byte[size];
+            lastQueryToken = new byte[size];
+        }
+        
+        /**
+         * Adds weight to names that haven't matched the given query token yet.  For
+         * each query token, callers go from the heaviest matches to the lightest.
+         */
+        void add(final int queryToken, final int[] posting, final float weight) {
+            for (final int name : posting) {
+                if (lastQueryToken[name] != queryToken + 1) {
+                    lastQueryToken[name] = (byte) (queryToken + 1);
+                    weights[name] += weight;
+                    matched[name]++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Distinct tokens of the names of one kind, sorted, with the names that have each.
+     */
+    private static final class Tokens {
+        static final Tokens EMPTY = new Tokens(Collections.<String> emptyList(), new byte[0], new String[0], new int[0][]);
+        
+        final List<String> names;
+        /** Number of tokens of each name, up to {@link Byte#MAX_VALUE}. */
+        final byte[] tokenCounts;
+        final String[] tokens;
+        /** Indexes into {@link #names}, by token. */
+        final int[][] postings;
+        
+        private Tokens(final List<String> names, final byte[] tokenCounts, final String[] tokens, final int[][] postings) {
+            this.names = names;
+            this.tokenCounts = tokenCounts;
+            this.tokens = tokens;
+            this.postings = postings;
+        }
+        
+        /**
+         * @return tokens of these names followed by the given ones.
+         */
+        Tokens merge(final Collection<String> added) {
+            final int base = names.size();
+            final List<String> mergedNames = Lists.newArrayListWithCapacity(base + added.size());
+            mergedNames.addAll(names);
+            mergedNames.addAll(added);
+            
+            final byte[] mergedCounts = Arrays.copyOf(tokenCounts, mergedNames.size());
+            final Map<String, List<Integer>> byToken = Maps.newHashMap();
+            
+            for (int i=base; i<mergedNames.size(); i++) {
+                final Set<String> nameTokens = Sets.newHashSet(tokenize(mergedNames.get(i)));
+                mergedCounts[i] = (byte) Math.min(nameTokens.size(), Byte.MAX_VALUE);
+                
+                for (final String token : nameTokens) {
+                    List<Integer> posting = byToken.get(token);
+                    if (posting == null) {
+                        posting = Lists.newArrayListWithCapacity(4);
+                        byToken.put(token, posting);
+                    }
+                    posting.add(i);
+                }
+            }
+            
+            final String[] addedTokens = byToken.keySet().toArray(new String[byToken.size()]);
+            Arrays.sort(addedTokens);
+            
+            // Both token arrays are sorted; names that were added have the highest
+            // indexes, so their postings go at the end.
+            String[] mergedTokens = new String[tokens.length + addedTokens.length];
+            int[][] mergedPostings = new int[mergedTokens.length][];
+            int n = 0;
+            int a = 0;
+            
+            for (int t=0; t<tokens.length || a<addedTokens.length; n++) {
+                final int cmp = (t == tokens.length) ? 1 : (a == addedTokens.length) ? -1 : tokens[t].compareTo(addedTokens[a]);
+                
+                if (cmp < 0) {
+                    mergedTokens[n] = tokens[t];
+                    mergedPostings[n] = postings[t++];
+                } else if (cmp > 0) {
+                    mergedTokens[n] = addedTokens[a];
+                    mergedPostings[n] = Ints.toArray(byToken.get(addedTokens[a++]));
+                } else {
+                    mergedTokens[n] = tokens[t];
+                    mergedPostings[n] = Ints.concat(postings[t++], Ints.toArray(byToken.get(addedTokens[a++])));
+                }
+            }
+            
+            if (n < mergedTokens.length) {
+                mergedTokens = Arrays.copyOf(mergedTokens, n);
+                mergedPostings = Arrays.copyOf(mergedPostings, n);
+            }
+            
+            return new Tokens(mergedNames, mergedCounts, mergedTokens, mergedPostings);
+        }
+        
+        Matches match(final List<String> queryTokens) {
+            final Matches matches = new Matches(names.size());
+            
+            for (int q=0; q<queryTokens.size(); q++) {
+                final String queryToken = queryTokens.get(q);
+                
+                // Exact and prefix matches are contiguous in sorted order, the
+                // exact match (if any) first.
+                int from = Arrays.binarySearch(tokens, queryToken);
+                final boolean exact = (from >= 0);
+                if (!exact) {
+                    from = -(from + 1);
+                }
+                int to = from;
+                while (to < tokens.length && tokens[to].startsWith(queryToken)) {
+                    to++;
+                }
+                
+                // Shorter tokens are closer matches, so weigh more.
+                final Integer[] prefixMatches = new Integer[to - from];
+                for (int i=from; i<to; i++) {
+                    prefixMatches[i - from] = i;
+                }
+                Arrays.sort(prefixMatches, new Comparator<Integer>() {
+                    @Override
+                    public int compare(final Integer a, final Integer b) {
+                        return tokens[a].length() - tokens[b].length();
+                    }
+                });
+                
+                for (final int i : prefixMatches) {
+                    final float weight = (tokens[i].length() == queryToken.length()) 
+                            ? EXACT_WEIGHT : PREFIX_WEIGHT + PREFIX_WEIGHT * queryToken.length() / tokens[i].length();
+                    matches.add(q, postings[i], weight);
+                }
+                
+                // Look for misspellings only if the token isn't a known one.  Like most
+                // spelling correction, this assumes the first character is right.
+                final int maxEdits = maxEdits(queryToken.length());
+                if (exact || maxEdits == 0) {
+                    continue;
+                }
+                
+                final int first = lowerBound(queryToken.substring(0, 1));
+                final int last = lowerBound(queryToken.substring(0, 1) + Character.MAX_VALUE);
+                for (int distance=1; distance<=maxEdits; distance++) {
+                    for (int t=first; t<last; t++) {
+                        if ((t < from || t >= to) && editDistance(queryToken, tokens[t], maxEdits) == distance) {
+                            matches.add(q, postings[t], FUZZY_WEIGHT / distance);
+                        }
+                    }
+                }
+            }
+            
+            return matches;
+        }
+        
+        private int lowerBound(final String s) {
+            final int i = Arrays.binarySearch(tokens, s);
+            return (i < 0) ? -(i + 1) : i;
+        }
+    }
+    
+    /**
+     * A suggested name, with its score.
+     */
+    public static final class Suggestion {
+        /** Highest score first, then shorter names, then by name. */
+        static final Ordering<Suggestion> RANKING = new Ordering<Suggestion>() {
+            @Override
+            public int compare(final Suggestion a, final Suggestion b) {
+                int cmp = Float.compare(b.score, a.score);
+                if (cmp == 0) {
+                    cmp = a.name.length() - b.name.length();
+                }
+                if (cmp == 0) {
+                    cmp = a.name.compareTo(b.name);
+                }
+                if (cmp == 0) {
+                    cmp = a.kind.compareTo(b.kind);
+                }
+                return cmp;
+            }
+        };
+        
+        private final String name;
+        private final String kind;
+        private final float score;
+        
+        Suggestion(final String name, final String kind, final float score) {
+            this.name = name;
+            this.kind = kind;
+            this.score = score;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public String getKind() {
+            return kind;
+        }
+        
+        public float getScore() {
+            return score;
+        }
+        
+        @Override
+        public String toString() {
+            return kind + ":" + name + "(" + score + ")";
+        }
+    }
+}
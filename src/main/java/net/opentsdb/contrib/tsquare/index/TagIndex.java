@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+/**
+ * In-memory index of the tag keys and values that occur with each metric, and
+ * the number of series that have them.  Everything is held by UID in sorted
+ * primitive arrays; names are resolved through the {@link UidIndex}.
+ * 
+ * <p>Like the {@link UidIndex}, the index is replaced atomically and readers never
+ * block.  Loading is done elsewhere, see {@code net.opentsdb.core.TsdbTagIndexUpdater}.
+ */
+public class TagIndex {
+    private static final long[] NO_IDS = new long[0];
+    
+    @Autowired
+    private UidIndex uidIndex;
+    
+    private volatile Snapshot snapshot = null;
+    
+    /**
+     * @return {@code true} once {@link #replaceAll(Builder)} has been called.
+     */
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+    
+    /**
+     * Replaces the entire contents of the index.
+     * 
+     * @param builder
+     */
+    public void replaceAll(final Builder builder) {
+        snapshot = builder.build();
+    }
+    
+    /**
+     * @return number of metrics in the index.
+     */
+    public int getMetricCount() {
+        final Snapshot current = snapshot;
+        return (current == null) ? 0 : current.metricIds.length;
+    }
+    
+    /**
+     * @return tags of the given metric, or {@code null} if it isn't in the index.
+     */
+    public MetricTags get(final long metricId) {
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return null;
+        }
+        
+        final int i = Arrays.binarySearch(current.metricIds, metricId);
+        return (i < 0) ? null : current.tags[i];
+    }
+    
+    /**
+     * @param metric name of the metric.
+     * @return number of series of the metric, or -1 if it isn't in the index.
+     */
+    public int getSeriesCount(final String metric) {
+        final MetricTags metricTags = find(snapshot, metric);
+        return (metricTags == null) ? -1 : metricTags.getSeriesCount();
+    }
+    
+    /**
+     * Counts the series of a metric that a single tag filter matches.
+     * 
+     * @param metric name of the metric.
+     * @param tagKey
+     * @param valueFilter a tag value, alternatives such as {@code web01|web02}, or
+     * {@code *} for any value.
+     * @return series and distinct values matched, or {@code null} if the metric
+     * isn't in the index.
+     */
+    public FilterCount count(final String metric, final String tagKey, final String valueFilter) {
+        final Snapshot current = snapshot;
+        final MetricTags metricTags = find(current, metric);
+        if (metricTags == null) {
+            return null;
+        }
+        
+        final long tagKeyId = uidIndex.getId(current.tagKeyKind, tagKey);
+        if (tagKeyId < 0) {
+            return new FilterCount(0, 0);
+        }
+        
+        final int from = metricTags.indexOf(tagKeyId << 32);
+        final int to = metricTags.indexOf((tagKeyId + 1) << 32);
+        
+        long series = 0;
+        int values = 0;
+        if ("*".equals(valueFilter)) {
+            for (int i=from; i<to; i++) {
+                series += metricTags.getCount(i);
+            }
+            values = to - from;
+        } else {
+            for (final String value : Splitter.on('|').omitEmptyStrings().split(valueFilter)) {
+                final long tagValueId = uidIndex.getId(current.tagValueKind, value);
+                if (tagValueId < 0) {
+                    continue;
+                }
+                
+                final int i = metricTags.indexOf((tagKeyId << 32) | tagValueId);
+                if (i < to && metricTags.getTagValue(i) == tagValueId) {
+                    series += metricTags.getCount(i);
+                    values++;
+                }
+            }
+        }
+        
+        return new FilterCount(series, values);
+    }
+    
+    private MetricTags find(final Snapshot current, final String metric) {
+        if (current == null) {
+            return null;
+        }
+        
+        final long metricId = uidIndex.getId(current.metricKind, metric);
+        if (metricId < 0) {
+            return null;
+        }
+        
+        final int i = Arrays.binarySearch(current.metricIds, metricId);
+        return (i < 0) ? null : current.tags[i];
+    }
+    
+    /**
+     * Describes the tags of a metric, by name, for JSON:
+     * {@code {"metric":..., "series":n, "indexedAt":millis, "tags":{key:{"series":n, "values":{value:n, ...}}, ...}}}.
+     * Series counts are the number of series (distinct tag combinations) that have
+     * each key and value.  Keys and values are sorted by name.
+     * 
+     * @param metric name of the metric.
+     * @param tagKey if not {@code null}, only this tag key is described.
+     * @param maxValues if positive, only this many of the most common values of
+     * each key are described.
+     * @return description of the metric; without any tags if it isn't in the index.
+     */
+    public Map<String, Object> explore(final String metric, final String tagKey, final int maxValues) {
+        final Snapshot current = snapshot;
+        final Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("metric", metric);
+        result.put("indexedAt", (current == null) ? 0 : current.createdMillis);
+        
+        final long metricId = (current == null) ? -1 : uidIndex.getId(current.metricKind, metric);
+        final MetricTags metricTags = (metricId < 0) ? null : get(metricId);
+        final Map<String, Object> tags = Maps.newTreeMap();
+        result.put("series", (metricTags == null) ? 0 : metricTags.getSeriesCount());
+        result.put("tags", tags);
+        
+        if (metricTags == null) {
+            return result;
+        }
+        
+        final long tagKeyId = (tagKey == null) ? -1 : uidIndex.getId(current.tagKeyKind, tagKey);
+        if (tagKey != null && tagKeyId < 0) {
+            return result;
+        }
+        
+        int i = 0;
+        while (i < metricTags.size()) {
+            final long keyId = metricTags.getTagKey(i);
+            int end = i;
+            while (end < metricTags.size() && metricTags.getTagKey(end) == keyId) {
+                end++;
+            }
+            
+            final String keyName = uidIndex.getName(current.tagKeyKind, keyId);
+            if (keyName != null && (tagKey == null || keyId == tagKeyId)) {
+                tags.put(keyName, describeKey(current, metricTags, i, end, maxValues));
+            }
+            
+            i = end;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Describes the values of one tag key, which are at {@code [from, to)} of the given tags.
+     */
+    private Map<String, Object> describeKey(final Snapshot current, final MetricTags metricTags, final int from, final int to, final int maxValues) {
+        final List<Integer> positions = Lists.newArrayListWithCapacity(to - from);
+        long series = 0;
+        for (int i=from; i<to; i++) {
+            positions.add(i);
+            series += metricTags.getCount(i);
+        }
+        
+        if (maxValues > 0 && positions.size() > maxValues) {
+            // Most common first.
+            Collections.sort(positions, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer a, final Integer b) {
+                    return metricTags.getCount(b) - metricTags.getCount(a);
+                }
+            });
+            positions.subList(maxValues, positions.size()).clear();
+        }
+        
+        final Map<String, Integer> values = Maps.newTreeMap();
+        for (final int i : positions) {
+            final String valueName = uidIndex.getName(current.tagValueKind, metricTags.getTagValue(i));
+            if (valueName != null) {
+                values.put(valueName, metricTags.getCount(i));
+            }
+        }
+        
+        final Map<String, Object> description = Maps.newLinkedHashMap();
+        description.put("series", series);
+        description.put("values", values);
+        return description;
+    }
+    
+    public void setUidIndex(UidIndex uidIndex) {
+        this.uidIndex = uidIndex;
+    }
+    
+    /**
+     * Series and distinct tag values matched by a tag filter.
+     */
+    public static final class FilterCount {
+        private final long series;
+        private final int values;
+        
+        FilterCount(final long series, final int values) {
+            this.series = series;
+            this.values = values;
+        }
+        
+        public long getSeries() {
+            return series;
+        }
+        
+        public int getValues() {
+            return values;
+        }
+    }
+    
+    /**
+     * Tag key and value pairs of one metric, sorted by key and then value, with
+     * the number of series that have each pair.
+     */
+    public static final class MetricTags {
+        private final int seriesCount;
+        /** Key UID in the high 32 bits, value UID in the low 32 bits. */
+        private final long[] pairs;
+        private final int[] counts;
+        
+        private MetricTags(final int seriesCount, final long[] pairs, final int[] counts) {
+            this.seriesCount = seriesCount;
+            this.pairs = pairs;
+            this.counts = counts;
+        }
+        
+        public int getSeriesCount() {
+            return seriesCount;
+        }
+        
+        /**
+         * @return number of distinct key and value pairs.
+         */
+        public int size() {
+            return pairs.length;
+        }
+        
+        public long getTagKey(final int i) {
+            return pairs[i] >>> 32;
+        }
+        
+        public long getTagValue(final int i) {
+            return pairs[i] & 0xffffffffL;
+        }
+        
+        /**
+         * @param pair key UID in the high 32 bits, value UID in the low 32 bits.
+         * @return index of the first pair that is greater than or equal to the given one.
+         */
+        int indexOf(final long pair) {
+            final int i = Arrays.binarySearch(pairs, pair);
+            return (i < 0) ? -(i + 1) : i;
+        }
+        
+        /**
+         * @return number of series with the key and value at the given index.
+         */
+        public int getCount(final int i) {
+            return counts[i];
+        }
+    }
+    
+    private static final class Snapshot {
+        final String metricKind;
+        final String tagKeyKind;
+        final String tagValueKind;
+        final long createdMillis = System.currentTimeMillis();
+        final long[] metricIds;
+        final MetricTags[] tags;
+        
+        Snapshot(final String metricKind, final String tagKeyKind, final String tagValueKind, 
+                final long[] metricIds, final MetricTags[] tags) {
+            this.metricKind = metricKind;
+            this.tagKeyKind = tagKeyKind;
+            this.tagValueKind = tagValueKind;
+            this.metricIds = metricIds;
+            this.tags = tags;
+        }
+    }
+    
+    /**
+     * Accumulates series for a new index.  Not thread safe.
+     */
+    public static final class Builder {
+        private final String metricKind;
+        private final String tagKeyKind;
+        private final String tagValueKind;
+        private final Map<Long, MetricBuilder> metrics = Maps.newHashMap();
+        
+        /**
+         * @param metricKind kind of metric UIDs in the {@link UidIndex}; likewise
+         * for tag keys and tag values.
+         * @param tagKeyKind
+         * @param tagValueKind
+         */
+        public Builder(final String metricKind, final String tagKeyKind, final String tagValueKind) {
+            this.metricKind = metricKind;
+            this.tagKeyKind = tagKeyKind;
+            this.tagValueKind = tagValueKind;
+        }
+        
+        /**
+         * Adds a series.  Callers must add each series only once.
+         * 
+         * @param metricId
+         * @param tagKeyIds
+         * @param tagValueIds same length as {@code tagKeyIds}.
+         */
+        public Builder addSeries(final long metricId, final long[] tagKeyIds, final long[] tagValueIds) {
+            Preconditions.checkArgument(tagKeyIds.length == tagValueIds.length, "Tag keys and values differ in length");
+            
+            MetricBuilder metric = metrics.get(metricId);
+            if (metric == null) {
+                metric = new MetricBuilder();
+                metrics.put(metricId, metric);
+            }
+            
+            metric.seriesCount++;
+            for (int i=0; i<tagKeyIds.length; i++) {
+                Preconditions.checkArgument(tagKeyIds[i] <= 0xffffffffL && tagValueIds[i] <= 0xffffffffL, 
+                        "UID too wide: %s=%s", tagKeyIds[i], tagValueIds[i]);
+                final Long pair = (tagKeyIds[i] << 32) | tagValueIds[i];
+                final int[] count = metric.counts.get(pair);
+                if (count == null) {
+                    metric.counts.put(pair, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+            
+            return this;
+        }
+        
+        /**
+         * @return number of series added so far.
+         */
+        public long getSeriesCount() {
+            long count = 0;
+            for (final MetricBuilder metric : metrics.values()) {
+                count += metric.seriesCount;
+            }
+            return count;
+        }
+        
+        Snapshot build() {
+            final long[] metricIds = Longs.toArray(metrics.keySet());
+            Arrays.sort(metricIds);
+            
+            final MetricTags[] tags = new MetricTags[metricIds.length];
+            for (int i=0; i<metricIds.length; i++) {
+                tags[i] = metrics.get(metricIds[i]).build();
+            }
+            
+            return new Snapshot(metricKind, tagKeyKind, tagValueKind, metricIds, tags);
+        }
+    }
+    
+    private static final class MetricBuilder {
+        int seriesCount = 0;
+        final Map<Long, int[]> counts = Maps.newHashMap();
+        
+        MetricTags build() {
+            final long[] pairs = (counts.isEmpty()) ? NO_IDS : Longs.toArray(counts.keySet());
+            Arrays.sort(pairs);
+            
+            final int[] pairCounts = new int[pairs.length];
+            for (int i=0; i<pairs.length; i++) {
+                pairCounts[i] = counts.get(pairs[i])[0];
+            }
+            
+            return new MetricTags(seriesCount, pairs, pairCounts);
+        }
+    }
+}
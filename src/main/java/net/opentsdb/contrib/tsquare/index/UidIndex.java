@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import net.opentsdb.contrib.tsquare.QueryCallback;
+import net.opentsdb.contrib.tsquare.Uid;
+import net.opentsdb.contrib.tsquare.support.RegexPrefix;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+
+/**
+ * In-memory index of UID names, by kind (metrics, tag keys and tag values).
+ * Names of each kind are held in a sorted array, so queries whose regex is
+ * anchored to a literal prefix (all wildcard queries, for instance) only look
+ * at the names that start with that prefix.  Other regular expressions are
+ * matched against every name of the requested kinds, which is still much
+ * cheaper than a scan of the UID table.
+ * 
+ * <p>The index is replaced or extended atomically; readers never block and
+ * always see a consistent snapshot.  Loading is done elsewhere, see
+ * {@code net.opentsdb.core.TsdbUidIndexUpdater}.
+ */
+public class UidIndex {
+    /**
+     * Case insensitive order (so case insensitive prefixes are contiguous),
+     * broken by case sensitive order so the order is total.
+     */
+    private static final Ordering<String> NAME_ORDER = Ordering.from(String.CASE_INSENSITIVE_ORDER).compound(Ordering.<String>natural());
+    
+    private volatile ImmutableMap<String, Entries> entriesByKind = ImmutableMap.of();
+    private volatile boolean loaded = false;
+    
+    /**
+     * @return {@code true} once {@link #replaceAll(Map)} has been called.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    public Set<String> getKinds() {
+        return entriesByKind.keySet();
+    }
+    
+    /**
+     * @return number of names of the given kind.
+     */
+    public int size(final String kind) {
+        final Entries entries = entriesByKind.get(kind);
+        return (entries == null) ? 0 : entries.names.length;
+    }
+    
+    /**
+     * @return the greatest UID of the given kind, or {@code -1} if there are none.
+     */
+    public long getMaxId(final String kind) {
+        final Entries entries = entriesByKind.get(kind);
+        return (entries == null) ? -1 : entries.maxId;
+    }
+    
+    /**
+     * @return UID of the given name, or {@code -1} if it isn't in the index.
+     */
+    public long getId(final String kind, final String name) {
+        final Entries entries = entriesByKind.get(kind);
+        if (entries == null) {
+            return -1;
+        }
+        
+        final int i = Arrays.binarySearch(entries.names, name, NAME_ORDER);
+        return (i < 0) ? -1 : entries.ids[i];
+    }
+    
+    /**
+     * @return name of the given UID, or {@code null} if it isn't in the index.
+     */
+    public String getName(final String kind, final long id) {
+        final Entries entries = entriesByKind.get(kind);
+        return (entries == null) ? null : entries.nameOf(id);
+    }
+    
+    /**
+     * @return all names of the given kind, in case insensitive order.
+     */
+    public List<String> getNames(final String kind) {
+        final Entries entries = entriesByKind.get(kind);
+        return (entries == null) ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(entries.names));
+    }
+    
+    /**
+     * @return all UIDs of the given kind, in ascending order.
+     */
+    public long[] getIds(final String kind) {
+        final Entries entries = entriesByKind.get(kind);
+        return (entries == null) ? new long[0] : entries.byId().ids.clone();
+    }
+    
+    /**
+     * Replaces the entire contents of the index.
+     * 
+     * @param idsByNameByKind UIDs by name, by kind.
+     */
+    public synchronized void replaceAll(final Map<String, ? extends Map<String, Long>> idsByNameByKind) {
+        final ImmutableMap.Builder<String, Entries> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, ? extends Map<String, Long>> entry : idsByNameByKind.entrySet()) {
+            builder.put(entry.getKey(), Entries.EMPTY.merge(entry.getValue()));
+        }
+        
+        entriesByKind = builder.build();
+        loaded = true;
+    }
+    
+    /**
+     * Adds (or replaces) names of a single kind, keeping everything else as is.
+     * 
+     * @param kind
+     * @param idsByName UIDs by name.
+     */
+    public synchronized void addAll(final String kind, final Map<String, Long> idsByName) {
+        if (idsByName.isEmpty()) {
+            return;
+        }
+        
+        final ImmutableMap.Builder<String, Entries> builder = ImmutableMap.builder();
+        boolean found = false;
+        
+        for (final Map.Entry<String, Entries> entry : entriesByKind.entrySet()) {
+            if (entry.getKey().equals(kind)) {
+                builder.put(kind, entry.getValue().merge(idsByName));
+                found = true;
+            } else {
+                builder.put(entry);
+            }
+        }
+        
+        if (!found) {
+            builder.put(kind, Entries.EMPTY.merge(idsByName));
+        }
+        
+        entriesByKind = builder.build();
+    }
+    
+    /**
+     * Finds names that {@link java.util.regex.Matcher#find() contain} a match for the
+     * given regular expression, which is how HBase key regexps behave.  Names are
+     * returned kind by kind (in order of kind), in case insensitive order.
+     * 
+     * @param regex
+     * @param kind the kind of names to search; {@code null} or empty for all kinds.
+     * @param after if not {@code null}, only names that come after this UID in the
+     * order above are returned.
+     * @param callback
+     */
+    public void grep(final String regex, final String kind, final Uid after, final QueryCallback<Uid> callback) throws Exception {
+        final Pattern pattern = Pattern.compile(regex);
+        final RegexPrefix prefix = RegexPrefix.of(regex);
+        final Map<String, Entries> snapshot = entriesByKind;
+        
+        for (final String entryKind : Ordering.natural().sortedCopy(snapshot.keySet())) {
+            if (!Strings.isNullOrEmpty(kind) && !kind.equals(entryKind)) {
+                continue;
+            }
+            
+            final String[] names = snapshot.get(entryKind).names;
+            int start = lowerBound(names, prefix.getPrefix());
+            
+            if (after != null) {
+                final int cmp = entryKind.compareTo(after.getKind());
+                if (cmp < 0) {
+                    continue;
+                } else if (cmp == 0) {
+                    start = Math.max(start, upperBound(names, after.getName()));
+                }
+            }
+            
+            for (int i=start; i<names.length; i++) {
+                final String name = names[i];
+                
+                if (!prefix.isEmpty() && !name.regionMatches(true, 0, prefix.getPrefix(), 0, prefix.getPrefix().length())) {
+                    // Past the last name that could possibly match.
+                    break;
+                }
+                
+                if (pattern.matcher(name).find() && !callback.onResult(new Uid(name, entryKind))) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return index of the first name that is not less than {@code prefix}, ignoring case.
+     */
+    private static int lowerBound(final String[] names, final String prefix) {
+        if (prefix.isEmpty()) {
+            return 0;
+        }
+        
+        int low = 0;
+        int high = names.length;
+        
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(names[mid], prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * @return index of the first name that comes after {@code name} in {@link #NAME_ORDER}.
+     */
+    private static int upperBound(final String[] names, final String name) {
+        int low = 0;
+        int high = names.length;
+        
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (NAME_ORDER.compare(names[mid], name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * UIDs of a single kind in ascending order, with their names.
+     */
+    private static final class ById {
+        final long[] ids;
+        final String[] names;
+        
+        ById(final long[] ids, final String[] names) {
+            this.ids = ids;
+            this.names = names;
+        }
+    }
+    
+    /**
+     * Sorted names of a single kind, with their UIDs.
+     */
+    private static final class Entries {
+        static final Entries EMPTY = new Entries(new String[0], new long[0]);
+        
+        final String[] names;
+        final long[] ids;
+        final long maxId;
+        
+        // Reverse lookups, built on first use.
+        private volatile ById byId;
+        
+        Entries(final String[] names, final long[] ids) {
+            this.names = names;
+            this.ids = ids;
+            
+            long max = -1;
+            for (final long id : ids) {
+                max = Math.max(max, id);
+            }
+            this.maxId = max;
+        }
+        
+        String nameOf(final long id) {
+            final ById reverse = byId();
+            final int i = Arrays.binarySearch(reverse.ids, id);
+            return (i < 0) ? null : reverse.names[i];
+        }
+        
+        ById byId() {
+            ById reverse = byId;
+            if (reverse == null) {
+                // Racing threads build identical copies; that's harmless.
+                final long[] sortedIds = ids.clone();
+                Arrays.sort(sortedIds);
+                
+                final String[] sortedNames = new String[names.length];
+                for (int i=0; i<names.length; i++) {
+                    sortedNames[Arrays.binarySearch(sortedIds, ids[i])] = names[i];
+                }
+                
+                reverse = new ById(sortedIds, sortedNames);
+                byId = reverse;
+            }
+            return reverse;
+        }
+        
+        /**
+         * @return a copy of these entries with the given names added.  Given
+         * names that are already present replace the existing ones.
+         */
+        Entries merge(final Map<String, Long> idsByName) {
+            final List<String> added = NAME_ORDER.sortedCopy(idsByName.keySet());
+            
+            final String[] mergedNames = new String[names.length + added.size()];
+            final long[] mergedIds = new long[mergedNames.length];
+            int i = 0, j = 0, k = 0;
+            
+            while (i < names.length || j < added.size()) {
+                final int cmp;
+                if (i >= names.length) {
+                    cmp = 1;
+                } else if (j >= added.size()) {
+                    cmp = -1;
+                } else {
+                    cmp = NAME_ORDER.compare(names[i], added.get(j));
+                }
+                
+                if (cmp < 0) {
+                    mergedNames[k] = names[i];
+                    mergedIds[k] = ids[i];
+                    i++;
+                } else {
+                    mergedNames[k] = added.get(j);
+                    mergedIds[k] = idsByName.get(added.get(j));
+                    j++;
+                    if (cmp == 0) {
+                        // Replaced.
+                        i++;
+                    }
+                }
+                
+                k++;
+            }
+            
+            if (k < mergedNames.length) {
+                return new Entries(Arrays.copyOf(mergedNames, k), Arrays.copyOf(mergedIds, k));
+            } else {
+                return new Entries(mergedNames, mergedIds);
+            }
+        }
+    }
+}
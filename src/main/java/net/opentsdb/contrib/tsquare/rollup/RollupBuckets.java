@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.rollup;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An immutable run of pre-aggregated buckets (sum, count, min, max and last value)
+ * of one series, in ascending order of their start times.  Updates produce new
+ * instances, so readers never see a partially applied update.
+ */
+public final class RollupBuckets {
+    public static final RollupBuckets EMPTY = new Builder().build();
+    
+    private final int size;
+    private final long[] starts;
+    private final double[] sums;
+    private final long[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] lasts;
+    
+    private RollupBuckets(final Builder builder) {
+        this.size = builder.size;
+        this.starts = Arrays.copyOf(builder.starts, builder.size);
+        this.sums = Arrays.copyOf(builder.sums, builder.size);
+        this.counts = Arrays.copyOf(builder.counts, builder.size);
+        this.mins = Arrays.copyOf(builder.mins, builder.size);
+        this.maxs = Arrays.copyOf(builder.maxs, builder.size);
+        this.lasts = Arrays.copyOf(builder.lasts, builder.size);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long start(final int i) {
+        return starts[i];
+    }
+    
+    public double sum(final int i) {
+        return sums[i];
+    }
+    
+    public long count(final int i) {
+        return counts[i];
+    }
+    
+    public double min(final int i) {
+        return mins[i];
+    }
+    
+    public double max(final int i) {
+        return maxs[i];
+    }
+    
+    public double last(final int i) {
+        return lasts[i];
+    }
+    
+    /**
+     * @return index of the first bucket that starts at or after the given time,
+     * or {@link #size()} if there is no such bucket.
+     */
+    public int indexOf(final long timestampMillis) {
+        int low = 0;
+        int high = size;
+        
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (starts[mid] < timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * @return copy of these buckets where those starting in {@code [fromMillis, untilMillis)}
+     * are replaced by the given buckets, which must all start in that range.
+     */
+    public RollupBuckets splice(final long fromMillis, final long untilMillis, final RollupBuckets replacement) {
+        Preconditions.checkArgument(replacement.size == 0 
+                || (replacement.starts[0] >= fromMillis && replacement.starts[replacement.size - 1] < untilMillis), 
+                "Replacement buckets are outside [%s, %s)", fromMillis, untilMillis);
+        
+        final Builder builder = new Builder();
+        builder.addAll(this, 0, indexOf(fromMillis));
+        builder.addAll(replacement, 0, replacement.size);
+        builder.addAll(this, indexOf(untilMillis), size);
+        return builder.build();
+    }
+    
+    /**
+     * @return these buckets without those that start before the given time.
+     */
+    public RollupBuckets removeBefore(final long timestampMillis) {
+        final int first = indexOf(timestampMillis);
+        if (first == 0) {
+            return this;
+        }
+        return new Builder().addAll(this, first, size).build();
+    }
+    
+    /**
+     * Folds buckets that start in {@code [fromMillis, untilMillis)} into wider
+     * buckets, aligned to multiples of {@code widthMillis}.
+     * 
+     * @return the wider buckets.
+     */
+    public RollupBuckets rollUp(final long widthMillis, final long fromMillis, final long untilMillis) {
+        final Builder builder = new Builder();
+        
+        for (int i=indexOf(fromMillis); i<size && starts[i] < untilMillis; i++) {
+            final long start = starts[i] - (starts[i] % widthMillis);
+            builder.fold(start, sums[i], counts[i], mins[i], maxs[i], lasts[i]);
+        }
+        
+        return builder.build();
+    }
+    
+    @Override
+    public String toString() {
+        return "RollupBuckets(" + size + " buckets)";
+    }
+    
+    /**
+     * Accumulates buckets in ascending order of their start times.
+     */
+    public static final class Builder {
+        private int size = 0;
+        private long[] starts = new long[16];
+        private double[] sums = new double[16];
+        private long[] counts = new long[16];
+        private double[] mins = new double[16];
+        private double[] maxs = new double[16];
+        private double[] lasts = new double[16];
+        
+        /**
+         * Adds a single raw value to the bucket that starts at {@code bucketStart},
+         * which must be the last bucket or a later one.
+         */
+        public Builder add(final long bucketStart, final double value) {
+            return fold(bucketStart, value, 1, value, value, value);
+        }
+        
+        /**
+         * Merges an aggregated bucket into the one that starts at {@code bucketStart},
+         * which must be the last bucket or a later one.
+         */
+        public Builder fold(final long bucketStart, final double sum, final long count, 
+                final double min, final double max, final double last) {
+            if (size > 0 && starts[size - 1] == bucketStart) {
+                final int i = size - 1;
+                sums[i] += sum;
+                counts[i] += count;
+                mins[i] = Math.min(mins[i], min);
+                maxs[i] = Math.max(maxs[i], max);
+                lasts[i] = last;
+                return this;
+            }
+            
+            Preconditions.checkArgument(size == 0 || starts[size - 1] < bucketStart, 
+                    "Buckets are out of order: %s after %s", bucketStart, (size == 0 ? null : starts[size - 1]));
+            
+            ensureCapacity();
+            starts[size] = bucketStart;
+            sums[size] = sum;
+            counts[size] = count;
+            mins[size] = min;
+            maxs[size] = max;
+            lasts[size] = last;
+            size++;
+            return this;
+        }
+        
+        Builder addAll(final RollupBuckets buckets, final int from, final int to) {
+            for (int i=from; i<to; i++) {
+                fold(buckets.starts[i], buckets.sums[i], buckets.counts[i], buckets.mins[i], buckets.maxs[i], buckets.lasts[i]);
+            }
+            return this;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        private void ensureCapacity() {
+            if (size == starts.length) {
+                final int newCapacity = size * 2;
+                starts = Arrays.copyOf(starts, newCapacity);
+                sums = Arrays.copyOf(sums, newCapacity);
+                counts = Arrays.copyOf(counts, newCapacity);
+                mins = Arrays.copyOf(mins, newCapacity);
+                maxs = Arrays.copyOf(maxs, newCapacity);
+                lasts = Arrays.copyOf(lasts, newCapacity);
+            }
+        }
+        
+        public RollupBuckets build() {
+            return new RollupBuckets(this);
+        }
+    }
+}
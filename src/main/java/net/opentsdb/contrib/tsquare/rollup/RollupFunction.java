@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.rollup;
+
+import net.opentsdb.contrib.tsquare.LastValueAggregator;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+
+/**
+ * Downsampling functions that can be answered from {@link RollupBuckets}.
+ */
+public enum RollupFunction {
+    SUM {
+        @Override
+        public double valueOf(final RollupBuckets buckets, final int i) {
+            return buckets.sum(i);
+        }
+    },
+    AVG {
+        @Override
+        public double valueOf(final RollupBuckets buckets, final int i) {
+            return buckets.sum(i) / buckets.count(i);
+        }
+    },
+    MIN {
+        @Override
+        public double valueOf(final RollupBuckets buckets, final int i) {
+            return buckets.min(i);
+        }
+    },
+    MAX {
+        @Override
+        public double valueOf(final RollupBuckets buckets, final int i) {
+            return buckets.max(i);
+        }
+    },
+    LAST {
+        @Override
+        public double valueOf(final RollupBuckets buckets, final int i) {
+            return buckets.last(i);
+        }
+    };
+    
+    /**
+     * @return the downsampled value of the bucket at the given index.
+     */
+    public abstract double valueOf(RollupBuckets buckets, int i);
+    
+    /**
+     * @param downsampler
+     * @return the function that gives the same result as {@code downsampler}, or
+     * {@code null} if there's none (e.g. for standard deviation).
+     */
+    public static RollupFunction forDownsampler(final Aggregator downsampler) {
+        if (downsampler == Aggregators.SUM || downsampler == Aggregators.ZIMSUM) {
+            return SUM;
+        } else if (downsampler == Aggregators.AVG) {
+            return AVG;
+        } else if (downsampler == Aggregators.MIN || downsampler == Aggregators.MIMMIN) {
+            return MIN;
+        } else if (downsampler == Aggregators.MAX || downsampler == Aggregators.MIMMAX) {
+            return MAX;
+        } else if (downsampler instanceof LastValueAggregator) {
+            return LAST;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.rollup;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * In-memory store of pre-aggregated series, at several resolutions ({@link RollupTier}s).
+ * <p>
+ * Only the finest tier is fed directly (see {@link #ingest(String, Map, long, long, long)});
+ * every other tier is derived from the one below it, so each tier must be a whole
+ * multiple of the previous one and the previous one must keep at least one of its
+ * buckets.  Buckets older than the retention of their tier are dropped on every ingest.
+ */
+public class RollupStore {
+    private List<RollupTier> tiers = ImmutableList.of(
+            new RollupTier(TimeUnit.MINUTES.toSeconds(1), TimeUnit.DAYS.toSeconds(2)),
+            new RollupTier(TimeUnit.HOURS.toSeconds(1), TimeUnit.DAYS.toSeconds(180)),
+            new RollupTier(TimeUnit.DAYS.toSeconds(1), TimeUnit.DAYS.toSeconds(730)));
+    
+    private final ConcurrentMap<String, MetricRollups> metrics = Maps.newConcurrentMap();
+    
+    /**
+     * Replaces the finest buckets of a metric in {@code [fromMillis, untilMillis)}
+     * with the given ones, and recomputes the coarser buckets that overlap that range.
+     * Series of the metric that aren't given are assumed to have no points in that range.
+     * 
+     * @param metricName
+     * @param bucketsByTags finest buckets of each series, keyed on the tags of the series.
+     * @param fromMillis aligned to the width of the finest tier.
+     * @param untilMillis
+     * @param nowMillis used to apply retention.
+     */
+    public synchronized void ingest(final String metricName, final Map<Map<String, String>, RollupBuckets> bucketsByTags, 
+            final long fromMillis, final long untilMillis, final long nowMillis) {
+        Preconditions.checkArgument(tiers.get(0).alignDown(fromMillis) == fromMillis, "Start time isn't aligned to %s: %s", tiers.get(0), fromMillis);
+        
+        MetricRollups rollups = metrics.get(metricName);
+        if (rollups == null) {
+            rollups = new MetricRollups(metricName, fromMillis);
+        }
+        
+        for (final Map.Entry<Map<String, String>, RollupBuckets> entry : bucketsByTags.entrySet()) {
+            if (!rollups.series.containsKey(entry.getKey())) {
+                rollups.series.put(ImmutableMap.copyOf(entry.getKey()), new Series(entry.getKey(), tiers.size()));
+            }
+        }
+        
+        for (final Series series : Sets.newHashSet(rollups.series.values())) {
+            final RollupBuckets finest = bucketsByTags.get(series.tags);
+            series.update(tiers, (finest == null ? RollupBuckets.EMPTY : finest), fromMillis, untilMillis, nowMillis);
+            
+            if (series.isEmpty()) {
+                rollups.series.remove(series.tags);
+            }
+        }
+        
+        rollups.fromMillis = Math.min(rollups.fromMillis, fromMillis);
+        rollups.watermarkMillis = Math.max(rollups.watermarkMillis, untilMillis);
+        metrics.put(metricName, rollups);
+    }
+    
+    /**
+     * @return pre-aggregates of the given metric, or {@code null} if there are none.
+     */
+    public MetricRollups get(final String metricName) {
+        return metrics.get(metricName);
+    }
+    
+    public List<RollupTier> getTiers() {
+        return tiers;
+    }
+    
+    /**
+     * @return number of metrics, series and buckets (per tier) held by this store.
+     */
+    public Map<String, Object> getStats() {
+        long numSeries = 0;
+        final long[] numBuckets = new long[tiers.size()];
+        
+        for (final MetricRollups rollups : metrics.values()) {
+            for (final Series series : rollups.series.values()) {
+                numSeries++;
+                for (int i=0; i<numBuckets.length; i++) {
+                    numBuckets[i] += series.getBuckets(i).size();
+                }
+            }
+        }
+        
+        final Map<String, Object> bucketsByTier = Maps.newLinkedHashMap();
+        for (int i=0; i<numBuckets.length; i++) {
+            bucketsByTier.put(tiers.get(i).toString(), Long.valueOf(numBuckets[i]));
+        }
+        
+        final Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("metrics", Integer.valueOf(metrics.size()));
+        stats.put("series", Long.valueOf(numSeries));
+        stats.put("buckets", bucketsByTier);
+        return stats;
+    }
+    
+    /**
+     * @param tiers from finest to coarsest.  Each must be a whole multiple of the
+     * previous one, which must keep at least one bucket of the next.
+     */
+    public synchronized void setTiers(List<RollupTier> tiers) {
+        Preconditions.checkArgument(!tiers.isEmpty(), "At least one tier is required");
+        for (int i=1; i<tiers.size(); i++) {
+            final RollupTier finer = tiers.get(i - 1);
+            final RollupTier coarser = tiers.get(i);
+            Preconditions.checkArgument(coarser.getWidthMillis() > finer.getWidthMillis() 
+                    && coarser.getWidthMillis() % finer.getWidthMillis() == 0, "%s isn't a multiple of %s", coarser, finer);
+            Preconditions.checkArgument(finer.getRetentionMillis() >= coarser.getWidthMillis(), 
+                    "%s must be kept for at least %s", finer, coarser);
+        }
+        
+        this.tiers = ImmutableList.copyOf(tiers);
+        this.metrics.clear();
+    }
+    
+    /**
+     * Pre-aggregates of all series of one metric.
+     */
+    public static final class MetricRollups {
+        private final String metricName;
+        private final ConcurrentMap<Map<String, String>, Series> series = Maps.newConcurrentMap();
+        private volatile long fromMillis;
+        private volatile long watermarkMillis;
+        
+        MetricRollups(final String metricName, final long fromMillis) {
+            this.metricName = metricName;
+            this.fromMillis = fromMillis;
+            this.watermarkMillis = fromMillis;
+        }
+        
+        public String getMetricName() {
+            return metricName;
+        }
+        
+        public Collection<Series> getSeries() {
+            return series.values();
+        }
+        
+        /**
+         * @return time up to which points of this metric have been aggregated.
+         */
+        public long getWatermarkMillis() {
+            return watermarkMillis;
+        }
+        
+        /**
+         * @return {@code true} if the given tier holds every bucket of this metric
+         * from {@code startMillis} on.
+         */
+        public boolean covers(final RollupTier tier, final long startMillis, final long nowMillis) {
+            final long keptFrom = tier.alignDown(nowMillis - tier.getRetentionMillis()) + tier.getWidthMillis();
+            return tier.alignDown(startMillis) >= Math.max(fromMillis, keptFrom);
+        }
+    }
+    
+    /**
+     * Pre-aggregates of one series, per tier.
+     */
+    public static final class Series {
+        private final Map<String, String> tags;
+        private final AtomicReferenceArray<RollupBuckets> bucketsByTier;
+        
+        Series(final Map<String, String> tags, final int numTiers) {
+            this.tags = ImmutableMap.copyOf(tags);
+            this.bucketsByTier = new AtomicReferenceArray<RollupBuckets>(numTiers);
+            for (int i=0; i<numTiers; i++) {
+                bucketsByTier.set(i, RollupBuckets.EMPTY);
+            }
+        }
+        
+        public Map<String, String> getTags() {
+            return tags;
+        }
+        
+        public RollupBuckets getBuckets(final int tier) {
+            return bucketsByTier.get(tier);
+        }
+        
+        void update(final List<RollupTier> tiers, final RollupBuckets finest, 
+                final long fromMillis, final long untilMillis, final long nowMillis) {
+            bucketsByTier.set(0, bucketsByTier.get(0).splice(fromMillis, untilMillis, finest));
+            
+            for (int i=1; i<tiers.size(); i++) {
+                final RollupTier tier = tiers.get(i);
+                final long from = tier.alignDown(fromMillis);
+                final RollupBuckets rolledUp = bucketsByTier.get(i - 1).rollUp(tier.getWidthMillis(), from, untilMillis);
+                bucketsByTier.set(i, bucketsByTier.get(i).splice(from, untilMillis, rolledUp));
+            }
+            
+            for (int i=0; i<tiers.size(); i++) {
+                final RollupTier tier = tiers.get(i);
+                bucketsByTier.set(i, bucketsByTier.get(i).removeBefore(tier.alignDown(nowMillis - tier.getRetentionMillis())));
+            }
+        }
+        
+        boolean isEmpty() {
+            for (int i=0; i<bucketsByTier.length(); i++) {
+                if (bucketsByTier.get(i).size() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.rollup;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Resolution and retention of one level of pre-aggregates kept by a {@link RollupStore}.
+ */
+public final class RollupTier {
+    private final long widthMillis;
+    private final long retentionMillis;
+    
+    /**
+     * @param widthSeconds width of each bucket, e.g. 60 for one minute.
+     * @param retentionSeconds how far back buckets are kept.
+     */
+    public RollupTier(final long widthSeconds, final long retentionSeconds) {
+        Preconditions.checkArgument(widthSeconds > 0, "Invalid tier width: %s", widthSeconds);
+        Preconditions.checkArgument(retentionSeconds >= widthSeconds, "Retention must be at least one bucket: %s", retentionSeconds);
+        this.widthMillis = TimeUnit.SECONDS.toMillis(widthSeconds);
+        this.retentionMillis = TimeUnit.SECONDS.toMillis(retentionSeconds);
+    }
+    
+    public long getWidthMillis() {
+        return widthMillis;
+    }
+    
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+    
+    /**
+     * @return start of the bucket that contains the given time.
+     */
+    public long alignDown(final long timestampMillis) {
+        return timestampMillis - (timestampMillis % widthMillis);
+    }
+    
+    @Override
+    public String toString() {
+        return (widthMillis / 1000) + "s";
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.rollup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.QueryCallback;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.Uid;
+import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.support.DataPointCursor;
+import net.opentsdb.contrib.tsquare.support.TsWebUtils;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a {@link RollupStore} up to date for every metric whose name matches one
+ * of the configured wildcard patterns.  A newly matched metric is backfilled, one
+ * bucket of the coarsest tier at a time, from {@code backfillSeconds} ago.  After
+ * that, raw points are read periodically from where the last refresh left off.
+ * <p>
+ * Raw points are read per series: every tag key of the metric is queried with a
+ * <code>*</code> filter.  Tag keys aren't known up front, so they are learned from
+ * query results that still aggregate several series.
+ */
+public class RollupUpdater implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(RollupUpdater.class);
+    
+    @Autowired
+    private TsdbManager tsdbManager;
+    @Autowired
+    private RollupStore rollupStore;
+    
+    private List<String> metricPatterns = Collections.emptyList();
+    private String metricKind = "metrics";
+    private long refreshIntervalSeconds = 60;
+    private long backfillSeconds = TimeUnit.DAYS.toSeconds(90);
+    
+    private ScheduledExecutorService executor;
+    private final Map<String, Set<String>> tagKeysByMetric = Maps.newHashMap();
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (metricPatterns.isEmpty()) {
+            log.info("No metrics to roll up");
+            return;
+        }
+        
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rollup-%d").build());
+        
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    // Don't let the exception cancel future refreshes.
+                    log.warn("Unable to refresh rollups", e);
+                }
+            }
+        }, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Brings the rollups of every matching metric up to date.
+     */
+    public synchronized void refresh() throws Exception {
+        for (final String metricName : matchingMetrics()) {
+            try {
+                update(metricName);
+            } catch (Exception e) {
+                log.warn("Unable to roll up " + metricName, e);
+            }
+        }
+    }
+    
+    private Set<String> matchingMetrics() throws Exception {
+        final Set<String> names = Sets.newTreeSet();
+        
+        for (final String pattern : metricPatterns) {
+            final UidQuery query = tsdbManager.newUidQuery();
+            query.setRegex(TsWebUtils.wildcardToRegex(pattern));
+            query.includeKind(metricKind);
+            query.run(new QueryCallback<Uid>() {
+                @Override
+                public boolean onResult(final Uid resultObject) {
+                    names.add(resultObject.getName());
+                    return true;
+                }
+            });
+        }
+        
+        return names;
+    }
+    
+    private void update(final String metricName) throws Exception {
+        final List<RollupTier> tiers = rollupStore.getTiers();
+        final RollupTier coarsest = tiers.get(tiers.size() - 1);
+        final long nowMillis = System.currentTimeMillis();
+        
+        final RollupStore.MetricRollups rollups = rollupStore.get(metricName);
+        final long fromMillis;
+        if (rollups == null) {
+            fromMillis = coarsest.alignDown(nowMillis - TimeUnit.SECONDS.toMillis(backfillSeconds));
+            log.info("Backfilling rollups of {} from {}", metricName, fromMillis);
+        } else {
+            fromMillis = tiers.get(0).alignDown(rollups.getWatermarkMillis());
+        }
+        
+        // Backfill one coarse bucket at a time, so that finer tiers stay small.
+        for (long from = fromMillis; from < nowMillis; from += coarsest.getWidthMillis()) {
+            final long until = Math.min(from + coarsest.getWidthMillis(), nowMillis);
+            rollupStore.ingest(metricName, readBuckets(metricName, from, until), from, until, nowMillis);
+        }
+    }
+    
+    /**
+     * @return finest buckets, per series, of the raw points in {@code [fromMillis, untilMillis)}.
+     */
+    private Map<Map<String, String>, RollupBuckets> readBuckets(final String metricName, final long fromMillis, final long untilMillis) {
+        Set<String> tagKeys = tagKeysByMetric.get(metricName);
+        if (tagKeys == null) {
+            tagKeys = Sets.newTreeSet();
+            tagKeysByMetric.put(metricName, tagKeys);
+        }
+        
+        while (true) {
+            final Map<String, String> tags = Maps.newHashMap();
+            for (final String key : tagKeys) {
+                tags.put(key, "*");
+            }
+            
+            final Query query = tsdbManager.newMetricsQuery();
+            query.setStartTime(fromMillis);
+            // End times are inclusive.
+            query.setEndTime(untilMillis - 1);
+            query.setTimeSeries(metricName, tags, Aggregators.SUM, false);
+            
+            final DataPoints[] results = query.runAsync().joinUninterruptibly();
+            
+            final Set<String> unknownKeys = Sets.newTreeSet();
+            for (final DataPoints series : results) {
+                unknownKeys.addAll(series.getAggregatedTags());
+            }
+            unknownKeys.removeAll(tagKeys);
+            
+            if (unknownKeys.isEmpty()) {
+                return toBuckets(results, fromMillis, untilMillis);
+            }
+            
+            // Some results are still aggregates of several series; split them up too.
+            log.info("Found tag keys {} of {}", unknownKeys, metricName);
+            tagKeys.addAll(unknownKeys);
+        }
+    }
+    
+    private Map<Map<String, String>, RollupBuckets> toBuckets(final DataPoints[] results, final long fromMillis, final long untilMillis) {
+        final RollupTier finest = rollupStore.getTiers().get(0);
+        final ImmutableMap.Builder<Map<String, String>, RollupBuckets> bucketsByTags = ImmutableMap.builder();
+        
+        for (final DataPoints series : results) {
+            final RollupBuckets.Builder builder = new RollupBuckets.Builder();
+            final DataPointCursor cursor = new DataPointCursor(series, fromMillis, untilMillis - 1);
+            
+            while (cursor.next()) {
+                builder.add(finest.alignDown(cursor.timestamp()), cursor.value());
+            }
+            
+            if (builder.size() > 0) {
+                bucketsByTags.put(ImmutableMap.copyOf(series.getTags()), builder.build());
+            }
+        }
+        
+        return bucketsByTags.build();
+    }
+    
+    public void setTsdbManager(TsdbManager tsdbManager) {
+        this.tsdbManager = tsdbManager;
+    }
+    
+    public void setRollupStore(RollupStore rollupStore) {
+        this.rollupStore = rollupStore;
+    }
+    
+    /**
+     * @param metricPatterns wildcards (see {@link TsWebUtils#wildcardToRegex(String)})
+     * of the names of metrics to roll up.
+     */
+    public void setMetricPatterns(List<String> metricPatterns) {
+        this.metricPatterns = ImmutableList.copyOf(metricPatterns);
+    }
+    
+    /**
+     * @param metricKind UID kind of metric names.
+     */
+    public void setMetricKind(String metricKind) {
+        this.metricKind = metricKind;
+    }
+    
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        Preconditions.checkArgument(refreshIntervalSeconds > 0, "Refresh interval must be positive: %s", refreshIntervalSeconds);
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+    
+    /**
+     * @param backfillSeconds how far back rollups of a newly matched metric are computed.
+     */
+    public void setBackfillSeconds(long backfillSeconds) {
+        Preconditions.checkArgument(backfillSeconds > 0, "Backfill must be positive: %s", backfillSeconds);
+        this.backfillSeconds = backfillSeconds;
+    }
+}
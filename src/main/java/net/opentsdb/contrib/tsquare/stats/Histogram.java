@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Lock-free histogram of non-negative values, with buckets laid out like
+ * HdrHistogram's: values below 128 each get their own bucket, and every power of
+ * two above that is split into 64 buckets.  Recorded values are therefore kept to
+ * within about 1.5%, whatever their magnitude, in a fixed (~30 KB) amount of memory.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * @param value negative values are recorded as zero.
+     */
+    public void record(final long value) {
+        final long v = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        
+        long currentMax;
+        while (v > (currentMax = max.get()) && !max.compareAndSet(currentMax, v)) {
+            // Lost a race with another thread; try again.
+        }
+    }
+    
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        
+        // Shift that brings the value into [SUB_BUCKET_HALF, SUB_BUCKET_COUNT).
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+    }
+    
+    /**
+     * @return greatest value that is recorded in the bucket at the given index.
+     */
+    static long highestValueAt(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        
+        final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        final long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+    
+    public long getCount() {
+        return count.get();
+    }
+    
+    public long getSum() {
+        return sum.get();
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    public double getMean() {
+        final long n = count.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+    
+    /**
+     * @param percentile between 0 and 100.
+     * @return value that {@code percentile}% of recorded values are less than or
+     * equal to (within the precision of the buckets); zero if nothing has been recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        
+        // Counts were recorded while we were reading them.
+        return max.get();
+    }
+    
+    /**
+     * @param divisor values are divided by this, e.g. 1000 to report microseconds
+     * as milliseconds.
+     * @return count, mean, common percentiles and max.
+     */
+    public Map<String, Object> toMap(final double divisor) {
+        final Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("count", getCount());
+        map.put("mean", getMean() / divisor);
+        map.put("p50", getValueAtPercentile(50) / divisor);
+        map.put("p90", getValueAtPercentile(90) / divisor);
+        map.put("p99", getValueAtPercentile(99) / divisor);
+        map.put("p999", getValueAtPercentile(99.9) / divisor);
+        map.put("max", getMax() / divisor);
+        return map;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Timing and size breakdown of one data request, from parsing its targets to the
+ * last byte of the response.  Phases may be added more than once (e.g. once per
+ * target); their durations add up.  Created by controllers and completed by the
+ * view, which hands it to the {@link SlowQueryLog}.
+ */
+public final class QueryTrace {
+    /** Parsing targets and metric expressions. */
+    public static final String PHASE_PARSE = "parse";
+    /** Resolving metric and tag names to UIDs. */
+    public static final String PHASE_RESOLVE = "resolve";
+    /** Estimating (and possibly downsampling) queries. */
+    public static final String PHASE_ESTIMATE = "estimate";
+    /** Waiting for admission. */
+    public static final String PHASE_ADMISSION = "admission";
+    /** From starting the first query until all queries completed. */
+    public static final String PHASE_SCAN = "scan";
+    /** Aggregating results and writing the response. */
+    public static final String PHASE_RENDER = "render";
+    
+    private final String endpoint;
+    private final List<String> targets;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    
+    // Guarded by "this".
+    private long fromMillis;
+    private long untilMillis;
+    private final Map<String, Long> phaseNanos = Maps.newLinkedHashMap();
+    private long estimatedRows = -1;
+    private long series = 0;
+    private long points = 0;
+    private long bytes = 0;
+    private String error = null;
+    private long elapsedNanos = -1;
+    
+    /**
+     * @param endpoint path of the request.
+     * @param targets raw targets (or metric expressions) as given by the client.
+     */
+    public QueryTrace(final String endpoint, final Collection<String> targets) {
+        this.endpoint = endpoint;
+        this.targets = ImmutableList.copyOf(targets);
+    }
+    
+    public synchronized void setRange(final long fromMillis, final long untilMillis) {
+        this.fromMillis = fromMillis;
+        this.untilMillis = untilMillis;
+    }
+    
+    /**
+     * Adds the time from {@code phaseStartNanos} (see {@link System#nanoTime()}) until
+     * now to the given phase.
+     * 
+     * @param phase one of the {@code PHASE_*} constants.
+     * @param phaseStartNanos
+     */
+    public synchronized void addPhase(final String phase, final long phaseStartNanos) {
+        final long elapsed = System.nanoTime() - phaseStartNanos;
+        final Long previous = phaseNanos.get(phase);
+        phaseNanos.put(phase, (previous == null) ? elapsed : previous + elapsed);
+    }
+    
+    /**
+     * @param rows rows a query is expected to scan (see {@code QueryCostEstimator}).
+     * TSDB doesn't report the rows it actually scanned.
+     */
+    public synchronized void addEstimatedRows(final long rows) {
+        estimatedRows = Math.max(estimatedRows, 0) + rows;
+    }
+    
+    public synchronized void addSeries(final int count) {
+        series += count;
+    }
+    
+    /**
+     * @param error why the request failed, e.g. a timeout.
+     */
+    public synchronized void setError(final String error) {
+        this.error = error;
+    }
+    
+    /**
+     * Ends the trace.  Only the first call has any effect.
+     * 
+     * @param points data points written.
+     * @param bytes bytes written, before compression.
+     */
+    public synchronized void finish(final long points, final long bytes) {
+        if (elapsedNanos >= 0) {
+            return;
+        }
+        
+        this.points = points;
+        this.bytes = bytes;
+        this.elapsedNanos = System.nanoTime() - startNanos;
+    }
+    
+    /**
+     * @return total time of the request; so far if it hasn't finished.
+     */
+    public synchronized long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((elapsedNanos >= 0) ? elapsedNanos : System.nanoTime() - startNanos);
+    }
+    
+    public String getEndpoint() {
+        return endpoint;
+    }
+    
+    public List<String> getTargets() {
+        return targets;
+    }
+    
+    /**
+     * @return everything above, for JSON.
+     */
+    public synchronized Map<String, Object> toMap() {
+        final Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("endpoint", endpoint);
+        map.put("startTime", startMillis);
+        map.put("elapsedMillis", getElapsedMillis());
+        map.put("targets", targets);
+        map.put("from", fromMillis);
+        map.put("until", untilMillis);
+        
+        final Map<String, Object> phases = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+            phases.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        map.put("phaseMillis", phases);
+        
+        if (estimatedRows >= 0) {
+            map.put("estimatedRows", estimatedRows);
+        }
+        map.put("series", series);
+        map.put("points", points);
+        map.put("bytes", bytes);
+        if (error != null) {
+            map.put("error", error);
+        }
+        return map;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(endpoint).append(' ').append(getElapsedMillis()).append("ms");
+        
+        for (final Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+            buf.append(' ').append(entry.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+        }
+        
+        buf.append(" series=").append(series)
+            .append(" points=").append(points)
+            .append(" bytes=").append(bytes);
+        if (estimatedRows >= 0) {
+            buf.append(" estimatedRows=").append(estimatedRows);
+        }
+        if (error != null) {
+            buf.append(" error=").append(error);
+        }
+        buf.append(" range=[").append(fromMillis).append(',').append(untilMillis).append(']');
+        buf.append(" targets=");
+        Joiner.on(',').appendTo(buf, targets);
+        return buf.toString();
+    }
+}
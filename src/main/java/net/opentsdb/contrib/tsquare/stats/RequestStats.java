@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Request count, recent rate, errors and latency of one endpoint.
+ */
+public final class RequestStats {
+    private static final int RATE_WINDOW_SECONDS = 60;
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong clientErrors = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final Histogram latencyMicros = new Histogram();
+    
+    // Requests per second, for the last RATE_WINDOW_SECONDS seconds.
+    private final long[] windowCounts = new long[RATE_WINDOW_SECONDS];
+    private final long[] windowSeconds = new long[RATE_WINDOW_SECONDS];
+    
+    /**
+     * @param status HTTP status of the response.
+     * @param elapsedMicros
+     * @param nowMillis
+     */
+    public void record(final int status, final long elapsedMicros, final long nowMillis) {
+        requests.incrementAndGet();
+        latencyMicros.record(elapsedMicros);
+        
+        if (status >= 500) {
+            serverErrors.incrementAndGet();
+        } else if (status >= 400) {
+            clientErrors.incrementAndGet();
+        }
+        
+        final long second = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+        final int slot = (int) (second % RATE_WINDOW_SECONDS);
+        
+        synchronized (windowCounts) {
+            if (windowSeconds[slot] != second) {
+                windowSeconds[slot] = second;
+                windowCounts[slot] = 0;
+            }
+            windowCounts[slot]++;
+        }
+    }
+    
+    /**
+     * @return average requests per second over the last minute.
+     */
+    public double getRecentRate(final long nowMillis) {
+        final long second = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+        long total = 0;
+        
+        synchronized (windowCounts) {
+            for (int i=0; i<RATE_WINDOW_SECONDS; i++) {
+                if (second - windowSeconds[i] < RATE_WINDOW_SECONDS) {
+                    total += windowCounts[i];
+                }
+            }
+        }
+        
+        return (double) total / RATE_WINDOW_SECONDS;
+    }
+    
+    public long getRequests() {
+        return requests.get();
+    }
+    
+    public long getClientErrors() {
+        return clientErrors.get();
+    }
+    
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+    
+    public Histogram getLatencyMicros() {
+        return latencyMicros;
+    }
+    
+    public Map<String, Object> toMap(final long nowMillis) {
+        final Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("requests", getRequests());
+        map.put("ratePerSecond", getRecentRate(nowMillis));
+        map.put("clientErrors", getClientErrors());
+        map.put("serverErrors", getServerErrors());
+        map.put("latencyMillis", latencyMicros.toMap(1000));
+        return map;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Strings;
+
+/**
+ * Records the status and latency of every request in {@link TsquareStats}, by path.
+ * For asynchronous requests (e.g. data queries), latency runs until the response
+ * has been completed, not just until the request thread is released.  Installed
+ * in web.xml through a {@code DelegatingFilterProxy}.
+ */
+public class RequestStatsFilter implements Filter {
+    @Autowired
+    private TsquareStats stats;
+    
+    @Override
+    public void init(final FilterConfig filterConfig) throws ServletException {
+    }
+    
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        final long startNanos = System.nanoTime();
+        final String endpoint = endpointOf((HttpServletRequest) request);
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+        boolean failed = true;
+        
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (failed) {
+                record(endpoint, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, startNanos);
+            } else if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(final AsyncEvent event) {
+                        record(endpoint, httpResponse.getStatus(), startNanos);
+                    }
+                    
+                    @Override
+                    public void onTimeout(final AsyncEvent event) {
+                    }
+                    
+                    @Override
+                    public void onError(final AsyncEvent event) {
+                    }
+                    
+                    @Override
+                    public void onStartAsync(final AsyncEvent event) {
+                    }
+                });
+            } else {
+                record(endpoint, httpResponse.getStatus(), startNanos);
+            }
+        }
+    }
+    
+    private void record(final String endpoint, final int status, final long startNanos) {
+        stats.recordRequest(endpoint, status, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+    
+    private static String endpointOf(final HttpServletRequest request) {
+        return Strings.nullToEmpty(request.getServletPath()) + Strings.nullToEmpty(request.getPathInfo());
+    }
+    
+    @Override
+    public void destroy() {
+    }
+    
+    public void setStats(TsquareStats stats) {
+        this.stats = stats;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps the {@link QueryTrace}s of the most recent requests that took at least
+ * {@link #thresholdMillis}, and logs each of them.  Served at {@code /ext/slow}.
+ */
+public class SlowQueryLog {
+    private static final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+    
+    private long thresholdMillis = 5000;
+    private int maxEntries = 100;
+    
+    private final AtomicLong slowQueries = new AtomicLong();
+    // Newest first; guarded by "this".
+    private final Deque<QueryTrace> entries = new ArrayDeque<QueryTrace>();
+    
+    /**
+     * Keeps the given trace if the request was slow.
+     * 
+     * @param trace a {@link QueryTrace#finish(long, long) finished} trace.
+     * @return true if the request was slow.
+     */
+    public boolean record(final QueryTrace trace) {
+        if (trace.getElapsedMillis() < thresholdMillis) {
+            return false;
+        }
+        
+        slowQueries.incrementAndGet();
+        log.warn("Slow query: {}", trace);
+        
+        synchronized (this) {
+            entries.addFirst(trace);
+            while (entries.size() > maxEntries) {
+                entries.removeLast();
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @return traces of recent slow requests, newest first.
+     */
+    public List<Map<String, Object>> getEntries() {
+        final List<QueryTrace> copy;
+        synchronized (this) {
+            copy = Lists.newArrayList(entries);
+        }
+        
+        final List<Map<String, Object>> result = Lists.newArrayListWithCapacity(copy.size());
+        for (final QueryTrace trace : copy) {
+            result.add(trace.toMap());
+        }
+        return result;
+    }
+    
+    /**
+     * @return settings, the number of slow requests since startup and {@link #getEntries()}.
+     */
+    public Map<String, Object> getStats() {
+        final Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("thresholdMillis", thresholdMillis);
+        stats.put("maxEntries", maxEntries);
+        stats.put("slowQueries", slowQueries.get());
+        stats.put("entries", getEntries());
+        return stats;
+    }
+    
+    public long getSlowQueryCount() {
+        return slowQueries.get();
+    }
+    
+    /**
+     * @param thresholdMillis requests that take at least this long are kept.
+     */
+    public void setThresholdMillis(long thresholdMillis) {
+        Preconditions.checkArgument(thresholdMillis >= 0, "Invalid threshold: %s", thresholdMillis);
+        this.thresholdMillis = thresholdMillis;
+    }
+    
+    /**
+     * @param maxEntries number of slow requests to keep; older ones are dropped.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        Preconditions.checkArgument(maxEntries > 0, "Invalid max entries: %s", maxEntries);
+        this.maxEntries = maxEntries;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.TSDB;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.stumbleupon.async.Callback;
+
+/**
+ * Periodically writes {@link TsquareStats} into OpenTSDB, through the same
+ * {@link TSDB} that queries use, so TSquare can be graphed like anything else.
+ * Metrics are named {@code <prefix>.requests}, {@code <prefix>.request.latency_ms}
+ * and so on; endpoints, percentiles and the host are tags.  Counters are totals
+ * since startup (use a "rate:" query) and percentiles cover the whole uptime.
+ * <p>
+ * The metric names must already exist, or TSDB must be configured to create them
+ * ({@code tsd.core.auto_create_metrics}).  Disabled unless {@link #setEnabled(boolean)}.
+ */
+public class StatsReporter implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(StatsReporter.class);
+    
+    @Autowired
+    private TSDB tsdb;
+    @Autowired
+    private TsquareStats stats;
+    
+    private boolean enabled = false;
+    private String metricPrefix = "tsquare";
+    private long intervalSeconds = 60;
+    private String host;
+    
+    private ScheduledExecutorService executor;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        
+        if (host == null) {
+            host = localHostName();
+        }
+        
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stats-reporter-%d").build());
+        
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report();
+                } catch (Exception e) {
+                    // Don't let the exception cancel future reports.
+                    log.warn("Unable to report stats", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Writes one point for each stat, timestamped now.
+     */
+    public void report() {
+        final long nowMillis = System.currentTimeMillis();
+        final long timestamp = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+        
+        for (final Map.Entry<String, RequestStats> entry : stats.getEndpoints().entrySet()) {
+            final RequestStats endpoint = entry.getValue();
+            final Map<String, String> tags = ImmutableMap.of("host", host, "endpoint", entry.getKey());
+            
+            addPoint("requests", timestamp, endpoint.getRequests(), tags);
+            addPoint("request.rate", timestamp, endpoint.getRecentRate(nowMillis), tags);
+            addPoint("request.client_errors", timestamp, endpoint.getClientErrors(), tags);
+            addPoint("request.server_errors", timestamp, endpoint.getServerErrors(), tags);
+            addPercentiles("request.latency_ms", timestamp, endpoint.getLatencyMicros(), 1000, tags);
+        }
+        
+        final Map<String, String> tags = ImmutableMap.of("host", host);
+        addPercentiles("query.scan_ms", timestamp, stats.getScanMicros(), 1000, tags);
+        addPercentiles("query.render_ms", timestamp, stats.getRenderMicros(), 1000, tags);
+        addPoint("response.points", timestamp, stats.getResponsePoints().getSum(), tags);
+        addPoint("response.bytes", timestamp, stats.getResponseBytes().getSum(), tags);
+        addPoint("grep.scanned_rows", timestamp, stats.getGrepScannedRows(), tags);
+        
+        final double hitRatio = stats.getCacheHitRatio();
+        if (!Double.isNaN(hitRatio)) {
+            addPoint("cache.hit_ratio", timestamp, hitRatio, tags);
+        }
+    }
+    
+    private void addPercentiles(final String name, final long timestamp, final Histogram histogram, final double divisor, final Map<String, String> tags) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        
+        final Map<String, String> percentileTags = Maps.newHashMap(tags);
+        
+        percentileTags.put("quantile", "p50");
+        addPoint(name, timestamp, histogram.getValueAtPercentile(50) / divisor, percentileTags);
+        percentileTags.put("quantile", "p99");
+        addPoint(name, timestamp, histogram.getValueAtPercentile(99) / divisor, percentileTags);
+        percentileTags.put("quantile", "max");
+        addPoint(name, timestamp, histogram.getMax() / divisor, percentileTags);
+    }
+    
+    private void addPoint(final String name, final long timestamp, final long value, final Map<String, String> tags) {
+        final String metric = metricPrefix + "." + name;
+        try {
+            tsdb.addPoint(metric, timestamp, value, ImmutableMap.copyOf(tags)).addErrback(new LogError(metric));
+        } catch (RuntimeException e) {
+            // e.g. an unknown metric name, or a tag value TSDB doesn't accept.
+            log.debug("Unable to write {}: {}", metric, e.getMessage());
+        }
+    }
+    
+    private void addPoint(final String name, final long timestamp, final double value, final Map<String, String> tags) {
+        final String metric = metricPrefix + "." + name;
+        try {
+            tsdb.addPoint(metric, timestamp, value, ImmutableMap.copyOf(tags)).addErrback(new LogError(metric));
+        } catch (RuntimeException e) {
+            log.debug("Unable to write {}: {}", metric, e.getMessage());
+        }
+    }
+    
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+    
+    private static final class LogError implements Callback<Object, Exception> {
+        private final String metric;
+        
+        LogError(final String metric) {
+            this.metric = metric;
+        }
+        
+        @Override
+        public Object call(final Exception e) {
+            log.debug("Unable to write {}: {}", metric, e.getMessage());
+            return null;
+        }
+    }
+    
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * @param metricPrefix prepended, with a ".", to the names of all metrics written.
+     */
+    public void setMetricPrefix(String metricPrefix) {
+        Preconditions.checkArgument(metricPrefix != null && !metricPrefix.isEmpty(), "A metric prefix is required");
+        this.metricPrefix = metricPrefix;
+    }
+    
+    public void setIntervalSeconds(long intervalSeconds) {
+        Preconditions.checkArgument(intervalSeconds > 0, "Invalid interval: %s", intervalSeconds);
+        this.intervalSeconds = intervalSeconds;
+    }
+    
+    /**
+     * @param host value of the "host" tag; defaults to the local host name.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+}
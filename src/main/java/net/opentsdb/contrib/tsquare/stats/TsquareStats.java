@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.contrib.tsquare.cache.CachingDataQueryRunner;
+import net.opentsdb.contrib.tsquare.cache.CoalescingDataQueryRunner;
+import net.opentsdb.contrib.tsquare.cache.RollupDataQueryRunner;
+import net.opentsdb.contrib.tsquare.cache.SegmentFileCache;
+import net.opentsdb.contrib.tsquare.web.AdmissionControl;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+
+/**
+ * Counters and latency histograms of TSquare itself: requests by endpoint (see
+ * {@link RequestStatsFilter}), time spent reading from HBase versus writing
+ * responses, response sizes and UID scans.  {@link #getStats()} also includes the
+ * counters of the query runners, caches and admission control, if configured.
+ * Everything is counted since startup.
+ */
+public class TsquareStats {
+    static final String OTHER_ENDPOINT = "other";
+    
+    @Autowired(required=false)
+    private AdmissionControl admissionControl;
+    @Autowired(required=false)
+    private CoalescingDataQueryRunner coalescingRunner;
+    @Autowired(required=false)
+    private RollupDataQueryRunner rollupRunner;
+    @Autowired(required=false)
+    private CachingDataQueryRunner cachingRunner;
+    @Autowired(required=false)
+    private SegmentFileCache segmentFileCache;
+    
+    private final long startMillis = System.currentTimeMillis();
+    private int maxEndpoints = 64;
+    
+    private final ConcurrentMap<String, RequestStats> endpoints = Maps.newConcurrentMap();
+    private final Histogram scanMicros = new Histogram();
+    private final Histogram renderMicros = new Histogram();
+    private final Histogram responsePoints = new Histogram();
+    private final Histogram responseBytes = new Histogram();
+    private final AtomicLong grepRequests = new AtomicLong();
+    private final AtomicLong grepScannedRows = new AtomicLong();
+    private final AtomicLong grepMatches = new AtomicLong();
+    
+    /**
+     * @param endpoint path of the request.  Once {@link #setMaxEndpoints(int)} endpoints
+     * have been seen, others are counted together as "other".
+     * @param status HTTP status of the response.
+     * @param elapsedMicros time from the start of the request to the end of the response.
+     */
+    public void recordRequest(final String endpoint, final int status, final long elapsedMicros) {
+        RequestStats stats = endpoints.get(endpoint);
+        
+        if (stats == null) {
+            final String key = (endpoints.size() < maxEndpoints) ? endpoint : OTHER_ENDPOINT;
+            final RequestStats created = new RequestStats();
+            stats = endpoints.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        
+        stats.record(status, elapsedMicros, System.currentTimeMillis());
+    }
+    
+    /**
+     * @param elapsedMicros time a TSDB query took to complete.
+     */
+    public void recordScan(final long elapsedMicros) {
+        scanMicros.record(elapsedMicros);
+    }
+    
+    /**
+     * @param elapsedMicros time the view took to write the response.
+     * @param points data points written.
+     * @param bytes bytes written, before compression.
+     */
+    public void recordRender(final long elapsedMicros, final long points, final long bytes) {
+        renderMicros.record(elapsedMicros);
+        responsePoints.record(points);
+        responseBytes.record(bytes);
+    }
+    
+    /**
+     * @param scannedRows rows of the UID table read.
+     * @param matches names returned.
+     */
+    public void recordGrep(final long scannedRows, final long matches) {
+        grepRequests.incrementAndGet();
+        grepScannedRows.addAndGet(scannedRows);
+        grepMatches.addAndGet(matches);
+    }
+    
+    /**
+     * @return everything above, as a tree of maps for JSON.
+     */
+    public Map<String, Object> getStats() {
+        final long now = System.currentTimeMillis();
+        final Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("uptimeSeconds", TimeUnit.MILLISECONDS.toSeconds(now - startMillis));
+        
+        final Map<String, Object> endpointStats = Maps.newTreeMap();
+        for (final Map.Entry<String, RequestStats> entry : endpoints.entrySet()) {
+            endpointStats.put(entry.getKey(), entry.getValue().toMap(now));
+        }
+        stats.put("endpoints", endpointStats);
+        
+        final Map<String, Object> queries = Maps.newLinkedHashMap();
+        queries.put("scanMillis", scanMicros.toMap(1000));
+        queries.put("renderMillis", renderMicros.toMap(1000));
+        queries.put("responsePoints", responsePoints.toMap(1));
+        queries.put("responseBytes", responseBytes.toMap(1));
+        queries.put("totalPoints", responsePoints.getSum());
+        queries.put("totalBytes", responseBytes.getSum());
+        stats.put("queries", queries);
+        
+        final Map<String, Object> grep = Maps.newLinkedHashMap();
+        grep.put("requests", grepRequests.get());
+        grep.put("scannedRows", grepScannedRows.get());
+        grep.put("matches", grepMatches.get());
+        stats.put("grep", grep);
+        
+        if (coalescingRunner != null) {
+            final Map<String, Object> coalescing = Maps.newLinkedHashMap();
+            coalescing.put("executed", coalescingRunner.getExecutedCount());
+            coalescing.put("coalesced", coalescingRunner.getCoalescedCount());
+            coalescing.put("inFlight", coalescingRunner.getInFlightCount());
+            stats.put("coalescing", coalescing);
+        }
+        
+        if (rollupRunner != null) {
+            final Map<String, Object> rollups = Maps.newLinkedHashMap();
+            rollups.put("served", rollupRunner.getServedCount());
+            rollups.put("delegated", rollupRunner.getDelegatedCount());
+            stats.put("rollups", rollups);
+        }
+        
+        if (cachingRunner != null) {
+            final CacheStats cacheStats = cachingRunner.getStats();
+            final Map<String, Object> cache = Maps.newLinkedHashMap();
+            cache.put("hits", cacheStats.hitCount());
+            cache.put("misses", cacheStats.missCount());
+            cache.put("hitRatio", cacheStats.hitRate());
+            cache.put("evictions", cacheStats.evictionCount());
+            cache.put("cachedPoints", cachingRunner.getCachedPoints());
+            stats.put("cache", cache);
+        }
+        
+        if (segmentFileCache != null) {
+            stats.put("segmentCache", segmentFileCache.getStats());
+        }
+        
+        if (admissionControl != null) {
+            stats.put("admission", admissionControl.getStats());
+        }
+        
+        return stats;
+    }
+    
+    public Map<String, RequestStats> getEndpoints() {
+        return Collections.unmodifiableMap(endpoints);
+    }
+    
+    public Histogram getScanMicros() {
+        return scanMicros;
+    }
+    
+    public Histogram getRenderMicros() {
+        return renderMicros;
+    }
+    
+    public Histogram getResponsePoints() {
+        return responsePoints;
+    }
+    
+    public Histogram getResponseBytes() {
+        return responseBytes;
+    }
+    
+    public long getGrepScannedRows() {
+        return grepScannedRows.get();
+    }
+    
+    /**
+     * @return hit ratio of the in-memory query cache; {@code NaN} if there is no cache.
+     */
+    public double getCacheHitRatio() {
+        return (cachingRunner == null) ? Double.NaN : cachingRunner.getStats().hitRate();
+    }
+    
+    /**
+     * @param maxEndpoints number of distinct endpoints to keep stats for; requests to
+     * any others are counted as "other".  Guards against unbounded growth from
+     * requests for random paths.
+     */
+    public void setMaxEndpoints(int maxEndpoints) {
+        Preconditions.checkArgument(maxEndpoints > 0, "Invalid max endpoints: %s", maxEndpoints);
+        this.maxEndpoints = maxEndpoints;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.Aggregator.Doubles;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * Iterates over a {@link DataPoints} object using primitives only: the current
+ * point's timestamp and value are copied into fields, so no objects are created
+ * (or boxed) per point.  Points may be clipped to a time window, which is checked
+ * with plain {@code long} comparisons.
+ * 
+ * <pre>
+ * final DataPointCursor cursor = new DataPointCursor(points);
+ * while (cursor.next()) {
+ *     sum += cursor.value();
+ * }
+ * </pre>
+ * 
+ * Also implements {@link Doubles} so it can be handed to an aggregator.
+ */
+public final class DataPointCursor implements Doubles {
+    private final Iterator<DataPoint> iterator;
+    private final long startMillis;
+    private final long endMillis;
+    
+    private boolean hasCurrent = false;
+    private long timestamp;
+    private boolean integer;
+    private long longValue;
+    private double value;
+    
+    // One point of look-ahead, which Doubles#hasNextValue() needs.  Points from
+    // TSDB iterators are reused, so the look-ahead is copied as well.
+    private boolean hasPending;
+    private long pendingTimestamp;
+    private boolean pendingInteger;
+    private long pendingLongValue;
+    private double pendingValue;
+    
+    /**
+     * Iterates over all points.
+     * 
+     * @param points
+     */
+    public DataPointCursor(final DataPoints points) {
+        this(points, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Iterates over points with timestamps in {@code [startMillis, endMillis]}.
+     * 
+     * @param points
+     * @param startMillis
+     * @param endMillis
+     */
+    public DataPointCursor(final DataPoints points, final long startMillis, final long endMillis) {
+        this.iterator = points.iterator();
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        fetch();
+    }
+    
+    /**
+     * Iterates over points with timestamps within the given range.
+     * 
+     * @param points
+     * @param withinMillisecondsRange timestamp range <i>in milliseconds</i>.
+     * @return
+     */
+    public static DataPointCursor within(final DataPoints points, final Range<Long> withinMillisecondsRange) {
+        long start = Long.MIN_VALUE;
+        long end = Long.MAX_VALUE;
+        
+        if (withinMillisecondsRange.hasLowerBound()) {
+            start = withinMillisecondsRange.lowerEndpoint();
+            if (withinMillisecondsRange.lowerBoundType() == BoundType.OPEN) {
+                start++;
+            }
+        }
+        
+        if (withinMillisecondsRange.hasUpperBound()) {
+            end = withinMillisecondsRange.upperEndpoint();
+            if (withinMillisecondsRange.upperBoundType() == BoundType.OPEN) {
+                end--;
+            }
+        }
+        
+        return new DataPointCursor(points, start, end);
+    }
+    
+    private void fetch() {
+        while (iterator.hasNext()) {
+            final DataPoint p = iterator.next();
+            final long ts = p.timestamp();
+            
+            if (ts < startMillis || ts > endMillis) {
+                continue;
+            }
+            
+            pendingTimestamp = ts;
+            pendingInteger = p.isInteger();
+            if (pendingInteger) {
+                pendingLongValue = p.longValue();
+                pendingValue = (double) pendingLongValue;
+            } else {
+                pendingValue = p.doubleValue();
+            }
+            
+            hasPending = true;
+            return;
+        }
+        
+        hasPending = false;
+    }
+    
+    /**
+     * Moves to the next point.
+     * 
+     * @return false if there are no more points.
+     */
+    public boolean next() {
+        if (!hasPending) {
+            hasCurrent = false;
+            return false;
+        }
+        
+        hasCurrent = true;
+        timestamp = pendingTimestamp;
+        integer = pendingInteger;
+        longValue = pendingLongValue;
+        value = pendingValue;
+        
+        fetch();
+        return true;
+    }
+    
+    /**
+     * @return true if {@link #next()} will move to another point.
+     */
+    public boolean hasNext() {
+        return hasPending;
+    }
+    
+    public long timestamp() {
+        checkCurrent();
+        return timestamp;
+    }
+    
+    public boolean isInteger() {
+        checkCurrent();
+        return integer;
+    }
+    
+    public long longValue() {
+        checkCurrent();
+        if (!integer) {
+            throw new ClassCastException("Value at " + timestamp + " is not an integer");
+        }
+        return longValue;
+    }
+    
+    /**
+     * @return value of the current point as a double, regardless of its type.
+     */
+    public double value() {
+        checkCurrent();
+        return value;
+    }
+    
+    private void checkCurrent() {
+        if (!hasCurrent) {
+            throw new IllegalStateException("Cursor is not positioned on a point; call next() first.");
+        }
+    }
+    
+    @Override
+    public boolean hasNextValue() {
+        return hasPending;
+    }
+    
+    @Override
+    public double nextDoubleValue() {
+        if (!next()) {
+            throw new NoSuchElementException();
+        }
+        return value;
+    }
+}
@@ -15,25 +15,20 @@
  */
 package net.opentsdb.contrib.tsquare.support;
 
-import java.util.Iterator;
-
 import net.opentsdb.core.Aggregator.Doubles;
-import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Range;
 
 /**
  * Wraps a {@link DataPoints} object and exposes the data consistent
- * with the {@link Doubles} interface.
+ * with the {@link Doubles} interface.  Iteration is done by a {@link DataPointCursor},
+ * so no objects are created per point.
  * 
  * @author James Royalty (jroyalty) <i>[Jul 12, 2013]</i>
  */
 public class DataPointsAsDoubles implements Doubles {
-    private final Iterator<DataPoint> iterator;
-    private final Range<Long> timeRange;
+    private final DataPointCursor cursor;
     
     /**
      * Iterates over all points, ignoring timestamps.
@@ -41,8 +36,7 @@ public class DataPointsAsDoubles implements Doubles {
      * @param points
      */
     public DataPointsAsDoubles(final DataPoints points) {
-        this.iterator = points.iterator();
-        this.timeRange = Range.all();
+        this.cursor = new DataPointCursor(points);
     }
     
     /**
@@ -52,25 +46,16 @@ public class DataPointsAsDoubles implements Doubles {
      * @param withinMillisecondsRange timestamp range <i>in milliseconds</i>.
      */
     public DataPointsAsDoubles(final DataPoints points, final Range<Long> withinMillisecondsRange) {
-        this.timeRange = withinMillisecondsRange;
-        
-        Predicate<DataPoint> pred = new Predicate<DataPoint>() {
-            public boolean apply(final DataPoint input) {
-                return timeRange.contains(input.timestamp());
-            }
-        };
-        
-        this.iterator = Iterators.filter(points.iterator(), pred);
+        this.cursor = DataPointCursor.within(points, withinMillisecondsRange);
     }
     
     @Override
     public boolean hasNextValue() {
-        return iterator.hasNext();
+        return cursor.hasNextValue();
     }
 
     @Override
     public double nextDoubleValue() {
-        final DataPoint point = iterator.next();
-        return TsWebUtils.asDouble(point);
+        return cursor.nextDoubleValue();
     }
 }
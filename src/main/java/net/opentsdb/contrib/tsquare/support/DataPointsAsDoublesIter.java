@@ -15,10 +15,7 @@
  */
 package net.opentsdb.contrib.tsquare.support;
 
-import java.util.Iterator;
-
 import net.opentsdb.core.Aggregator.Doubles;
-import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 
 /**
@@ -28,20 +25,19 @@ import net.opentsdb.core.DataPoints;
  * @author James Royalty (jroyalty) <i>[Jul 12, 2013]</i>
  */
 public class DataPointsAsDoublesIter implements Doubles {
-    private final Iterator<DataPoint> iterator;
+    private final DataPointCursor cursor;
     
     public DataPointsAsDoublesIter(final DataPoints points) {
-        this.iterator = points.iterator();
+        this.cursor = new DataPointCursor(points);
     }
     
     @Override
     public boolean hasNextValue() {
-        return iterator.hasNext();
+        return cursor.hasNextValue();
     }
 
     @Override
     public double nextDoubleValue() {
-        final DataPoint point = iterator.next();
-        return TsWebUtils.asDouble(point);
+        return cursor.nextDoubleValue();
     }
 }
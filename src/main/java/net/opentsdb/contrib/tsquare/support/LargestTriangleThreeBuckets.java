@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.DataPoint;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Reduces a series to at most {@code maxDataPoints} points using the
+ * Largest-Triangle-Three-Buckets algorithm (Sveinn Steinarsson, 2013), which
+ * keeps the points that matter visually: peaks, troughs and changes of slope.
+ * 
+ * <p>This is a streaming variant.  Buckets are fixed slices of the query's time
+ * range rather than slices of the (unknown) number of points, so the source is
+ * read once and at most two buckets of points are held in memory.  The first and
+ * last points are always kept.  Selected points are returned as they are, so
+ * integer values stay integers.
+ * 
+ * <p>Like TSDB iterators, this iterator is also the {@link DataPoint} it returns.
+ */
+public final class LargestTriangleThreeBuckets implements Iterator<DataPoint>, DataPoint {
+    private final Iterator<DataPoint> source;
+    private final long startMillis;
+    private final long spanMillis;
+    private final int bucketCount;
+    
+    /** Last selected point; the "A" vertex of each triangle. */
+    private boolean hasSelected = false;
+    private long selectedTimestamp;
+    private double selectedValue;
+    
+    /** Bucket we select a point from next, and the bucket after it. */
+    private Bucket pending = new Bucket();
+    private Bucket next = new Bucket();
+    private boolean sourceDone = false;
+    
+    /** Selected points waiting to be returned. */
+    private final Bucket output = new Bucket();
+    private int outputPos = 0;
+    
+    private long timestamp;
+    private long rawValue;
+    private boolean integer;
+    
+    /**
+     * @param source points in timestamp order.
+     * @param startMillis start of the query range.
+     * @param endMillis end of the query range.
+     * @param maxDataPoints at least 3.
+     */
+    public LargestTriangleThreeBuckets(final Iterator<DataPoint> source, final long startMillis, final long endMillis, final int maxDataPoints) {
+        Preconditions.checkArgument(maxDataPoints >= 3, "maxDataPoints must be at least 3: %s", maxDataPoints);
+        Preconditions.checkArgument(endMillis >= startMillis, "Invalid range: %s to %s", startMillis, endMillis);
+        
+        this.source = source;
+        this.startMillis = startMillis;
+        this.spanMillis = endMillis - startMillis + 1;
+        
+        // The first and last points are kept outside of any bucket.
+        this.bucketCount = maxDataPoints - 2;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        while (outputPos >= output.size && !sourceDone) {
+            output.clear();
+            outputPos = 0;
+            
+            if (source.hasNext()) {
+                add(source.next());
+            } else {
+                sourceDone = true;
+                flush();
+            }
+        }
+        
+        return outputPos < output.size;
+    }
+    
+    @Override
+    public DataPoint next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        timestamp = output.timestamps[outputPos];
+        rawValue = output.rawValues[outputPos];
+        integer = output.integers[outputPos];
+        outputPos++;
+        return this;
+    }
+    
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    private void add(final DataPoint p) {
+        if (!hasSelected) {
+            // The first point is always kept.
+            select(p.timestamp(), p.toDouble(), raw(p), p.isInteger());
+            return;
+        }
+        
+        final int bucket = bucketOf(p.timestamp());
+        
+        if (pending.size == 0 || (next.size == 0 && bucket == pending.index)) {
+            pending.add(bucket, p);
+        } else if (next.size == 0 || bucket == next.index) {
+            next.add(bucket, p);
+        } else {
+            // 'next' is complete, so we can pick from 'pending'.
+            selectFrom(pending, next.averageTimestamp(), next.averageValue());
+            
+            final Bucket recycled = pending;
+            pending = next;
+            next = recycled;
+            next.clear();
+            next.add(bucket, p);
+        }
+    }
+    
+    /**
+     * Selects from whatever remains at the end of the source, keeping the last point.
+     */
+    private void flush() {
+        final Bucket last = (next.size > 0) ? next : pending;
+        if (last.size == 0) {
+            return;
+        }
+        
+        final int i = last.size - 1;
+        final long lastTimestamp = last.timestamps[i];
+        final double lastValue = last.values[i];
+        final long lastRaw = last.rawValues[i];
+        final boolean lastInteger = last.integers[i];
+        last.removeLast();
+        
+        if (next.size > 0) {
+            selectFrom(pending, next.averageTimestamp(), next.averageValue());
+            selectFrom(next, lastTimestamp, lastValue);
+        } else if (pending.size > 0) {
+            selectFrom(pending, lastTimestamp, lastValue);
+        }
+        
+        select(lastTimestamp, lastValue, lastRaw, lastInteger);
+    }
+    
+    /**
+     * Selects the point of {@code bucket} forming the largest triangle with the
+     * previously selected point and the given point, typically the average of the
+     * following bucket.
+     */
+    private void selectFrom(final Bucket bucket, final double cTimestamp, final double cValue) {
+        int best = 0;
+        double bestArea = -1;
+        
+        for (int i=0; i<bucket.size; i++) {
+            // Twice the area, which is fine for comparison.
+            final double area = Math.abs(
+                    (selectedTimestamp - cTimestamp) * (bucket.values[i] - selectedValue)
+                    - (selectedTimestamp - bucket.timestamps[i]) * (cValue - selectedValue));
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        
+        select(bucket.timestamps[best], bucket.values[best], bucket.rawValues[best], bucket.integers[best]);
+    }
+    
+    private void select(final long ts, final double value, final long raw, final boolean isInteger) {
+        hasSelected = true;
+        selectedTimestamp = ts;
+        selectedValue = value;
+        output.add(ts, value, raw, isInteger);
+    }
+    
+    private int bucketOf(final long ts) {
+        final long offset = Math.max(0, ts - startMillis);
+        return (int) Math.min(bucketCount - 1, offset * bucketCount / spanMillis);
+    }
+    
+    private static long raw(final DataPoint p) {
+        return p.isInteger() ? p.longValue() : Double.doubleToRawLongBits(p.doubleValue());
+    }
+    
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+    
+    @Override
+    public boolean isInteger() {
+        return integer;
+    }
+    
+    @Override
+    public long longValue() {
+        if (!integer) {
+            throw new ClassCastException("Value is not an integer");
+        }
+        return rawValue;
+    }
+    
+    @Override
+    public double doubleValue() {
+        if (integer) {
+            throw new ClassCastException("Value is not a float");
+        }
+        return Double.longBitsToDouble(rawValue);
+    }
+    
+    @Override
+    public double toDouble() {
+        return integer ? (double) rawValue : Double.longBitsToDouble(rawValue);
+    }
+    
+    /**
+     * Points of one bucket, in parallel primitive arrays.
+     */
+    private static final class Bucket {
+        int index = -1;
+        int size = 0;
+        long[] timestamps = new long[16];
+        double[] values = new double[16];
+        long[] rawValues = new long[16];
+        boolean[] integers = new boolean[16];
+        double timestampSum = 0;
+        double valueSum = 0;
+        
+        void add(final int bucket, final DataPoint p) {
+            index = bucket;
+            add(p.timestamp(), p.toDouble(), raw(p), p.isInteger());
+        }
+        
+        void add(final long ts, final double value, final long raw, final boolean isInteger) {
+            if (size == timestamps.length) {
+                final int capacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+                rawValues = Arrays.copyOf(rawValues, capacity);
+                integers = Arrays.copyOf(integers, capacity);
+            }
+            
+            timestamps[size] = ts;
+            values[size] = value;
+            rawValues[size] = raw;
+            integers[size] = isInteger;
+            timestampSum += ts;
+            valueSum += value;
+            size++;
+        }
+        
+        void removeLast() {
+            size--;
+            timestampSum -= timestamps[size];
+            valueSum -= values[size];
+        }
+        
+        double averageTimestamp() {
+            return timestampSum / size;
+        }
+        
+        double averageValue() {
+            return valueSum / size;
+        }
+        
+        void clear() {
+            index = -1;
+            size = 0;
+            timestampSum = 0;
+            valueSum = 0;
+        }
+    }
+}
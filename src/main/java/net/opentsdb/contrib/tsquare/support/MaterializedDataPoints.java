@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.meta.Annotation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * An immutable, in-memory {@link DataPoints} backed by primitive arrays.  Unlike
+ * the results of a TSDB query, all names and tags are resolved up front so instances
+ * can be cached, shared between threads and iterated any number of times.
+ */
+public final class MaterializedDataPoints implements DataPoints {
+    private static final MaterializedDataPoints[] EMPTY_ARRAY = new MaterializedDataPoints[0];
+
+    private final String metricName;
+    private final Map<String, String> tags;
+    private final List<String> aggregatedTags;
+    private final List<String> tsuids;
+
+    private final int size;
+    private final long[] timestamps;
+    /** Long values, or the raw bits of double values when {@link #floats} is set. */
+    private final long[] values;
+    private final BitSet floats;
+
+    private MaterializedDataPoints(final Builder builder) {
+        this.metricName = builder.metricName;
+        this.tags = ImmutableMap.copyOf(builder.tags);
+        this.aggregatedTags = ImmutableList.copyOf(builder.aggregatedTags);
+        this.tsuids = ImmutableList.copyOf(builder.tsuids);
+        this.size = builder.size;
+        this.timestamps = Arrays.copyOf(builder.timestamps, builder.size);
+        this.values = Arrays.copyOf(builder.values, builder.size);
+        this.floats = (BitSet) builder.floats.clone();
+    }
+
+    public static Builder builder(final String metricName, final Map<String, String> tags) {
+        return new Builder(metricName, tags);
+    }
+
+    /**
+     * Copies the given points, which may be the (lazily evaluated) result of
+     * a TSDB query.  Names and tags are resolved using the asynchronous lookup
+     * methods on {@link DataPoints}, so this is safe to call from a query callback.
+     *
+     * @param points
+     * @return
+     */
+    public static Deferred<MaterializedDataPoints> materialize(final DataPoints points) {
+        if (points instanceof MaterializedDataPoints) {
+            return Deferred.fromResult((MaterializedDataPoints) points);
+        }
+
+        final Builder builder = new Builder(null, Collections.<String, String> emptyMap());
+        builder.tsuids.addAll(points.getTSUIDs());
+
+        final Deferred<Map<String, String>> tagsLookup = points.metricNameAsync()
+            .addCallbackDeferring(new Callback<Deferred<Map<String, String>>, String>() {
+                @Override
+                public Deferred<Map<String, String>> call(final String name) {
+                    builder.metricName = name;
+                    return points.getTagsAsync();
+                }
+            });
+
+        final Deferred<List<String>> aggregatedTagsLookup = tagsLookup
+            .addCallbackDeferring(new Callback<Deferred<List<String>>, Map<String, String>>() {
+                @Override
+                public Deferred<List<String>> call(final Map<String, String> resolvedTags) {
+                    builder.tags = resolvedTags;
+                    return points.getAggregatedTagsAsync();
+                }
+            });
+
+        final Deferred<MaterializedDataPoints> result = aggregatedTagsLookup
+            .addCallback(new Callback<MaterializedDataPoints, List<String>>() {
+                @Override
+                public MaterializedDataPoints call(final List<String> resolvedAggregatedTags) {
+                    builder.addAggregatedTags(resolvedAggregatedTags);
+                    for (final DataPoint p : points) {
+                        builder.add(p);
+                    }
+                    return builder.build();
+                }
+            });
+
+        return result;
+    }
+
+    /**
+     * Same as {@link #materialize(DataPoints)}, but for every series in a query result.
+     * Order of the given array is preserved.
+     *
+     * @param results
+     * @return
+     */
+    public static Deferred<MaterializedDataPoints[]> materializeAll(final DataPoints[] results) {
+        if (results.length == 0) {
+            return Deferred.fromResult(EMPTY_ARRAY);
+        }
+
+        final MaterializedDataPoints[] copies = new MaterializedDataPoints[results.length];
+        final List<Deferred<MaterializedDataPoints>> pending = Lists.newArrayListWithCapacity(results.length);
+
+        for (int i=0; i<results.length; i++) {
+            final int index = i;
+            pending.add(materialize(results[i]).addCallback(new Callback<MaterializedDataPoints, MaterializedDataPoints>() {
+                @Override
+                public MaterializedDataPoints call(final MaterializedDataPoints copy) {
+                    copies[index] = copy;
+                    return copy;
+                }
+            }));
+        }
+
+        final Deferred<MaterializedDataPoints[]> result = Deferred.group(pending)
+            .addCallback(new Callback<MaterializedDataPoints[], ArrayList<MaterializedDataPoints>>() {
+                @Override
+                public MaterializedDataPoints[] call(final ArrayList<MaterializedDataPoints> ignored) {
+                    return copies;
+                }
+            });
+
+        return result;
+    }
+
+    /**
+     * @return copy of this series with only the points that have timestamps in
+     * {@code [startMillis, endMillis]}, or this series if all points fall in that range.
+     */
+    public MaterializedDataPoints slice(final long startMillis, final long endMillis) {
+        if (size == 0 || (timestamps[0] >= startMillis && timestamps[size - 1] <= endMillis)) {
+            return this;
+        }
+        
+        return builder(metricName, tags)
+            .addAggregatedTags(aggregatedTags)
+            .addTsuids(tsuids)
+            .addAll(this, startMillis, endMillis)
+            .build();
+    }
+    
+    /**
+     * @return index of the first point with a timestamp greater than or equal to the
+     * given timestamp, or {@link #size()} if there is no such point.
+     */
+    public int indexOf(final long timestamp) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    @Override
+    public String metricName() {
+        return metricName;
+    }
+
+    @Override
+    public Deferred<String> metricNameAsync() {
+        return Deferred.fromResult(metricName);
+    }
+
+    @Override
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    @Override
+    public Deferred<Map<String, String>> getTagsAsync() {
+        return Deferred.fromResult(tags);
+    }
+
+    @Override
+    public List<String> getAggregatedTags() {
+        return aggregatedTags;
+    }
+
+    @Override
+    public Deferred<List<String>> getAggregatedTagsAsync() {
+        return Deferred.fromResult(aggregatedTags);
+    }
+
+    @Override
+    public List<String> getTSUIDs() {
+        return tsuids;
+    }
+
+    @Override
+    public List<Annotation> getAnnotations() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int aggregatedSize() {
+        return size;
+    }
+
+    @Override
+    public SeekableView iterator() {
+        return new Cursor();
+    }
+
+    @Override
+    public long timestamp(final int i) {
+        checkIndex(i);
+        return timestamps[i];
+    }
+
+    @Override
+    public boolean isInteger(final int i) {
+        checkIndex(i);
+        return !floats.get(i);
+    }
+
+    @Override
+    public long longValue(final int i) {
+        if (!isInteger(i)) {
+            throw new ClassCastException("Value at index " + i + " is not an integer");
+        }
+        return values[i];
+    }
+
+    @Override
+    public double doubleValue(final int i) {
+        if (isInteger(i)) {
+            throw new ClassCastException("Value at index " + i + " is not a float");
+        }
+        return Double.longBitsToDouble(values[i]);
+    }
+
+    /**
+     * @return value at the given index as a double, regardless of its type.
+     */
+    public double toDouble(final int i) {
+        return isInteger(i) ? (double) values[i] : Double.longBitsToDouble(values[i]);
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " is out of bounds for " + size + " points");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MaterializedDataPoints(" + metricName + ", " + tags + ", " + size + " points)";
+    }
+
+    /**
+     * Iterator that is also the {@link DataPoint} it returns, which is the
+     * same convention TSDB iterators follow.
+     */
+    private final class Cursor implements SeekableView, DataPoint {
+        private int next = 0;
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public DataPoint next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void seek(final long timestamp) {
+            next = indexOf(timestamp);
+        }
+
+        @Override
+        public long timestamp() {
+            return timestamps[current];
+        }
+
+        @Override
+        public boolean isInteger() {
+            return MaterializedDataPoints.this.isInteger(current);
+        }
+
+        @Override
+        public long longValue() {
+            return MaterializedDataPoints.this.longValue(current);
+        }
+
+        @Override
+        public double doubleValue() {
+            return MaterializedDataPoints.this.doubleValue(current);
+        }
+
+        @Override
+        public double toDouble() {
+            return MaterializedDataPoints.this.toDouble(current);
+        }
+    }
+
+    /**
+     * Accumulates points, in timestamp order, for a new {@link MaterializedDataPoints}.
+     */
+    public static final class Builder {
+        private String metricName;
+        private Map<String, String> tags;
+        // Insertion ordered, without duplicates.
+        private final Set<String> aggregatedTags = Sets.newLinkedHashSet();
+        private final Set<String> tsuids = Sets.newLinkedHashSet();
+
+        private int size = 0;
+        private long[] timestamps = new long[16];
+        private long[] values = new long[16];
+        private final BitSet floats = new BitSet();
+
+        private Builder(final String metricName, final Map<String, String> tags) {
+            this.metricName = metricName;
+            this.tags = tags;
+        }
+
+        public Builder add(final long timestamp, final long value) {
+            ensureCapacity();
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public Builder add(final long timestamp, final double value) {
+            ensureCapacity();
+            timestamps[size] = timestamp;
+            values[size] = Double.doubleToRawLongBits(value);
+            floats.set(size);
+            size++;
+            return this;
+        }
+
+        public Builder add(final DataPoint point) {
+            if (point.isInteger()) {
+                return add(point.timestamp(), point.longValue());
+            } else {
+                return add(point.timestamp(), point.doubleValue());
+            }
+        }
+
+        /**
+         * Adds points from {@code points} with timestamps in {@code [startMillis, endMillis]}.
+         */
+        public Builder addAll(final MaterializedDataPoints points, final long startMillis, final long endMillis) {
+            for (int i=points.indexOf(startMillis); i<points.size && points.timestamps[i] <= endMillis; i++) {
+                ensureCapacity();
+                timestamps[size] = points.timestamps[i];
+                values[size] = points.values[i];
+                floats.set(size, points.floats.get(i));
+                size++;
+            }
+            return this;
+        }
+
+        public Builder addAggregatedTags(final Collection<String> names) {
+            aggregatedTags.addAll(names);
+            return this;
+        }
+
+        public Builder addTsuids(final Collection<String> ids) {
+            tsuids.addAll(ids);
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void ensureCapacity() {
+            if (size == timestamps.length) {
+                final int newCapacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, newCapacity);
+                values = Arrays.copyOf(values, newCapacity);
+            }
+        }
+
+        public MaterializedDataPoints build() {
+            return new MaterializedDataPoints(this);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Minimal, buffered <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack</a>
+ * encoder.  Numbers use the most compact encoding that holds them.  Arrays of numbers
+ * can be written as packed binary blobs of big-endian 64 bit words (see
+ * {@link #writeLongs(long[], int)}), which are smaller and much faster to encode
+ * and decode than arrays of individually encoded numbers.
+ * <p>
+ * Nothing is written to the underlying stream until the buffer fills up or
+ * {@link #flush()} is called.
+ */
+public final class MessagePackOutput {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position = 0;
+    
+    public MessagePackOutput(final OutputStream out) {
+        this(out, 8192);
+    }
+    
+    public MessagePackOutput(final OutputStream out, final int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 16)];
+    }
+    
+    public MessagePackOutput writeNil() throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) 0xc0;
+        return this;
+    }
+    
+    public MessagePackOutput writeBoolean(final boolean value) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) (value ? 0xc3 : 0xc2);
+        return this;
+    }
+    
+    public MessagePackOutput writeLong(final long value) throws IOException {
+        ensure(9);
+        if (value >= 0) {
+            if (value < 128) {
+                buffer[position++] = (byte) value;
+            } else if (value < (1L << 8)) {
+                buffer[position++] = (byte) 0xcc;
+                buffer[position++] = (byte) value;
+            } else if (value < (1L << 16)) {
+                buffer[position++] = (byte) 0xcd;
+                putShort((int) value);
+            } else if (value < (1L << 32)) {
+                buffer[position++] = (byte) 0xce;
+                putInt((int) value);
+            } else {
+                buffer[position++] = (byte) 0xcf;
+                putLong(value);
+            }
+        } else {
+            if (value >= -32) {
+                buffer[position++] = (byte) value;
+            } else if (value >= Byte.MIN_VALUE) {
+                buffer[position++] = (byte) 0xd0;
+                buffer[position++] = (byte) value;
+            } else if (value >= Short.MIN_VALUE) {
+                buffer[position++] = (byte) 0xd1;
+                putShort((int) value);
+            } else if (value >= Integer.MIN_VALUE) {
+                buffer[position++] = (byte) 0xd2;
+                putInt((int) value);
+            } else {
+                buffer[position++] = (byte) 0xd3;
+                putLong(value);
+            }
+        }
+        return this;
+    }
+    
+    public MessagePackOutput writeDouble(final double value) throws IOException {
+        ensure(9);
+        buffer[position++] = (byte) 0xcb;
+        putLong(Double.doubleToRawLongBits(value));
+        return this;
+    }
+    
+    public MessagePackOutput writeString(final String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        final int length = bytes.length;
+        
+        ensure(5);
+        if (length < 32) {
+            buffer[position++] = (byte) (0xa0 | length);
+        } else if (length < (1 << 8)) {
+            buffer[position++] = (byte) 0xd9;
+            buffer[position++] = (byte) length;
+        } else if (length < (1 << 16)) {
+            buffer[position++] = (byte) 0xda;
+            putShort(length);
+        } else {
+            buffer[position++] = (byte) 0xdb;
+            putInt(length);
+        }
+        
+        return writeRaw(bytes, 0, length);
+    }
+    
+    public MessagePackOutput writeArrayHeader(final int size) throws IOException {
+        return writeContainerHeader(size, 0x90, 0xdc, 0xdd);
+    }
+    
+    public MessagePackOutput writeMapHeader(final int size) throws IOException {
+        return writeContainerHeader(size, 0x80, 0xde, 0xdf);
+    }
+    
+    private MessagePackOutput writeContainerHeader(final int size, final int fix, final int type16, final int type32) throws IOException {
+        ensure(5);
+        if (size < 16) {
+            buffer[position++] = (byte) (fix | size);
+        } else if (size < (1 << 16)) {
+            buffer[position++] = (byte) type16;
+            putShort(size);
+        } else {
+            buffer[position++] = (byte) type32;
+            putInt(size);
+        }
+        return this;
+    }
+    
+    /**
+     * Starts a binary blob of the given length, which must be followed by exactly
+     * that many bytes.
+     */
+    public MessagePackOutput writeBinaryHeader(final int length) throws IOException {
+        ensure(5);
+        if (length < (1 << 8)) {
+            buffer[position++] = (byte) 0xc4;
+            buffer[position++] = (byte) length;
+        } else if (length < (1 << 16)) {
+            buffer[position++] = (byte) 0xc5;
+            putShort(length);
+        } else {
+            buffer[position++] = (byte) 0xc6;
+            putInt(length);
+        }
+        return this;
+    }
+    
+    /**
+     * Writes the first {@code count} values as a binary blob of big-endian 64 bit integers.
+     */
+    public MessagePackOutput writeLongs(final long[] values, final int count) throws IOException {
+        writeBinaryHeader(count * 8);
+        for (int i=0; i<count; i++) {
+            ensure(8);
+            putLong(values[i]);
+        }
+        return this;
+    }
+    
+    /**
+     * Writes the first {@code count} values as a binary blob of big-endian IEEE 754 doubles.
+     */
+    public MessagePackOutput writeDoubles(final double[] values, final int count) throws IOException {
+        writeBinaryHeader(count * 8);
+        for (int i=0; i<count; i++) {
+            ensure(8);
+            putLong(Double.doubleToRawLongBits(values[i]));
+        }
+        return this;
+    }
+    
+    /**
+     * Writes maps, collections, strings, numbers, booleans and {@code null}s,
+     * recursively.  Anything else is written as its string representation.
+     */
+    public MessagePackOutput writeObject(final Object value) throws IOException {
+        if (value == null) {
+            writeNil();
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeMapHeader(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeObject(entry.getKey());
+                writeObject(entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(collection.size());
+            for (final Object element : collection) {
+                writeObject(element);
+            }
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            writeBoolean(((Boolean) value).booleanValue());
+        } else {
+            writeString(value.toString());
+        }
+        return this;
+    }
+    
+    private MessagePackOutput writeRaw(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+    
+    private void putShort(final int value) {
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+    
+    private void putInt(final int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+    
+    private void putLong(final long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+    
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+    
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+    
+    /**
+     * Writes everything buffered so far and flushes the underlying stream.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The literal prefix that every match of an anchored regular expression must
+ * start with.  For example, {@code (?i)^sys\.cpu\..*$} (which is what
+ * {@link TsWebUtils#wildcardToRegex(String)} produces for {@code sys.cpu.*}) has the
+ * case insensitive prefix {@code sys.cpu.}.  Expressions that are not anchored
+ * at the start, or that use alternation, have an empty prefix.
+ */
+public final class RegexPrefix {
+    private static final String META_CHARS = ".[](){}*+?|^$";
+    
+    private final String prefix;
+    private final boolean caseInsensitive;
+    
+    private RegexPrefix(final String prefix, final boolean caseInsensitive) {
+        this.prefix = prefix;
+        this.caseInsensitive = caseInsensitive;
+    }
+    
+    public static RegexPrefix of(final String regex) {
+        boolean caseInsensitive = false;
+        int i = 0;
+        
+        // Leading inline flags, e.g. (?i)
+        while (regex.startsWith("(?", i)) {
+            final int close = regex.indexOf(')', i);
+            if (close < 0) {
+                return new RegexPrefix("", false);
+            }
+            
+            final String flags = regex.substring(i + 2, close);
+            if (flags.indexOf(':') >= 0) {
+                // Non-capturing group, not flags.
+                return new RegexPrefix("", caseInsensitive);
+            }
+            
+            final int minus = flags.indexOf('-');
+            final String enabled = (minus < 0) ? flags : flags.substring(0, minus);
+            caseInsensitive = enabled.indexOf('i') >= 0;
+            i = close + 1;
+        }
+        
+        if (i >= regex.length() || regex.charAt(i) != '^' || hasAlternation(regex)) {
+            return new RegexPrefix("", caseInsensitive);
+        }
+        
+        final StringBuilder prefix = new StringBuilder();
+        i++; // ... skip the anchor.
+        
+        while (i < regex.length()) {
+            final char ch = regex.charAt(i);
+            final char literal;
+            
+            if (ch == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // Character class (\d, \w...), quoting (\Q) or back reference.
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                i += 2;
+            } else if (META_CHARS.indexOf(ch) >= 0) {
+                break;
+            } else {
+                literal = ch;
+                i++;
+            }
+            
+            if (i < regex.length()) {
+                final char next = regex.charAt(i);
+                if (next == '*' || next == '?' || next == '{') {
+                    // The literal is optional (or repeated a variable number of times).
+                    break;
+                } else if (next == '+') {
+                    prefix.append(literal);
+                    break;
+                }
+            }
+            
+            prefix.append(literal);
+        }
+        
+        return new RegexPrefix(prefix.toString(), caseInsensitive);
+    }
+    
+    private static boolean hasAlternation(final String regex) {
+        boolean inClass = false;
+        
+        for (int i=0; i<regex.length(); i++) {
+            final char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == ']') {
+                inClass = false;
+            } else if (ch == '|' && !inClass) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return the literal prefix, which is empty if there is none.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+    
+    public boolean isEmpty() {
+        return prefix.isEmpty();
+    }
+    
+    public boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+    
+    /**
+     * Spellings of the prefix that a match may start with, for looking matches up
+     * by exact prefix (e.g. row key ranges).  That's just the prefix if matching is
+     * case sensitive.  Otherwise it is every combination of upper and lower case
+     * ASCII letters (the only ones {@code (?i)} folds), of as much of the prefix as
+     * keeps the number of combinations within {@code maxVariants}.
+     * 
+     * @param maxVariants
+     * @return distinct spellings, in ascending order; a single empty string if
+     * matches may start with anything.
+     */
+    public List<String> getVariants(final int maxVariants) {
+        if (!caseInsensitive) {
+            return Collections.singletonList(prefix);
+        }
+        
+        // Shorten the prefix until it has few enough spellings.
+        int length = 0;
+        int count = 1;
+        while (length < prefix.length()) {
+            final int next = isAsciiLetter(prefix.charAt(length)) ? count * 2 : count;
+            if (next > maxVariants) {
+                break;
+            }
+            count = next;
+            length++;
+        }
+        
+        List<String> variants = Lists.newArrayList("");
+        for (int i=0; i<length; i++) {
+            final char ch = prefix.charAt(i);
+            final List<String> longer = Lists.newArrayListWithCapacity(variants.size() * 2);
+            
+            for (final String variant : variants) {
+                if (isAsciiLetter(ch)) {
+                    longer.add(variant + Character.toUpperCase(ch));
+                    longer.add(variant + Character.toLowerCase(ch));
+                } else {
+                    longer.add(variant + ch);
+                }
+            }
+            
+            variants = longer;
+        }
+        
+        Collections.sort(variants);
+        return variants;
+    }
+    
+    private static boolean isAsciiLetter(final char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+    
+    /**
+     * @return {@code true} if the given string starts with this prefix.
+     */
+    public boolean isPrefixOf(final String s) {
+        return s.regionMatches(caseInsensitive, 0, prefix, 0, prefix.length());
+    }
+    
+    @Override
+    public String toString() {
+        return (caseInsensitive ? "(?i)" : "") + prefix;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.springframework.util.PatternMatchUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+/**
+ * Matches strings against an ordered set of simple {@code *} wildcards, with the
+ * same semantics as {@link PatternMatchUtils#simpleMatch(String, String)}, but without
+ * trying every pattern in turn.  Patterns are compiled by shape:
+ * 
+ * <ul>
+ * <li>literals ({@code sys.cpu}) are looked up by hash;</li>
+ * <li>prefixes ({@code sys.*}) and suffixes ({@code *.count}) are looked up by hash
+ * once for each distinct prefix or suffix length;</li>
+ * <li>anything else ({@code sys.*.count}, {@code *cpu*}) is matched one by one.</li>
+ * </ul>
+ * 
+ * When more than one pattern matches, the first one given wins.
+ *
+ * @param <T> type of value associated with each pattern.
+ */
+public final class WildcardMatcher<T> {
+    private final List<String> patterns;
+    private final List<T> values;
+    
+    /** Pattern indexes by literal, prefix and suffix. */
+    private final Map<String, Integer> literals = Maps.newHashMap();
+    private final Map<String, Integer> prefixes = Maps.newHashMap();
+    private final Map<String, Integer> suffixes = Maps.newHashMap();
+    
+    /** Distinct lengths of {@link #prefixes} and {@link #suffixes}, ascending. */
+    private final int[] prefixLengths;
+    private final int[] suffixLengths;
+    
+    /** Indexes of patterns that have to be matched one by one, ascending. */
+    private final int[] others;
+    
+    /**
+     * @param valuesByPattern patterns, in order of precedence.
+     */
+    public WildcardMatcher(final Map<String, T> valuesByPattern) {
+        this.patterns = Lists.newArrayList(valuesByPattern.keySet());
+        this.values = Lists.newArrayList(valuesByPattern.values());
+        
+        final SortedSet<Integer> prefixLengths = Sets.newTreeSet();
+        final SortedSet<Integer> suffixLengths = Sets.newTreeSet();
+        final List<Integer> others = Lists.newArrayList();
+        
+        for (int i=0; i<patterns.size(); i++) {
+            final String pattern = patterns.get(i);
+            if (pattern == null) {
+                // Never matches anything.
+                continue;
+            }
+            
+            final int first = pattern.indexOf('*');
+            final int last = pattern.lastIndexOf('*');
+            
+            if (first < 0) {
+                addFirst(literals, pattern, i);
+            } else if (first != last) {
+                others.add(i);
+            } else if (first == pattern.length() - 1) {
+                addFirst(prefixes, pattern.substring(0, first), i);
+                prefixLengths.add(first);
+            } else if (first == 0) {
+                addFirst(suffixes, pattern.substring(1), i);
+                suffixLengths.add(pattern.length() - 1);
+            } else {
+                others.add(i);
+            }
+        }
+        
+        this.prefixLengths = Ints.toArray(prefixLengths);
+        this.suffixLengths = Ints.toArray(suffixLengths);
+        this.others = Ints.toArray(others);
+    }
+    
+    private static void addFirst(final Map<String, Integer> indexes, final String key, final int index) {
+        if (!indexes.containsKey(key)) {
+            indexes.put(key, index);
+        }
+    }
+    
+    /**
+     * @return index of the first pattern that matches the given string, or -1 if
+     * none does.
+     */
+    public int indexOf(final String str) {
+        if (str == null) {
+            return -1;
+        }
+        
+        int best = lowest(Integer.MAX_VALUE, literals.get(str));
+        
+        final int length = str.length();
+        for (final int prefixLength : prefixLengths) {
+            if (prefixLength > length) {
+                break;
+            }
+            best = lowest(best, prefixes.get(str.substring(0, prefixLength)));
+        }
+        
+        for (final int suffixLength : suffixLengths) {
+            if (suffixLength > length) {
+                break;
+            }
+            best = lowest(best, suffixes.get(str.substring(length - suffixLength)));
+        }
+        
+        for (final int i : others) {
+            if (i > best) {
+                break;
+            }
+            if (PatternMatchUtils.simpleMatch(patterns.get(i), str)) {
+                best = i;
+                break;
+            }
+        }
+        
+        return (best == Integer.MAX_VALUE) ? -1 : best;
+    }
+    
+    private static int lowest(final int best, final Integer index) {
+        return (index == null) ? best : Math.min(best, index);
+    }
+    
+    /**
+     * @return value of the first pattern that matches the given string, or
+     * {@code null} if none does.
+     */
+    public T match(final String str) {
+        final int i = indexOf(str);
+        return (i < 0) ? null : values.get(i);
+    }
+    
+    public String getPattern(final int index) {
+        return patterns.get(index);
+    }
+    
+    public T getValue(final int index) {
+        return values.get(index);
+    }
+    
+    public int size() {
+        return patterns.size();
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Limits how much query work runs concurrently, overall and per client.
+ * <p>
+ * Each request needs a number of permits proportional to its estimated cost
+ * (number of queries &times; time span, see {@link #weigh(int, long)}).  Requests
+ * are admitted while permits are available, both overall and for their client
+ * ({@code maxPermitsPerClient}), and wait, first come first served, in a bounded
+ * queue otherwise.  A request held back only by its own client's limit doesn't
+ * hold up other clients' requests behind it.  Requests are rejected right away,
+ * rather than queued, when:
+ * <ul>
+ *   <li>their client already has {@code maxQueuedPerClient} requests waiting:
+ *   429 Too Many Requests</li>
+ *   <li>the queue is full: 503 Service Unavailable</li>
+ * </ul>
+ * Nothing here blocks; admission is signalled through {@link Ticket#whenAdmitted()}.
+ */
+public class AdmissionControl {
+    private int maxPermits = 64;
+    private int maxPermitsPerClient = 16;
+    private int maxQueueLength = 256;
+    private int maxQueuedPerClient = 32;
+    private long weightUnitMillis = TimeUnit.DAYS.toMillis(1);
+    private String clientHeader = null;
+    
+    // All guarded by "this".
+    private int permitsInUse = 0;
+    private final Map<String, Integer> clientPermits = Maps.newHashMap();
+    private final Map<String, Integer> clientQueued = Maps.newHashMap();
+    private final LinkedList<Ticket> queue = Lists.newLinkedList();
+    
+    private long admittedCount = 0;
+    private long queuedCount = 0;
+    private long rejectedClientLimitCount = 0;
+    private long rejectedQueueFullCount = 0;
+    private long abandonedCount = 0;
+    
+    /**
+     * @param request
+     * @return the client a request counts against: the first address in
+     * {@link #clientHeader} if set and present, otherwise the remote address.
+     */
+    public String clientOf(final HttpServletRequest request) {
+        if (!Strings.isNullOrEmpty(clientHeader)) {
+            final String value = request.getHeader(clientHeader);
+            if (!Strings.isNullOrEmpty(value)) {
+                final int comma = value.indexOf(',');
+                return (comma < 0 ? value : value.substring(0, comma)).trim();
+            }
+        }
+        
+        return request.getRemoteAddr();
+    }
+    
+    /**
+     * One permit per {@link #weightUnitMillis} of queried time, summed over all
+     * queries, but at least one per query and never more than a single client may hold.
+     * 
+     * @param numQueries
+     * @param totalSpanMillis sum of the time spans of all queries.
+     * @return permits needed by a request.
+     */
+    public int weigh(final int numQueries, final long totalSpanMillis) {
+        final long units = (Math.max(0, totalSpanMillis) + weightUnitMillis - 1) / weightUnitMillis;
+        final long weight = Math.max(numQueries, units);
+        return (int) Math.max(1, Math.min(weight, Math.min(maxPermits, maxPermitsPerClient)));
+    }
+    
+    /**
+     * Asks for permits.  The returned ticket must be {@link Ticket#release() released}
+     * whether or not it is ever admitted.
+     * 
+     * @param client as returned by {@link #clientOf(HttpServletRequest)}
+     * @param weight as returned by {@link #weigh(int, long)}
+     * @return ticket, which may already be admitted.
+     * @throws AdmissionRejectedException if the request is turned away.
+     */
+    public Ticket acquire(final String client, final int weight) {
+        Preconditions.checkArgument(weight > 0 && weight <= Math.min(maxPermits, maxPermitsPerClient), "Invalid weight: %s", weight);
+        
+        final Ticket ticket = new Ticket(client, weight);
+        
+        synchronized (this) {
+            queue.add(ticket);
+            ticket.state = Ticket.QUEUED;
+            add(clientQueued, client, 1);
+            
+            // Everything else in the queue is already waiting, so this admits
+            // nothing but (possibly) the new ticket.
+            drainQueue();
+            
+            if (ticket.state == Ticket.QUEUED) {
+                if (count(clientQueued, client) > maxQueuedPerClient) {
+                    dequeue(ticket);
+                    rejectedClientLimitCount++;
+                    throw new AdmissionRejectedException(AdmissionRejectedException.TOO_MANY_REQUESTS, 
+                            "Too many queries waiting from " + client);
+                }
+                if (queue.size() > maxQueueLength) {
+                    dequeue(ticket);
+                    rejectedQueueFullCount++;
+                    throw new AdmissionRejectedException(AdmissionRejectedException.SERVICE_UNAVAILABLE, 
+                            "Too many queries waiting; try again later");
+                }
+                queuedCount++;
+            }
+        }
+        
+        if (ticket.state == Ticket.ADMITTED) {
+            ticket.admitted.callback(ticket);
+        }
+        
+        return ticket;
+    }
+    
+    private void dequeue(final Ticket ticket) {
+        queue.remove(ticket);
+        add(clientQueued, ticket.client, -1);
+        ticket.state = Ticket.RELEASED;
+    }
+    
+    private static int count(final Map<String, Integer> counts, final String client) {
+        final Integer count = counts.get(client);
+        return count == null ? 0 : count.intValue();
+    }
+    
+    private static void add(final Map<String, Integer> counts, final String client, final int delta) {
+        final int count = count(counts, client) + delta;
+        if (count > 0) {
+            counts.put(client, count);
+        } else {
+            counts.remove(client);
+        }
+    }
+    
+    /**
+     * Admits queued tickets, in order, while their permits are available.  Tickets
+     * that wait for their own client's permits are skipped (keeping each client's
+     * tickets in order); one that waits for permits overall stops the drain, so
+     * that large requests aren't starved.
+     * 
+     * @return newly admitted tickets, to be signalled outside the lock.
+     */
+    private List<Ticket> drainQueue() {
+        final List<Ticket> admitted = Lists.newArrayList();
+        final Set<String> blockedClients = Sets.newHashSet();
+        
+        final Iterator<Ticket> it = queue.iterator();
+        while (it.hasNext()) {
+            final Ticket next = it.next();
+            if (blockedClients.contains(next.client) 
+                    || count(clientPermits, next.client) + next.weight > maxPermitsPerClient) {
+                blockedClients.add(next.client);
+                continue;
+            }
+            if (permitsInUse + next.weight > maxPermits) {
+                break;
+            }
+            
+            it.remove();
+            add(clientQueued, next.client, -1);
+            add(clientPermits, next.client, next.weight);
+            permitsInUse += next.weight;
+            next.state = Ticket.ADMITTED;
+            admittedCount++;
+            admitted.add(next);
+        }
+        
+        return admitted;
+    }
+    
+    /**
+     * @return counters and gauges for sizing the limits.
+     */
+    public synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("maxPermits", maxPermits);
+        stats.put("permitsInUse", permitsInUse);
+        stats.put("queueDepth", queue.size());
+        stats.put("maxQueueLength", maxQueueLength);
+        stats.put("maxQueuedPerClient", maxQueuedPerClient);
+        stats.put("activeClients", clientPermits.size());
+        stats.put("admitted", admittedCount);
+        stats.put("queued", queuedCount);
+        stats.put("rejectedClientLimit", rejectedClientLimitCount);
+        stats.put("rejectedQueueFull", rejectedQueueFullCount);
+        stats.put("abandoned", abandonedCount);
+        return stats;
+    }
+    
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public synchronized int getPermitsInUse() {
+        return permitsInUse;
+    }
+    
+    /**
+     * @param maxPermits total permits available to all requests.
+     */
+    public void setMaxPermits(int maxPermits) {
+        Preconditions.checkArgument(maxPermits > 0, "Invalid max permits: %s", maxPermits);
+        this.maxPermits = maxPermits;
+    }
+    
+    /**
+     * @param maxPermitsPerClient permits a single client may hold at once; its
+     * other requests wait.
+     */
+    public void setMaxPermitsPerClient(int maxPermitsPerClient) {
+        Preconditions.checkArgument(maxPermitsPerClient > 0, "Invalid max permits per client: %s", maxPermitsPerClient);
+        this.maxPermitsPerClient = maxPermitsPerClient;
+    }
+    
+    /**
+     * @param maxQueueLength number of requests that may wait for permits; more are rejected.
+     */
+    public void setMaxQueueLength(int maxQueueLength) {
+        Preconditions.checkArgument(maxQueueLength >= 0, "Invalid max queue length: %s", maxQueueLength);
+        this.maxQueueLength = maxQueueLength;
+    }
+    
+    /**
+     * @param maxQueuedPerClient number of requests of a single client that may wait
+     * for permits; more are rejected.
+     */
+    public void setMaxQueuedPerClient(int maxQueuedPerClient) {
+        Preconditions.checkArgument(maxQueuedPerClient >= 0, "Invalid max queued per client: %s", maxQueuedPerClient);
+        this.maxQueuedPerClient = maxQueuedPerClient;
+    }
+    
+    /**
+     * @param weightUnitMillis amount of queried time that costs one permit.
+     */
+    public void setWeightUnitMillis(long weightUnitMillis) {
+        Preconditions.checkArgument(weightUnitMillis > 0, "Invalid weight unit: %s", weightUnitMillis);
+        this.weightUnitMillis = weightUnitMillis;
+    }
+    
+    /**
+     * @param clientHeader request header that identifies clients, e.g. {@code X-Forwarded-For}
+     * behind a proxy.  If not set, clients are identified by remote address.
+     */
+    public void setClientHeader(String clientHeader) {
+        this.clientHeader = clientHeader;
+    }
+    
+    /**
+     * Permits held by, or waited for on behalf of, one request.
+     */
+    public final class Ticket {
+        private static final int QUEUED = 1;
+        private static final int ADMITTED = 2;
+        private static final int RELEASED = 3;
+        
+        private final String client;
+        private final int weight;
+        private final Deferred<Ticket> admitted = new Deferred<Ticket>();
+        private int state = 0;
+        
+        private Ticket(final String client, final int weight) {
+            this.client = client;
+            this.weight = weight;
+        }
+        
+        /**
+         * @return fires (possibly on another request's thread) once this ticket
+         * is admitted.  Never fires for tickets released while queued.  Add
+         * callbacks only once.
+         */
+        public Deferred<Ticket> whenAdmitted() {
+            return admitted;
+        }
+        
+        /**
+         * Returns this ticket's permits, or gives up its place in the queue.
+         * Safe to call more than once.
+         */
+        public void release() {
+            final List<Ticket> nowAdmitted;
+            
+            synchronized (AdmissionControl.this) {
+                if (state == QUEUED) {
+                    dequeue(this);
+                    abandonedCount++;
+                } else if (state == ADMITTED) {
+                    permitsInUse -= weight;
+                    add(clientPermits, client, -weight);
+                    state = RELEASED;
+                } else {
+                    return;
+                }
+                
+                nowAdmitted = drainQueue();
+            }
+            
+            for (final Ticket t : nowAdmitted) {
+                t.admitted.callback(t);
+            }
+        }
+        
+        public String getClient() {
+            return client;
+        }
+        
+        public int getWeight() {
+            return weight;
+        }
+    }
+}
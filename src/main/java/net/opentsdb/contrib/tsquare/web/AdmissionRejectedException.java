@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Thrown (or set as an asynchronous result) when {@link AdmissionControl} turns
+ * a request away.  Carries the HTTP status to respond with: 429 when the client
+ * is over its own limit, 503 when the server as a whole is too busy.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int SERVICE_UNAVAILABLE = 503;
+    
+    private final int status;
+    
+    public AdmissionRejectedException(final int status, final String message) {
+        super(message);
+        this.status = status;
+    }
+    
+    /**
+     * @return HTTP status for the response.
+     */
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * @return description of this error for responses to clients, in the form
+     * <code>{"error": {"type": "rejected", "status": ..., "message": ...}}</code>.
+     */
+    public Map<String, Object> toErrorObject() {
+        final Map<String, Object> error = ImmutableMap.<String, Object> of(
+                "type", "rejected",
+                "status", Integer.valueOf(status),
+                "message", getMessage());
+        return ImmutableMap.<String, Object> of("error", error);
+    }
+}
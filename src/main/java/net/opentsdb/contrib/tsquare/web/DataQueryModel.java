@@ -15,15 +15,19 @@
  */
 package net.opentsdb.contrib.tsquare.web;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import net.opentsdb.contrib.tsquare.graphite.TargetExpression;
+import net.opentsdb.contrib.tsquare.stats.QueryTrace;
 import net.opentsdb.contrib.tsquare.web.view.DataQueryResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.DataQueryView;
 import net.opentsdb.core.Query;
 
 import org.springframework.web.servlet.ModelAndView;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -34,14 +38,20 @@ import com.google.common.collect.Sets;
  */
 public final class DataQueryModel {
     private Set<AnnotatedDataQuery> queries;
+    private List<TargetExpression> targets;
     private DataQueryResponseWriter responseWriter;
+    private QueryFanOut fanOut;
+    private int responseBufferSize = 0;
+    private QueryTrace trace;
     
     public DataQueryModel() {
         this.queries = Sets.newLinkedHashSet();
+        this.targets = Lists.newArrayList();
     }
     
     public DataQueryModel(final DataQueryResponseWriter responseWriter) {
         this.queries = Sets.newLinkedHashSet();
+        this.targets = Lists.newArrayList();
         this.responseWriter = responseWriter;
     }
     
@@ -52,7 +62,11 @@ public final class DataQueryModel {
         
         final DataQueryModel m = (DataQueryModel) modelMap.get("DataQueryModel");
         this.queries = m.getQueries();
+        this.targets = m.getTargets();
         this.responseWriter = m.getResponseWriter();
+        this.fanOut = m.getFanOut();
+        this.responseBufferSize = m.getResponseBufferSize();
+        this.trace = m.getTrace();
     }
     
     public void addQuery(final AnnotatedDataQuery query) {
@@ -63,6 +77,29 @@ public final class DataQueryModel {
         return queries;
     }
     
+    /**
+     * @param queries replaces all queries of this model; iteration order is preserved.
+     */
+    public void setQueries(Set<AnnotatedDataQuery> queries) {
+        this.queries = Sets.newLinkedHashSet(queries);
+    }
+    
+    /**
+     * Adds an expression to evaluate over the results of the queries.  When any
+     * targets are present, the view writes the results of the targets (in order)
+     * instead of the raw results of each query.  Queries for every metric of the
+     * target must also be added to this model.
+     * 
+     * @param target
+     */
+    public void addTarget(final TargetExpression target) {
+        targets.add(target);
+    }
+    
+    public List<TargetExpression> getTargets() {
+        return targets;
+    }
+    
     public DataQueryResponseWriter getResponseWriter() {
         return responseWriter;
     }
@@ -71,6 +108,42 @@ public final class DataQueryModel {
         this.responseWriter = writer;
     }
 
+    /**
+     * @return queries of this model, once started; {@code null} before that.
+     */
+    public QueryFanOut getFanOut() {
+        return fanOut;
+    }
+
+    public void setFanOut(QueryFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public int getResponseBufferSize() {
+        return responseBufferSize;
+    }
+
+    /**
+     * @param responseBufferSize if positive, the view holds the whole response back
+     * until it has been written successfully, keeping up to this many bytes in memory
+     * and the rest in a temporary file.  Otherwise (the default) the response is
+     * streamed to the client as it is written.
+     */
+    public void setResponseBufferSize(int responseBufferSize) {
+        this.responseBufferSize = responseBufferSize;
+    }
+
+    /**
+     * @return timing of this request, if traced; {@code null} otherwise.
+     */
+    public QueryTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(QueryTrace trace) {
+        this.trace = trace;
+    }
+
     public ModelAndView toModelAndView() {
         return new ModelAndView(DataQueryView.class.getSimpleName(), "DataQueryModel", this);
     }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import net.opentsdb.core.DataPoints;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Strategy for executing a single {@link AnnotatedDataQuery}.  Implementations
+ * may run the query directly against TSDB or decorate another runner (for
+ * caching and the like).
+ */
+public interface DataQueryRunner {
+    /**
+     * @param dataQuery a query that is ready to execute.
+     * @return the query result, which contains one {@link DataPoints} per series.
+     */
+    Deferred<DataPoints[]> run(AnnotatedDataQuery dataQuery);
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.stats.QueryTrace;
+import net.opentsdb.contrib.tsquare.stats.SlowQueryLog;
+import net.opentsdb.core.DataPoints;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.ModelAndView;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Callback;
+
+/**
+ * Runs the queries of a {@link DataQueryModel}.  Controllers use
+ * {@link #executeAsync(DataQueryModel, HttpServletRequest)} so that no request
+ * thread waits on HBase: the view is rendered only after every query has
+ * completed, by which time writing the response does not block on I/O.
+ */
+public class DataQueryService {
+    private static final Logger log = LoggerFactory.getLogger(DataQueryService.class);
+    
+    @Autowired
+    private DataQueryRunner dataQueryRunner;
+    @Autowired(required=false)
+    private AdmissionControl admissionControl;
+    @Autowired(required=false)
+    private QueryCostEstimator costEstimator;
+    @Autowired(required=false)
+    private SlowQueryLog slowQueryLog;
+    private int maxQueryParallelism = 1;
+    private String parallelismRequestParam = "parallelism";
+    private long defaultTimeoutMillis = 30000;
+    private long maxTimeoutMillis = 120000;
+    private String timeoutRequestParam = "timeout";
+    
+    /**
+     * Submits all queries in the model, at most {@link #maxQueryParallelism} at a time.
+     * Clients may ask for less (but never more) parallelism using the request
+     * parameter named by {@link #parallelismRequestParam}.  If the queries of the
+     * model have already been started, they are not started again.  Queries that
+     * haven't been submitted by the request's deadline (see 
+     * {@link #resolveTimeoutMillis(HttpServletRequest)}) fail with a {@link QueryTimeoutException}.
+     * 
+     * @param model
+     * @param request
+     * @return running queries.
+     */
+    public QueryFanOut startQueries(final DataQueryModel model, final HttpServletRequest request) {
+        if (model.getFanOut() != null) {
+            return model.getFanOut();
+        }
+        
+        final long timeoutMillis = resolveTimeoutMillis(request);
+        final QueryFanOut fanOut = new QueryFanOut(model.getQueries(), dataQueryRunner, resolveParallelism(request))
+            .setDeadline(System.currentTimeMillis() + timeoutMillis, timeoutMillis)
+            .start();
+        model.setFanOut(fanOut);
+        return fanOut;
+    }
+    
+    private int resolveParallelism(final HttpServletRequest request) {
+        int parallelism = maxQueryParallelism;
+        
+        final String requested = request.getParameter(parallelismRequestParam);
+        if (!Strings.isNullOrEmpty(requested)) {
+            final int value = Integer.parseInt(requested);
+            Preconditions.checkArgument(value > 0, "Invalid %s: %s", parallelismRequestParam, requested);
+            parallelism = Math.min(value, maxQueryParallelism);
+        }
+        
+        return parallelism;
+    }
+    
+    /**
+     * The deadline of a request is {@link #defaultTimeoutMillis} unless the client
+     * asks for another one, in milliseconds, using the request parameter named by
+     * {@link #timeoutRequestParam}.  Either way it is capped at {@link #maxTimeoutMillis}.
+     * 
+     * @param request
+     * @return how long queries of the given request may run.
+     */
+    public long resolveTimeoutMillis(final HttpServletRequest request) {
+        long timeout = defaultTimeoutMillis;
+        
+        final String requested = request.getParameter(timeoutRequestParam);
+        if (!Strings.isNullOrEmpty(requested)) {
+            timeout = Long.parseLong(requested);
+            Preconditions.checkArgument(timeout > 0, "Invalid %s: %s", timeoutRequestParam, requested);
+        }
+        
+        return Math.min(timeout, maxTimeoutMillis);
+    }
+    
+    /**
+     * Starts the model's queries and returns right away.  The result is set to the
+     * model's view once all queries have completed, successfully or not; failures
+     * are reported by the view's writer.  If that doesn't happen before the request's
+     * deadline (see {@link #resolveTimeoutMillis(HttpServletRequest)}) outstanding
+     * queries are cancelled and the view reports a {@link QueryTimeoutException}
+     * instead.
+     * <p>
+     * If an {@link AdmissionControl} is configured, queries start only once the
+     * request is admitted.  Requests still waiting at their deadline get an
+     * {@link AdmissionRejectedException}.
+     * <p>
+     * If a {@link QueryCostEstimator} is configured, every query is checked (and
+     * possibly downsampled) before the request asks for admission.
+     * <p>
+     * If the model has a {@link QueryTrace}, the time spent estimating, waiting for
+     * admission and scanning is added to it.
+     * 
+     * @param model
+     * @param request
+     * @return
+     * @throws AdmissionRejectedException if the request is turned away right away.
+     * @throws QueryCostExceededException if any query of the model is too expensive.
+     */
+    public DeferredResult<ModelAndView> executeAsync(final DataQueryModel model, final HttpServletRequest request) {
+        final long timeoutMillis = resolveTimeoutMillis(request);
+        final long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        final int parallelism = resolveParallelism(request);
+        final DeferredResult<ModelAndView> result = new DeferredResult<ModelAndView>(timeoutMillis);
+        
+        final QueryTrace trace = model.getTrace();
+        
+        if (costEstimator != null) {
+            final long estimateStartNanos = System.nanoTime();
+            final Set<AnnotatedDataQuery> enforced = Sets.newLinkedHashSet();
+            for (final AnnotatedDataQuery query : model.getQueries()) {
+                final QueryCostEstimator.Estimate estimate = costEstimator.estimate(query);
+                enforced.add(costEstimator.enforce(query, estimate));
+                if (QueryCostEstimator.VERDICT_DOWNSAMPLE.equals(estimate.getVerdict())) {
+                    log.info("Downsampling {} to {}s intervals", query.getMetric(), estimate.getDownsampleIntervalSeconds());
+                }
+                if (trace != null) {
+                    trace.addEstimatedRows(estimate.getRows());
+                }
+            }
+            model.setQueries(enforced);
+            if (trace != null) {
+                trace.addPhase(QueryTrace.PHASE_ESTIMATE, estimateStartNanos);
+            }
+        }
+        
+        final long admissionStartNanos = System.nanoTime();
+        
+        final AdmissionControl.Ticket ticket;
+        if (admissionControl == null) {
+            ticket = null;
+        } else {
+            long totalSpanMillis = 0;
+            for (final AnnotatedDataQuery query : model.getQueries()) {
+                totalSpanMillis += query.getQuery().getEndTime() - query.getQuery().getStartTime();
+            }
+            
+            final int weight = admissionControl.weigh(model.getQueries().size(), totalSpanMillis);
+            ticket = admissionControl.acquire(admissionControl.clientOf(request), weight);
+        }
+        
+        final Execution execution = new Execution(model, parallelism, timeoutMillis, deadlineMillis, result, ticket, admissionStartNanos);
+        result.onTimeout(execution);
+        
+        if (ticket == null) {
+            execution.admitted();
+        } else {
+            ticket.whenAdmitted().addCallback(new Callback<Object, AdmissionControl.Ticket>() {
+                @Override
+                public Object call(final AdmissionControl.Ticket admitted) {
+                    execution.admitted();
+                    return null;
+                }
+            });
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Queries of one asynchronous request, from admission to result.
+     */
+    private final class Execution implements Runnable {
+        private final DataQueryModel model;
+        private final int parallelism;
+        private final long timeoutMillis;
+        private final long deadlineMillis;
+        private final DeferredResult<ModelAndView> result;
+        private final AdmissionControl.Ticket ticket;
+        private final long admissionStartNanos;
+        
+        // Guarded by "this".
+        private boolean timedOut = false;
+        
+        Execution(final DataQueryModel model, final int parallelism, final long timeoutMillis, final long deadlineMillis,
+                final DeferredResult<ModelAndView> result, final AdmissionControl.Ticket ticket, final long admissionStartNanos) {
+            this.model = model;
+            this.parallelism = parallelism;
+            this.timeoutMillis = timeoutMillis;
+            this.deadlineMillis = deadlineMillis;
+            this.result = result;
+            this.ticket = ticket;
+            this.admissionStartNanos = admissionStartNanos;
+        }
+        
+        void admitted() {
+            final QueryFanOut fanOut;
+            
+            synchronized (this) {
+                if (timedOut) {
+                    release();
+                    return;
+                }
+                
+                fanOut = new QueryFanOut(model.getQueries(), dataQueryRunner, parallelism).setDeadline(deadlineMillis, timeoutMillis);
+                model.setFanOut(fanOut);
+            }
+            
+            final QueryTrace trace = model.getTrace();
+            if (trace != null) {
+                trace.addPhase(QueryTrace.PHASE_ADMISSION, admissionStartNanos);
+            }
+            
+            final long scanStartNanos = System.nanoTime();
+            fanOut.start().completion().addCallbacks(
+                    new Callback<Object, ArrayList<DataPoints[]>>() {
+                        @Override
+                        public Object call(final ArrayList<DataPoints[]> ignored) {
+                            completed(scanStartNanos);
+                            return null;
+                        }
+                    },
+                    new Callback<Object, Exception>() {
+                        @Override
+                        public Object call(final Exception e) {
+                            // The view reports the failure of the individual query.
+                            completed(scanStartNanos);
+                            return null;
+                        }
+                    });
+        }
+        
+        private void completed(final long scanStartNanos) {
+            if (model.getTrace() != null) {
+                model.getTrace().addPhase(QueryTrace.PHASE_SCAN, scanStartNanos);
+            }
+            release();
+            result.setResult(model.toModelAndView());
+        }
+        
+        /**
+         * Called when the deadline passes.
+         */
+        @Override
+        public void run() {
+            final QueryFanOut fanOut;
+            
+            synchronized (this) {
+                timedOut = true;
+                fanOut = model.getFanOut();
+            }
+            
+            if (fanOut == null) {
+                log.warn("Timed out after {}ms waiting for admission", timeoutMillis);
+                release();
+                
+                final QueryTrace trace = model.getTrace();
+                if (trace != null) {
+                    trace.addPhase(QueryTrace.PHASE_ADMISSION, admissionStartNanos);
+                    trace.setError("Timed out waiting for admission");
+                    trace.finish(0, 0);
+                    if (slowQueryLog != null) {
+                        slowQueryLog.record(trace);
+                    }
+                }
+                
+                result.setErrorResult(new AdmissionRejectedException(AdmissionRejectedException.SERVICE_UNAVAILABLE, 
+                        "Timed out after " + timeoutMillis + "ms waiting for admission"));
+            } else {
+                log.warn("Timed out after {}ms waiting for {} queries", timeoutMillis, fanOut.size());
+                fanOut.cancel(new QueryTimeoutException(timeoutMillis));
+                result.setResult(model.toModelAndView());
+            }
+        }
+        
+        private void release() {
+            if (ticket != null) {
+                ticket.release();
+            }
+        }
+    }
+    
+    public void setDataQueryRunner(DataQueryRunner dataQueryRunner) {
+        this.dataQueryRunner = dataQueryRunner;
+    }
+    
+    /**
+     * @param admissionControl limits on concurrent queries; {@code null} for no limits.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+    
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+    
+    /**
+     * @param costEstimator limits on the cost of individual queries; {@code null} for no limits.
+     */
+    public void setCostEstimator(QueryCostEstimator costEstimator) {
+        this.costEstimator = costEstimator;
+    }
+    
+    public QueryCostEstimator getCostEstimator() {
+        return costEstimator;
+    }
+    
+    /**
+     * @param slowQueryLog where traces of slow requests are kept; {@code null} to keep none.
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+    
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+    
+    /**
+     * @param maxQueryParallelism maximum number of queries from a single request
+     * that may run against HBase concurrently.  A value of one runs queries serially.
+     */
+    public void setMaxQueryParallelism(int maxQueryParallelism) {
+        Preconditions.checkArgument(maxQueryParallelism > 0, "Invalid max query parallelism: %s", maxQueryParallelism);
+        this.maxQueryParallelism = maxQueryParallelism;
+    }
+    
+    public void setParallelismRequestParam(String parallelismRequestParam) {
+        this.parallelismRequestParam = parallelismRequestParam;
+    }
+    
+    /**
+     * @param defaultTimeoutMillis how long queries of a request may run, unless
+     * the client asks for something else.
+     */
+    public void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        Preconditions.checkArgument(defaultTimeoutMillis > 0, "Invalid default timeout: %s", defaultTimeoutMillis);
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+    
+    /**
+     * @param maxTimeoutMillis upper limit on the timeout a client may ask for.
+     */
+    public void setMaxTimeoutMillis(long maxTimeoutMillis) {
+        Preconditions.checkArgument(maxTimeoutMillis > 0, "Invalid max timeout: %s", maxTimeoutMillis);
+        this.maxTimeoutMillis = maxTimeoutMillis;
+    }
+    
+    public void setTimeoutRequestParam(String timeoutRequestParam) {
+        this.timeoutRequestParam = timeoutRequestParam;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.stats.TsquareStats;
+import net.opentsdb.core.DataPoints;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Runs queries directly against TSDB.  If there are {@link TsquareStats}, the time
+ * each query takes (i.e. reading HBase) is recorded there.
+ */
+public class DirectDataQueryRunner implements DataQueryRunner {
+    @Autowired(required=false)
+    private TsquareStats stats;
+    
+    @Override
+    public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+        if (stats == null) {
+            return dataQuery.getQuery().runAsync();
+        }
+        
+        final long startNanos = System.nanoTime();
+        return dataQuery.getQuery().runAsync().addCallback(new Callback<DataPoints[], DataPoints[]>() {
+            @Override
+            public DataPoints[] call(final DataPoints[] points) {
+                stats.recordScan(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                return points;
+            }
+        });
+    }
+    
+    public void setStats(TsquareStats stats) {
+        this.stats = stats;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.Map;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.index.TagIndex;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.Query;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Estimates, before anything is read from HBase, how much work a data query
+ * is, and enforces limits on it.
+ * <p>
+ * Series counts come from the {@link TagIndex}.  A query touches every series of
+ * its metric that all of its tag filters match; that is estimated as the smallest
+ * number of series matched by any one filter (for <code>*</code>, the series that
+ * have the tag key at all).  The number of groups the query returns is the product,
+ * over the <code>*</code> and <code>a|b</code> filters, of the number of values of
+ * that tag key the filter matches for the metric, but never more than the number
+ * of series.  Metrics that aren't in the index (or all metrics, when there is no
+ * index) have an unknown cost, and no limits are enforced on them.  From there:
+ * <ul>
+ *   <li>rows = series &times; hours spanned (TSDB stores one hour per row)</li>
+ *   <li>scanned points = series &times; span / {@link #sampleIntervalSeconds}</li>
+ *   <li>output points = groups &times; span / downsample interval (or the sample
+ *   interval, without downsampling)</li>
+ * </ul>
+ * Queries over {@link #maxRows} or {@link #maxScannedPoints} are rejected.
+ * Queries over {@link #maxOutputPoints} are downsampled until they fit, or
+ * rejected if {@link #forceDownsampling} is off.  A limit of zero means no limit.
+ */
+public class QueryCostEstimator {
+    private static final long SECONDS_PER_ROW = 3600;
+    
+    public static final String VERDICT_OK = "ok";
+    public static final String VERDICT_DOWNSAMPLE = "downsample";
+    public static final String VERDICT_REJECT = "reject";
+    
+    @Autowired
+    private TsdbManager tsdbManager;
+    @Autowired(required=false)
+    private TagIndex tagIndex;
+    private int sampleIntervalSeconds = 15;
+    private long maxRows = 0;
+    private long maxScannedPoints = 0;
+    private long maxOutputPoints = 0;
+    private boolean forceDownsampling = true;
+    private Aggregator forcedDownsampler = Aggregators.AVG;
+    
+    /**
+     * @param query
+     * @return estimated cost of the query, and what {@link #enforce(AnnotatedDataQuery, Estimate)}
+     * would do with it.  The query is not modified.
+     */
+    public Estimate estimate(final AnnotatedDataQuery query) {
+        final Metric metric = query.getMetric();
+        final Estimate estimate = new Estimate(metric.getRawMetric());
+        
+        // Query times are in milliseconds.
+        final long startSeconds = query.getQuery().getStartTime() / 1000;
+        final long endSeconds = Math.max(startSeconds, query.getQuery().getEndTime() / 1000);
+        estimate.spanSeconds = Math.max(1, endSeconds - startSeconds);
+        estimate.downsampleIntervalSeconds = downsampleIntervalOf(metric);
+        
+        if (!countSeries(metric, estimate)) {
+            estimate.reason = "Series of " + metric.getName() + " aren't indexed; limits not enforced";
+            return estimate;
+        }
+        
+        estimate.rows = multiply(estimate.series, (endSeconds / SECONDS_PER_ROW) - (startSeconds / SECONDS_PER_ROW) + 1);
+        estimate.scannedPoints = multiply(estimate.series, divideRoundingUp(estimate.spanSeconds, sampleIntervalSeconds));
+        estimate.outputPoints = outputPoints(estimate, estimate.downsampleIntervalSeconds);
+        
+        if (maxRows > 0 && estimate.rows > maxRows) {
+            estimate.reject("Query would scan about " + estimate.rows + " rows; the limit is " + maxRows);
+        } else if (maxScannedPoints > 0 && estimate.scannedPoints > maxScannedPoints) {
+            estimate.reject("Query would scan about " + estimate.scannedPoints + " points; the limit is " + maxScannedPoints);
+        } else if (maxOutputPoints > 0 && estimate.outputPoints > maxOutputPoints) {
+            if (!forceDownsampling) {
+                estimate.reject("Query would return about " + estimate.outputPoints + " points; the limit is " + maxOutputPoints);
+            } else if (estimate.groups > maxOutputPoints) {
+                estimate.reject("Query would return about " + estimate.groups + " series, more than the limit of " 
+                        + maxOutputPoints + " points");
+            } else {
+                final int interval = downsampleIntervalFor(estimate);
+                estimate.downsample(interval);
+                estimate.outputPoints = outputPoints(estimate, interval);
+            }
+        }
+        
+        return estimate;
+    }
+    
+    /**
+     * Applies the verdict of an estimate: queries that are too expensive are
+     * rejected, and queries that return too many points are downsampled.  Call
+     * this before the query is run.
+     * 
+     * @param query
+     * @param estimate of the query, see {@link #estimate(AnnotatedDataQuery)}.
+     * @return the query to run: the given one, or a downsampled copy of it.  The
+     * given query and its metric are never modified.
+     * @throws QueryCostExceededException if the query is rejected.
+     */
+    public AnnotatedDataQuery enforce(final AnnotatedDataQuery query, final Estimate estimate) {
+        if (VERDICT_REJECT.equals(estimate.verdict)) {
+            throw new QueryCostExceededException(estimate.reason, estimate);
+        }
+        
+        if (!VERDICT_DOWNSAMPLE.equals(estimate.verdict)) {
+            return query;
+        }
+        
+        final Metric metric = query.getMetric().copy();
+        if (metric.getDownsampler() == null) {
+            metric.setDownsampler(forcedDownsampler);
+        }
+        metric.setDownsampleIntervalSeconds(estimate.downsampleIntervalSeconds);
+        
+        final Query downsampled = tsdbManager.newMetricsQuery();
+        downsampled.setStartTime(query.getQuery().getStartTime());
+        downsampled.setEndTime(query.getQuery().getEndTime());
+        metric.contributeToQuery(downsampled);
+        
+        return new AnnotatedDataQuery(metric, downsampled);
+    }
+    
+    /**
+     * Sets the series and groups of the estimate.
+     * 
+     * @return {@code false} if the index can't tell.
+     */
+    private boolean countSeries(final Metric metric, final Estimate estimate) {
+        if (tagIndex == null || !tagIndex.isLoaded()) {
+            return false;
+        }
+        
+        final int seriesCount = tagIndex.getSeriesCount(metric.getName());
+        if (seriesCount < 0) {
+            return false;
+        }
+        
+        long series = seriesCount;
+        long groups = 1;
+        if (metric.getTags() != null) {
+            for (final Map.Entry<String, String> filter : metric.getTags().entrySet()) {
+                final TagIndex.FilterCount count = tagIndex.count(metric.getName(), filter.getKey(), filter.getValue());
+                if (count == null) {
+                    // Replaced by an index without the metric.
+                    return false;
+                }
+                
+                series = Math.min(series, count.getSeries());
+                if (isGrouping(filter.getValue())) {
+                    groups = multiply(groups, Math.max(1, count.getValues()));
+                }
+            }
+        }
+        
+        estimate.known = true;
+        estimate.series = series;
+        estimate.groups = Math.max(1, Math.min(groups, series));
+        return true;
+    }
+    
+    private static boolean isGrouping(final String value) {
+        return "*".equals(value) || value.indexOf('|') >= 0;
+    }
+    
+    private static int downsampleIntervalOf(final Metric metric) {
+        return (metric.getDownsampler() == null ? 0 : metric.getDownsampleIntervalSeconds());
+    }
+    
+    private long outputPoints(final Estimate estimate, final int downsampleIntervalSeconds) {
+        final long interval = (downsampleIntervalSeconds > 0 ? downsampleIntervalSeconds : sampleIntervalSeconds);
+        return multiply(estimate.groups, divideRoundingUp(estimate.spanSeconds, interval));
+    }
+    
+    /**
+     * @return smallest downsample interval, in whole minutes once it's a minute
+     * or more, that brings the output of the query to at most {@link #maxOutputPoints}.
+     */
+    private int downsampleIntervalFor(final Estimate estimate) {
+        final long pointsPerGroup = maxOutputPoints / estimate.groups;
+        long interval = divideRoundingUp(estimate.spanSeconds, pointsPerGroup);
+        if (interval >= 60) {
+            interval = divideRoundingUp(interval, 60) * 60;
+        }
+        return (int) Math.min(interval, Integer.MAX_VALUE);
+    }
+    
+    private static long divideRoundingUp(final long dividend, final long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+    
+    /**
+     * @return product of two non-negative numbers, or {@link Long#MAX_VALUE} on overflow.
+     */
+    private static long multiply(final long a, final long b) {
+        if (a != 0 && b > Long.MAX_VALUE / a) {
+            return Long.MAX_VALUE;
+        }
+        return a * b;
+    }
+    
+    public void setTsdbManager(TsdbManager tsdbManager) {
+        this.tsdbManager = tsdbManager;
+    }
+    
+    /**
+     * @param tagIndex used to count the series each query touches; {@code null}
+     * to not enforce any limits.
+     */
+    public void setTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+    
+    /**
+     * @param sampleIntervalSeconds how often, on average, a series gets a new point.
+     */
+    public void setSampleIntervalSeconds(int sampleIntervalSeconds) {
+        Preconditions.checkArgument(sampleIntervalSeconds > 0, "Invalid sample interval: %s", sampleIntervalSeconds);
+        this.sampleIntervalSeconds = sampleIntervalSeconds;
+    }
+    
+    /**
+     * @param maxRows queries that would scan more rows are rejected; zero for no limit.
+     */
+    public void setMaxRows(long maxRows) {
+        Preconditions.checkArgument(maxRows >= 0, "Invalid max rows: %s", maxRows);
+        this.maxRows = maxRows;
+    }
+    
+    /**
+     * @param maxScannedPoints queries that would read more points are rejected; zero for no limit.
+     */
+    public void setMaxScannedPoints(long maxScannedPoints) {
+        Preconditions.checkArgument(maxScannedPoints >= 0, "Invalid max scanned points: %s", maxScannedPoints);
+        this.maxScannedPoints = maxScannedPoints;
+    }
+    
+    /**
+     * @param maxOutputPoints queries that would return more points are downsampled
+     * (or rejected, see {@link #setForceDownsampling(boolean)}); zero for no limit.
+     */
+    public void setMaxOutputPoints(long maxOutputPoints) {
+        Preconditions.checkArgument(maxOutputPoints >= 0, "Invalid max output points: %s", maxOutputPoints);
+        this.maxOutputPoints = maxOutputPoints;
+    }
+    
+    /**
+     * @param forceDownsampling {@code true} to downsample queries over {@link #maxOutputPoints};
+     * {@code false} to reject them.
+     */
+    public void setForceDownsampling(boolean forceDownsampling) {
+        this.forceDownsampling = forceDownsampling;
+    }
+    
+    /**
+     * @param forcedDownsampler used when downsampling a query that doesn't specify its own downsampler.
+     */
+    public void setForcedDownsampler(Aggregator forcedDownsampler) {
+        this.forcedDownsampler = Preconditions.checkNotNull(forcedDownsampler);
+    }
+    
+    /**
+     * Estimated cost of one query.
+     */
+    public static final class Estimate {
+        private final String metric;
+        private boolean known = false;
+        private long spanSeconds;
+        private long series;
+        private long groups;
+        private long rows;
+        private long scannedPoints;
+        private long outputPoints;
+        private int downsampleIntervalSeconds;
+        private String verdict = VERDICT_OK;
+        private String reason;
+        
+        Estimate(final String metric) {
+            this.metric = metric;
+        }
+        
+        void reject(final String reason) {
+            this.verdict = VERDICT_REJECT;
+            this.reason = reason;
+        }
+        
+        void downsample(final int downsampleIntervalSeconds) {
+            this.verdict = VERDICT_DOWNSAMPLE;
+            this.downsampleIntervalSeconds = downsampleIntervalSeconds;
+        }
+        
+        public String getMetric() {
+            return metric;
+        }
+        
+        /**
+         * @return {@code false} if the cost couldn't be estimated, in which case
+         * all counts are zero and the query is let through.
+         */
+        public boolean isKnown() {
+            return known;
+        }
+        
+        public long getSeries() {
+            return series;
+        }
+        
+        public long getRows() {
+            return rows;
+        }
+        
+        public long getScannedPoints() {
+            return scannedPoints;
+        }
+        
+        public long getOutputPoints() {
+            return outputPoints;
+        }
+        
+        /**
+         * @return downsample interval the query runs with; zero for none.
+         */
+        public int getDownsampleIntervalSeconds() {
+            return downsampleIntervalSeconds;
+        }
+        
+        /**
+         * @return one of {@link QueryCostEstimator#VERDICT_OK}, {@link QueryCostEstimator#VERDICT_DOWNSAMPLE}
+         * or {@link QueryCostEstimator#VERDICT_REJECT}.
+         */
+        public String getVerdict() {
+            return verdict;
+        }
+        
+        /**
+         * @return this estimate as a map, for JSON responses.
+         */
+        public Map<String, Object> toMap() {
+            final Map<String, Object> map = Maps.newLinkedHashMap();
+            map.put("metric", metric);
+            map.put("known", Boolean.valueOf(known));
+            map.put("spanSeconds", Long.valueOf(spanSeconds));
+            if (known) {
+                map.put("series", Long.valueOf(series));
+                map.put("groups", Long.valueOf(groups));
+                map.put("rows", Long.valueOf(rows));
+                map.put("scannedPoints", Long.valueOf(scannedPoints));
+                map.put("outputPoints", Long.valueOf(outputPoints));
+            }
+            map.put("downsampleIntervalSeconds", Integer.valueOf(downsampleIntervalSeconds));
+            map.put("verdict", verdict);
+            if (reason != null) {
+                map.put("reason", reason);
+            }
+            return map;
+        }
+    }
+}
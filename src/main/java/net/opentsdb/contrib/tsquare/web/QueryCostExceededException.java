@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Thrown when {@link QueryCostEstimator} rejects a query as too expensive to run.
+ */
+public class QueryCostExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final QueryCostEstimator.Estimate estimate;
+    
+    public QueryCostExceededException(final String message, final QueryCostEstimator.Estimate estimate) {
+        super(message);
+        this.estimate = estimate;
+    }
+    
+    public QueryCostEstimator.Estimate getEstimate() {
+        return estimate;
+    }
+    
+    /**
+     * @return description of this error for responses to clients, in the form
+     * <code>{"error": {"type": "cost", "message": ..., "estimate": {...}}}</code>.
+     */
+    public Map<String, Object> toErrorObject() {
+        final Map<String, Object> error = ImmutableMap.<String, Object> of(
+                "type", "cost",
+                "message", getMessage(),
+                "estimate", estimate.toMap());
+        return ImmutableMap.<String, Object> of("error", error);
+    }
+}
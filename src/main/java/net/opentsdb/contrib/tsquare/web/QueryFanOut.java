@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.graphite.SeriesSource;
+import net.opentsdb.core.DataPoints;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Runs a collection of {@link AnnotatedDataQuery}s concurrently using the given
+ * {@link DataQueryRunner}, keeping at most {@code parallelism} of them in flight
+ * at any time.  Results are handed back by index, in the same order as the given
+ * queries, so callers can stream series in request order no matter which query
+ * finishes first.
+ * <p>
+ * With a deadline, queries are only submitted before it passes.  Queries already
+ * submitted to TSDB can't be interrupted though: OpenTSDB 2.0 doesn't expose the
+ * scanners behind a query, so they keep reading HBase until they are done, and
+ * their results are discarded.
+ */
+public final class QueryFanOut implements SeriesSource {
+    private final List<AnnotatedDataQuery> queries;
+    private final List<Deferred<DataPoints[]>> results;
+    private final DataQueryRunner runner;
+    private final int parallelism;
+
+    private final boolean[] completed;
+
+    private long deadlineMillis = Long.MAX_VALUE;
+    private long timeoutMillis = 0;
+
+    private int nextToStart = 0;
+    private RuntimeException cancellation = null;
+
+    public QueryFanOut(final Collection<AnnotatedDataQuery> queries, final DataQueryRunner runner, final int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive: %s", parallelism);
+
+        this.queries = ImmutableList.copyOf(queries);
+        this.runner = runner;
+        this.parallelism = parallelism;
+        this.results = Lists.newArrayListWithCapacity(this.queries.size());
+        this.completed = new boolean[this.queries.size()];
+
+        for (int i=0; i<this.queries.size(); i++) {
+            results.add(new Deferred<DataPoints[]>());
+        }
+    }
+
+    /**
+     * Queries that haven't been submitted when the deadline passes are never
+     * submitted; instead, this is cancelled with a {@link QueryTimeoutException}.
+     *
+     * @param deadlineMillis wall clock time, in milliseconds.
+     * @param timeoutMillis the timeout the deadline was derived from, for the exception.
+     * @return this object
+     */
+    public QueryFanOut setDeadline(final long deadlineMillis, final long timeoutMillis) {
+        this.deadlineMillis = deadlineMillis;
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Submit the first {@code parallelism} queries.  Each time a query completes
+     * (successfully or not) the next pending query is submitted.
+     *
+     * @return this object
+     */
+    public QueryFanOut start() {
+        for (int i=0; i<parallelism; i++) {
+            startNext();
+        }
+
+        return this;
+    }
+
+    private void startNext() {
+        final int index;
+
+        synchronized (this) {
+            if (nextToStart >= queries.size()) {
+                return;
+            }
+
+            index = (System.currentTimeMillis() < deadlineMillis ? nextToStart++ : -1);
+        }
+
+        if (index < 0) {
+            cancel(new QueryTimeoutException(timeoutMillis));
+            return;
+        }
+
+        Deferred<DataPoints[]> running;
+        try {
+            running = runner.run(queries.get(index));
+        } catch (RuntimeException e) {
+            running = Deferred.fromError(e);
+        }
+
+        running.addCallbacks(
+                new Callback<Object, DataPoints[]>() {
+                    @Override
+                    public Object call(final DataPoints[] result) {
+                        complete(index, result);
+                        return null;
+                    }
+                },
+                new Callback<Object, Exception>() {
+                    @Override
+                    public Object call(final Exception e) {
+                        complete(index, e);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return fires once every query has completed; with an error if any of them failed.
+     */
+    public Deferred<ArrayList<DataPoints[]>> completion() {
+        return Deferred.group(results);
+    }
+
+    private void complete(final int index, final Object resultOrError) {
+        synchronized (this) {
+            if (completed[index]) {
+                // Cancelled while running; the result is no longer wanted.
+                return;
+            }
+            completed[index] = true;
+        }
+
+        results.get(index).callback(resultOrError);
+        startNext();
+    }
+
+    /**
+     * Stops submitting queries and fails every query that hasn't completed yet
+     * with the given exception, so that callers waiting on results are released
+     * right away.  Queries already submitted to TSDB can't be interrupted (see
+     * above); their results are discarded when they arrive.
+     *
+     * @param reason
+     */
+    public void cancel(final RuntimeException reason) {
+        final List<Integer> cancelled = Lists.newArrayList();
+
+        synchronized (this) {
+            if (cancellation != null) {
+                return;
+            }
+
+            cancellation = reason;
+            nextToStart = queries.size();
+
+            for (int i=0; i<completed.length; i++) {
+                if (!completed[i]) {
+                    completed[i] = true;
+                    cancelled.add(i);
+                }
+            }
+        }
+
+        for (final int index : cancelled) {
+            results.get(index).callback(reason);
+        }
+    }
+
+    /**
+     * @return the exception given to {@link #cancel(RuntimeException)}, or {@code null}
+     * if this hasn't been cancelled.
+     */
+    public synchronized RuntimeException getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Blocks until the query at the given index has completed.
+     *
+     * @param index position of the query, as given to the constructor.
+     * @return result of the query.
+     */
+    public DataPoints[] awaitResult(final int index) {
+        try {
+            return results.get(index).joinUninterruptibly();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Query failed for " + queries.get(index).getMetric(), e);
+        }
+    }
+
+    public AnnotatedDataQuery getQuery(final int index) {
+        return queries.get(index);
+    }
+
+    /**
+     * Blocks until the query for the given metric has completed.
+     */
+    @Override
+    public DataPoints[] fetch(final Metric metric) {
+        return awaitResult(indexOf(metric));
+    }
+
+    /**
+     * @return index of the query for the given metric, matched on its raw metric
+     * string the same way {@link AnnotatedDataQuery#equals(Object)} does.
+     */
+    public int indexOf(final Metric metric) {
+        for (int i=0; i<queries.size(); i++) {
+            if (queries.get(i).getMetric().getRawMetric().equals(metric.getRawMetric())) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("No query for metric: " + metric);
+    }
+
+    public int size() {
+        return queries.size();
+    }
+}
@@ -15,11 +15,19 @@
  */
 package net.opentsdb.contrib.tsquare.web.controller;
 
+import javax.servlet.http.HttpServletResponse;
+
 import net.opentsdb.contrib.tsquare.DateTimeExpressionParser;
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
 import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.stats.TsquareStats;
+import net.opentsdb.contrib.tsquare.web.AdmissionRejectedException;
+import net.opentsdb.contrib.tsquare.web.DataQueryService;
+import net.opentsdb.contrib.tsquare.web.QueryCostExceededException;
 import net.opentsdb.contrib.tsquare.web.QueryDurationParams;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.google.common.base.Strings;
@@ -30,6 +38,10 @@ import com.google.common.base.Strings;
 public abstract class AbstractController {
     @Autowired
     private TsdbManager tsdbManager;
+    @Autowired
+    private DataQueryService dataQueryService;
+    @Autowired(required=false)
+    private TsquareStats stats;
     private int defaultResponseBufferSize = 1024 * 1000;
     
     protected QueryDurationParams parseDurations(final String fromDateTimeExpr, final String untilDateTimeExpr) {
@@ -68,6 +80,37 @@ public abstract class AbstractController {
         return mv;
     }
     
+    /**
+     * Requests whose queries did not finish in time get a 504 with a JSON
+     * description of the error.
+     */
+    @ExceptionHandler(QueryTimeoutException.class)
+    public ModelAndView handleQueryTimeout(final QueryTimeoutException e, final HttpServletResponse servletResponse) {
+        servletResponse.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        return jsonSingleObjectView(e.toErrorObject());
+    }
+    
+    /**
+     * Requests turned away by admission control get a 429 or 503 (see
+     * {@link AdmissionRejectedException#getStatus()}) with a JSON description of the error.
+     */
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ModelAndView handleAdmissionRejected(final AdmissionRejectedException e, final HttpServletResponse servletResponse) {
+        servletResponse.setStatus(e.getStatus());
+        servletResponse.setHeader("Retry-After", "1");
+        return jsonSingleObjectView(e.toErrorObject());
+    }
+    
+    /**
+     * Queries rejected by the cost estimator get a 400 with a JSON description of
+     * the error, including the estimate.
+     */
+    @ExceptionHandler(QueryCostExceededException.class)
+    public ModelAndView handleQueryCostExceeded(final QueryCostExceededException e, final HttpServletResponse servletResponse) {
+        servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        return jsonSingleObjectView(e.toErrorObject());
+    }
+    
     /**
      * @return shared {@link TsdbManager} instance.
      */
@@ -75,6 +118,20 @@ public abstract class AbstractController {
         return tsdbManager;
     }
     
+    /**
+     * @return shared {@link DataQueryService} instance.
+     */
+    public DataQueryService getDataQueryService() {
+        return dataQueryService;
+    }
+    
+    /**
+     * @return shared {@link TsquareStats} instance; {@code null} if stats aren't configured.
+     */
+    public TsquareStats getStats() {
+        return stats;
+    }
+    
     /**
      * For methods that stream their responses to the client, this is the suggested
      * buffer size to use.
@@ -87,7 +144,9 @@ public abstract class AbstractController {
     
     /**
      * @param responseBufferSize number of bytes of the JSON response to buffer in memory.
-     * Bytes written beyond this limit are spilled a temporary file on disk.
+     * Bytes written beyond this limit are spilled to a temporary file on disk.  Zero or
+     * less streams responses directly to the client, so errors part way through a
+     * response can't be reported with a proper status code.
      */
     public void setDefaultResponseBufferSize(int responseBufferSize) {
         this.defaultResponseBufferSize = responseBufferSize;
@@ -16,38 +16,60 @@
 package net.opentsdb.contrib.tsquare.web.controller;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.opentsdb.contrib.tsquare.Metric;
 import net.opentsdb.contrib.tsquare.MetricParser;
 import net.opentsdb.contrib.tsquare.QueryCallback;
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
 import net.opentsdb.contrib.tsquare.Uid;
 import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.index.SuggestIndex;
+import net.opentsdb.contrib.tsquare.index.TagIndex;
+import net.opentsdb.contrib.tsquare.stats.QueryTrace;
+import net.opentsdb.contrib.tsquare.stats.SlowQueryLog;
+import net.opentsdb.contrib.tsquare.stats.TsquareStats;
 import net.opentsdb.contrib.tsquare.support.TsWebUtils;
+import net.opentsdb.contrib.tsquare.web.AdmissionControl;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
 import net.opentsdb.contrib.tsquare.web.DataQueryModel;
+import net.opentsdb.contrib.tsquare.web.QueryCostEstimator;
 import net.opentsdb.contrib.tsquare.web.QueryDurationParams;
+import net.opentsdb.contrib.tsquare.web.view.ColumnarJsonResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.GraphiteJsonResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.HighchartsSeriesResponseWriter;
+import net.opentsdb.contrib.tsquare.web.view.MessagePackResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.SummarizedJsonResponseWriter;
 import net.opentsdb.core.Query;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
-import com.google.common.io.Closeables;
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Callback;
 
 /**
  * @author James Royalty (jroyalty) <i>[Jun 20, 2013]</i>
@@ -57,15 +79,48 @@ import com.google.common.io.Closeables;
 public class ExtendedApiController extends AbstractController {
     private static final Logger log = LoggerFactory.getLogger(ExtendedApiController.class);
     
+    @Autowired(required=false)
+    private TagIndex tagIndex;
+    @Autowired(required=false)
+    private SuggestIndex suggestIndex;
+    private int maxSuggestions = 100;
+    
+    /**
+     * Streams matching UID names back as a JSON array of strings.  The response is
+     * written through an async context as the scan returns names, so the request
+     * thread is released while HBase is read and names are never held in memory.
+     * Note that a slow client therefore slows down the scan.
+     * <p>
+     * With a {@code limit}, at most that many names are returned, as
+     * {@code {"names":[...],"next":"..."}}.  {@code next} is {@code null} on the
+     * last page; otherwise it is passed as {@code after} to get the next page,
+     * whose scan starts where the previous one stopped.  The UID index and scans of
+     * the UID table return names in different orders, so a token from one is
+     * rejected by the other (e.g. while the index is still loading).
+     * <p>
+     * If the scan fails before any of the response has been sent, the client gets
+     * a 504 for a timeout and a 500 otherwise; after that, the response is cut short.
+     * 
+     * @param type kind of UIDs to search; all kinds if empty.
+     * @param method "wildcard" or "regex"
+     * @param q
+     * @param limit maximum number of names to return.
+     * @param after {@code next} token of the previous page.
+     * @param servletRequest
+     * @param servletResponse
+     */
     @RequestMapping(value = "/grep", method = RequestMethod.GET)
     public void grep(
             @RequestParam(required=false, defaultValue="") String type,
             @RequestParam(required=false, defaultValue="wildcard") String method,
             @RequestParam(required=true) String q,
+            @RequestParam(required=false) final Integer limit,
+            @RequestParam(required=false) String after,
+            final HttpServletRequest servletRequest,
             final HttpServletResponse servletResponse) throws IOException {
         
         if (log.isInfoEnabled()) {
-            log.info("Suggest {} using {} expression: {}", type, method, q);
+            log.info("Grep {} using {} expression: {}", type, method, q);
         }
         
         // Do we have a valid type? Note that an empty "type" is valid.
@@ -85,6 +140,7 @@ public class ExtendedApiController extends AbstractController {
         
         final UidQuery query = getTsdbManager().newUidQuery();
         query.setRegex(regex);
+        query.setTimeoutMillis(getDataQueryService().resolveTimeoutMillis(servletRequest));
         
         if (Strings.isNullOrEmpty(type)) {
             query.includeAllKinds();
@@ -92,51 +148,256 @@ public class ExtendedApiController extends AbstractController {
             query.includeKind(type);
         }
         
+        Preconditions.checkArgument(limit == null || limit > 0, "Invalid limit: %s", limit);
+        if (!Strings.isNullOrEmpty(after)) {
+            query.setStartAfter(Uid.fromCursor(after, query.getOrder()));
+        }
+        
         servletResponse.setContentType("application/json");
-        final OutputStream stream = servletResponse.getOutputStream();
-        final JsonGenerator json = new JsonFactory().createJsonGenerator(stream);
+        final AsyncContext asyncContext = servletRequest.startAsync();
+        // The query stops at its own deadline; the container must not complete the
+        // response while the scan may still write to it.
+        asyncContext.setTimeout(0);
         
-        try {
+        final JsonGenerator json = new JsonFactory().createGenerator(servletResponse.getOutputStream());
+        if (limit == null) {
             json.writeStartArray();
-            
-            query.run(new QueryCallback<Uid>() {
-                @Override
-                public boolean onResult(final Uid resultObject) {
-                    try {
-                        json.writeString(resultObject.getName());
-                        return true;
-                    } catch (IOException e) {
-                        throw new IllegalArgumentException("Unable to serialize " + resultObject + " to JSON", e);
-                    }
+        } else {
+            json.writeStartObject();
+            json.writeArrayFieldStart("names");
+        }
+        
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicReference<Uid> last = new AtomicReference<Uid>();
+        final AtomicBoolean hasMore = new AtomicBoolean(false);
+        
+        query.runAsync(new QueryCallback<Uid>() {
+            @Override
+            public boolean onResult(final Uid resultObject) {
+                if (limit != null && count.get() >= limit) {
+                    // One more than fits on the page, so there is a next page.
+                    hasMore.set(true);
+                    return false;
+                }
+                
+                try {
+                    json.writeString(resultObject.getName());
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Unable to serialize " + resultObject + " to JSON", e);
                 }
-            });
+                count.incrementAndGet();
+                last.set(resultObject);
+                return true;
+            }
+        }).addCallbacks(
+                new Callback<Object, Object>() {
+                    @Override
+                    public Object call(final Object ignored) throws IOException {
+                        try {
+                            if (getStats() != null) {
+                                getStats().recordGrep(query.getScannedRowCount(), count.get());
+                            }
+                            
+                            json.writeEndArray();
+                            if (limit != null) {
+                                json.writeFieldName("next");
+                                if (hasMore.get()) {
+                                    json.writeString(last.get().toCursor(query.getOrder()));
+                                } else {
+                                    json.writeNull();
+                                }
+                                json.writeEndObject();
+                            }
+                            json.flush();
+                        } finally {
+                            asyncContext.complete();
+                        }
+                        return null;
+                    }
+                },
+                new Callback<Object, Exception>() {
+                    @Override
+                    public Object call(final Exception e) throws IOException {
+                        try {
+                            if (!(e instanceof QueryTimeoutException)) {
+                                log.error("UID query failed for expression " + regex, e);
+                            }
+                            if (!servletResponse.isCommitted()) {
+                                writeError(servletResponse, e);
+                            }
+                        } finally {
+                            asyncContext.complete();
+                        }
+                        return null;
+                    }
+                });
+    }
+    
+    /**
+     * Replaces whatever was buffered of the response with a 504 and a JSON
+     * description of the error for timeouts, or else with a 500.
+     */
+    private static void writeError(final HttpServletResponse servletResponse, final Exception e) throws IOException {
+        servletResponse.reset();
+        
+        if (e instanceof QueryTimeoutException) {
+            servletResponse.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            servletResponse.setContentType("application/json");
             
-            json.writeEndArray();
+            final JsonGenerator json = new MappingJsonFactory().createGenerator(servletResponse.getOutputStream());
+            json.writeObject(((QueryTimeoutException) e).toErrorObject());
             json.flush();
-        } finally {
-            Closeables.close(stream, false);
+        } else {
+            servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
     
+    /**
+     * Suggests names for partial, possibly misspelled or misordered fragments such
+     * as {@code cpu idle web}, best matches first (see {@link SuggestIndex}).
+     * Responds with a JSON array of {@code {"name", "kind", "score"}} objects;
+     * an empty array if suggestions aren't configured.
+     * 
+     * @param type kind of UIDs to search; all kinds if empty.
+     * @param q
+     * @param limit maximum number of suggestions, up to {@link #setMaxSuggestions(int)}.
+     */
+    @RequestMapping(value = "/suggest", method = RequestMethod.GET)
+    public ModelAndView suggest(
+            @RequestParam(required=false, defaultValue="") String type,
+            @RequestParam(required=true) String q,
+            @RequestParam(required=false, defaultValue="10") int limit) {
+        
+        if (!Strings.isNullOrEmpty(type)) {
+            Preconditions.checkArgument(getTsdbManager().getKnownUidKinds().contains(type), "Unknown type: %s", type);
+        }
+        Preconditions.checkArgument(limit > 0, "Invalid limit: %s", limit);
+        
+        if (suggestIndex == null) {
+            return jsonSingleObjectView(Collections.emptyList());
+        }
+        return jsonSingleObjectView(suggestIndex.suggest(q, type, Math.min(limit, maxSuggestions)));
+    }
+    
+    /**
+     * Describes the tag keys and values that occur with a metric, and how many series
+     * have each, from memory (see {@link TagIndex#explore(String, String, int)}).
+     * Responds with an empty object if the tag index isn't configured.
+     * 
+     * @param m name of the metric.
+     * @param tagk if given, only this tag key is described.
+     * @param limit if positive, only this many of the most common values of each key.
+     */
+    @RequestMapping(value = "/explore", method = RequestMethod.GET)
+    public ModelAndView explore(
+            @RequestParam(required=true) String m,
+            @RequestParam(required=false) String tagk,
+            @RequestParam(required=false, defaultValue="0") int limit) {
+        if (tagIndex == null) {
+            return jsonSingleObjectView(Collections.emptyMap());
+        }
+        return jsonSingleObjectView(tagIndex.explore(m, Strings.emptyToNull(tagk), limit));
+    }
+    
     @RequestMapping(value = "/kinds", method = RequestMethod.GET) 
     public ModelAndView kinds() throws IOException {
         return jsonSingleObjectView(getTsdbManager().getKnownUidKinds());
     }
     
+    /**
+     * @return admission control counters (queue depth, rejections, etc.) as JSON;
+     * an empty object if admission control isn't configured.
+     */
+    @RequestMapping(value = "/admission", method = RequestMethod.GET)
+    public ModelAndView admission() {
+        final AdmissionControl admissionControl = getDataQueryService().getAdmissionControl();
+        if (admissionControl == null) {
+            return jsonSingleObjectView(Collections.emptyMap());
+        }
+        return jsonSingleObjectView(admissionControl.getStats());
+    }
+    
+    /**
+     * @return TSquare's own stats (see {@link TsquareStats#getStats()}) as JSON;
+     * an empty object if stats aren't configured.
+     */
+    @RequestMapping(value = "/stats", method = RequestMethod.GET)
+    public ModelAndView stats() {
+        if (getStats() == null) {
+            return jsonSingleObjectView(Collections.emptyMap());
+        }
+        return jsonSingleObjectView(getStats().getStats());
+    }
+    
+    /**
+     * @return traces of recent slow data requests, newest first, with a breakdown
+     * of where the time went (see {@link SlowQueryLog}); an empty object if the slow
+     * query log isn't configured.
+     */
+    @RequestMapping(value = "/slow", method = RequestMethod.GET)
+    public ModelAndView slowQueries() {
+        final SlowQueryLog slowQueryLog = getDataQueryService().getSlowQueryLog();
+        if (slowQueryLog == null) {
+            return jsonSingleObjectView(Collections.emptyMap());
+        }
+        return jsonSingleObjectView(slowQueryLog.getStats());
+    }
+    
+    /**
+     * Estimates the cost of the given metric queries (same parameters as
+     * {@code /ext/q}) without running them.  Responds with a JSON array holding
+     * one estimate per metric, including what would happen to the query
+     * ("ok", "downsample" or "reject"); an empty array if cost estimation isn't configured.
+     */
+    @RequestMapping(value = "/explain", method = RequestMethod.GET)
+    public ModelAndView explain(
+            @RequestParam(required=true) String start,
+            @RequestParam(required=false) String end,
+            final WebRequest webRequest) {
+        
+        final String[] inputMetricNames = webRequest.getParameterValues("m");
+        Preconditions.checkArgument(inputMetricNames != null && inputMetricNames.length > 0,
+                "Input metric names are required.");
+        
+        final QueryCostEstimator estimator = getDataQueryService().getCostEstimator();
+        if (estimator == null) {
+            return jsonSingleObjectView(Collections.emptyList());
+        }
+        
+        final QueryDurationParams durationParams = parseDurations(start, end);
+        final MetricParser parser = getTsdbManager().newMetricParser();
+        final List<Map<String, Object>> estimates = Lists.newArrayListWithCapacity(inputMetricNames.length);
+        
+        for (final String t : inputMetricNames) {
+            final Query q = getTsdbManager().newMetricsQuery();
+            durationParams.contributeToQuery(q);
+            
+            final Metric metric = parser.parseMetric(t);
+            metric.contributeToQuery(q);
+            estimates.add(estimator.estimate(new AnnotatedDataQuery(metric, q)).toMap());
+        }
+        
+        return jsonSingleObjectView(estimates);
+    }
+    
     @RequestMapping(value = "/q", method = RequestMethod.GET)
-    public ModelAndView query(
+    public DeferredResult<ModelAndView> query(
             @RequestParam(required=true) String start,
             @RequestParam(required=false) String end,
             @RequestParam(required=false, defaultValue="false") boolean summarize,
             @RequestParam(required=false, defaultValue="ts") String format,
             @RequestParam(required=false, defaultValue="false") boolean ms, // millisecond resolution?
-            final WebRequest webRequest) throws IOException {
+            @RequestParam(required=false) Integer maxDataPoints,
+            final WebRequest webRequest,
+            final HttpServletRequest servletRequest) throws IOException {
         
         final String[] inputMetricNames = webRequest.getParameterValues("m");
         Preconditions.checkArgument(inputMetricNames != null && inputMetricNames.length > 0,
                 "Input metric names are required.");
         
+        final QueryTrace trace = new QueryTrace("/ext/q", Arrays.asList(inputMetricNames));
         final QueryDurationParams durationParams = parseDurations(start, end);
+        trace.setRange(durationParams.getFromMillis(), durationParams.getUntilMillis());
         if (log.isInfoEnabled()) {
             log.info("{}", durationParams);
         }
@@ -145,18 +406,26 @@ public class ExtendedApiController extends AbstractController {
         final MetricParser parser = getTsdbManager().newMetricParser();
         
         final DataQueryModel model = new DataQueryModel();
+        model.setResponseBufferSize(getDefaultResponseBufferSize());
+        model.setTrace(trace);
+        final List<Metric> metrics = Lists.newArrayList();
         
         for (final String t : inputMetricNames) {
             final Query q = getTsdbManager().newMetricsQuery();
             durationParams.contributeToQuery(q);
             
+            final long parseStartNanos = System.nanoTime();
             final Metric metric = parser.parseMetric(t);
+            trace.addPhase(QueryTrace.PHASE_PARSE, parseStartNanos);
             if (summarize) {
                 Preconditions.checkState(metric.getAggregator() != null, "A metric-level aggregator is required when 'summarize' is enabled.  Metric: {}", t);
             }
             
+            final long resolveStartNanos = System.nanoTime();
             metric.contributeToQuery(q);
+            trace.addPhase(QueryTrace.PHASE_RESOLVE, resolveStartNanos);
             model.addQuery(new AnnotatedDataQuery(metric, q));
+            metrics.add(metric);
             if (summarize) {
                 log.info("Added {} to query (w/ summary) ", metric);
             } else {
@@ -166,17 +435,55 @@ public class ExtendedApiController extends AbstractController {
 
         if (summarize) {
             model.setResponseWriter(new SummarizedJsonResponseWriter(ms));
+        } else if ("columns".equalsIgnoreCase(format)) {
+            final ColumnarJsonResponseWriter writer = new ColumnarJsonResponseWriter(ms)
+                .setIntervalMillis(ColumnarJsonResponseWriter.sharedIntervalMillis(metrics))
+                .setIncludeAggregatedTags(true)
+                .setIncludeAllTags(true);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+            model.setResponseWriter(writer);
+        } else if ("msgpack".equalsIgnoreCase(format)) {
+            final MessagePackResponseWriter writer = new MessagePackResponseWriter(ms);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+            model.setResponseWriter(writer);
         } else if ("highcharts".equalsIgnoreCase(format)) {
-        	model.setResponseWriter(new HighchartsSeriesResponseWriter(ms));
+            final HighchartsSeriesResponseWriter writer = new HighchartsSeriesResponseWriter(ms);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+        	model.setResponseWriter(writer);
         } else {
             final GraphiteJsonResponseWriter writer = new GraphiteJsonResponseWriter(ms)
                 .setIncludeAggregatedTags(true)
                 .setIncludeAllTags(true)
                 .setSummarize(false);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
 
             model.setResponseWriter(writer);
         }
         
-        return model.toModelAndView();
+        return getDataQueryService().executeAsync(model, servletRequest);
+    }
+    
+    public void setTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+    
+    public void setSuggestIndex(SuggestIndex suggestIndex) {
+        this.suggestIndex = suggestIndex;
+    }
+    
+    /**
+     * @param maxSuggestions upper limit on the number of suggestions a client may ask for.
+     */
+    public void setMaxSuggestions(int maxSuggestions) {
+        Preconditions.checkArgument(maxSuggestions > 0, "Invalid max suggestions: %s", maxSuggestions);
+        this.maxSuggestions = maxSuggestions;
     }
 }
@@ -16,15 +16,26 @@
 package net.opentsdb.contrib.tsquare.web.controller;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+
 import net.opentsdb.contrib.tsquare.Metric;
-import net.opentsdb.contrib.tsquare.MetricParser;
+import net.opentsdb.contrib.tsquare.graphite.SeriesFunction;
+import net.opentsdb.contrib.tsquare.graphite.SeriesFunctions;
+import net.opentsdb.contrib.tsquare.graphite.TargetExpression;
+import net.opentsdb.contrib.tsquare.graphite.TargetParser;
+import net.opentsdb.contrib.tsquare.stats.QueryTrace;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
 import net.opentsdb.contrib.tsquare.web.DataQueryModel;
 import net.opentsdb.contrib.tsquare.web.QueryDurationParams;
+import net.opentsdb.contrib.tsquare.web.view.ColumnarJsonResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.GraphiteJsonResponseWriter;
 import net.opentsdb.contrib.tsquare.web.view.GraphiteRawResponseWriter;
+import net.opentsdb.contrib.tsquare.web.view.MessagePackResponseWriter;
 import net.opentsdb.core.Query;
 
 import org.slf4j.Logger;
@@ -34,9 +45,11 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -47,64 +60,114 @@ import com.google.common.collect.Sets;
 public class GraphiteController extends AbstractController {
     private static final Logger log = LoggerFactory.getLogger(GraphiteController.class);
     
-    private static final Set<String> VALID_FORMATS = Sets.newHashSet("json", "raw");
+    private static final Set<String> VALID_FORMATS = Sets.newHashSet("json", "columns", "raw", "msgpack");
+    
+    private Map<String, SeriesFunction> seriesFunctions = SeriesFunctions.defaults();
     
     /**
      * Implements portions of the Graphite Render URL API.  See http://graphite.readthedocs.org/en/latest/render_api.html
      * 
-     * @param target the name of the metric(s) to query.  Multiple target parameters may be
-     * specified.  Graphite aggregation functions supported: averageSeries, sumSeries, maxSeries, minSeries, stddevSeries
+     * @param target the name of the metric(s) to query, optionally wrapped in Graphite
+     * functions, e.g. {@code movingAverage(sumSeries(sys.cpu.user{host=web*}),"5min")}.
+     * Multiple target parameters may be specified.  See {@link SeriesFunctions} for the
+     * supported functions.
      * @param from
      * @param until
-     * @param format
+     * @param format "json", "columns" (see {@link ColumnarJsonResponseWriter}; every metric 
+     * must be downsampled to the same interval), "raw" or "msgpack" (see {@link MessagePackResponseWriter})
+     * @param maxDataPoints if given, each series is downsampled to at most this many points
+     * (json, columns and msgpack formats only)
      * @param jsonp
      * @param webRequest included to read extra Graphite URL parameters that aren't 
      * declared in the method signature
-     * @param servletResponse 
-     * @return
+     * @param servletRequest
+     * @return view of the results, set once all queries have completed
      */
     @RequestMapping(value = "/render", method=RequestMethod.GET)
-    public ModelAndView render(
+    public DeferredResult<ModelAndView> render(
             @RequestParam(required=true) String[] target,
             @RequestParam(required=true) String from,
             @RequestParam(required=false) String until,
             @RequestParam(required=true) String format,
             @RequestParam(required=false) String noCache,
             @RequestParam(required=false, defaultValue="false") boolean ms, // millisecond resolution?
-            final WebRequest webReques) throws IOException {
+            @RequestParam(required=false) Integer maxDataPoints,
+            final WebRequest webReques,
+            final HttpServletRequest servletRequest) throws IOException {
         
         // We only return JSON for integration with dashboard projects.
         Preconditions.checkArgument(VALID_FORMATS.contains(format.toLowerCase()), "Unsupported format: %s", format);
         
+        final QueryTrace trace = new QueryTrace("/graphite/render", Arrays.asList(target));
         final QueryDurationParams durationParams = parseDurations(from, until);
+        trace.setRange(durationParams.getFromMillis(), durationParams.getUntilMillis());
         if (log.isInfoEnabled()) {
             log.info("{}", durationParams);
         }
         
         // Prepare queries...
-        final MetricParser parser = getTsdbManager().newMetricParser();
+        final TargetParser parser = new TargetParser(getTsdbManager().newMetricParser(), seriesFunctions);
         final DataQueryModel model = new DataQueryModel();
+        model.setResponseBufferSize(getDefaultResponseBufferSize());
+        model.setTrace(trace);
+        final List<Metric> metrics = Lists.newArrayList();
         
         for (final String t : target) {
-            final Query q = getTsdbManager().newMetricsQuery();
-            durationParams.contributeToQuery(q);
+            final long parseStartNanos = System.nanoTime();
+            final TargetExpression expression = parser.parse(t);
+            trace.addPhase(QueryTrace.PHASE_PARSE, parseStartNanos);
+            Preconditions.checkArgument(!expression.getMetrics().isEmpty(), "Target has no metrics: %s", t);
             
-            final Metric m = parser.parseMetric(t);
-            m.contributeToQuery(q);
+            for (final Metric m : expression.getMetrics()) {
+                final Query q = getTsdbManager().newMetricsQuery();
+                durationParams.contributeToQuery(q);
+                
+                final long resolveStartNanos = System.nanoTime();
+                m.contributeToQuery(q);
+                trace.addPhase(QueryTrace.PHASE_RESOLVE, resolveStartNanos);
+                
+                model.addQuery(new AnnotatedDataQuery(m, q));
+                metrics.add(m);
+                
+                log.info("Added {} to query", m);
+            }
             
-            model.addQuery(new AnnotatedDataQuery(m, q));
-            
-            log.info("Added {} to query", m);
+            model.addTarget(expression);
         }
         
         if ("json".equalsIgnoreCase(format)) {
-            model.setResponseWriter(new GraphiteJsonResponseWriter(ms));
+            final GraphiteJsonResponseWriter writer = new GraphiteJsonResponseWriter(ms);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+            model.setResponseWriter(writer);
+        } else if ("columns".equalsIgnoreCase(format)) {
+            final ColumnarJsonResponseWriter writer = new ColumnarJsonResponseWriter(ms)
+                .setIntervalMillis(ColumnarJsonResponseWriter.sharedIntervalMillis(metrics));
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+            model.setResponseWriter(writer);
         } else if ("raw".equalsIgnoreCase(format)) {
             model.setResponseWriter(new GraphiteRawResponseWriter());
+        } else if ("msgpack".equalsIgnoreCase(format)) {
+            final MessagePackResponseWriter writer = new MessagePackResponseWriter(ms);
+            if (maxDataPoints != null) {
+                writer.setMaxDataPoints(maxDataPoints);
+            }
+            model.setResponseWriter(writer);
         } else {
             throw new IllegalStateException("Control should not reach this point without a valid output format.");
         }
         
-        return model.toModelAndView();
+        return getDataQueryService().executeAsync(model, servletRequest);
+    }
+    
+    /**
+     * @param seriesFunctions functions available to targets, by name.  Defaults
+     * to {@link SeriesFunctions#defaults()}.
+     */
+    public void setSeriesFunctions(Map<String, SeriesFunction> seriesFunctions) {
+        this.seriesFunctions = seriesFunctions;
     }
 }
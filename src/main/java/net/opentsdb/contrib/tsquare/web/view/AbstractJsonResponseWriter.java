@@ -17,11 +17,22 @@ package net.opentsdb.contrib.tsquare.web.view;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Range;
 import com.google.common.io.Closeables;
 
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.support.LargestTriangleThreeBuckets;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
+import net.opentsdb.core.DataPoint;
+
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * @author James Royalty (jroyalty) <i>[Jul 25, 2013]</i>
@@ -30,6 +41,7 @@ public abstract class AbstractJsonResponseWriter implements DataQueryResponseWri
     private boolean jsonpAllowed = true;
     private String jsonpRequestParam = "jsonp";
     private String contentType = "application/json";
+    private int maxDataPoints = 0;
     private final boolean millisecondResolution;
     
     protected AbstractJsonResponseWriter(final boolean millisecondResolution) {
@@ -40,7 +52,7 @@ public abstract class AbstractJsonResponseWriter implements DataQueryResponseWri
     public void beginResponse(final ResponseContext context) throws IOException {
         context.getResponse().setContentType(contentType);
         
-        final OutputStream out = context.getResponse().getOutputStream();
+        final OutputStream out = context.getOutputStream();
         final JsonGenerator json = new JsonFactory().createGenerator(out);
         context.putProperty("jsonGenerator", json);
         
@@ -72,9 +84,24 @@ public abstract class AbstractJsonResponseWriter implements DataQueryResponseWri
         }
     }
     
+    /**
+     * If nothing has been written yet, timeouts are reported to the client as a 504
+     * with a JSON body (see {@link QueryTimeoutException#toErrorObject()}).  Otherwise
+     * the response is cut short.
+     */
     @Override
     public void onError(final ResponseContext context, final Throwable ex) {
         JsonGenerator json = getJsonGenerator(context);
+        
+        if (json == null && ex instanceof QueryTimeoutException && !context.getResponse().isCommitted()) {
+            try {
+                writeTimeoutError(context, (QueryTimeoutException) ex);
+                return;
+            } catch (IOException e) {
+                // Fall through and give up on the response.
+            }
+        }
+        
         try {
             Closeables.close(json, true);
         } catch (IOException e) {
@@ -82,14 +109,53 @@ public abstract class AbstractJsonResponseWriter implements DataQueryResponseWri
         }
     }
     
+    private void writeTimeoutError(final ResponseContext context, final QueryTimeoutException ex) throws IOException {
+        final HttpServletResponse response = context.getResponse();
+        response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        response.setContentType(contentType);
+        
+        final JsonGenerator json = new MappingJsonFactory().createGenerator(context.getOutputStream());
+        json.writeObject(ex.toErrorObject());
+        json.flush();
+    }
+    
     public boolean isMillisecondResolution() {
         return millisecondResolution;
     }
 
+    /**
+     * @return points of the given series to write, reduced to at most {@link #setMaxDataPoints(int)}
+     * points if that is set.
+     */
+    protected Iterable<DataPoint> pointsToWrite(final AnnotatedDataPoints annotatedPoints) {
+        final Range<Long> range = annotatedPoints.getQueryRangeInMillis();
+        
+        if (maxDataPoints <= 0 || range == null || !range.hasLowerBound() || !range.hasUpperBound()) {
+            return annotatedPoints.getDataPoints();
+        }
+        
+        return new Iterable<DataPoint>() {
+            @Override
+            public Iterator<DataPoint> iterator() {
+                return new LargestTriangleThreeBuckets(annotatedPoints.getDataPoints().iterator(), 
+                        range.lowerEndpoint(), range.upperEndpoint(), maxDataPoints);
+            }
+        };
+    }
+    
     protected JsonGenerator getJsonGenerator(final ResponseContext context) {
         return context.getProperty("jsonGenerator", JsonGenerator.class);
     }
     
+    /**
+     * @param maxDataPoints if positive, series are downsampled to at most this many
+     * points (but never fewer than 3) with {@link LargestTriangleThreeBuckets}.
+     */
+    public void setMaxDataPoints(int maxDataPoints) {
+        Preconditions.checkArgument(maxDataPoints <= 0 || maxDataPoints >= 3, "maxDataPoints must be at least 3: %s", maxDataPoints);
+        this.maxDataPoints = maxDataPoints;
+    }
+    
     public void setJsonpAllowed(boolean jsonpAllowed) {
         this.jsonpAllowed = jsonpAllowed;
     }
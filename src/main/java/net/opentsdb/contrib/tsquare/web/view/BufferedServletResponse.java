@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Holds the body of a response back (see {@link SpillingOutputStream}) until
+ * {@link #commit()}, so that neither the body nor the status and headers reach the
+ * client before the whole response has been written.  Until then the response can
+ * be {@link #reset()} and replaced, e.g. with an error.  {@link #release()} must
+ * be called once the response is done with, committed or not.
+ */
+final class BufferedServletResponse extends HttpServletResponseWrapper {
+    private final SpillingOutputStream buffer;
+    private final ServletOutputStream outputStream;
+    private PrintWriter writer;
+    private boolean committed = false;
+    
+    BufferedServletResponse(final HttpServletResponse response, final int memoryLimit) {
+        super(response);
+        this.buffer = new SpillingOutputStream(memoryLimit);
+        this.outputStream = new ServletOutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                checkNotCommitted();
+                buffer.write(b);
+            }
+            
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                checkNotCommitted();
+                buffer.write(b, off, len);
+            }
+            
+            @Override
+            public void close() {
+                // Left open for commit().
+            }
+        };
+    }
+    
+    private void checkNotCommitted() throws IOException {
+        if (committed) {
+            throw new IOException("Response has already been committed");
+        }
+    }
+    
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+    
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(outputStream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+    
+    /**
+     * Does nothing: the response is sent by {@link #commit()}.
+     */
+    @Override
+    public void flushBuffer() {
+    }
+    
+    @Override
+    public boolean isCommitted() {
+        return committed || super.isCommitted();
+    }
+    
+    @Override
+    public void reset() {
+        super.reset();
+        resetBuffer();
+    }
+    
+    @Override
+    public void resetBuffer() {
+        if (!committed) {
+            writer = null;
+            buffer.reset();
+        }
+    }
+    
+    /**
+     * Sends the status, headers and everything written so far to the client.  The
+     * length of the body is known, so it is sent with a {@code Content-Length}.
+     */
+    public void commit() throws IOException {
+        if (committed) {
+            return;
+        }
+        
+        if (writer != null) {
+            writer.flush();
+        }
+        committed = true;
+        
+        final HttpServletResponse response = (HttpServletResponse) getResponse();
+        if (buffer.size() <= Integer.MAX_VALUE) {
+            response.setContentLength((int) buffer.size());
+        }
+        
+        final ServletOutputStream out = response.getOutputStream();
+        buffer.writeTo(out);
+        out.flush();
+    }
+    
+    /**
+     * Discards the buffered body and removes its temporary file, if any.
+     */
+    public void release() {
+        buffer.release();
+    }
+}
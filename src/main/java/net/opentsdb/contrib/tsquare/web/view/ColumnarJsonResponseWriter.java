@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
+import net.opentsdb.core.DataPoint;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Writes all series against one shared array of timestamps:
+ * <pre>
+ * {
+ *   "timestamps": [t1, t2, ...],
+ *   "series": [
+ *     {"target": "metric.name", "values": [v1, null, ...]},
+ *     ...
+ *   ]
+ * }
+ * </pre>
+ * The timestamps are the union of the timestamps of every series, and each series
+ * has exactly one value per timestamp, with {@code null} where it has no point.
+ * This is only compact when the series share a time grid, so every metric must be
+ * downsampled to the same interval (see {@link #sharedIntervalMillis(Iterable)}), and
+ * timestamps are snapped to that interval; the first point in each interval is kept.
+ * That roughly halves the size of the response compared to {@link GraphiteJsonResponseWriter},
+ * which repeats the timestamp in every point.
+ * <p>
+ * Nothing but the JSONP wrapper is written until {@link #endResponse(ResponseContext)},
+ * since the shared timestamps aren't known until every series has been seen.
+ */
+public class ColumnarJsonResponseWriter extends AbstractJsonResponseWriter implements SingleSeriesWriter {
+    private boolean includeAllTags = false;
+    private boolean includeAggregatedTags = false;
+    private long intervalMillis = 0;
+    
+    public ColumnarJsonResponseWriter(final boolean millisecondResolution) {
+        super(millisecondResolution);
+    }
+    
+    /**
+     * @param metrics
+     * @return the downsample interval shared by all of the given metrics, in milliseconds.
+     * @throws IllegalArgumentException if any of the metrics isn't downsampled, or if 
+     * they aren't all downsampled to the same interval.
+     */
+    public static long sharedIntervalMillis(final Iterable<Metric> metrics) {
+        int intervalSeconds = 0;
+        
+        for (final Metric metric : metrics) {
+            Preconditions.checkArgument(metric.getDownsampler() != null && metric.getDownsampleIntervalSeconds() > 0, 
+                    "Columnar output requires every metric to be downsampled: %s", metric.getName());
+            Preconditions.checkArgument(intervalSeconds == 0 || intervalSeconds == metric.getDownsampleIntervalSeconds(), 
+                    "Columnar output requires every metric to be downsampled to the same interval: %s", metric.getName());
+            intervalSeconds = metric.getDownsampleIntervalSeconds();
+        }
+        
+        return TimeUnit.SECONDS.toMillis(intervalSeconds);
+    }
+    
+    @Override
+    public void beginResponse(final ResponseContext context) throws IOException {
+        super.beginResponse(context);
+        context.putProperty("columnarSeries", Lists.newArrayList());
+    }
+    
+    @Override
+    public void write(final AnnotatedDataPoints annotatedPoints, final ResponseContext context) throws IOException {
+        // Copied, rather than kept, because series computed by targets may be lazy views.
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints
+            .builder(annotatedPoints.getDataPoints().metricName(), annotatedPoints.getDataPoints().getTags())
+            .addAggregatedTags(annotatedPoints.getDataPoints().getAggregatedTags());
+        
+        // Without an interval, points are still snapped to the output resolution, so
+        // that distinct timestamps are written as such.
+        final long gridMillis = (intervalMillis > 0 ? intervalMillis : (isMillisecondResolution() ? 1 : 1000));
+        
+        long lastTimestamp = Long.MIN_VALUE;
+        for (final DataPoint p : pointsToWrite(annotatedPoints)) {
+            final long timestamp = p.timestamp() - (p.timestamp() % gridMillis);
+            
+            // The grid below needs strictly increasing timestamps.
+            if (timestamp > lastTimestamp) {
+                if (p.isInteger()) {
+                    builder.add(timestamp, p.longValue());
+                } else {
+                    builder.add(timestamp, p.doubleValue());
+                }
+                lastTimestamp = timestamp;
+            }
+        }
+        
+        getSeries(context).add(builder.build());
+        context.addPointsWritten(builder.size());
+    }
+    
+    @Override
+    public void endResponse(final ResponseContext context) throws IOException {
+        final List<MaterializedDataPoints> series = getSeries(context);
+        final long[] timestamps = sharedTimestamps(series);
+        final JsonGenerator jsonGenerator = getJsonGenerator(context);
+        
+        jsonGenerator.writeStartObject();
+        
+        jsonGenerator.writeArrayFieldStart("timestamps");
+        for (final long timestamp : timestamps) {
+            jsonGenerator.writeNumber(isMillisecondResolution() ? timestamp : TimeUnit.MILLISECONDS.toSeconds(timestamp));
+        }
+        jsonGenerator.writeEndArray();
+        
+        jsonGenerator.writeArrayFieldStart("series");
+        for (final MaterializedDataPoints points : series) {
+            writeSeries(points, timestamps, jsonGenerator);
+        }
+        jsonGenerator.writeEndArray();
+        
+        jsonGenerator.writeEndObject();
+        
+        // END of super class response (which might include JSONP wrapper).
+        super.endResponse(context);
+        
+        jsonGenerator.flush();
+    }
+    
+    private void writeSeries(final MaterializedDataPoints points, final long[] timestamps, final JsonGenerator jsonGenerator) throws IOException {
+        jsonGenerator.writeStartObject();
+        jsonGenerator.writeStringField("target", points.metricName());
+        
+        if (includeAllTags) {
+            jsonGenerator.writeObjectFieldStart("tags");
+            for (final Map.Entry<String, String> entry : points.getTags().entrySet()) {
+                jsonGenerator.writeStringField(entry.getKey(), entry.getValue());
+            }
+            jsonGenerator.writeEndObject();
+        }
+        
+        if (includeAggregatedTags) {
+            jsonGenerator.writeArrayFieldStart("aggregatedTags");
+            for (final String tag : points.getAggregatedTags()) {
+                jsonGenerator.writeString(tag);
+            }
+            jsonGenerator.writeEndArray();
+        }
+        
+        jsonGenerator.writeArrayFieldStart("values");
+        final DataPointsTimeGrouper grouper = new DataPointsTimeGrouper(points);
+        for (final long timestamp : timestamps) {
+            final Double value = grouper.getThenAdvanceIfAt(timestamp);
+            
+            if (value == null || value.isNaN()) {
+                jsonGenerator.writeNull();
+            } else if (value.doubleValue() == Math.rint(value.doubleValue()) && Math.abs(value.doubleValue()) < Long.MAX_VALUE) {
+                // Integers (and whole floats) without the trailing ".0".
+                jsonGenerator.writeNumber(value.longValue());
+            } else {
+                jsonGenerator.writeNumber(value.doubleValue());
+            }
+        }
+        jsonGenerator.writeEndArray();
+        
+        jsonGenerator.writeEndObject();
+    }
+    
+    /**
+     * @return sorted, distinct timestamps of all points in the given series.
+     */
+    private static long[] sharedTimestamps(final List<MaterializedDataPoints> series) {
+        int total = 0;
+        for (final MaterializedDataPoints points : series) {
+            total += points.size();
+        }
+        
+        final long[] all = new long[total];
+        int n = 0;
+        for (final MaterializedDataPoints points : series) {
+            for (int i=0; i<points.size(); i++) {
+                all[n++] = points.timestamp(i);
+            }
+        }
+        
+        Arrays.sort(all);
+        
+        int distinct = 0;
+        for (int i=0; i<all.length; i++) {
+            if (distinct == 0 || all[i] != all[distinct - 1]) {
+                all[distinct++] = all[i];
+            }
+        }
+        
+        return Arrays.copyOf(all, distinct);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<MaterializedDataPoints> getSeries(final ResponseContext context) {
+        return context.getProperty("columnarSeries", List.class);
+    }
+    
+    /**
+     * @param intervalMillis interval that all timestamps are snapped to; usually
+     * {@link #sharedIntervalMillis(Iterable)} of the queried metrics.
+     */
+    public ColumnarJsonResponseWriter setIntervalMillis(long intervalMillis) {
+        Preconditions.checkArgument(intervalMillis >= 0, "Invalid interval: %s", intervalMillis);
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+    
+    public ColumnarJsonResponseWriter setIncludeAllTags(boolean includeAllTags) {
+        this.includeAllTags = includeAllTags;
+        return this;
+    }
+
+    public ColumnarJsonResponseWriter setIncludeAggregatedTags(boolean includeAggregatedTags) {
+        this.includeAggregatedTags = includeAggregatedTags;
+        return this;
+    }
+}
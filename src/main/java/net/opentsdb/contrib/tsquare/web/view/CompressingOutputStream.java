@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Buffers the first {@code minSize} bytes of a response.  If the response ends
+ * within that, it is sent as is; otherwise the {@code Content-Encoding} header is
+ * set and everything is streamed through a gzip or deflate encoder.
+ */
+final class CompressingOutputStream extends OutputStream {
+    private static final int ENCODER_BUFFER_SIZE = 8192;
+    
+    private final HttpServletResponse response;
+    private final String encoding;
+    private final int level;
+    
+    private byte[] buffer;
+    private int count = 0;
+    
+    private DeflaterOutputStream out;
+    private Deflater deflater;
+    private boolean finished = false;
+    
+    CompressingOutputStream(final HttpServletResponse response, final String encoding, final int level, final int minSize) {
+        this.response = response;
+        this.encoding = encoding;
+        this.level = level;
+        this.buffer = new byte[minSize];
+    }
+    
+    @Override
+    public void write(final int b) throws IOException {
+        if (out == null && count == buffer.length) {
+            startCompressing();
+        }
+        
+        if (out != null) {
+            out.write(b);
+        } else {
+            buffer[count++] = (byte) b;
+        }
+    }
+    
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (out == null && count + len > buffer.length) {
+            startCompressing();
+        }
+        
+        if (out != null) {
+            out.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+    
+    private void startCompressing() throws IOException {
+        response.setHeader("Content-Encoding", encoding);
+        final OutputStream raw = response.getOutputStream();
+        
+        if (ResponseCompression.GZIP.equals(encoding)) {
+            out = new GZIPOutputStream(raw, ENCODER_BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                    deflater = def;
+                }
+            };
+        } else {
+            // HTTP "deflate" is the zlib format, so no "nowrap".
+            deflater = new Deflater(level);
+            out = new DeflaterOutputStream(raw, deflater, ENCODER_BUFFER_SIZE);
+        }
+        
+        out.write(buffer, 0, count);
+        buffer = null;
+    }
+    
+    /**
+     * Flushes compressed data written so far.  While the response is still being
+     * buffered, this does nothing: flushing would force the choice of encoding.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out != null && !finished) {
+            out.flush();
+        }
+    }
+    
+    /**
+     * Completes the response: writes buffered bytes as is or the encoder's trailer.
+     * The underlying servlet stream is flushed, but left open.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        
+        if (out == null) {
+            final OutputStream raw = response.getOutputStream();
+            raw.write(buffer, 0, count);
+            raw.flush();
+            buffer = null;
+        } else {
+            try {
+                out.finish();
+                out.flush();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Releases the encoder without completing the response, e.g. once writing it has
+     * failed.  Does nothing once the response has been completed by {@link #finish()}.
+     */
+    public void end() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        
+        buffer = null;
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -71,6 +71,22 @@ public class DataPointsTimeGrouper {
         }
     }
     
+    /**
+     * Same as {@link #getThenAdvanceIfWithinRange(Range)} for a range of a single
+     * timestamp, without creating the range.
+     */
+    public Double getThenAdvanceIfAt(final long timestamp) {
+        if (exhausted) {
+            return VALUE_WHEN_EXHAUSTED;
+        } else if (currentDataPoint.timestamp() == timestamp) {
+            final double value = currentDataPoint.toDouble();
+            advance();
+            return Double.valueOf(value);
+        } else {
+            return null;
+        }
+    }
+    
     public Double getCurrentValue() {
         if (exhausted) {
             return VALUE_WHEN_EXHAUSTED;
@@ -16,42 +16,115 @@
 package net.opentsdb.contrib.tsquare.web.view;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.graphite.TargetExpression;
+import net.opentsdb.contrib.tsquare.stats.QueryTrace;
+import net.opentsdb.contrib.tsquare.stats.SlowQueryLog;
+import net.opentsdb.contrib.tsquare.stats.TsquareStats;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
 import net.opentsdb.contrib.tsquare.web.DataQueryModel;
+import net.opentsdb.contrib.tsquare.web.DataQueryService;
+import net.opentsdb.contrib.tsquare.web.QueryFanOut;
 import net.opentsdb.core.DataPoints;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.servlet.view.AbstractView;
 
 import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 
 /**
  * Special view for streaming query result data from a {@link DataQueryModel}.
+ * If the model has a {@link DataQueryModel#setResponseBufferSize(int) response buffer size},
+ * the response is held back until it has been written completely, so that a failure
+ * part way through gets a proper error status rather than a truncated body.
  * 
  * @author James Royalty (jroyalty) <i>[Jul 31, 2013]</i>
  */
 public final class DataQueryView extends AbstractView {
+    @Autowired
+    private DataQueryService dataQueryService;
+    @Autowired(required=false)
+    private TsquareStats stats;
+    @Autowired(required=false)
+    private SlowQueryLog slowQueryLog;
+    private ResponseCompression responseCompression;
     
     @Override
     protected void renderMergedOutputModel(final Map<String, Object> modelMap, final HttpServletRequest request, final HttpServletResponse response) throws Exception {
         final DataQueryModel modelObj = new DataQueryModel(modelMap);
         final DataQueryResponseWriter writer = modelObj.getResponseWriter();
-        final ResponseContext context = new ResponseContext(request, response);
         
-        if (writer instanceof GroupedSeriesWriter) {
-            executeGroupedSeries((GroupedSeriesWriter) writer, modelObj, context);
-        } else if (writer instanceof SingleSeriesWriter) {
-            executeSingleSeries((SingleSeriesWriter) writer, modelObj, context);
-        } else {
-            throw new IllegalArgumentException("Unsupported writer: " + writer);
+        if (modelObj.getResponseBufferSize() <= 0) {
+            execute(writer, modelObj, new ResponseContext(request, response, responseCompression));
+            return;
+        }
+        
+        final BufferedServletResponse buffered = new BufferedServletResponse(response, modelObj.getResponseBufferSize());
+        try {
+            execute(writer, modelObj, new ResponseContext(request, buffered, responseCompression));
+            buffered.commit();
+        } catch (QueryTimeoutException e) {
+            if (buffered.isCommitted()) {
+                throw e;
+            }
+            
+            // Nothing has reached the client yet, so the partial response can be
+            // replaced by the writer's description of the error.
+            buffered.reset();
+            final ResponseContext errorContext = new ResponseContext(request, buffered, responseCompression);
+            try {
+                writer.onError(errorContext, e);
+                errorContext.finish();
+            } finally {
+                errorContext.release();
+            }
+            buffered.commit();
+        } finally {
+            buffered.release();
+        }
+    }
+    
+    private void execute(final DataQueryResponseWriter writer, final DataQueryModel modelObj, final ResponseContext context) throws IOException {
+        final long startNanos = System.nanoTime();
+        
+        try {
+            if (writer instanceof GroupedSeriesWriter) {
+                executeGroupedSeries((GroupedSeriesWriter) writer, modelObj, context);
+            } else if (writer instanceof SingleSeriesWriter) {
+                executeSingleSeries((SingleSeriesWriter) writer, modelObj, context);
+            } else {
+                throw new IllegalArgumentException("Unsupported writer: " + writer);
+            }
+        } finally {
+            if (stats != null) {
+                stats.recordRender(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), 
+                        context.getPointsWritten(), context.getBytesWritten());
+            }
+            
+            final QueryTrace trace = modelObj.getTrace();
+            if (trace != null) {
+                trace.addPhase(QueryTrace.PHASE_RENDER, startNanos);
+                if (modelObj.getFanOut() != null && modelObj.getFanOut().getCancellation() != null) {
+                    trace.setError(modelObj.getFanOut().getCancellation().getMessage());
+                }
+                trace.finish(context.getPointsWritten(), context.getBytesWritten());
+                if (slowQueryLog != null) {
+                    slowQueryLog.record(trace);
+                }
+            }
         }
     }
     
@@ -59,21 +132,24 @@ public final class DataQueryView extends AbstractView {
         Exception ex = null;
         
         try {
+            final QueryFanOut fanOut = dataQueryService.startQueries(modelObj, context.getRequest());
+            if (fanOut.getCancellation() != null) {
+                // Cancelled (e.g. timed out) before rendering started; the writer reports why.
+                singleSeriesWriter.onError(context, fanOut.getCancellation());
+                context.finish();
+                return;
+            }
+            
             singleSeriesWriter.beginResponse(context);
 
-            for (final AnnotatedDataQuery dataQuery : modelObj.getQueries()) {
-                final DataPoints[] result = dataQuery.getQuery().run();
-                for (final DataPoints series : result) {
-                    AnnotatedDataPoints annPoints = new AnnotatedDataPoints(
-                            dataQuery.getMetric(),
-                            Range.closed(dataQuery.getQuery().getStartTime(), dataQuery.getQuery().getEndTime()),
-                            series);
-                    
+            for (int i=0; i<stepCount(modelObj, fanOut); i++) {
+                for (final AnnotatedDataPoints annPoints : awaitStep(modelObj, fanOut, i)) {
                     singleSeriesWriter.write(annPoints, context);
                 }
             }
 
             singleSeriesWriter.endResponse(context);
+            context.finish();
         } catch (IOException e) {
             ex = e;
             throw e;
@@ -81,8 +157,13 @@ public final class DataQueryView extends AbstractView {
             ex = e;
             throw e;
         } finally {
-            if (ex != null) {
-                singleSeriesWriter.onError(context, ex);
+            try {
+                if (ex != null) {
+                    singleSeriesWriter.onError(context, ex);
+                    finishAfterError(context);
+                }
+            } finally {
+                context.release();
             }
         }
     }
@@ -91,18 +172,21 @@ public final class DataQueryView extends AbstractView {
         Exception ex = null;
         
         try {
+            final QueryFanOut fanOut = dataQueryService.startQueries(modelObj, context.getRequest());
+            if (fanOut.getCancellation() != null) {
+                // Cancelled (e.g. timed out) before rendering started; the writer reports why.
+                groupedSeriesWriter.onError(context, fanOut.getCancellation());
+                context.finish();
+                return;
+            }
+            
             groupedSeriesWriter.beginResponse(context);
             
             final Multimap<String, AnnotatedDataPoints> groups = LinkedListMultimap.create();
 
-            for (final AnnotatedDataQuery dataQuery : modelObj.getQueries()) {
-                final DataPoints[] result = dataQuery.getQuery().run();
-                for (final DataPoints series : result) {
-                    AnnotatedDataPoints points = new AnnotatedDataPoints(
-                            dataQuery.getMetric(), 
-                            Range.closed(dataQuery.getQuery().getStartTime(), dataQuery.getQuery().getEndTime()), 
-                            series);
-                    groups.put(series.metricName(), points);
+            for (int i=0; i<stepCount(modelObj, fanOut); i++) {
+                for (final AnnotatedDataPoints points : awaitStep(modelObj, fanOut, i)) {
+                    groups.put(points.getDataPoints().metricName(), points);
                 }
             }
             
@@ -112,6 +196,7 @@ public final class DataQueryView extends AbstractView {
             }
 
             groupedSeriesWriter.endResponse(context);
+            context.finish();
         } catch (IOException e) {
             ex = e;
             throw e;
@@ -119,15 +204,91 @@ public final class DataQueryView extends AbstractView {
             ex = e;
             throw e;
         } finally {
-            if (ex != null) {
-                groupedSeriesWriter.onError(context, ex);
+            try {
+                if (ex != null) {
+                    groupedSeriesWriter.onError(context, ex);
+                    finishAfterError(context);
+                }
+            } finally {
+                context.release();
             }
         }
     }
     
+    /**
+     * Sends whatever the writer wrote about an error, even if compression was still
+     * holding it back.
+     */
+    private static void finishAfterError(final ResponseContext context) {
+        try {
+            context.finish();
+        } catch (IOException e) {
+            // Swallowed; the error that is being reported gets rethrown.
+        }
+    }
+    
+    /**
+     * @return number of steps of output: one per target if the model has targets,
+     * otherwise one per query.
+     */
+    private int stepCount(final DataQueryModel modelObj, final QueryFanOut fanOut) {
+        return modelObj.getTargets().isEmpty() ? fanOut.size() : modelObj.getTargets().size();
+    }
+    
+    /**
+     * Blocks until the results of the given step are available.  For a target,
+     * that's when all queries it reads have completed; series are then computed
+     * as the writer iterates them.
+     */
+    private List<AnnotatedDataPoints> awaitStep(final DataQueryModel modelObj, final QueryFanOut fanOut, final int step) {
+        final AnnotatedDataQuery dataQuery;
+        final List<DataPoints> result;
+        
+        if (modelObj.getTargets().isEmpty()) {
+            dataQuery = fanOut.getQuery(step);
+            result = Arrays.asList(fanOut.awaitResult(step));
+        } else {
+            final TargetExpression target = modelObj.getTargets().get(step);
+            dataQuery = fanOut.getQuery(fanOut.indexOf(target.getMetrics().get(0)));
+            result = target.evaluate(fanOut);
+        }
+        
+        final Range<Long> range = Range.closed(dataQuery.getQuery().getStartTime(), dataQuery.getQuery().getEndTime());
+        final List<AnnotatedDataPoints> annotated = Lists.newArrayListWithCapacity(result.size());
+        for (final DataPoints series : result) {
+            annotated.add(new AnnotatedDataPoints(dataQuery.getMetric(), range, series));
+        }
+        
+        if (modelObj.getTrace() != null) {
+            modelObj.getTrace().addSeries(annotated.size());
+        }
+        
+        return annotated;
+    }
+    
     @Override
     public final String getContentType() {
         // The writer set the content type.
         return null;
     }
+    
+    public void setDataQueryService(DataQueryService dataQueryService) {
+        this.dataQueryService = dataQueryService;
+    }
+    
+    public void setStats(TsquareStats stats) {
+        this.stats = stats;
+    }
+    
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * @param responseCompression compression settings; {@code null} (the default)
+     * disables compression.
+     */
+    public void setResponseCompression(ResponseCompression responseCompression) {
+        this.responseCompression = responseCompression;
+    }
 }
@@ -19,7 +19,7 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-import net.opentsdb.contrib.tsquare.support.DataPointsAsDoubles;
+import net.opentsdb.contrib.tsquare.support.DataPointCursor;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
 import net.opentsdb.core.Aggregators;
 import net.opentsdb.core.DataPoint;
@@ -77,14 +77,17 @@ public class GraphiteJsonResponseWriter extends AbstractJsonResponseWriter imple
         }
         
         if (summarize) {
-            final DataPointsAsDoubles doubles = new DataPointsAsDoubles(annotatedPoints.getDataPoints());
+            final DataPointCursor doubles = new DataPointCursor(annotatedPoints.getDataPoints());
             final double aggValue = Aggregators.SUM.runDouble(doubles);
             jsonGenerator.writeNumberField("summarizedValue", aggValue);
+            context.addPointsWritten(1);
         } else {
             jsonGenerator.writeArrayFieldStart("datapoints");
+            int count = 0;
 
-            for (final DataPoint p : annotatedPoints.getDataPoints()) {
+            for (final DataPoint p : pointsToWrite(annotatedPoints)) {
                 jsonGenerator.writeStartArray();
+                count++;
 
                 if (p.isInteger()) {
                     jsonGenerator.writeNumber(p.longValue());
@@ -102,6 +105,7 @@ public class GraphiteJsonResponseWriter extends AbstractJsonResponseWriter imple
             }
 
             jsonGenerator.writeEndArray();
+            context.addPointsWritten(count);
         }
         
         jsonGenerator.writeEndObject();
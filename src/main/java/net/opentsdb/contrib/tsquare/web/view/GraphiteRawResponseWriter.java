@@ -17,17 +17,16 @@ package net.opentsdb.contrib.tsquare.web.view;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
-import net.opentsdb.contrib.tsquare.support.TsWebUtils;
+import javax.servlet.http.HttpServletResponse;
+
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.support.DataPointCursor;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
-import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 
-import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
-
 /**
  * Write data in Graphite's "raw" format.  See: http://graphite.readthedocs.org/en/latest/render_api.html#raw
  * 
@@ -50,12 +49,15 @@ public class GraphiteRawResponseWriter implements SingleSeriesWriter {
         long diffSum = 0;
         long totalPoints = 0;
         
-        // XXX: Maybe just iterate over DataPoints again instead of caching these?
-        final List<Double> values = Lists.newArrayListWithCapacity(points.size());
+        // Values are written after the header, which needs all timestamps, so
+        // buffer them (unboxed).
+        double[] values = new double[Math.max(16, points.size())];
+        int numValues = 0;
         
-        for (final DataPoint p : points) {
+        final DataPointCursor cursor = new DataPointCursor(points);
+        while (cursor.next()) {
             // Graphite timestamp are always in seconds.
-            final long currentTimestamp = TimeUnit.MILLISECONDS.toSeconds(p.timestamp());
+            final long currentTimestamp = TimeUnit.MILLISECONDS.toSeconds(cursor.timestamp());
             
             // Find the max/min timestamps; we need this for part of the raw response.
             maxTimestamp = Math.max(maxTimestamp, currentTimestamp);
@@ -73,10 +75,14 @@ public class GraphiteRawResponseWriter implements SingleSeriesWriter {
             }
             
             lastTimestamp = currentTimestamp;
-            values.add(TsWebUtils.asDoubleObject(p));
+            
+            if (numValues == values.length) {
+                values = Arrays.copyOf(values, numValues * 2);
+            }
+            values[numValues++] = cursor.value();
         }
         
-        final PrintWriter writer = context.getResponse().getWriter();
+        final PrintWriter writer = context.getWriter();
         writer.print(points.metricName());
         writer.print(',');
         writer.print(minTimestamp);
@@ -85,16 +91,35 @@ public class GraphiteRawResponseWriter implements SingleSeriesWriter {
         writer.print(',');
         writer.print((diffSum/totalPoints));
         writer.print('|');
-        writer.println(Joiner.on(',').join(values));
+        for (int i=0; i<numValues; i++) {
+            if (i > 0) {
+                writer.print(',');
+            }
+            writer.print(values[i]);
+        }
+        writer.println();
+        context.addPointsWritten(numValues);
     }
 
     @Override
     public void endResponse(final ResponseContext context) throws IOException {
-        context.getResponse().getWriter().flush();
+        context.getWriter().flush();
     }
     
+    /**
+     * Timeouts are reported to the client as a 504 with the error message as
+     * the body, provided nothing has been written yet.
+     */
     @Override
     public void onError(ResponseContext context, Throwable ex) {
-        // TODO Auto-generated method stub
+        if (ex instanceof QueryTimeoutException && !context.getResponse().isCommitted()) {
+            try {
+                context.getResponse().setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                context.getResponse().setContentType("text/plain");
+                context.getWriter().println(ex.getMessage());
+            } catch (IOException e) {
+                // Nothing more we can tell the client.
+            }
+        }
     }
 }
@@ -32,9 +32,11 @@ public class HighchartsSeriesResponseWriter extends AbstractJsonResponseWriter i
         jsonGenerator.writeStringField("name", annotatedPoints.getDataPoints().metricName());
         
         jsonGenerator.writeArrayFieldStart("data");
+        int count = 0;
 
-        for (final DataPoint p : annotatedPoints.getDataPoints()) {
+        for (final DataPoint p : pointsToWrite(annotatedPoints)) {
             jsonGenerator.writeStartArray();
+            count++;
             
             if (isMillisecondResolution()) {
                 jsonGenerator.writeNumber(p.timestamp());
@@ -53,6 +55,7 @@ public class HighchartsSeriesResponseWriter extends AbstractJsonResponseWriter i
 
         // end of "data" array
         jsonGenerator.writeEndArray();
+        context.addPointsWritten(count);
  
         // end of single series object
         jsonGenerator.writeEndObject();
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
+import net.opentsdb.contrib.tsquare.support.DataPointCursor;
+import net.opentsdb.contrib.tsquare.support.LargestTriangleThreeBuckets;
+import net.opentsdb.contrib.tsquare.support.MessagePackOutput;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
+import net.opentsdb.core.DataPoint;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+
+/**
+ * Writes series in <a href="http://msgpack.org/">MessagePack</a>, for machine consumers.
+ * The response is a stream of MessagePack maps, one per series (there is no enclosing
+ * array, since the number of series isn't known up front):
+ * <pre>
+ * {
+ *   "target": "metric.name",
+ *   "tags": {"host": "web01", ...},
+ *   "aggregatedTags": ["dc", ...],
+ *   "timestamps": binary, big-endian 64 bit integers (seconds, or milliseconds if requested),
+ *   "values": binary, big-endian IEEE 754 doubles
+ * }
+ * </pre>
+ * Timestamps and values are packed arrays of the same length, so clients can decode
+ * them without parsing each number.
+ */
+public class MessagePackResponseWriter implements SingleSeriesWriter {
+    public static final String CONTENT_TYPE = "application/x-msgpack";
+    
+    private final boolean millisecondResolution;
+    private int maxDataPoints = 0;
+    
+    // Reused between series.
+    private long[] timestamps = new long[16];
+    private double[] values = new double[16];
+    
+    public MessagePackResponseWriter(final boolean millisecondResolution) {
+        this.millisecondResolution = millisecondResolution;
+    }
+    
+    @Override
+    public void beginResponse(final ResponseContext context) throws IOException {
+        context.getResponse().setContentType(CONTENT_TYPE);
+        context.putProperty("messagePackOutput", new MessagePackOutput(context.getOutputStream()));
+    }
+    
+    @Override
+    public void write(final AnnotatedDataPoints annotatedPoints, final ResponseContext context) throws IOException {
+        final int size = bufferPoints(annotatedPoints);
+        final MessagePackOutput out = getOutput(context);
+        
+        out.writeMapHeader(5);
+        out.writeString("target").writeString(annotatedPoints.getDataPoints().metricName());
+        
+        final Map<String, String> tags = annotatedPoints.getDataPoints().getTags();
+        out.writeString("tags").writeMapHeader(tags.size());
+        for (final Map.Entry<String, String> tag : tags.entrySet()) {
+            out.writeString(tag.getKey()).writeString(tag.getValue());
+        }
+        
+        out.writeString("aggregatedTags").writeObject(annotatedPoints.getDataPoints().getAggregatedTags());
+        out.writeString("timestamps").writeLongs(timestamps, size);
+        out.writeString("values").writeDoubles(values, size);
+        context.addPointsWritten(size);
+    }
+    
+    /**
+     * Copies the points to write into {@link #timestamps} and {@link #values}.
+     * 
+     * @return number of points.
+     */
+    private int bufferPoints(final AnnotatedDataPoints annotatedPoints) {
+        final Range<Long> range = annotatedPoints.getQueryRangeInMillis();
+        int size = 0;
+        
+        if (maxDataPoints <= 0 || range == null || !range.hasLowerBound() || !range.hasUpperBound()) {
+            final DataPointCursor cursor = new DataPointCursor(annotatedPoints.getDataPoints());
+            while (cursor.next()) {
+                ensureCapacity(size);
+                timestamps[size] = toResolution(cursor.timestamp());
+                values[size] = cursor.value();
+                size++;
+            }
+        } else {
+            final Iterator<DataPoint> points = new LargestTriangleThreeBuckets(annotatedPoints.getDataPoints().iterator(), 
+                    range.lowerEndpoint(), range.upperEndpoint(), maxDataPoints);
+            while (points.hasNext()) {
+                final DataPoint p = points.next();
+                ensureCapacity(size);
+                timestamps[size] = toResolution(p.timestamp());
+                values[size] = p.toDouble();
+                size++;
+            }
+        }
+        
+        return size;
+    }
+    
+    private long toResolution(final long timestampMillis) {
+        return (millisecondResolution ? timestampMillis : TimeUnit.MILLISECONDS.toSeconds(timestampMillis));
+    }
+    
+    private void ensureCapacity(final int size) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+    }
+    
+    @Override
+    public void endResponse(final ResponseContext context) throws IOException {
+        getOutput(context).flush();
+    }
+    
+    /**
+     * If nothing has been written yet, timeouts are reported to the client as a 504
+     * with a MessagePack body (see {@link QueryTimeoutException#toErrorObject()}).
+     */
+    @Override
+    public void onError(final ResponseContext context, final Throwable ex) {
+        if (ex instanceof QueryTimeoutException && getOutput(context) == null && !context.getResponse().isCommitted()) {
+            try {
+                context.getResponse().setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                context.getResponse().setContentType(CONTENT_TYPE);
+                new MessagePackOutput(context.getOutputStream())
+                    .writeObject(((QueryTimeoutException) ex).toErrorObject())
+                    .flush();
+            } catch (IOException e) {
+                // Nothing more we can tell the client.
+            }
+        }
+    }
+    
+    private MessagePackOutput getOutput(final ResponseContext context) {
+        return context.getProperty("messagePackOutput", MessagePackOutput.class);
+    }
+    
+    /**
+     * @param maxDataPoints if positive, series are downsampled to at most this many
+     * points (but never fewer than 3) with {@link LargestTriangleThreeBuckets}.
+     */
+    public void setMaxDataPoints(int maxDataPoints) {
+        Preconditions.checkArgument(maxDataPoints <= 0 || maxDataPoints >= 3, "maxDataPoints must be at least 3: %s", maxDataPoints);
+        this.maxDataPoints = maxDataPoints;
+    }
+}
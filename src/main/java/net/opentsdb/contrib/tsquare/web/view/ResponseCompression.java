@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Settings for compressing responses, and {@code Accept-Encoding} negotiation.
+ * The encoding is chosen per request: gzip is preferred over deflate, and
+ * {@code q=0} excludes an encoding.  Responses smaller than {@link #setMinSize(int)}
+ * bytes are sent uncompressed.
+ * 
+ * @see ResponseContext#getOutputStream()
+ */
+public class ResponseCompression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    
+    private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter SEMICOLON = Splitter.on(';').trimResults();
+    
+    private boolean enabled = true;
+    private int level = 6;
+    private int minSize = 1024;
+    
+    /**
+     * @return a stream for the response body, which compresses if the client accepts
+     * a supported encoding.  The stream must be finished by {@link ResponseContext#finish()}.
+     */
+    OutputStream newOutputStream(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        if (!enabled) {
+            return response.getOutputStream();
+        }
+        
+        // Caches must key on the request header, even when we don't compress.
+        response.addHeader("Vary", "Accept-Encoding");
+        
+        final String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            return response.getOutputStream();
+        }
+        
+        return new CompressingOutputStream(response, encoding, level, minSize);
+    }
+    
+    /**
+     * @param acceptEncoding value of the {@code Accept-Encoding} request header.
+     * @return {@link #GZIP}, {@link #DEFLATE} or {@code null} for no compression.
+     */
+    static String negotiate(final String acceptEncoding) {
+        if (Strings.isNullOrEmpty(acceptEncoding)) {
+            return null;
+        }
+        
+        double gzipQ = -1;
+        double deflateQ = -1;
+        double anyQ = -1;
+        
+        for (final String element : COMMA.split(acceptEncoding)) {
+            final Iterator<String> parts = SEMICOLON.split(element).iterator();
+            final String coding = parts.next().toLowerCase();
+            double q = 1.0;
+            
+            while (parts.hasNext()) {
+                final String param = parts.next();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzipQ = q;
+            } else if (DEFLATE.equals(coding)) {
+                deflateQ = q;
+            } else if ("*".equals(coding)) {
+                anyQ = q;
+            }
+        }
+        
+        // Codings not listed explicitly get the q-value of "*", if any.
+        gzipQ = (gzipQ < 0) ? anyQ : gzipQ;
+        deflateQ = (deflateQ < 0) ? anyQ : deflateQ;
+        
+        if (gzipQ > 0 && gzipQ >= deflateQ) {
+            return GZIP;
+        } else if (deflateQ > 0) {
+            return DEFLATE;
+        } else {
+            return null;
+        }
+    }
+    
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * @param level compression level, from 1 (fastest) to 9 (smallest).
+     */
+    public void setLevel(int level) {
+        Preconditions.checkArgument(level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION, "Invalid compression level: %s", level);
+        this.level = level;
+    }
+    
+    /**
+     * @param minSize responses smaller than this many bytes are not compressed.
+     */
+    public void setMinSize(int minSize) {
+        Preconditions.checkArgument(minSize >= 0, "Invalid minimum size: %s", minSize);
+        this.minSize = minSize;
+    }
+}
@@ -15,12 +15,17 @@
  */
 package net.opentsdb.contrib.tsquare.web.view;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
 
 /**
  * @author James Royalty (jroyalty) <i>[Jul 19, 2013]</i>
@@ -29,11 +34,107 @@ public final class ResponseContext {
     private HttpServletRequest request;
     private HttpServletResponse response;
     private Map<String, Object> properties;
+    private ResponseCompression compression;
+    
+    private OutputStream bodyStream;
+    private CountingOutputStream outputStream;
+    private PrintWriter writer;
+    private long pointsWritten = 0;
     
     public ResponseContext(final HttpServletRequest request, final HttpServletResponse response) {
+        this(request, response, null);
+    }
+    
+    /**
+     * @param request
+     * @param response
+     * @param compression may be {@code null}, in which case responses are never compressed.
+     */
+    public ResponseContext(final HttpServletRequest request, final HttpServletResponse response, final ResponseCompression compression) {
         this.request = request;
         this.response = response;
         this.properties = Maps.newLinkedHashMap();
+        this.compression = compression;
+    }
+    
+    /**
+     * Writers should use this, rather than the servlet response's stream, for the
+     * response body so it can be compressed.  Set headers before calling this.
+     * 
+     * @return stream for the response body.
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            if (compression == null) {
+                bodyStream = response.getOutputStream();
+            } else {
+                bodyStream = compression.newOutputStream(request, response);
+            }
+            outputStream = new CountingOutputStream(bodyStream);
+        }
+        
+        return outputStream;
+    }
+    
+    /**
+     * Same as {@link #getOutputStream()} for character data, encoded using the
+     * response's character encoding.
+     * 
+     * @return writer for the response body.
+     */
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), response.getCharacterEncoding()));
+        }
+        
+        return writer;
+    }
+    
+    /**
+     * Flushes anything written through {@link #getWriter()} and completes
+     * compression, if any.  Called once writing has finished, whether with
+     * results or with an error.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        
+        if (bodyStream instanceof CompressingOutputStream) {
+            outputStream.flush();
+            ((CompressingOutputStream) bodyStream).finish();
+        } else if (outputStream != null) {
+            outputStream.flush();
+        }
+    }
+    
+    /**
+     * Releases the resources of compression, if any, discarding anything that
+     * {@link #finish()} hasn't sent.  Must be called once done with the response,
+     * successfully or not.
+     */
+    public void release() {
+        if (bodyStream instanceof CompressingOutputStream) {
+            ((CompressingOutputStream) bodyStream).end();
+        }
+    }
+    
+    /**
+     * @return bytes written to the response body so far, before compression.
+     */
+    public long getBytesWritten() {
+        return (outputStream == null) ? 0 : outputStream.getCount();
+    }
+    
+    /**
+     * Writers call this with the number of data points they write, for stats.
+     */
+    public void addPointsWritten(final long points) {
+        pointsWritten += points;
+    }
+    
+    public long getPointsWritten() {
+        return pointsWritten;
     }
     
     public HttpServletRequest getRequest() {
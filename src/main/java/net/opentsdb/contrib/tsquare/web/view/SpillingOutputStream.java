@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Keeps everything written to it: the first {@code memoryLimit} bytes in memory
+ * and the rest in a temporary file, which is created only if needed.  The contents
+ * are copied out with {@link #writeTo(OutputStream)} and the temporary file removed
+ * by {@link #release()}.
+ */
+final class SpillingOutputStream extends OutputStream {
+    private static final int INITIAL_MEMORY_SIZE = 8192;
+    private static final int FILE_BUFFER_SIZE = 65536;
+    
+    private final int memoryLimit;
+    
+    private byte[] memory;
+    private int count = 0;
+    
+    private File file;
+    private OutputStream fileOut;
+    private long fileCount = 0;
+    
+    SpillingOutputStream(final int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        this.memory = new byte[Math.min(memoryLimit, INITIAL_MEMORY_SIZE)];
+    }
+    
+    @Override
+    public void write(final int b) throws IOException {
+        if (count < memoryLimit) {
+            ensureMemory(count + 1);
+            memory[count++] = (byte) b;
+        } else {
+            spill().write(b);
+            fileCount++;
+        }
+    }
+    
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        final int inMemory = Math.min(len, memoryLimit - count);
+        if (inMemory > 0) {
+            ensureMemory(count + inMemory);
+            System.arraycopy(b, off, memory, count, inMemory);
+            count += inMemory;
+        }
+        
+        if (inMemory < len) {
+            spill().write(b, off + inMemory, len - inMemory);
+            fileCount += len - inMemory;
+        }
+    }
+    
+    private void ensureMemory(final int size) {
+        if (size > memory.length) {
+            memory = Arrays.copyOf(memory, Math.min(memoryLimit, Math.max(size, memory.length * 2)));
+        }
+    }
+    
+    private OutputStream spill() throws IOException {
+        if (fileOut == null) {
+            file = File.createTempFile("tsquare-response", ".tmp");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+        }
+        return fileOut;
+    }
+    
+    /**
+     * @return number of bytes written.
+     */
+    public long size() {
+        return count + fileCount;
+    }
+    
+    /**
+     * @return {@code true} if some bytes were written to a temporary file.
+     */
+    public boolean isSpilled() {
+        return (file != null);
+    }
+    
+    /**
+     * Copies everything written so far to the given stream.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(memory, 0, count);
+        
+        if (fileOut != null) {
+            fileOut.flush();
+            
+            final InputStream in = new FileInputStream(file);
+            try {
+                final byte[] buf = new byte[FILE_BUFFER_SIZE];
+                long position = 0;
+                while (position < fileCount) {
+                    final int read = in.read(buf, 0, (int) Math.min(buf.length, fileCount - position));
+                    if (read < 0) {
+                        throw new EOFException("Temporary file " + file + " ended after " + position + " of " + fileCount + " bytes");
+                    }
+                    out.write(buf, 0, read);
+                    position += read;
+                }
+            } finally {
+                Closeables.close(in, true);
+            }
+        }
+    }
+    
+    /**
+     * Discards everything written so far.
+     */
+    public void reset() {
+        count = 0;
+        deleteFile();
+    }
+    
+    /**
+     * Discards everything written so far and removes the temporary file, if any.
+     */
+    public void release() {
+        reset();
+        memory = new byte[0];
+    }
+    
+    private void deleteFile() {
+        if (fileOut != null) {
+            try {
+                Closeables.close(fileOut, true);
+            } catch (IOException e) {
+                // Is swallowed above.
+            }
+            
+            file.delete();
+            file = null;
+            fileOut = null;
+            fileCount = 0;
+        }
+    }
+}
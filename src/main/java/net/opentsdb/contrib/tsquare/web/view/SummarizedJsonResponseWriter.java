@@ -7,7 +7,7 @@ import org.apache.commons.math3.stat.descriptive.StorelessUnivariateStatistic;
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 
-import net.opentsdb.contrib.tsquare.support.DataPointsAsDoubles;
+import net.opentsdb.contrib.tsquare.support.DataPointCursor;
 import net.opentsdb.contrib.tsquare.web.AnnotatedDataPoints;
 import net.opentsdb.core.Aggregator;
 
@@ -53,7 +53,7 @@ public class SummarizedJsonResponseWriter extends AbstractJsonResponseWriter imp
                 }
             }
             
-            final DataPointsAsDoubles doubles = new DataPointsAsDoubles(dps.getDataPoints(), dps.getQueryRangeInMillis());
+            final DataPointCursor doubles = DataPointCursor.within(dps.getDataPoints(), dps.getQueryRangeInMillis());
             final double aggValue = aggregator.runDouble(doubles);
             summarizer.increment(aggValue);
         }
@@ -63,6 +63,7 @@ public class SummarizedJsonResponseWriter extends AbstractJsonResponseWriter imp
         jsonGenerator.writeStringField("target", metricName);
         jsonGenerator.writeNumberField("summarizedValue", summarizer.getResult());
         jsonGenerator.writeEndObject();
+        context.addPointsWritten(1);
     }
     
     @Override
@@ -28,6 +28,8 @@ import net.opentsdb.contrib.tsquare.ExtendedTsdbMetricParser;
 import net.opentsdb.contrib.tsquare.MetricParser;
 import net.opentsdb.contrib.tsquare.TsdbManager;
 import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.index.IndexedUidQuery;
+import net.opentsdb.contrib.tsquare.index.UidIndex;
 import net.opentsdb.uid.UniqueId;
 
 import java.lang.reflect.Field;
@@ -44,6 +46,8 @@ public class ProvidedTsdbManager implements TsdbManager, InitializingBean, Dispo
     private HBaseClient hbaseClient;
     @Autowired
     private AggregatorFactory aggregatorFactory;
+    @Autowired(required=false)
+    private UidIndex uidIndex;
     
     private ImmutableSet<String> knownUidKinds;
     
@@ -79,6 +83,11 @@ public class ProvidedTsdbManager implements TsdbManager, InitializingBean, Dispo
     
     @Override
     public UidQuery newUidQuery() {
+        // Scan the UID table until the index has been loaded.
+        if (uidIndex != null && uidIndex.isLoaded()) {
+            return new IndexedUidQuery(uidIndex, tsdb.metrics.kind());
+        }
+        
         return new TsdbUidQuery(tsdb, UID_ID_FAMILY);
     }
     
@@ -111,4 +120,8 @@ public class ProvidedTsdbManager implements TsdbManager, InitializingBean, Dispo
     public void setAggregatorFactory(AggregatorFactory aggregatorFactory) {
         this.aggregatorFactory = aggregatorFactory;
     }
+
+    public void setUidIndex(UidIndex uidIndex) {
+        this.uidIndex = uidIndex;
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.opentsdb.contrib.tsquare.index.TagIndex;
+import net.opentsdb.contrib.tsquare.index.UidIndex;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Rebuilds a {@link TagIndex} periodically.  By default the index is built from
+ * the row keys of the data table: for every metric in the {@link UidIndex}, only
+ * rows of the last complete hour are read, one per series, so the index holds the
+ * series that have had data recently.  Up to {@code maxConcurrentScans} metrics
+ * are scanned at a time.  If TSDB tracks meta data ({@code tsd.core.meta.enable_tracking}),
+ * the row keys of the meta table list every series, and that table can be scanned
+ * instead.
+ */
+public class TsdbTagIndexUpdater implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(TsdbTagIndexUpdater.class);
+    
+    private static final byte[] DATA_FAMILY = { 't' };
+    private static final byte[] META_FAMILY = { 'n', 'a', 'm', 'e' };
+    /** Width of the base time in data table row keys. */
+    private static final short TIMESTAMP_BYTES = 4;
+    /** Time span of one data table row. */
+    private static final long ROW_SPAN_SECONDS = 3600;
+    /** How often to check whether a rebuild is due. */
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    
+    @Autowired
+    private TSDB tsdb;
+    @Autowired
+    private UidIndex uidIndex;
+    @Autowired
+    private TagIndex tagIndex;
+    
+    private boolean enabled = true;
+    private long refreshIntervalSeconds = TimeUnit.HOURS.toSeconds(1);
+    private boolean useMetaTable = false;
+    private int maxNumRows = 1024;
+    private int maxConcurrentScans = 8;
+    
+    private ScheduledExecutorService executor;
+    private long lastLoadMillis = 0;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            log.info("Tag index updates are disabled");
+            return;
+        }
+        
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("tag-index-%d").build());
+        
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    // Don't let the exception cancel future refreshes.
+                    log.warn("Unable to refresh tag index", e);
+                }
+            }
+        }, 0, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Rebuilds the index if that is due.  Unless the meta table is used, this waits
+     * for the {@link UidIndex} to load, since that's where metrics are listed.
+     */
+    public synchronized void refresh() throws Exception {
+        final long now = System.currentTimeMillis();
+        
+        if (tagIndex.isLoaded() && now - lastLoadMillis < TimeUnit.SECONDS.toMillis(refreshIntervalSeconds)) {
+            return;
+        }
+        
+        if (!useMetaTable && !uidIndex.isLoaded()) {
+            log.debug("Waiting for the UID index to load");
+            return;
+        }
+        
+        final TagIndex.Builder builder = new TagIndex.Builder(tsdb.metrics.kind(), tsdb.tag_names.kind(), tsdb.tag_values.kind());
+        if (useMetaTable) {
+            loadFromMetaTable(builder);
+        } else {
+            loadFromDataTable(builder, now);
+        }
+        
+        tagIndex.replaceAll(builder);
+        lastLoadMillis = now;
+        log.info("Indexed tags of {} series in {}ms", builder.getSeriesCount(), System.currentTimeMillis() - now);
+    }
+    
+    private void loadFromDataTable(final TagIndex.Builder builder, final long nowMillis) throws Exception {
+        final short metricWidth = tsdb.metrics.width();
+        final long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+        
+        // Each series has at most one row per hour, so scanning a single hour
+        // reads every series that had data in it exactly once.
+        final long baseTime = nowSeconds - (nowSeconds % ROW_SPAN_SECONDS) - ROW_SPAN_SECONDS;
+        final byte[] startTime = TsdbUidIndexUpdater.encodeId(baseTime, TIMESTAMP_BYTES);
+        final byte[] stopTime = TsdbUidIndexUpdater.encodeId(baseTime + ROW_SPAN_SECONDS, TIMESTAMP_BYTES);
+        
+        final List<Scanner> scanners = Lists.newArrayList();
+        for (final long metricId : uidIndex.getIds(tsdb.metrics.kind())) {
+            final byte[] metric = TsdbUidIndexUpdater.encodeId(metricId, metricWidth);
+            
+            final Scanner scanner = tsdb.client.newScanner(tsdb.dataTable());
+            scanner.setStartKey(concat(metric, startTime));
+            scanner.setStopKey(concat(metric, stopTime));
+            scanner.setFamily(DATA_FAMILY);
+            scanner.setMaxNumRows(maxNumRows);
+            scanners.add(scanner);
+        }
+        
+        scan(scanners, builder, metricWidth + TIMESTAMP_BYTES);
+    }
+    
+    private void loadFromMetaTable(final TagIndex.Builder builder) throws Exception {
+        final Scanner scanner = tsdb.client.newScanner(tsdb.metaTable());
+        scanner.setFamily(META_FAMILY);
+        scanner.setMaxNumRows(maxNumRows);
+        
+        // Row keys are TSUIDs: the metric and tags, without a base time.
+        scan(Collections.singletonList(scanner), builder, tsdb.metrics.width());
+    }
+    
+    /**
+     * Adds the series of every row key the scanners return to the builder.  Up to
+     * {@code maxConcurrentScans} scanners run at a time; this blocks until all of
+     * them have finished.
+     * 
+     * @param tagsOffset position of the first tag in row keys.
+     */
+    private void scan(final List<Scanner> scanners, final TagIndex.Builder builder, final int tagsOffset) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        
+        /**
+         * Adds one batch of rows, then asks for the next batch, or starts on the next
+         * scanner.  Returning the next Deferred chains it onto the result.
+         */
+        final class ScanCallback implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+            private final Scanner scanner;
+            
+            ScanCallback(final Scanner scanner) {
+                this.scanner = scanner;
+            }
+            
+            Deferred<Object> start() {
+                return scanner.nextRows()
+                    .addCallback(this)
+                    .addErrback(new Callback<Object, Exception>() {
+                        @Override
+                        public Object call(final Exception e) {
+                            scanner.close();
+                            return e;
+                        }
+                    });
+            }
+            
+            @Override
+            public Object call(final ArrayList<ArrayList<KeyValue>> rows) throws Exception {
+                if (rows == null) {
+                    scanner.close();
+                    final int index = next.getAndIncrement();
+                    return (index < scanners.size()) ? new ScanCallback(scanners.get(index)).start() : null;
+                }
+                
+                synchronized (builder) {
+                    for (final ArrayList<KeyValue> row : rows) {
+                        addSeries(row.get(0).key(), builder, tagsOffset);
+                    }
+                }
+                
+                return scanner.nextRows().addCallback(this);
+            }
+        }
+        
+        final List<Deferred<Object>> lanes = Lists.newArrayList();
+        for (int i=0; i<maxConcurrentScans; i++) {
+            final int index = next.getAndIncrement();
+            if (index >= scanners.size()) {
+                break;
+            }
+            lanes.add(new ScanCallback(scanners.get(index)).start());
+        }
+        
+        Deferred.group(lanes).joinUninterruptibly();
+    }
+    
+    private void addSeries(final byte[] key, final TagIndex.Builder builder, final int tagsOffset) {
+        final short metricWidth = tsdb.metrics.width();
+        final int tagKeyWidth = tsdb.tag_names.width();
+        final int tagValueWidth = tsdb.tag_values.width();
+        final int tagsLength = key.length - tagsOffset;
+        
+        if (tagsLength < 0 || tagsLength % (tagKeyWidth + tagValueWidth) != 0) {
+            return;
+        }
+        
+        final int tagCount = tagsLength / (tagKeyWidth + tagValueWidth);
+        final long[] tagKeyIds = new long[tagCount];
+        final long[] tagValueIds = new long[tagCount];
+        
+        int offset = tagsOffset;
+        for (int i=0; i<tagCount; i++) {
+            tagKeyIds[i] = decodeId(key, offset, tagKeyWidth);
+            offset += tagKeyWidth;
+            tagValueIds[i] = decodeId(key, offset, tagValueWidth);
+            offset += tagValueWidth;
+        }
+        
+        builder.addSeries(decodeId(key, 0, metricWidth), tagKeyIds, tagValueIds);
+    }
+    
+    private static long decodeId(final byte[] bytes, final int offset, final int width) {
+        long value = 0;
+        for (int i=offset; i<offset + width; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+    
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+    
+    public void setTsdb(TSDB tsdb) {
+        this.tsdb = tsdb;
+    }
+    
+    public void setUidIndex(UidIndex uidIndex) {
+        this.uidIndex = uidIndex;
+    }
+    
+    public void setTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+    
+    /**
+     * @param enabled if {@code false}, the index is never loaded.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        Preconditions.checkArgument(refreshIntervalSeconds > 0, "Refresh interval must be positive: %s", refreshIntervalSeconds);
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+    
+    /**
+     * @param useMetaTable if {@code true}, read series from the meta table rather
+     * than sampling the data table.
+     */
+    public void setUseMetaTable(boolean useMetaTable) {
+        this.useMetaTable = useMetaTable;
+    }
+    
+    public void setMaxNumRows(int maxNumRows) {
+        this.maxNumRows = maxNumRows;
+    }
+    
+    /**
+     * @param maxConcurrentScans number of metrics whose rows are read from the data
+     * table at the same time.
+     */
+    public void setMaxConcurrentScans(int maxConcurrentScans) {
+        Preconditions.checkArgument(maxConcurrentScans > 0, "Invalid max concurrent scans: %s", maxConcurrentScans);
+        this.maxConcurrentScans = maxConcurrentScans;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.core;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.index.SuggestIndex;
+import net.opentsdb.contrib.tsquare.index.UidIndex;
+import net.opentsdb.contrib.tsquare.support.TsWebUtils;
+import net.opentsdb.uid.UniqueId;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.ReflectionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a {@link UidIndex} in sync with the UID table.  The index is loaded with a
+ * full scan of the forward (name to UID) mappings in the background, right after
+ * startup.  After that, the "max id" row is polled periodically and only reverse
+ * (UID to name) mappings for UIDs assigned since the last poll are read.  Renamed
+ * or deleted UIDs are picked up by the next full reload.  If configured, the
+ * {@link SuggestIndex} of each kind is rebuilt whenever its names change.
+ */
+public class TsdbUidIndexUpdater implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(TsdbUidIndexUpdater.class);
+    
+    private static final byte[] UID_ID_FAMILY;
+    private static final byte[] UID_NAME_FAMILY;
+    private static final byte[] MAXID_ROW = { 0 };
+    
+    @Autowired
+    private TSDB tsdb;
+    @Autowired
+    private UidIndex uidIndex;
+    @Autowired(required=false)
+    private SuggestIndex suggestIndex;
+    
+    private long refreshIntervalSeconds = 60;
+    private long fullReloadIntervalSeconds = TimeUnit.HOURS.toSeconds(6);
+    private int maxNumRows = 1024;
+    
+    private ScheduledExecutorService executor;
+    private long lastFullLoadMillis = 0;
+    
+    static {
+        try {
+            // Same trick as ProvidedTsdbManager.
+            Field f = null;
+            
+            f = ReflectionUtils.findField(UniqueId.class, "ID_FAMILY");
+            ReflectionUtils.makeAccessible(f);
+            UID_ID_FAMILY = (byte[]) f.get(null);
+            
+            f = ReflectionUtils.findField(UniqueId.class, "NAME_FAMILY");
+            ReflectionUtils.makeAccessible(f);
+            UID_NAME_FAMILY = (byte[]) f.get(null);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("uid-index-%d").build());
+        
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    // Don't let the exception cancel future refreshes.
+                    log.warn("Unable to refresh UID index", e);
+                }
+            }
+        }, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Performs a full load, if one is due, or an incremental one otherwise.
+     */
+    public synchronized void refresh() throws Exception {
+        final long now = System.currentTimeMillis();
+        
+        if (!uidIndex.isLoaded() || now - lastFullLoadMillis >= TimeUnit.SECONDS.toMillis(fullReloadIntervalSeconds)) {
+            fullLoad();
+            lastFullLoadMillis = now;
+        } else {
+            incrementalLoad();
+        }
+    }
+    
+    private ImmutableList<UniqueId> uniqueIds() {
+        return ImmutableList.of(tsdb.metrics, tsdb.tag_names, tsdb.tag_values);
+    }
+    
+    private void fullLoad() throws Exception {
+        final long startMillis = System.currentTimeMillis();
+        final Map<String, Map<String, Long>> idsByNameByKind = Maps.newLinkedHashMap();
+        final Map<String, Integer> widthByKind = Maps.newHashMap();
+        
+        for (final UniqueId uniqueId : uniqueIds()) {
+            idsByNameByKind.put(uniqueId.kind(), Maps.<String, Long>newHashMap());
+            widthByKind.put(uniqueId.kind(), Integer.valueOf(uniqueId.width()));
+        }
+        
+        final Scanner scanner = tsdb.client.newScanner(tsdb.uidTable());
+        scanner.setFamily(UID_ID_FAMILY);
+        scanner.setMaxNumRows(maxNumRows);
+        
+        int count = 0;
+        
+        try {
+            ArrayList<ArrayList<KeyValue>> rows;
+            
+            while ( (rows = scanner.nextRows().joinUninterruptibly()) != null) {
+                for (final ArrayList<KeyValue> row : rows) {
+                    if (Bytes.equals(row.get(0).key(), MAXID_ROW)) {
+                        continue;
+                    }
+                    
+                    final String name = TsWebUtils.toString(row.get(0).key());
+                    
+                    for (final KeyValue kv : row) {
+                        final String kind = TsWebUtils.toString(kv.qualifier());
+                        final Map<String, Long> idsByName = idsByNameByKind.get(kind);
+                        
+                        if (idsByName != null && kv.value().length == widthByKind.get(kind).intValue()) {
+                            idsByName.put(name, Long.valueOf(decodeId(kv.value())));
+                            count++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        
+        uidIndex.replaceAll(idsByNameByKind);
+        log.info("Loaded {} UIDs into index in {}ms", count, System.currentTimeMillis() - startMillis);
+        
+        for (final String kind : idsByNameByKind.keySet()) {
+            updateSuggestions(kind);
+        }
+    }
+    
+    private void incrementalLoad() throws Exception {
+        final Map<String, Long> maxIds = readMaxIds();
+        
+        for (final UniqueId uniqueId : uniqueIds()) {
+            final String kind = uniqueId.kind();
+            final long knownMaxId = uidIndex.getMaxId(kind);
+            final Long maxId = maxIds.get(kind);
+            
+            if (maxId != null && maxId.longValue() > knownMaxId) {
+                final Map<String, Long> idsByName = readNames(uniqueId, knownMaxId + 1, maxId.longValue());
+                uidIndex.addAll(kind, idsByName);
+                log.debug("Added {} new {} UIDs to index", idsByName.size(), kind);
+                
+                if (!idsByName.isEmpty() && suggestIndex != null) {
+                    suggestIndex.addAll(kind, idsByName.keySet());
+                }
+            }
+        }
+    }
+    
+    private void updateSuggestions(final String kind) {
+        if (suggestIndex != null) {
+            final long startMillis = System.currentTimeMillis();
+            suggestIndex.update(kind, uidIndex.getNames(kind));
+            log.debug("Rebuilt {} suggestions in {}ms", kind, System.currentTimeMillis() - startMillis);
+        }
+    }
+    
+    /**
+     * @return the greatest assigned UID, by kind.
+     */
+    private Map<String, Long> readMaxIds() throws Exception {
+        final Map<String, Long> maxIds = Maps.newHashMap();
+        final Scanner scanner = tsdb.client.newScanner(tsdb.uidTable());
+        scanner.setStartKey(MAXID_ROW);
+        scanner.setStopKey(new byte[] { 0, 0 });
+        scanner.setFamily(UID_ID_FAMILY);
+        
+        try {
+            ArrayList<ArrayList<KeyValue>> rows;
+            
+            while ( (rows = scanner.nextRows().joinUninterruptibly()) != null) {
+                for (final ArrayList<KeyValue> row : rows) {
+                    for (final KeyValue kv : row) {
+                        maxIds.put(TsWebUtils.toString(kv.qualifier()), Long.valueOf(decodeId(kv.value())));
+                    }
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        
+        return maxIds;
+    }
+    
+    /**
+     * Reads reverse mappings for UIDs in {@code [fromId, toId]}.
+     */
+    private Map<String, Long> readNames(final UniqueId uniqueId, final long fromId, final long toId) throws Exception {
+        final Map<String, Long> idsByName = Maps.newHashMap();
+        final short width = uniqueId.width();
+        
+        final Scanner scanner = tsdb.client.newScanner(tsdb.uidTable());
+        scanner.setStartKey(encodeId(fromId, width));
+        if (toId + 1 < (1L << (8 * width))) {
+            scanner.setStopKey(encodeId(toId + 1, width));
+        }
+        scanner.setFamily(UID_NAME_FAMILY);
+        scanner.setQualifier(uniqueId.kind());
+        scanner.setMaxNumRows(maxNumRows);
+        
+        try {
+            ArrayList<ArrayList<KeyValue>> rows;
+            
+            while ( (rows = scanner.nextRows().joinUninterruptibly()) != null) {
+                for (final ArrayList<KeyValue> row : rows) {
+                    // Names (forward mappings) can sort between UIDs; skip them.
+                    if (row.get(0).key().length != width) {
+                        continue;
+                    }
+                    
+                    final long id = decodeId(row.get(0).key());
+                    for (final KeyValue kv : row) {
+                        idsByName.put(TsWebUtils.toString(kv.value()), Long.valueOf(id));
+                    }
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        
+        return idsByName;
+    }
+    
+    static long decodeId(final byte[] id) {
+        long value = 0;
+        for (final byte b : id) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+    
+    static byte[] encodeId(final long id, final short width) {
+        final byte[] b = new byte[width];
+        for (int i=width - 1; i>=0; i--) {
+            b[i] = (byte) (id >>> (8 * (width - 1 - i)));
+        }
+        return b;
+    }
+    
+    public void setTsdb(TSDB tsdb) {
+        this.tsdb = tsdb;
+    }
+    
+    public void setUidIndex(UidIndex uidIndex) {
+        this.uidIndex = uidIndex;
+    }
+    
+    public void setSuggestIndex(SuggestIndex suggestIndex) {
+        this.suggestIndex = suggestIndex;
+    }
+    
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        Preconditions.checkArgument(refreshIntervalSeconds > 0, "Refresh interval must be positive: %s", refreshIntervalSeconds);
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+    
+    public void setFullReloadIntervalSeconds(long fullReloadIntervalSeconds) {
+        Preconditions.checkArgument(fullReloadIntervalSeconds > 0, "Full reload interval must be positive: %s", fullReloadIntervalSeconds);
+        this.fullReloadIntervalSeconds = fullReloadIntervalSeconds;
+    }
+    
+    public void setMaxNumRows(int maxNumRows) {
+        this.maxNumRows = maxNumRows;
+    }
+}
@@ -16,10 +16,15 @@
 package net.opentsdb.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.contrib.tsquare.QueryCallback;
+import net.opentsdb.contrib.tsquare.QueryTimeoutException;
 import net.opentsdb.contrib.tsquare.Uid;
 import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.support.RegexPrefix;
 import net.opentsdb.contrib.tsquare.support.TsWebUtils;
 
 import org.hbase.async.Bytes;
@@ -28,14 +33,29 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
 
 /**
  * @author James Royalty (jroyalty) <i>[Jun 21, 2013]</i>
  */
 final class TsdbUidQuery implements UidQuery {
+    /** Rows of the UID table by name, in byte order, then columns by kind. */
+    static final String ORDER = "name,kind";
+    
+    /**
+     * Case insensitive prefixes are scanned once per spelling; beyond this many
+     * spellings only the start of the prefix is used.
+     */
+    private static final int MAX_PREFIX_VARIANTS = 16;
+    
     private String regex;
     private String includeKind;
+    private Uid startAfter;
     private int maxNumRows = 1024;
+    private long timeoutMillis = 0;
+    private final AtomicLong scannedRowCount = new AtomicLong();
     
     private final TSDB tsdb;
     private final byte[] columnFamily;
@@ -50,46 +70,177 @@ final class TsdbUidQuery implements UidQuery {
     
     @Override
     public void run(final QueryCallback<Uid> callback) throws HBaseException {
-        final Scanner scanner = tsdb.client.newScanner(tsdb.uidTable());
-        scanner.setFamily(columnFamily);
-        scanner.setKeyRegexp(regex, TsWebUtils.CHARSET);
-        
-        if (!Strings.isNullOrEmpty(includeKind)) {
-            scanner.setQualifier(includeKind);
+        try {
+            runAsync(callback).joinUninterruptibly();
+        } catch (HBaseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("UID query callback threw an exception.", e);
+        }
+    }
+    
+    @Override
+    public Deferred<Object> runAsync(final QueryCallback<Uid> callback) {
+        // Rows are sorted by name, and columns of a row by kind, so resuming means
+        // starting at the row of the last UID and skipping its kinds up to that one.
+        final byte[] resumeKey;
+        final byte[] resumeKind;
+        if (startAfter == null) {
+            resumeKey = null;
+            resumeKind = null;
+        } else {
+            resumeKey = TsWebUtils.toBytes(startAfter.getName());
+            resumeKind = TsWebUtils.toBytes(startAfter.getKind());
         }
         
-        if (maxNumRows > 0) {
-            scanner.setMaxNumRows(maxNumRows);
+        final List<byte[][]> ranges = keyRanges(resumeKey);
+        if (ranges.isEmpty()) {
+            return Deferred.fromResult(null);
         }
         
-        try {
-            ArrayList<ArrayList<KeyValue>> rows;
-
-            while ( (rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        final long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        
+        /**
+         * Handles one batch of rows of a key range, then asks for the next batch, or
+         * starts on the next range.  Returning the next Deferred chains it onto the result.
+         */
+        final class ScanCallback implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+            private final int range;
+            private final Scanner scanner;
+            
+            ScanCallback(final int range) {
+                this.range = range;
+                this.scanner = newScanner(ranges.get(range));
+            }
+            
+            Deferred<Object> start() {
+                return scanner.nextRows()
+                    .addCallback(this)
+                    .addErrback(new Callback<Object, Exception>() {
+                        @Override
+                        public Object call(final Exception e) {
+                            scanner.close();
+                            return e;
+                        }
+                    });
+            }
+            
+            @Override
+            public Object call(final ArrayList<ArrayList<KeyValue>> rows) throws Exception {
+                if (rows == null) {
+                    scanner.close();
+                    return (range + 1 < ranges.size()) ? new ScanCallback(range + 1).start() : null;
+                }
+                
+                if (System.currentTimeMillis() > deadline) {
+                    // The errback closes the scanner.
+                    return new QueryTimeoutException(timeoutMillis);
+                }
+                
+                scannedRowCount.addAndGet(rows.size());
+                
                 for (final ArrayList<KeyValue> row : rows) {
                     final String name = TsWebUtils.toString(row.get(0).key());
+                    final boolean resumeRow = (resumeKey != null && Bytes.equals(row.get(0).key(), resumeKey));
                     
                     for (final KeyValue kv : row) {
+                        if (resumeRow && Bytes.memcmp(kv.qualifier(), resumeKind) <= 0) {
+                            continue;
+                        }
+                        
                         if (Bytes.equals(kv.family(), columnFamily)) {
                             final String kind = TsWebUtils.toString(kv.qualifier());
                             Uid uid = new Uid(name, kind);
                             boolean keepScanning = callback.onResult(uid);
                             if (!keepScanning) {
-                                throw new QueryAbortedException();
+                                scanner.close();
+                                return null;
                             }
                         }
                     }
                 }
+                
+                return scanner.nextRows().addCallback(this);
+            }
+        }
+        
+        return new ScanCallback(0).start();
+    }
+    
+    private Scanner newScanner(final byte[][] range) {
+        final Scanner scanner = tsdb.client.newScanner(tsdb.uidTable());
+        scanner.setFamily(columnFamily);
+        scanner.setKeyRegexp(regex, TsWebUtils.CHARSET);
+        
+        if (range[0] != null) {
+            scanner.setStartKey(range[0]);
+        }
+        
+        if (range[1] != null) {
+            scanner.setStopKey(range[1]);
+        }
+        
+        if (!Strings.isNullOrEmpty(includeKind)) {
+            scanner.setQualifier(includeKind);
+        }
+        
+        if (maxNumRows > 0) {
+            scanner.setMaxNumRows(maxNumRows);
+        }
+        
+        return scanner;
+    }
+    
+    /**
+     * Row keys that can match the regex all start with its literal prefix (see
+     * {@link RegexPrefix}), so only the key ranges of its spellings are scanned
+     * rather than the whole table.
+     * 
+     * @param resumeKey if not {@code null}, keys before this one are left out.
+     * @return ranges to scan, in key order, as {start (inclusive), stop (exclusive)};
+     * {@code null} for the start or end of the table.
+     */
+    private List<byte[][]> keyRanges(final byte[] resumeKey) {
+        final List<byte[][]> ranges = Lists.newArrayList();
+        
+        for (final String variant : RegexPrefix.of(regex).getVariants(MAX_PREFIX_VARIANTS)) {
+            byte[] start = variant.isEmpty() ? null : TsWebUtils.toBytes(variant);
+            final byte[] stop = (start == null) ? null : stopKey(start);
+            
+            if (resumeKey != null) {
+                if (stop != null && Bytes.memcmp(stop, resumeKey) <= 0) {
+                    continue;
+                }
+                if (start == null || Bytes.memcmp(start, resumeKey) < 0) {
+                    start = resumeKey;
+                }
+            }
+            
+            ranges.add(new byte[][] { start, stop });
+        }
+        
+        return ranges;
+    }
+    
+    /**
+     * @return the first key that doesn't start with the given prefix; {@code null}
+     * if there is none.
+     */
+    private static byte[] stopKey(final byte[] prefix) {
+        for (int i=prefix.length - 1; i>=0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                final byte[] stop = Arrays.copyOf(prefix, i + 1);
+                stop[i]++;
+                return stop;
             }
-        } catch (QueryAbortedException e) {
-            return;
-        } catch (HBaseException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new IllegalStateException("UID query callback threw an exception.", e);
-        } finally {
-            scanner.close();
         }
+        
+        return null;
+    }
+    
+    @Override
+    public long getScannedRowCount() {
+        return scannedRowCount.get();
     }
     
     @Override
@@ -106,4 +257,19 @@ final class TsdbUidQuery implements UidQuery {
     public void includeKind(String kind) {
         this.includeKind = kind;
     }
+    
+    @Override
+    public void setStartAfter(Uid after) {
+        this.startAfter = after;
+    }
+    
+    @Override
+    public String getOrder() {
+        return ORDER;
+    }
+    
+    @Override
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
 }
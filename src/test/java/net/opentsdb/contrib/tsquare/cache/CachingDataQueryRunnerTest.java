@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.AggregatorFactory;
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.MetricParser;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.stumbleupon.async.Deferred;
+
+public class CachingDataQueryRunnerTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    /** Well outside of the mutable window, on an hour boundary. */
+    private static final long T0 = 383333L * HOUR;
+    
+    private FakeTsdb tsdb;
+    private CachingDataQueryRunner runner;
+    
+    @Before
+    public void setUp() {
+        tsdb = new FakeTsdb();
+        runner = new CachingDataQueryRunner();
+        runner.setTsdbManager(tsdb);
+        runner.setDelegate(tsdb);
+        runner.setBucketMillis(HOUR);
+        runner.afterPropertiesSet();
+    }
+    
+    @Test
+    public void testCachedMatchesUncachedAcrossSeams() throws Exception {
+        tsdb.add("01", ImmutableMap.of("host", "web01"), T0 + 3 * MINUTE, T0 + 5 * HOUR, 7 * MINUTE);
+        tsdb.add("02", ImmutableMap.of("host", "web02"), T0, T0 + 5 * HOUR, 11 * MINUTE);
+        final Metric metric = metric(ImmutableMap.of("host", "*"));
+        
+        // Cold: the four buckets are fetched with one query.
+        assertSameResults(tsdb.direct(metric, T0 + 25 * MINUTE, T0 + 3 * HOUR + 10 * MINUTE), 
+                run(metric, T0 + 25 * MINUTE, T0 + 3 * HOUR + 10 * MINUTE));
+        assertEquals(1, tsdb.queries);
+        
+        // Warm: all from the cache.
+        assertSameResults(tsdb.direct(metric, T0 + 25 * MINUTE, T0 + 3 * HOUR + 10 * MINUTE), 
+                run(metric, T0 + 25 * MINUTE, T0 + 3 * HOUR + 10 * MINUTE));
+        assertEquals(1, tsdb.queries);
+        
+        // Partly cached, with a seam between cached and fetched points.
+        assertSameResults(tsdb.direct(metric, T0 + 2 * HOUR + 30 * MINUTE, T0 + 4 * HOUR + 50 * MINUTE), 
+                run(metric, T0 + 2 * HOUR + 30 * MINUTE, T0 + 4 * HOUR + 50 * MINUTE));
+        assertEquals(2, tsdb.queries);
+        assertEquals(T0 + 4 * HOUR, tsdb.lastStartMillis);
+    }
+    
+    @Test
+    public void testAggregateIsRunUncached() throws Exception {
+        // Both series are in group host=web01, but each bucket only has one of them.
+        tsdb.add("01", ImmutableMap.of("host", "web01", "cpu", "0"), T0, T0 + HOUR - 1, 10 * MINUTE);
+        tsdb.add("01", ImmutableMap.of("host", "web01", "cpu", "0"), T0 + 2 * HOUR, T0 + 3 * HOUR - 1, 10 * MINUTE);
+        tsdb.add("02", ImmutableMap.of("host", "web01", "cpu", "1"), T0 + HOUR + 5 * MINUTE, T0 + 2 * HOUR - 1, 10 * MINUTE);
+        final Metric metric = metric(ImmutableMap.of("host", "*"));
+        
+        run(metric, T0 + HOUR, T0 + 2 * HOUR - 1);
+        assertEquals(1, tsdb.queries);
+        
+        // TSDB interpolates series 01 across the hour in which only 02 has points.
+        final DataPoints[] expected = tsdb.direct(metric, T0, T0 + 3 * HOUR - 1);
+        final DataPoints[] actual = run(metric, T0, T0 + 3 * HOUR - 1);
+        assertSameResults(expected, actual);
+        assertEquals(ImmutableMap.of("host", "web01"), actual[0].getTags());
+        assertEquals(ImmutableSet.of("cpu"), ImmutableSet.copyOf(actual[0].getAggregatedTags()));
+        assertEquals(T0, tsdb.lastStartMillis);
+        
+        // From now on the metric isn't cached at all.
+        final int queries = tsdb.queries;
+        run(metric, T0, T0 + 3 * HOUR - 1);
+        assertEquals(queries + 1, tsdb.queries);
+        assertEquals(T0, tsdb.lastStartMillis);
+        assertEquals(T0 + 3 * HOUR - 1, tsdb.lastEndMillis);
+    }
+    
+    @Test
+    public void testDownsampledIsNotCached() throws Exception {
+        tsdb.add("01", ImmutableMap.of("host", "web01"), T0, T0 + 3 * HOUR, MINUTE);
+        final Metric metric = metric(ImmutableMap.of("host", "*"))
+                .setDownsampler(Aggregators.AVG)
+                .setDownsampleIntervalSeconds(600);
+        
+        for (int i=1; i<=2; i++) {
+            run(metric, T0 + 5 * MINUTE, T0 + 2 * HOUR);
+            assertEquals(i, tsdb.queries);
+            assertEquals(T0 + 5 * MINUTE, tsdb.lastStartMillis);
+            assertEquals(T0 + 2 * HOUR, tsdb.lastEndMillis);
+        }
+    }
+    
+    private static Metric metric(final Map<String, String> tags) {
+        return new Metric("sum:sys.cpu", "sys.cpu", Aggregators.SUM).setTags(tags);
+    }
+    
+    private DataPoints[] run(final Metric metric, final long startMillis, final long endMillis) throws Exception {
+        return runner.run(new AnnotatedDataQuery(metric, newQuery(startMillis, endMillis))).join();
+    }
+    
+    static Query newQuery(final long startMillis, final long endMillis) {
+        final long[] range = { startMillis, endMillis };
+        return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[] { Query.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final String name = method.getName();
+                if (name.equals("setStartTime")) {
+                    range[0] = (Long) args[0];
+                } else if (name.equals("setEndTime")) {
+                    range[1] = (Long) args[0];
+                } else if (name.equals("getStartTime")) {
+                    return range[0];
+                } else if (name.equals("getEndTime")) {
+                    return range[1];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                return null;
+            }
+        });
+    }
+    
+    private static void assertSameResults(final DataPoints[] expected, final DataPoints[] actual) {
+        assertEquals(expected.length, actual.length);
+        
+        final Map<Map<String, String>, DataPoints> actualByTags = Maps.newHashMap();
+        for (final DataPoints series : actual) {
+            actualByTags.put(series.getTags(), series);
+        }
+        
+        for (final DataPoints series : expected) {
+            final DataPoints other = actualByTags.get(series.getTags());
+            assertNotNull("No series for " + series.getTags(), other);
+            assertEquals(series.metricName(), other.metricName());
+            assertEquals(ImmutableSet.copyOf(series.getAggregatedTags()), ImmutableSet.copyOf(other.getAggregatedTags()));
+            assertEquals(series.size(), other.size());
+            
+            final SeekableView it = other.iterator();
+            for (final DataPoint p : series) {
+                assertTrue(it.hasNext());
+                final DataPoint q = it.next();
+                assertEquals(p.timestamp(), q.timestamp());
+                assertEquals(p.longValue(), q.longValue());
+            }
+            assertFalse(it.hasNext());
+        }
+    }
+    
+    /**
+     * Stands in for TSDB: groups the series on the group-by tags of the metric
+     * (other tag filters are ignored) and sums the series in a group, linearly
+     * interpolating each one between its points within the queried range.
+     */
+    private static final class FakeTsdb implements TsdbManager, DataQueryRunner {
+        private final Map<String, Map<String, String>> tagsByTsuid = Maps.newTreeMap();
+        private final Map<String, MaterializedDataPoints.Builder> pointsByTsuid = Maps.newTreeMap();
+        
+        int queries = 0;
+        long lastStartMillis;
+        long lastEndMillis;
+        
+        void add(final String tsuid, final Map<String, String> tags, final long startMillis, final long endMillis, final long stepMillis) {
+            MaterializedDataPoints.Builder builder = pointsByTsuid.get(tsuid);
+            if (builder == null) {
+                builder = MaterializedDataPoints.builder("sys.cpu", tags).addTsuids(ImmutableSet.of(tsuid));
+                tagsByTsuid.put(tsuid, tags);
+                pointsByTsuid.put(tsuid, builder);
+            }
+            
+            for (long t = startMillis; t <= endMillis; t += stepMillis) {
+                builder.add(t, (t - T0) / MINUTE);
+            }
+        }
+        
+        DataPoints[] direct(final Metric metric, final long startMillis, final long endMillis) {
+            return compute(metric, startMillis, endMillis);
+        }
+        
+        @Override
+        public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+            queries++;
+            lastStartMillis = dataQuery.getQuery().getStartTime();
+            lastEndMillis = dataQuery.getQuery().getEndTime();
+            return Deferred.fromResult(compute(dataQuery.getMetric(), lastStartMillis, lastEndMillis));
+        }
+        
+        private DataPoints[] compute(final Metric metric, final long startMillis, final long endMillis) {
+            final Map<List<String>, List<MaterializedDataPoints>> groups = Maps.newTreeMap(new java.util.Comparator<List<String>>() {
+                @Override
+                public int compare(final List<String> a, final List<String> b) {
+                    return a.toString().compareTo(b.toString());
+                }
+            });
+            
+            for (final String tsuid : pointsByTsuid.keySet()) {
+                final MaterializedDataPoints span = pointsByTsuid.get(tsuid).build().slice(startMillis, endMillis);
+                if (span.size() == 0) {
+                    continue;
+                }
+                
+                final List<String> key = Lists.newArrayList();
+                for (final Map.Entry<String, String> tag : metric.getTags().entrySet()) {
+                    if (tag.getValue().equals("*")) {
+                        key.add(tagsByTsuid.get(tsuid).get(tag.getKey()));
+                    }
+                }
+                
+                List<MaterializedDataPoints> group = groups.get(key);
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    groups.put(key, group);
+                }
+                group.add(span);
+            }
+            
+            final List<DataPoints> results = Lists.newArrayList();
+            for (final List<MaterializedDataPoints> spans : groups.values()) {
+                results.add(sum(spans));
+            }
+            return results.toArray(new DataPoints[results.size()]);
+        }
+        
+        private static MaterializedDataPoints sum(final List<MaterializedDataPoints> spans) {
+            final Map<String, String> tags = Maps.newHashMap(spans.get(0).getTags());
+            final Set<String> aggregatedTags = Sets.newTreeSet();
+            final Set<Long> timestamps = Sets.newTreeSet();
+            final List<String> tsuids = Lists.newArrayList();
+            
+            for (final MaterializedDataPoints span : spans) {
+                tsuids.addAll(span.getTSUIDs());
+                for (final String tagName : ImmutableSet.copyOf(tags.keySet())) {
+                    if (!tags.get(tagName).equals(span.getTags().get(tagName))) {
+                        tags.remove(tagName);
+                        aggregatedTags.add(tagName);
+                    }
+                }
+                for (int i=0; i<span.size(); i++) {
+                    timestamps.add(span.timestamp(i));
+                }
+            }
+            
+            final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder("sys.cpu", tags)
+                    .addAggregatedTags(aggregatedTags)
+                    .addTsuids(tsuids);
+            
+            for (final long t : timestamps) {
+                long value = 0;
+                for (final MaterializedDataPoints span : spans) {
+                    final int i = span.indexOf(t);
+                    if (i < span.size() && span.timestamp(i) == t) {
+                        value += span.longValue(i);
+                    } else if (i > 0 && i < span.size()) {
+                        final long x0 = span.timestamp(i - 1);
+                        final long y0 = span.longValue(i - 1);
+                        value += y0 + (span.longValue(i) - y0) * (t - x0) / (span.timestamp(i) - x0);
+                    }
+                }
+                builder.add(t, value);
+            }
+            
+            return builder.build();
+        }
+        
+        @Override
+        public Query newMetricsQuery() {
+            return newQuery(0, 0);
+        }
+        
+        @Override
+        public AggregatorFactory getAggregatorFactory() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public MetricParser newMetricParser() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public UidQuery newUidQuery() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public ImmutableSet<String> getKnownUidKinds() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
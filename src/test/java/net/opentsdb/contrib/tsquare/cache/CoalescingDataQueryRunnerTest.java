@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.AggregatorFactory;
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.MetricParser;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.contrib.tsquare.UidQuery;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Deferred;
+
+public class CoalescingDataQueryRunnerTest {
+    private static final Metric METRIC = new Metric("sum:sys.cpu", "sys.cpu", Aggregators.SUM)
+            .setTags(ImmutableMap.of("host", "*"));
+    
+    private FakeDelegate delegate;
+    private CoalescingDataQueryRunner runner;
+    
+    @Before
+    public void setUp() {
+        delegate = new FakeDelegate();
+        runner = new CoalescingDataQueryRunner();
+        runner.setDelegate(delegate);
+        runner.setTsdbManager(delegate);
+    }
+    
+    @Test
+    public void testIdenticalQueriesShareExecution() throws Exception {
+        final Deferred<DataPoints[]> first = run(METRIC, 10000, 20000);
+        final Deferred<DataPoints[]> second = run(METRIC, 10000, 20000);
+        assertEquals(1, delegate.started.size());
+        assertEquals(1, runner.getInFlightCount());
+        
+        delegate.finish(0, series("web01", 10000, 20000, 1000));
+        assertEquals(11, first.join()[0].size());
+        assertEquals(11, second.join()[0].size());
+        assertEquals(1, runner.getExecutedCount());
+        assertEquals(1, runner.getCoalescedCount());
+        assertEquals(0, runner.getInFlightCount());
+        
+        // Landed; the next one runs again.
+        run(METRIC, 10000, 20000);
+        assertEquals(2, delegate.started.size());
+    }
+    
+    @Test
+    public void testDifferentQueriesRunSeparately() throws Exception {
+        run(METRIC, 10000, 20000);
+        run(METRIC, 10000, 21000);
+        run(new Metric("sum:sys.mem", "sys.mem", Aggregators.SUM), 10000, 20000);
+        assertEquals(3, delegate.started.size());
+        assertEquals(0, runner.getCoalescedCount());
+    }
+    
+    @Test
+    public void testSingleExactWaiterGetsResultAsIs() throws Exception {
+        final Deferred<DataPoints[]> result = run(METRIC, 10000, 20000);
+        
+        // Not re-written when the range is already aligned.
+        assertEquals(10000, delegate.started.get(0).getQuery().getStartTime());
+        
+        final DataPoints[] series = series("web01", 10000, 20000, 1000);
+        delegate.finish(0, series);
+        assertSame(series, result.join());
+    }
+    
+    @Test
+    public void testAlignedAndClippedPerWaiter() throws Exception {
+        runner.setAlignMillis(10000);
+        
+        final Deferred<DataPoints[]> first = run(METRIC, 12000, 95000);
+        final Deferred<DataPoints[]> second = run(METRIC, 15000, 99000);
+        assertEquals(1, delegate.started.size());
+        
+        final AnnotatedDataQuery aligned = delegate.started.get(0);
+        assertEquals(10000, aligned.getQuery().getStartTime());
+        assertEquals(100000, aligned.getQuery().getEndTime());
+        assertSame(METRIC, aligned.getMetric());
+        
+        final List<DataPoints> series = Lists.newArrayList();
+        Collections.addAll(series, series("web01", 10000, 100000, 1000));
+        // Only has points before the second query's range.
+        Collections.addAll(series, series("web02", 10000, 14000, 1000));
+        delegate.finish(0, series.toArray(new DataPoints[series.size()]));
+        
+        final DataPoints[] firstResult = first.join();
+        assertEquals(2, firstResult.length);
+        assertRange(firstResult[0], 12000, 95000);
+        assertRange(firstResult[1], 12000, 14000);
+        
+        final DataPoints[] secondResult = second.join();
+        assertEquals(1, secondResult.length);
+        assertEquals("web01", secondResult[0].getTags().get("host"));
+        assertRange(secondResult[0], 15000, 99000);
+    }
+    
+    @Test
+    public void testSingleAlignedWaiterIsClipped() throws Exception {
+        runner.setAlignMillis(10000);
+        
+        final Deferred<DataPoints[]> result = run(METRIC, 12000, 95000);
+        delegate.finish(0, series("web01", 10000, 100000, 1000));
+        assertRange(result.join()[0], 12000, 95000);
+    }
+    
+    @Test
+    public void testFailureReachesAllWaiters() throws Exception {
+        final Deferred<DataPoints[]> first = run(METRIC, 10000, 20000);
+        final Deferred<DataPoints[]> second = run(METRIC, 10000, 20000);
+        
+        final IllegalStateException failure = new IllegalStateException("Scan failed");
+        delegate.results.get(0).callback(failure);
+        
+        assertFails(failure, first);
+        assertFails(failure, second);
+        assertEquals(0, runner.getInFlightCount());
+    }
+    
+    @Test
+    public void testDelegateThrows() throws Exception {
+        delegate.fail = new IllegalArgumentException("Bad query");
+        final Deferred<DataPoints[]> result = run(METRIC, 10000, 20000);
+        
+        assertFails(delegate.fail, result);
+        assertEquals(0, runner.getInFlightCount());
+    }
+    
+    private Deferred<DataPoints[]> run(final Metric metric, final long startMillis, final long endMillis) {
+        return runner.run(new AnnotatedDataQuery(metric, CachingDataQueryRunnerTest.newQuery(startMillis, endMillis)));
+    }
+    
+    private static DataPoints[] series(final String host, final long startMillis, final long endMillis, final long stepMillis) {
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder("sys.cpu", ImmutableMap.of("host", host))
+                .addTsuids(ImmutableSet.of(host));
+        for (long t = startMillis; t <= endMillis; t += stepMillis) {
+            builder.add(t, t / 1000);
+        }
+        return new DataPoints[] { builder.build() };
+    }
+    
+    private static void assertRange(final DataPoints series, final long startMillis, final long endMillis) {
+        assertEquals(startMillis, series.timestamp(0));
+        assertEquals(endMillis, series.timestamp(series.size() - 1));
+        assertEquals((endMillis - startMillis) / 1000 + 1, series.size());
+    }
+    
+    private static void assertFails(final Exception expected, final Deferred<DataPoints[]> result) {
+        try {
+            result.join();
+            fail("Expected " + expected);
+        } catch (Exception e) {
+            assertSame(expected, e);
+        }
+    }
+    
+    /**
+     * Keeps queries running until they are finished by the test.
+     */
+    private static final class FakeDelegate implements DataQueryRunner, TsdbManager {
+        private final List<AnnotatedDataQuery> started = Lists.newArrayList();
+        private final List<Deferred<DataPoints[]>> results = Lists.newArrayList();
+        private RuntimeException fail;
+        
+        @Override
+        public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+            if (fail != null) {
+                throw fail;
+            }
+            
+            final Deferred<DataPoints[]> result = new Deferred<DataPoints[]>();
+            started.add(dataQuery);
+            results.add(result);
+            return result;
+        }
+        
+        void finish(final int index, final DataPoints[] series) {
+            results.get(index).callback(series);
+        }
+        
+        @Override
+        public Query newMetricsQuery() {
+            return CachingDataQueryRunnerTest.newQuery(0, 0);
+        }
+        
+        @Override
+        public AggregatorFactory getAggregatorFactory() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public MetricParser newMetricParser() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public UidQuery newUidQuery() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public ImmutableSet<String> getKnownUidKinds() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.rollup.RollupBuckets;
+import net.opentsdb.contrib.tsquare.rollup.RollupStore;
+import net.opentsdb.contrib.tsquare.rollup.RollupTier;
+import net.opentsdb.contrib.tsquare.web.AnnotatedDataQuery;
+import net.opentsdb.contrib.tsquare.web.DataQueryRunner;
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoints;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.stumbleupon.async.Deferred;
+
+public class RollupDataQueryRunnerTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    
+    private final Map<String, String> web01 = ImmutableMap.of("host", "web01", "dc", "east");
+    private final Map<String, String> web02 = ImmutableMap.of("host", "web02", "dc", "east");
+    
+    private long nowMillis;
+    private long baseMillis;
+    private int delegated = 0;
+    private RollupStore store;
+    private RollupDataQueryRunner runner;
+    
+    @Before
+    public void setUp() {
+        nowMillis = System.currentTimeMillis();
+        baseMillis = nowMillis - (nowMillis % HOUR) - 6 * HOUR;
+        
+        // Minutes are only kept for the last 2 hours.
+        store = new RollupStore();
+        store.setTiers(Arrays.asList(
+                new RollupTier(TimeUnit.MINUTES.toSeconds(1), TimeUnit.HOURS.toSeconds(2)),
+                new RollupTier(TimeUnit.HOURS.toSeconds(1), TimeUnit.DAYS.toSeconds(180))));
+        
+        // web01 alternates between 1 and 2 every minute; web02 is always 3.
+        final RollupBuckets.Builder first = new RollupBuckets.Builder();
+        final RollupBuckets.Builder second = new RollupBuckets.Builder();
+        final long untilMillis = nowMillis - (nowMillis % MINUTE);
+        for (long t = baseMillis; t < untilMillis; t += MINUTE) {
+            first.add(t, ((t / MINUTE) % 2 == 0) ? 1 : 2);
+            second.add(t, 3);
+        }
+        
+        final Map<Map<String, String>, RollupBuckets> buckets = Maps.newHashMap();
+        buckets.put(web01, first.build());
+        buckets.put(web02, second.build());
+        store.ingest("sys.cpu", buckets, baseMillis, untilMillis, nowMillis);
+        
+        runner = new RollupDataQueryRunner();
+        runner.setRollupStore(store);
+        runner.setDelegate(new DataQueryRunner() {
+            @Override
+            public Deferred<DataPoints[]> run(final AnnotatedDataQuery dataQuery) {
+                delegated++;
+                return Deferred.fromResult(new DataPoints[0]);
+            }
+        });
+    }
+    
+    @Test
+    public void testGroupsFromHourTier() throws Exception {
+        final Metric metric = metric(Aggregators.SUM, Aggregators.AVG, 3600).setTags(ImmutableMap.of("host", "*"));
+        final DataPoints[] result = run(metric, baseMillis, nowMillis);
+        
+        assertEquals(0, delegated);
+        assertEquals(1, runner.getServedCount());
+        assertEquals(2, result.length);
+        
+        for (final DataPoints series : result) {
+            final double expected = series.getTags().get("host").equals("web01") ? 1.5 : 3;
+            assertEquals(ImmutableMap.of("host", series.getTags().get("host"), "dc", "east"), series.getTags());
+            assertEquals(baseMillis, series.timestamp(0));
+            for (int i=0; i<6; i++) {
+                assertEquals(baseMillis + i * HOUR, series.timestamp(i));
+                assertEquals(expected, series.doubleValue(i), 0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testAggregatesSeries() throws Exception {
+        final DataPoints[] result = run(metric(Aggregators.SUM, Aggregators.MAX, 3600), baseMillis, nowMillis);
+        
+        assertEquals(1, result.length);
+        assertEquals(ImmutableMap.of("dc", "east"), result[0].getTags());
+        assertEquals(Arrays.asList("host"), result[0].getAggregatedTags());
+        for (int i=0; i<6; i++) {
+            assertEquals(5, result[0].doubleValue(i), 0.0);
+        }
+    }
+    
+    @Test
+    public void testFilters() throws Exception {
+        final Metric metric = metric(Aggregators.MAX, Aggregators.MIN, 3600).setTags(ImmutableMap.of("host", "web02|web03"));
+        final DataPoints[] result = run(metric, baseMillis, nowMillis);
+        
+        assertEquals(1, result.length);
+        assertEquals(web02, result[0].getTags());
+        assertEquals(3, result[0].doubleValue(0), 0.0);
+        
+        assertEquals(0, run(metric.copy().setTags(ImmutableMap.of("host", "web03")), baseMillis, nowMillis).length);
+        assertEquals(0, delegated);
+    }
+    
+    @Test
+    public void testMinuteTier() throws Exception {
+        // Intervals that aren't whole hours need the minute tier, which only has the last 2 hours.
+        final Metric metric = metric(Aggregators.SUM, Aggregators.MIN, 300);
+        run(metric, baseMillis, nowMillis);
+        assertEquals(1, delegated);
+        
+        final long startMillis = nowMillis - HOUR;
+        final DataPoints[] result = run(metric, startMillis, nowMillis);
+        assertEquals(1, delegated);
+        assertEquals(1, result.length);
+        assertEquals(startMillis - (startMillis % (5 * MINUTE)), result[0].timestamp(0));
+        assertEquals(5 * MINUTE, result[0].timestamp(1) - result[0].timestamp(0));
+        assertEquals(4, result[0].doubleValue(0), 0.0);
+    }
+    
+    @Test
+    public void testDelegated() throws Exception {
+        run(new Metric("sum:sys.cpu", "sys.cpu", Aggregators.SUM), baseMillis, nowMillis);
+        run(metric(Aggregators.SUM, Aggregators.AVG, 3600).setRate(true), baseMillis, nowMillis);
+        run(metric(Aggregators.SUM, Aggregators.DEV, 3600), baseMillis, nowMillis);
+        run(new Metric("sum:sys.mem", "sys.mem", Aggregators.SUM).setDownsampler(Aggregators.AVG).setDownsampleIntervalSeconds(3600), 
+                baseMillis, nowMillis);
+        assertEquals(4, delegated);
+        assertEquals(4, runner.getDelegatedCount());
+        assertEquals(0, runner.getServedCount());
+    }
+    
+    @Test
+    public void testStaleRollupsDelegated() throws Exception {
+        runner.setMaxStalenessMillis(0);
+        run(metric(Aggregators.SUM, Aggregators.AVG, 3600), baseMillis, nowMillis + MINUTE);
+        assertEquals(1, delegated);
+        
+        // Ends before the latest rolled up point.
+        assertTrue(run(metric(Aggregators.SUM, Aggregators.AVG, 3600), baseMillis, baseMillis + 2 * HOUR).length > 0);
+        assertEquals(1, delegated);
+    }
+    
+    private static Metric metric(final Aggregator aggregator, final Aggregator downsampler, final int intervalSeconds) {
+        return new Metric("sys.cpu", "sys.cpu", aggregator)
+                .setDownsampler(downsampler)
+                .setDownsampleIntervalSeconds(intervalSeconds);
+    }
+    
+    private DataPoints[] run(final Metric metric, final long startMillis, final long endMillis) throws Exception {
+        return runner.run(new AnnotatedDataQuery(metric, CachingDataQueryRunnerTest.newQuery(startMillis, endMillis))).join();
+    }
+}
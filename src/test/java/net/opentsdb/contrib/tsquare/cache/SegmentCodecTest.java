@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class SegmentCodecTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        final MaterializedDataPoints mixed = MaterializedDataPoints.builder("sys.cpu.user", ImmutableMap.of("host", "web01", "dc", "east"))
+                .addAggregatedTags(Arrays.asList("cpu"))
+                .addTsuids(Arrays.asList("000001000001000001", "000001000001000002"))
+                .add(1000, 1L)
+                .add(2000, 2.5)
+                .add(3000, Double.NaN)
+                .add(4000, -7L)
+                .add(4500, Long.MAX_VALUE)
+                .add(60000, -0.0)
+                .add(60001, Double.MAX_VALUE)
+                .add(60002, 3L)
+                .build();
+        final MaterializedDataPoints empty = MaterializedDataPoints.builder("sys.cpu.idle", Collections.<String, String> emptyMap()).build();
+        final MaterializedDataPoints[] series = { mixed, empty };
+        
+        final ByteBuffer buffer = ByteBuffer.wrap(SegmentCodec.encode("key", series));
+        assertEquals("key", SegmentCodec.readKey(buffer));
+        
+        final MaterializedDataPoints[] decoded = SegmentCodec.decode(buffer);
+        assertEquals(2, decoded.length);
+        assertSame(mixed, decoded[0]);
+        assertSame(empty, decoded[1]);
+        
+        final DataPoints[] opened = SegmentCodec.open(buffer);
+        assertEquals(2, opened.length);
+        assertSame(mixed, opened[0]);
+        assertSame(empty, opened[1]);
+    }
+    
+    @Test
+    public void testSeek() throws Exception {
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap());
+        for (int i=0; i<100; i++) {
+            builder.add(i * 1000L, (long) i);
+        }
+        
+        final DataPoints series = SegmentCodec.open(ByteBuffer.wrap(SegmentCodec.encode("key", new MaterializedDataPoints[] { builder.build() })))[0];
+        final SeekableView it = series.iterator();
+        
+        it.seek(41500);
+        assertEquals(42000, it.next().timestamp());
+        it.seek(10000);
+        assertEquals(10000, it.next().timestamp());
+        it.seek(200000);
+        assertFalse(it.hasNext());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotASegment() {
+        SegmentCodec.readKey(ByteBuffer.wrap(new byte[16]));
+    }
+    
+    private static void assertSame(final MaterializedDataPoints expected, final DataPoints actual) {
+        assertEquals(expected.metricName(), actual.metricName());
+        assertEquals(expected.getTags(), actual.getTags());
+        assertEquals(expected.getAggregatedTags(), actual.getAggregatedTags());
+        assertEquals(expected.getTSUIDs(), actual.getTSUIDs());
+        assertEquals(expected.size(), actual.size());
+        
+        final SeekableView it = actual.iterator();
+        for (int i=0; i<expected.size(); i++) {
+            assertTrue(it.hasNext());
+            final DataPoint p = it.next();
+            
+            assertEquals(expected.timestamp(i), p.timestamp());
+            assertEquals(expected.isInteger(i), p.isInteger());
+            if (p.isInteger()) {
+                assertEquals(expected.longValue(i), p.longValue());
+            } else {
+                // Bit for bit, so that NaN and -0.0 count.
+                assertEquals(Double.doubleToRawLongBits(expected.doubleValue(i)), Double.doubleToRawLongBits(p.doubleValue()));
+            }
+        }
+        assertFalse(it.hasNext());
+    }
+}
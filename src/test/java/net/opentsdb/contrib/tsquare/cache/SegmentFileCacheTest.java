@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoints;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class SegmentFileCacheTest {
+    private File directory;
+    private SegmentFileCache cache;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        cache = newCache(Long.MAX_VALUE);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        cache.destroy();
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void testPutAndGet() throws Exception {
+        assertNull(cache.get("a"));
+        
+        put(cache, "a", 1000);
+        final DataPoints[] series = cache.get("a");
+        assertNotNull(series);
+        assertEquals(1, series.length);
+        assertEquals("m", series[0].metricName());
+        assertEquals(1000, series[0].iterator().next().timestamp());
+        
+        assertEquals(Long.valueOf(1), cache.getStats().get("hits"));
+        assertEquals(Long.valueOf(1), cache.getStats().get("misses"));
+    }
+    
+    @Test
+    public void testIndexedOnStartup() throws Exception {
+        put(cache, "a", 1000);
+        put(cache, "b", 2000);
+        cache.destroy();
+        
+        // Left over from an interrupted write.
+        final File partial = new File(directory, SegmentFileCache.fileNameOf("c") + ".tmp");
+        Files.write(new byte[] { 1, 2, 3 }, partial);
+        
+        cache = newCache(Long.MAX_VALUE);
+        assertEquals(Integer.valueOf(2), cache.getStats().get("segments"));
+        assertFalse(partial.exists());
+        assertEquals(2000, cache.get("b")[0].iterator().next().timestamp());
+        assertEquals(1000, cache.get("a")[0].iterator().next().timestamp());
+    }
+    
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final long size = segmentSize("a", 1000);
+        cache.setMaxBytes(size * 2);
+        
+        put(cache, "a", 1000);
+        put(cache, "b", 2000);
+        assertNotNull(cache.get("a"));
+        put(cache, "c", 3000);
+        
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(Long.valueOf(1), cache.getStats().get("evictions"));
+        assertEquals(Long.valueOf(size * 2), cache.getStats().get("bytes"));
+        assertFalse(new File(directory, SegmentFileCache.fileNameOf("b")).exists());
+    }
+    
+    @Test
+    public void testEvictsLeastRecentlyUsedOnStartup() throws Exception {
+        final long size = segmentSize("a", 1000);
+        put(cache, "a", 1000);
+        put(cache, "b", 2000);
+        put(cache, "c", 3000);
+        cache.destroy();
+        
+        // Recency is kept in modification times.
+        final long now = System.currentTimeMillis();
+        new File(directory, SegmentFileCache.fileNameOf("a")).setLastModified(now - 1000);
+        new File(directory, SegmentFileCache.fileNameOf("b")).setLastModified(now - 3000);
+        new File(directory, SegmentFileCache.fileNameOf("c")).setLastModified(now - 2000);
+        
+        cache = newCache(size * 2);
+        assertEquals(Integer.valueOf(2), cache.getStats().get("segments"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+    
+    @Test
+    public void testHashCollision() throws Exception {
+        put(cache, "a", 1000);
+        cache.destroy();
+        
+        // As if "b" hashed to the same file name as "a".
+        Files.copy(new File(directory, SegmentFileCache.fileNameOf("a")), new File(directory, SegmentFileCache.fileNameOf("b")));
+        
+        cache = newCache(Long.MAX_VALUE);
+        assertNull(cache.get("b"));
+        assertEquals(Long.valueOf(1), cache.getStats().get("misses"));
+        assertNotNull(cache.get("a"));
+    }
+    
+    @Test
+    public void testUnreadableSegmentIsDiscarded() throws Exception {
+        put(cache, "a", 1000);
+        cache.destroy();
+        
+        final File file = new File(directory, SegmentFileCache.fileNameOf("a"));
+        Files.write(new byte[] { 1, 2, 3 }, file);
+        
+        cache = newCache(Long.MAX_VALUE);
+        assertNull(cache.get("a"));
+        assertFalse(file.exists());
+        assertEquals(Integer.valueOf(0), cache.getStats().get("segments"));
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testDirectoryRequired() throws Exception {
+        new SegmentFileCache().afterPropertiesSet();
+    }
+    
+    private SegmentFileCache newCache(final long maxBytes) throws IOException {
+        final SegmentFileCache newCache = new SegmentFileCache();
+        newCache.setDirectory(directory);
+        newCache.setMaxBytes(maxBytes);
+        newCache.afterPropertiesSet();
+        return newCache;
+    }
+    
+    private static MaterializedDataPoints[] series(final long timestamp) {
+        return new MaterializedDataPoints[] {
+            MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap()).add(timestamp, 1L).build()
+        };
+    }
+    
+    private static long segmentSize(final String key, final long timestamp) throws IOException {
+        return SegmentCodec.encode(key, series(timestamp)).length;
+    }
+    
+    /**
+     * Puts a segment and waits for it to be written in the background.
+     */
+    private static void put(final SegmentFileCache cache, final String key, final long timestamp) throws InterruptedException {
+        final long writes = (Long) cache.getStats().get("writes");
+        cache.put(key, series(timestamp));
+        
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((Long) cache.getStats().get("writes") == writes) {
+            assertTrue("Segment not written in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class SeriesFunctionsTest {
+    private final TargetParser parser = new TargetParser(new TargetParserTest.RawMetricParser(), SeriesFunctions.defaults());
+    private final Map<String, DataPoints> series = Maps.newHashMap();
+    
+    @Test
+    public void testSummarize() {
+        put("a", 10000, 1, 20000, 2, 70000, 4, 130000, 8, 150000, 16);
+        
+        assertPoints(eval("summarize(a, \"1min\")"), 0, 3, 60000, 4, 120000, 24);
+        assertPoints(eval("summarize(a, \"1min\", \"avg\")"), 0, 1.5, 60000, 4, 120000, 12);
+        assertPoints(eval("summarize(a, \"1min\", \"max\")"), 0, 2, 60000, 4, 120000, 16);
+        assertPoints(eval("summarize(a, \"1min\", \"last\")"), 0, 2, 60000, 4, 120000, 16);
+        // Buckets start at the first point.
+        assertPoints(eval("summarize(a, \"1min\", \"sum\", true)"), 10000, 3, 70000, 4, 130000, 24);
+        assertEquals("summarize(a, \"1min\", \"avg\")", eval("summarize(a, \"1min\", \"avg\")").metricName());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testSummarizeUnknownFunction() {
+        put("a", 10000, 1);
+        eval("summarize(a, \"1min\", \"median\")");
+    }
+    
+    @Test
+    public void testDerivative() {
+        put("a", 10000, 1, 20000, 2, 70000, 4, 130000, 8, 150000, 16);
+        assertPoints(eval("derivative(a)"), 20000, 1, 70000, 2, 130000, 4, 150000, 8);
+        
+        put("counter", 0, 5, 10000, 7, 20000, 2, 30000, 3);
+        assertPoints(eval("derivative(counter)"), 10000, 2, 20000, -5, 30000, 1);
+        // A reset is left out, unless it's a wrap below the max value.
+        assertPoints(eval("nonNegativeDerivative(counter)"), 10000, 2, 30000, 1);
+        assertPoints(eval("nonNegativeDerivative(counter, 10)"), 10000, 2, 20000, 6, 30000, 1);
+    }
+    
+    @Test
+    public void testMovingAverage() {
+        put("a", 10000, 1, 20000, 2, 70000, 4, 130000, 8, 150000, 16);
+        
+        assertPoints(eval("movingAverage(a, 2)"), 10000, 1, 20000, 1.5, 70000, 3, 130000, 6, 150000, 12);
+        // The window is (t - 1min, t].
+        assertPoints(eval("movingAverage(a, \"1min\")"), 10000, 1, 20000, 1.5, 70000, 3, 130000, 8, 150000, 12);
+        assertEquals("movingAverage(a,\"1min\")", eval("movingAverage(a, \"1min\")").metricName());
+    }
+    
+    @Test
+    public void testCombineMismatchedTimestamps() {
+        put("a", 0, 0, 20000, 20);
+        put("b", 10000, 100, 30000, 300);
+        
+        // Each series is interpolated between its points, and left out before and after them.
+        assertPoints(eval("sumSeries(a, b)"), 0, 0, 10000, 110, 20000, 220, 30000, 300);
+        assertPoints(eval("averageSeries(a, b)"), 0, 0, 10000, 55, 20000, 110, 30000, 300);
+        assertPoints(eval("maxSeries(a, b)"), 0, 0, 10000, 100, 20000, 200, 30000, 300);
+        assertEquals("sumSeries(a,b)", eval("sumSeries(a, b)").metricName());
+    }
+    
+    @Test
+    public void testCombineTags() {
+        series.put("a", MaterializedDataPoints.builder("a", ImmutableMap.of("host", "web01", "dc", "east")).add(0, 1L).build());
+        series.put("b", MaterializedDataPoints.builder("b", ImmutableMap.of("host", "web02", "dc", "east")).add(0, 2L).build());
+        
+        final DataPoints sum = eval("sumSeries(a, b)");
+        assertEquals(ImmutableMap.of("dc", "east"), sum.getTags());
+        assertEquals(1, sum.getAggregatedTags().size());
+        assertEquals("host", sum.getAggregatedTags().get(0));
+        assertPoints(sum, 0, 3);
+    }
+    
+    private void put(final String name, final double... timestampsAndValues) {
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder(name, ImmutableMap.<String, String> of());
+        for (int i=0; i<timestampsAndValues.length; i+=2) {
+            builder.add((long) timestampsAndValues[i], (long) timestampsAndValues[i + 1]);
+        }
+        series.put(name, builder.build());
+    }
+    
+    private DataPoints eval(final String target) {
+        final List<DataPoints> result = parser.parse(target).evaluate(new SeriesSource() {
+            @Override
+            public DataPoints[] fetch(final Metric metric) {
+                return new DataPoints[] { series.get(metric.getRawMetric()) };
+            }
+        });
+        assertEquals(1, result.size());
+        return result.get(0);
+    }
+    
+    private static void assertPoints(final DataPoints actual, final double... timestampsAndValues) {
+        final SeekableView it = actual.iterator();
+        for (int i=0; i<timestampsAndValues.length; i+=2) {
+            assertTrue(it.hasNext());
+            final DataPoint p = it.next();
+            assertEquals((long) timestampsAndValues[i], p.timestamp());
+            assertEquals(timestampsAndValues[i + 1], p.toDouble(), 1e-9);
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.graphite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.MetricParser;
+import net.opentsdb.contrib.tsquare.support.MaterializedDataPoints;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.DataPoints;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class TargetParserTest {
+    private final TargetParser parser = new TargetParser(new RawMetricParser(), SeriesFunctions.defaults());
+    
+    @Test
+    public void testMetric() {
+        final TargetExpression target = parser.parse(" sum:sys.cpu.user{host=web01} ");
+        assertTrue(target instanceof MetricTarget);
+        assertEquals("sum:sys.cpu.user{host=web01}", target.toString());
+        assertEquals("sum:sys.cpu.user{host=web01}", target.getMetrics().get(0).getRawMetric());
+    }
+    
+    @Test
+    public void testNestedCalls() {
+        final TargetExpression target = parser.parse("alias(sumSeries(sum:sys.cpu.user{host=web*,dc=east}, scale(sys.cpu.idle, 2)), \"cpu\")");
+        assertTrue(target instanceof FunctionTarget);
+        assertEquals("alias", ((FunctionTarget) target).getName());
+        
+        // Commas inside the tag block belong to the metric.
+        final List<Metric> metrics = target.getMetrics();
+        assertEquals(2, metrics.size());
+        assertEquals("sum:sys.cpu.user{host=web*,dc=east}", metrics.get(0).getRawMetric());
+        assertEquals("sys.cpu.idle", metrics.get(1).getRawMetric());
+        
+        final List<DataPoints> result = target.evaluate(new SeriesSource() {
+            @Override
+            public DataPoints[] fetch(final Metric metric) {
+                return new DataPoints[] { MaterializedDataPoints.builder(metric.getName(), ImmutableMap.<String, String> of()).add(1000, 1L).build() };
+            }
+        });
+        assertEquals(1, result.size());
+        assertEquals("cpu", result.get(0).metricName());
+        assertEquals(3.0, result.get(0).iterator().next().toDouble(), 0);
+    }
+    
+    @Test
+    public void testQuotedStrings() {
+        assertEquals("a, (b)", aliasOf("alias(m, \"a, (b)\")"));
+        assertEquals("it's", aliasOf("alias(m, \"it's\")"));
+        assertEquals("say \"hi\"", aliasOf("alias(m, 'say \"hi\"')"));
+        assertEquals("", aliasOf("alias(m, '')"));
+    }
+    
+    @Test
+    public void testLiterals() {
+        final FunctionTarget target = (FunctionTarget) parser.parse("summarize(m, \"1h\", 'avg', true)");
+        assertEquals("summarize(m,\"1h\",'avg',true)", target.toString());
+        
+        // Numbers aren't metrics.
+        assertEquals(1, parser.parse("scale(m, -1.5e1)").getMetrics().size());
+        assertEquals(1, parser.parse("highestMax(m, .5)").getMetrics().size());
+    }
+    
+    @Test
+    public void testNoArguments() {
+        assertTrue(parser.parse("sumSeries()").getMetrics().isEmpty());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFunction() {
+        parser.parse("sumSeries(fooSeries(m))");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingParenthesis() {
+        parser.parse("sumSeries(m, n");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingText() {
+        parser.parse("sumSeries(m))");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedString() {
+        parser.parse("alias(m, \"cpu)");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnbalancedBraces() {
+        parser.parse("sumSeries(sys.cpu.user{host=web01)");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingArgument() {
+        parser.parse("sumSeries(m, )");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmpty() {
+        parser.parse("  ");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotASeries() {
+        parser.parse("42");
+    }
+    
+    private String aliasOf(final String target) {
+        final FunctionTarget call = (FunctionTarget) parser.parse(target);
+        return call.evaluate(new SeriesSource() {
+            @Override
+            public DataPoints[] fetch(final Metric metric) {
+                return new DataPoints[] { MaterializedDataPoints.builder(metric.getName(), ImmutableMap.<String, String> of()).build() };
+            }
+        }).get(0).metricName();
+    }
+    
+    /**
+     * Takes every metric as it is, up to its tags.
+     */
+    static final class RawMetricParser implements MetricParser {
+        @Override
+        public Metric parseMetric(final String metricString) {
+            final int braces = metricString.indexOf('{');
+            final String name = (braces < 0 ? metricString : metricString.substring(0, braces));
+            return new Metric(metricString, name.substring(name.lastIndexOf(':') + 1), Aggregators.SUM);
+        }
+        
+        @Override
+        public List<Metric> parseMetrics(final Iterable<String> metrics) {
+            final List<Metric> parsed = Lists.newArrayList();
+            for (final String metric : metrics) {
+                parsed.add(parseMetric(metric));
+            }
+            return parsed;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.opentsdb.contrib.tsquare.index.SuggestIndex.Suggestion;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SuggestIndexTest {
+    private SuggestIndex index;
+    
+    @Before
+    public void setUp() {
+        index = new SuggestIndex();
+        index.update("metrics", Arrays.asList(
+                "sys.cpu.idle", 
+                "sys.cpu.idle.percent.total", 
+                "sys.cpu.idleness", 
+                "sys.cpu.user", 
+                "sys.mem.free", 
+                "app.cpu.idle"));
+        index.update("tagk", Arrays.asList("host", "cpu"));
+    }
+    
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("sys", "cpu", "idle"), SuggestIndex.tokenize("Sys.CPU_idle"));
+        assertEquals(Arrays.asList("a1", "b"), SuggestIndex.tokenize("  a1--b "));
+        assertTrue(SuggestIndex.tokenize("..").isEmpty());
+    }
+    
+    @Test
+    public void testEditDistance() {
+        assertEquals(0, SuggestIndex.editDistance("idle", "idle", 2));
+        // Transpositions are two edits.
+        assertEquals(2, SuggestIndex.editDistance("idle", "idel", 2));
+        assertEquals(1, SuggestIndex.editDistance("idle", "idl", 2));
+        assertEquals(3, SuggestIndex.editDistance("idle", "user", 2));
+    }
+    
+    @Test
+    public void testRanking() {
+        // Exact tokens beat prefixes and names with fewer other tokens win; ties
+        // go to shorter names, then in alphabetical order.
+        assertEquals(Arrays.asList("app.cpu.idle", "sys.cpu.idle", "sys.cpu.idle.percent.total", "sys.cpu.idleness"), 
+                names(index.suggest("cpu idle", "metrics", 4)));
+        
+        // Only names with every query token get the complete bonus.
+        assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.idle.percent.total"), 
+                names(index.suggest("sys idle", "metrics", 2)));
+    }
+    
+    @Test
+    public void testAnyOrder() {
+        assertEquals("sys.cpu.idle", index.suggest("idle sys cpu", "metrics", 1).get(0).getName());
+    }
+    
+    @Test
+    public void testTypos() {
+        assertEquals("sys.mem.free", index.suggest("mem fere", "metrics", 1).get(0).getName());
+        assertEquals("sys.cpu.user", index.suggest("cpu usr", "metrics", 1).get(0).getName());
+    }
+    
+    @Test
+    public void testKindsAndLimit() {
+        final List<Suggestion> all = index.suggest("cpu", null, 100);
+        assertEquals(6, all.size());
+        assertEquals("cpu", all.get(0).getName());
+        assertEquals("tagk", all.get(0).getKind());
+        
+        assertEquals(2, index.suggest("cpu", "metrics", 2).size());
+        assertTrue(index.suggest("", null, 10).isEmpty());
+        assertTrue(index.suggest("cpu", null, 0).isEmpty());
+    }
+    
+    @Test
+    public void testAddAll() {
+        final SuggestIndex rebuilt = new SuggestIndex();
+        rebuilt.update("metrics", Arrays.asList("sys.cpu.idle", "sys.disk.free", "sys.cpu.steal"));
+        
+        final SuggestIndex merged = new SuggestIndex();
+        merged.update("metrics", Arrays.asList("sys.cpu.idle"));
+        merged.addAll("metrics", Arrays.asList("sys.disk.free", "sys.cpu.steal"));
+        
+        for (final String query : Arrays.asList("cpu", "sys", "free", "stael", "disk cpu")) {
+            assertEquals(query, rebuilt.suggest(query, null, 10).toString(), merged.suggest(query, null, 10).toString());
+        }
+    }
+    
+    private static List<String> names(final List<Suggestion> suggestions) {
+        final List<String> names = Lists.newArrayList();
+        for (final Suggestion suggestion : suggestions) {
+            names.add(suggestion.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class RequestStatsFilterTest {
+    private TsquareStats stats;
+    private RequestStatsFilter filter;
+    
+    private final List<AsyncListener> listeners = Lists.newArrayList();
+    private boolean asyncStarted = false;
+    private int status = 200;
+    
+    @Before
+    public void setUp() {
+        stats = new TsquareStats();
+        filter = new RequestStatsFilter();
+        filter.setStats(stats);
+    }
+    
+    @Test
+    public void testRecordsStatus() throws Exception {
+        filter.doFilter(request("/ext", "/q"), response(), respondWith(200));
+        filter.doFilter(request("/ext", "/q"), response(), respondWith(404));
+        filter.doFilter(request("/ext", "/q"), response(), respondWith(503));
+        filter.doFilter(request("/graphite", null), response(), respondWith(200));
+        
+        final RequestStats q = stats.getEndpoints().get("/ext/q");
+        assertEquals(3, q.getRequests());
+        assertEquals(1, q.getClientErrors());
+        assertEquals(1, q.getServerErrors());
+        assertEquals(3, q.getLatencyMicros().getCount());
+        assertEquals(1, stats.getEndpoints().get("/graphite").getRequests());
+    }
+    
+    @Test
+    public void testFailureIsServerError() throws Exception {
+        final ServletException failure = new ServletException("Boom");
+        try {
+            filter.doFilter(request("/ext", "/q"), response(), new FilterChain() {
+                @Override
+                public void doFilter(final ServletRequest request, final ServletResponse response) throws ServletException {
+                    throw failure;
+                }
+            });
+            fail("Exception should be passed on");
+        } catch (ServletException e) {
+            assertSame(failure, e);
+        }
+        
+        assertEquals(1, stats.getEndpoints().get("/ext/q").getServerErrors());
+    }
+    
+    @Test
+    public void testAsyncRecordedOnCompletion() throws Exception {
+        filter.doFilter(request("/ext", "/q"), response(), new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) {
+                asyncStarted = true;
+            }
+        });
+        
+        assertNull(stats.getEndpoints().get("/ext/q"));
+        assertEquals(1, listeners.size());
+        
+        // Status as of completion.
+        status = 504;
+        listeners.get(0).onTimeout(null);
+        assertNull(stats.getEndpoints().get("/ext/q"));
+        listeners.get(0).onComplete(null);
+        
+        final RequestStats q = stats.getEndpoints().get("/ext/q");
+        assertEquals(1, q.getRequests());
+        assertEquals(1, q.getServerErrors());
+    }
+    
+    @Test
+    public void testNonHttpRequestPassedThrough() throws Exception {
+        final ServletRequest request = (ServletRequest) Proxy.newProxyInstance(ServletRequest.class.getClassLoader(), 
+                new Class<?>[] { ServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        final boolean[] called = { false };
+        filter.doFilter(request, response(), new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) {
+                called[0] = true;
+            }
+        });
+        
+        assertTrue(called[0]);
+        assertTrue(stats.getEndpoints().isEmpty());
+    }
+    
+    private FilterChain respondWith(final int responseStatus) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException {
+                status = responseStatus;
+            }
+        };
+    }
+    
+    private HttpServletRequest request(final String servletPath, final String pathInfo) {
+        final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(AsyncContext.class.getClassLoader(), 
+                new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("addListener")) {
+                    listeners.add((AsyncListener) args[0]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), 
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final String name = method.getName();
+                if (name.equals("getServletPath")) {
+                    return servletPath;
+                } else if (name.equals("getPathInfo")) {
+                    return pathInfo;
+                } else if (name.equals("isAsyncStarted")) {
+                    return asyncStarted;
+                } else if (name.equals("getAsyncContext")) {
+                    return asyncContext;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+    
+    private HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), 
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("getStatus")) {
+                    return status;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.opentsdb.core.DataPoint;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class LargestTriangleThreeBucketsTest {
+    @Test
+    public void testKeepsFirstLastAndPeaks() {
+        final MaterializedDataPoints.Builder builder = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap());
+        for (int i=0; i<1000; i++) {
+            if (i == 500) {
+                builder.add(i * 1000L, 1000L);
+            } else if (i == 700) {
+                builder.add(i * 1000L, -1000L);
+            } else {
+                builder.add(i * 1000L, (long) (i % 10));
+            }
+        }
+        
+        final List<long[]> points = downsample(builder.build(), 0, 999999, 50);
+        assertTrue(points.size() <= 50);
+        assertEquals(0, points.get(0)[0]);
+        assertEquals(999000, points.get(points.size() - 1)[0]);
+        assertTrue(contains(points, 500000, 1000));
+        assertTrue(contains(points, 700000, -1000));
+        
+        for (int i=1; i<points.size(); i++) {
+            assertTrue(points.get(i)[0] > points.get(i - 1)[0]);
+        }
+    }
+    
+    @Test
+    public void testFewPoints() {
+        final MaterializedDataPoints series = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap())
+                .add(0, 1L)
+                .add(500, 2L)
+                .add(1000, 3L)
+                .build();
+        
+        final List<long[]> points = downsample(series, 0, 1000, 10);
+        assertEquals(3, points.size());
+        assertEquals(500, points.get(1)[0]);
+        assertEquals(2, points.get(1)[1]);
+    }
+    
+    @Test
+    public void testTypesAreKept() {
+        final MaterializedDataPoints series = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap())
+                .add(0, 1L)
+                .add(1000, 2.5)
+                .build();
+        
+        final LargestTriangleThreeBuckets it = new LargestTriangleThreeBuckets(series.iterator(), 0, 1000, 3);
+        assertTrue(it.next().isInteger());
+        assertEquals(1, it.longValue());
+        assertFalse(it.next().isInteger());
+        assertEquals(2.5, it.doubleValue(), 0);
+        assertFalse(it.hasNext());
+    }
+    
+    @Test
+    public void testEmpty() {
+        final MaterializedDataPoints series = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap()).build();
+        assertFalse(new LargestTriangleThreeBuckets(series.iterator(), 0, 1000, 3).hasNext());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewDataPoints() {
+        final MaterializedDataPoints series = MaterializedDataPoints.builder("m", Collections.<String, String> emptyMap()).build();
+        new LargestTriangleThreeBuckets(series.iterator(), 0, 1000, 2);
+    }
+    
+    /**
+     * @return {timestamp, value} of each selected point; values are integers.
+     */
+    private static List<long[]> downsample(final MaterializedDataPoints series, final long startMillis, final long endMillis, final int maxDataPoints) {
+        final LargestTriangleThreeBuckets it = new LargestTriangleThreeBuckets(series.iterator(), startMillis, endMillis, maxDataPoints);
+        final List<long[]> points = Lists.newArrayList();
+        while (it.hasNext()) {
+            final DataPoint p = it.next();
+            points.add(new long[] { p.timestamp(), p.longValue() });
+        }
+        return points;
+    }
+    
+    private static boolean contains(final List<long[]> points, final long timestamp, final long value) {
+        for (final long[] point : points) {
+            if (point[0] == timestamp && point[1] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class MessagePackOutputTest {
+    @Test
+    public void testPositiveIntegers() throws IOException {
+        assertLong(0, 0x00);
+        assertLong(127, 0x7f);
+        assertLong(128, 0xcc, 0x80);
+        assertLong(255, 0xcc, 0xff);
+        assertLong(256, 0xcd, 0x01, 0x00);
+        assertLong(65535, 0xcd, 0xff, 0xff);
+        assertLong(65536, 0xce, 0x00, 0x01, 0x00, 0x00);
+        assertLong(0xffffffffL, 0xce, 0xff, 0xff, 0xff, 0xff);
+        assertLong(0x100000000L, 0xcf, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00);
+        assertLong(Long.MAX_VALUE, 0xcf, 0x7f, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff);
+    }
+    
+    @Test
+    public void testNegativeIntegers() throws IOException {
+        assertLong(-1, 0xff);
+        assertLong(-32, 0xe0);
+        assertLong(-33, 0xd0, 0xdf);
+        assertLong(-128, 0xd0, 0x80);
+        assertLong(-129, 0xd1, 0xff, 0x7f);
+        assertLong(-32768, 0xd1, 0x80, 0x00);
+        assertLong(-32769, 0xd2, 0xff, 0xff, 0x7f, 0xff);
+        assertLong(Integer.MIN_VALUE, 0xd2, 0x80, 0x00, 0x00, 0x00);
+        assertLong(Integer.MIN_VALUE - 1L, 0xd3, 0xff, 0xff, 0xff, 0xff, 0x7f, 0xff, 0xff, 0xff);
+        assertLong(Long.MIN_VALUE, 0xd3, 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00);
+    }
+    
+    @Test
+    public void testScalars() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final MessagePackOutput out = new MessagePackOutput(bytes);
+        out.writeNil().writeBoolean(false).writeBoolean(true).writeDouble(1.5);
+        out.flush();
+        assertArrayEquals(bytes(0xc0, 0xc2, 0xc3, 0xcb, 0x3f, 0xf8, 0, 0, 0, 0, 0, 0), bytes.toByteArray());
+    }
+    
+    @Test
+    public void testStrings() throws IOException {
+        assertString(0, 0xa0);
+        assertString(31, 0xbf);
+        assertString(32, 0xd9, 32);
+        assertString(255, 0xd9, 0xff);
+        assertString(256, 0xda, 0x01, 0x00);
+        assertString(65535, 0xda, 0xff, 0xff);
+        assertString(65536, 0xdb, 0x00, 0x01, 0x00, 0x00);
+    }
+    
+    @Test
+    public void testStringLengthInBytes() throws IOException {
+        // 16 characters, 32 bytes of UTF-8.
+        final String value = Strings.repeat("\u00e9", 16);
+        final byte[] written = write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeString(value);
+            }
+        });
+        assertEquals(34, written.length);
+        assertArrayEquals(bytes(0xd9, 32), Arrays.copyOf(written, 2));
+    }
+    
+    @Test
+    public void testArrays() throws IOException {
+        assertArrayHeader(0, 0x90);
+        assertArrayHeader(15, 0x9f);
+        assertArrayHeader(16, 0xdc, 0x00, 0x10);
+        assertArrayHeader(65535, 0xdc, 0xff, 0xff);
+        assertArrayHeader(65536, 0xdd, 0x00, 0x01, 0x00, 0x00);
+    }
+    
+    @Test
+    public void testMaps() throws IOException {
+        assertMapHeader(0, 0x80);
+        assertMapHeader(15, 0x8f);
+        assertMapHeader(16, 0xde, 0x00, 0x10);
+        assertMapHeader(65535, 0xde, 0xff, 0xff);
+        assertMapHeader(65536, 0xdf, 0x00, 0x01, 0x00, 0x00);
+    }
+    
+    @Test
+    public void testBinary() throws IOException {
+        assertBinaryHeader(0, 0xc4, 0x00);
+        assertBinaryHeader(255, 0xc4, 0xff);
+        assertBinaryHeader(256, 0xc5, 0x01, 0x00);
+        assertBinaryHeader(65535, 0xc5, 0xff, 0xff);
+        assertBinaryHeader(65536, 0xc6, 0x00, 0x01, 0x00, 0x00);
+        
+        final byte[] written = write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeDoubles(new double[8192], 8192);
+            }
+        });
+        assertHeader(new int[] { 0xc6, 0x00, 0x01, 0x00, 0x00 }, 65536, written);
+    }
+    
+    @Test
+    public void testLongsAndDoubles() throws IOException {
+        final byte[] written = write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeLongs(new long[] { 1, -1, 99 }, 2);
+                out.writeDoubles(new double[] { 2.0 }, 1);
+            }
+        });
+        assertArrayEquals(bytes(
+                0xc4, 16, 
+                0, 0, 0, 0, 0, 0, 0, 1, 
+                0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 
+                0xc4, 8, 
+                0x40, 0, 0, 0, 0, 0, 0, 0), written);
+    }
+    
+    @Test
+    public void testObjects() throws IOException {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", Arrays.asList(1, 2.0f, null));
+        map.put("b", Boolean.TRUE);
+        map.put("c", Collections.emptyMap());
+        
+        final byte[] written = write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeObject(map);
+            }
+        });
+        assertArrayEquals(bytes(
+                0x83, 
+                0xa1, 'a', 0x93, 0x01, 0xcb, 0x40, 0, 0, 0, 0, 0, 0, 0, 0xc0, 
+                0xa1, 'b', 0xc3, 
+                0xa1, 'c', 0x80), written);
+    }
+    
+    @Test
+    public void testSmallBuffer() throws IOException {
+        final String value = Strings.repeat("x", 100);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final MessagePackOutput out = new MessagePackOutput(bytes, 16);
+        for (int i=0; i<10; i++) {
+            out.writeLong(Long.MAX_VALUE).writeString(value);
+        }
+        out.flush();
+        
+        final byte[] written = bytes.toByteArray();
+        assertEquals(10 * (9 + 2 + 100), written.length);
+        for (int i=0; i<10; i++) {
+            final int offset = i * 111;
+            assertEquals((byte) 0xcf, written[offset]);
+            assertEquals((byte) 0xd9, written[offset + 9]);
+            assertEquals('x', written[offset + 110]);
+        }
+    }
+    
+    private interface Writer {
+        void write(MessagePackOutput out) throws IOException;
+    }
+    
+    private static byte[] write(final Writer writer) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final MessagePackOutput out = new MessagePackOutput(bytes);
+        writer.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static byte[] bytes(final int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i=0; i<values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+    
+    private static void assertLong(final long value, final int... expected) throws IOException {
+        assertArrayEquals("Encoding of " + value, bytes(expected), write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeLong(value);
+            }
+        }));
+    }
+    
+    private static void assertString(final int length, final int... header) throws IOException {
+        final byte[] written = write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeString(Strings.repeat("x", length));
+            }
+        });
+        assertHeader(header, length, written);
+    }
+    
+    private static void assertArrayHeader(final int size, final int... expected) throws IOException {
+        assertArrayEquals("Header of " + size, bytes(expected), write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeArrayHeader(size);
+            }
+        }));
+    }
+    
+    private static void assertMapHeader(final int size, final int... expected) throws IOException {
+        assertArrayEquals("Header of " + size, bytes(expected), write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeMapHeader(size);
+            }
+        }));
+    }
+    
+    private static void assertBinaryHeader(final int length, final int... expected) throws IOException {
+        assertArrayEquals("Header of " + length, bytes(expected), write(new Writer() {
+            @Override
+            public void write(final MessagePackOutput out) throws IOException {
+                out.writeBinaryHeader(length);
+            }
+        }));
+    }
+    
+    private static void assertHeader(final int[] header, final int length, final byte[] written) {
+        assertEquals("Length of " + length, header.length + length, written.length);
+        assertArrayEquals("Header of " + length, bytes(header), Arrays.copyOf(written, header.length));
+    }
+}
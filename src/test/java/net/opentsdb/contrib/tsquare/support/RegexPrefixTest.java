@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RegexPrefixTest {
+    @Test
+    public void testWildcard() {
+        final RegexPrefix prefix = RegexPrefix.of(TsWebUtils.wildcardToRegex("sys.cpu.*"));
+        assertEquals("sys.cpu.", prefix.getPrefix());
+        assertTrue(prefix.isCaseInsensitive());
+        assertTrue(prefix.isPrefixOf("SYS.CPU.idle"));
+        assertFalse(prefix.isPrefixOf("sys.disk"));
+    }
+    
+    @Test
+    public void testLiterals() {
+        assertEquals("sys.cpu", RegexPrefix.of("^sys\\.cpu").getPrefix());
+        assertEquals("ab", RegexPrefix.of("^ab+c").getPrefix());
+        assertEquals("a", RegexPrefix.of("^ab*c").getPrefix());
+        assertEquals("a", RegexPrefix.of("^ab?c").getPrefix());
+        assertEquals("a", RegexPrefix.of("^ab{2}c").getPrefix());
+        assertEquals("a", RegexPrefix.of("^a\\d").getPrefix());
+        assertEquals("a", RegexPrefix.of("^a[bc]").getPrefix());
+        assertFalse(RegexPrefix.of("^sys").isCaseInsensitive());
+    }
+    
+    @Test
+    public void testNoPrefix() {
+        assertTrue(RegexPrefix.of("sys\\.cpu").isEmpty());
+        assertTrue(RegexPrefix.of("^sys|^app").isEmpty());
+        assertTrue(RegexPrefix.of("(?:^sys)").isEmpty());
+        assertTrue(RegexPrefix.of("^.*cpu").isEmpty());
+        assertFalse(RegexPrefix.of("^a[b|c]").isEmpty());
+    }
+    
+    @Test
+    public void testVariants() {
+        assertEquals(Collections.singletonList("Sys"), RegexPrefix.of("^Sys").getVariants(4));
+        assertEquals(Arrays.asList("AB", "Ab", "aB", "ab"), RegexPrefix.of("(?i)^ab").getVariants(4));
+        assertEquals(Arrays.asList("A.B", "A.b", "a.B", "a.b"), RegexPrefix.of("(?i)^a\\.b").getVariants(4));
+        assertEquals(Arrays.asList("A", "a"), RegexPrefix.of("(?i)^abc").getVariants(3));
+        assertEquals(Collections.singletonList(""), RegexPrefix.of("(?i)cpu").getVariants(4));
+    }
+}
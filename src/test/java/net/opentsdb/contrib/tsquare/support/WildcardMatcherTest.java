@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.springframework.util.PatternMatchUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class WildcardMatcherTest {
+    @Test
+    public void testShapes() {
+        final Map<String, String> patterns = Maps.newLinkedHashMap();
+        patterns.put("sys.cpu", "literal");
+        patterns.put("sys.*", "prefix");
+        patterns.put("*.count", "suffix");
+        patterns.put("app.*.latency", "infix");
+        patterns.put("*", "anything");
+        
+        final WildcardMatcher<String> matcher = new WildcardMatcher<String>(patterns);
+        assertEquals("literal", matcher.match("sys.cpu"));
+        assertEquals("prefix", matcher.match("sys.cpu.idle"));
+        assertEquals("suffix", matcher.match("web.requests.count"));
+        assertEquals("infix", matcher.match("app.web.latency"));
+        assertEquals("anything", matcher.match("app.web.errors"));
+    }
+    
+    @Test
+    public void testFirstPatternWins() {
+        final Map<String, Integer> patterns = Maps.newLinkedHashMap();
+        patterns.put("*.count", 0);
+        patterns.put("sys.*", 1);
+        patterns.put("sys.disk.count", 2);
+        
+        final WildcardMatcher<Integer> matcher = new WildcardMatcher<Integer>(patterns);
+        assertEquals(0, matcher.indexOf("sys.disk.count"));
+        assertEquals(1, matcher.indexOf("sys.disk.free"));
+        assertEquals(-1, matcher.indexOf("app.disk.free"));
+        assertEquals(-1, matcher.indexOf(null));
+        assertNull(matcher.match("app.disk.free"));
+    }
+    
+    @Test
+    public void testSameAsSimpleMatch() {
+        final Random random = new Random(1);
+        
+        for (int round=0; round<2000; round++) {
+            final Map<String, Integer> patterns = Maps.newLinkedHashMap();
+            final int patternCount = random.nextInt(8);
+            for (int i=0; i<patternCount; i++) {
+                final String pattern = randomString(random, "ab.*", 5);
+                // Spring 3.2 loops forever on consecutive wildcards.
+                if (!pattern.contains("**")) {
+                    patterns.put(pattern, i);
+                }
+            }
+            
+            final List<String> ordered = Lists.newArrayList(patterns.keySet());
+            final WildcardMatcher<Integer> matcher = new WildcardMatcher<Integer>(patterns);
+            
+            for (int t=0; t<50; t++) {
+                final String str = randomString(random, "ab.", 6);
+                
+                int expected = -1;
+                for (int i=0; i<ordered.size(); i++) {
+                    if (PatternMatchUtils.simpleMatch(ordered.get(i), str)) {
+                        expected = i;
+                        break;
+                    }
+                }
+                
+                assertEquals(ordered + " matching '" + str + "'", expected, matcher.indexOf(str));
+            }
+        }
+    }
+    
+    private static String randomString(final Random random, final String alphabet, final int maxLength) {
+        final StringBuilder buf = new StringBuilder();
+        final int length = random.nextInt(maxLength);
+        for (int i=0; i<length; i++) {
+            buf.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.contrib.tsquare.web.AdmissionControl.Ticket;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Callback;
+
+public class AdmissionControlTest {
+    private AdmissionControl control;
+    
+    // Tickets in the order they were admitted, as "client:weight".
+    private final List<String> admitted = Lists.newArrayList();
+    
+    @Before
+    public void setUp() {
+        control = new AdmissionControl();
+        control.setMaxPermits(4);
+        control.setMaxPermitsPerClient(4);
+        control.setMaxQueueLength(8);
+        control.setMaxQueuedPerClient(8);
+    }
+    
+    @Test
+    public void testQueuesUntilReleased() {
+        final Ticket a = acquire("a", 2);
+        acquire("b", 2);
+        acquire("c", 1);
+        assertAdmitted("a:2", "b:2");
+        assertEquals(4, control.getPermitsInUse());
+        assertEquals(1, control.getQueueDepth());
+        
+        a.release();
+        assertAdmitted("a:2", "b:2", "c:1");
+        assertEquals(3, control.getPermitsInUse());
+        assertEquals(0, control.getQueueDepth());
+        
+        // Released already.
+        a.release();
+        assertEquals(3, control.getPermitsInUse());
+    }
+    
+    @Test
+    public void testPerClientLimit() {
+        control.setMaxPermitsPerClient(2);
+        
+        final Ticket first = acquire("a", 2);
+        acquire("a", 1);
+        acquire("b", 1);
+        
+        // a's second ticket waits for a's own permits, so b's goes ahead of it.
+        assertAdmitted("a:2", "b:1");
+        
+        first.release();
+        assertAdmitted("a:2", "b:1", "a:1");
+    }
+    
+    @Test
+    public void testClientTicketsStayInOrder() {
+        control.setMaxPermitsPerClient(3);
+        
+        final Ticket first = acquire("a", 2);
+        acquire("a", 2);
+        acquire("a", 1);
+        
+        // a:1 would fit within a's limit, but waits behind a's other ticket.
+        assertAdmitted("a:2");
+        assertEquals(2, control.getQueueDepth());
+        
+        first.release();
+        assertAdmitted("a:2", "a:2", "a:1");
+    }
+    
+    @Test
+    public void testLargeRequestNotStarved() {
+        final Ticket small = acquire("a", 3);
+        acquire("b", 3);
+        acquire("c", 1);
+        
+        // c:1 fits, but b:3 was first.
+        assertAdmitted("a:3");
+        
+        small.release();
+        assertAdmitted("a:3", "b:3", "c:1");
+    }
+    
+    @Test
+    public void testAbandonQueuedTicket() {
+        final Ticket first = acquire("a", 4);
+        final Ticket waiting = acquire("b", 2);
+        acquire("c", 2);
+        
+        waiting.release();
+        assertEquals(1, control.getQueueDepth());
+        assertEquals(Long.valueOf(1), control.getStats().get("abandoned"));
+        
+        first.release();
+        assertAdmitted("a:4", "c:2");
+        assertEquals(2, control.getPermitsInUse());
+        
+        // Abandoned already.
+        waiting.release();
+        assertEquals(2, control.getPermitsInUse());
+    }
+    
+    @Test
+    public void testQueueFull() {
+        control.setMaxQueueLength(1);
+        acquire("a", 4);
+        acquire("b", 1);
+        
+        try {
+            acquire("c", 1);
+            fail("Queue is full");
+        } catch (AdmissionRejectedException e) {
+            assertEquals(AdmissionRejectedException.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+        assertEquals(1, control.getQueueDepth());
+        assertEquals(Long.valueOf(1), control.getStats().get("rejectedQueueFull"));
+    }
+    
+    @Test
+    public void testTooManyQueuedPerClient() {
+        control.setMaxQueuedPerClient(1);
+        acquire("a", 4);
+        acquire("b", 1);
+        acquire("c", 1);
+        
+        try {
+            acquire("b", 1);
+            fail("Client has too many waiting");
+        } catch (AdmissionRejectedException e) {
+            assertEquals(AdmissionRejectedException.TOO_MANY_REQUESTS, e.getStatus());
+        }
+        assertEquals(2, control.getQueueDepth());
+        assertEquals(Long.valueOf(1), control.getStats().get("rejectedClientLimit"));
+    }
+    
+    @Test
+    public void testWeigh() {
+        control.setWeightUnitMillis(TimeUnit.DAYS.toMillis(1));
+        assertEquals(1, control.weigh(1, TimeUnit.HOURS.toMillis(1)));
+        assertEquals(2, control.weigh(2, TimeUnit.HOURS.toMillis(1)));
+        assertEquals(2, control.weigh(1, TimeUnit.HOURS.toMillis(25)));
+        assertEquals(1, control.weigh(0, 0));
+        
+        // Capped at what a client may hold.
+        assertEquals(4, control.weigh(1, TimeUnit.DAYS.toMillis(30)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testWeightOverLimit() {
+        control.acquire("a", 5);
+    }
+    
+    private Ticket acquire(final String client, final int weight) {
+        final Ticket ticket = control.acquire(client, weight);
+        ticket.whenAdmitted().addCallback(new Callback<Object, Ticket>() {
+            @Override
+            public Object call(final Ticket t) {
+                admitted.add(t.getClient() + ":" + t.getWeight());
+                return t;
+            }
+        });
+        return ticket;
+    }
+    
+    private void assertAdmitted(final String... expected) {
+        assertEquals(Arrays.asList(expected), admitted);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.contrib.tsquare.TsdbManager;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class QueryCostEstimatorTest {
+    private QueryCostEstimator estimator;
+    
+    @Before
+    public void setUp() {
+        estimator = new QueryCostEstimator();
+        estimator.setTsdbManager((TsdbManager) Proxy.newProxyInstance(TsdbManager.class.getClassLoader(), new Class<?>[] { TsdbManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("newMetricsQuery")) {
+                    return newQuery();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+    
+    @Test
+    public void testOkIsUnchanged() {
+        final AnnotatedDataQuery query = query(metric());
+        final QueryCostEstimator.Estimate estimate = new QueryCostEstimator.Estimate("sys.cpu");
+        assertSame(query, estimator.enforce(query, estimate));
+    }
+    
+    @Test
+    public void testReject() {
+        final QueryCostEstimator.Estimate estimate = new QueryCostEstimator.Estimate("sys.cpu");
+        estimate.reject("Too big");
+        
+        try {
+            estimator.enforce(query(metric()), estimate);
+            fail("Query should be rejected");
+        } catch (QueryCostExceededException e) {
+            assertEquals("Too big", e.getMessage());
+            assertSame(estimate, e.getEstimate());
+        }
+    }
+    
+    @Test
+    public void testDownsample() {
+        final Metric metric = metric();
+        final AnnotatedDataQuery query = query(metric);
+        final QueryCostEstimator.Estimate estimate = new QueryCostEstimator.Estimate("sys.cpu");
+        estimate.downsample(300);
+        
+        final AnnotatedDataQuery downsampled = estimator.enforce(query, estimate);
+        assertNotSame(query, downsampled);
+        assertNotSame(metric, downsampled.getMetric());
+        assertSame(Aggregators.AVG, downsampled.getMetric().getDownsampler());
+        assertEquals(300, downsampled.getMetric().getDownsampleIntervalSeconds());
+        assertEquals(metric.getTags(), downsampled.getMetric().getTags());
+        
+        final Map<String, Object> calls = recorded(downsampled.getQuery());
+        assertEquals(1000L, calls.get("setStartTime"));
+        assertEquals(2000000L, calls.get("setEndTime"));
+        assertEquals(300L, calls.get("downsample"));
+        assertEquals("sys.cpu", calls.get("setTimeSeries"));
+        
+        // The given query and metric are left alone.
+        assertNull(metric.getDownsampler());
+        assertEquals(0, metric.getDownsampleIntervalSeconds());
+        assertNull(recorded(query.getQuery()).get("downsample"));
+    }
+    
+    @Test
+    public void testDownsampleKeepsDownsampler() {
+        final Metric metric = metric().setDownsampler(Aggregators.MAX).setDownsampleIntervalSeconds(60);
+        final QueryCostEstimator.Estimate estimate = new QueryCostEstimator.Estimate("sys.cpu");
+        estimate.downsample(600);
+        
+        final AnnotatedDataQuery downsampled = estimator.enforce(query(metric), estimate);
+        assertSame(Aggregators.MAX, downsampled.getMetric().getDownsampler());
+        assertEquals(600, downsampled.getMetric().getDownsampleIntervalSeconds());
+        assertEquals(60, metric.getDownsampleIntervalSeconds());
+    }
+    
+    @Test
+    public void testForcedDownsampler() {
+        estimator.setForcedDownsampler(Aggregators.SUM);
+        final QueryCostEstimator.Estimate estimate = new QueryCostEstimator.Estimate("sys.cpu");
+        estimate.downsample(60);
+        
+        assertSame(Aggregators.SUM, estimator.enforce(query(metric()), estimate).getMetric().getDownsampler());
+    }
+    
+    private static Metric metric() {
+        return new Metric("sum:sys.cpu{host=*}", "sys.cpu", Aggregators.SUM).setTags(ImmutableMap.of("host", "*"));
+    }
+    
+    private static AnnotatedDataQuery query(final Metric metric) {
+        final Query query = newQuery();
+        query.setStartTime(1000L);
+        query.setEndTime(2000000L);
+        metric.contributeToQuery(query);
+        return new AnnotatedDataQuery(metric, query);
+    }
+    
+    private static Query newQuery() {
+        return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[] { Query.class }, new RecordingQuery());
+    }
+    
+    private static Map<String, Object> recorded(final Query query) {
+        return ((RecordingQuery) Proxy.getInvocationHandler(query)).calls;
+    }
+    
+    /**
+     * Records the first argument of each call; the getters return what was set.
+     */
+    private static final class RecordingQuery implements InvocationHandler {
+        private final Map<String, Object> calls = Maps.newHashMap();
+        
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("getStartTime") || name.equals("getEndTime")) {
+                return calls.get(name.replaceFirst("get", "set"));
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (args != null && args.length > 0) {
+                calls.put(name, args[0]);
+            }
+            return null;
+        }
+    }
+}
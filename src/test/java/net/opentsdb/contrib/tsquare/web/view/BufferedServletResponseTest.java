@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.Test;
+
+public class BufferedServletResponseTest {
+    @Test
+    public void testNothingSentBeforeCommit() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final BufferedServletResponse response = new BufferedServletResponse(fake.proxy(), 4);
+        response.setStatus(200);
+        response.getOutputStream().write(SpillingOutputStreamTest.bytes(100), 0, 100);
+        response.flushBuffer();
+        
+        assertFalse(response.isCommitted());
+        assertEquals(0, fake.body.size());
+        assertNull(fake.contentLength);
+        
+        response.commit();
+        assertTrue(response.isCommitted());
+        assertEquals(Integer.valueOf(100), fake.contentLength);
+        assertArrayEquals(SpillingOutputStreamTest.bytes(100), fake.body.toByteArray());
+        response.release();
+    }
+    
+    @Test
+    public void testWriter() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final BufferedServletResponse response = new BufferedServletResponse(fake.proxy(), 1024);
+        final PrintWriter writer = response.getWriter();
+        writer.print("caf\u00e9");
+        
+        response.commit();
+        assertEquals(Integer.valueOf(5), fake.contentLength);
+        assertEquals("caf\u00e9", fake.body.toString("UTF-8"));
+        response.release();
+    }
+    
+    @Test
+    public void testResetReplacesBody() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final BufferedServletResponse response = new BufferedServletResponse(fake.proxy(), 4);
+        response.getWriter().print("partial series data");
+        
+        response.reset();
+        assertEquals(1, fake.resets);
+        
+        response.setStatus(504);
+        response.getWriter().print("{}");
+        response.commit();
+        
+        assertEquals(504, fake.status);
+        assertEquals(Integer.valueOf(2), fake.contentLength);
+        assertEquals("{}", fake.body.toString("UTF-8"));
+        response.release();
+    }
+    
+    @Test(expected=IOException.class)
+    public void testWriteAfterCommit() throws IOException {
+        final BufferedServletResponse response = new BufferedServletResponse(new FakeHttpServletResponse().proxy(), 4);
+        response.commit();
+        response.getOutputStream().write(1);
+    }
+    
+    @Test
+    public void testCommitOnlyOnce() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final BufferedServletResponse response = new BufferedServletResponse(fake.proxy(), 4);
+        response.getOutputStream().write(SpillingOutputStreamTest.bytes(10), 0, 10);
+        response.commit();
+        response.commit();
+        
+        assertEquals(10, fake.body.size());
+        
+        // Too late to replace the body.
+        response.resetBuffer();
+        assertEquals(10, fake.body.size());
+        response.release();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.opentsdb.contrib.tsquare.Metric;
+import net.opentsdb.core.Aggregators;
+
+import org.junit.Test;
+
+public class ColumnarJsonResponseWriterTest {
+    @Test
+    public void testSharedInterval() {
+        assertEquals(60000, ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(
+                downsampled("sys.cpu", 60), 
+                downsampled("sys.mem", 60).setDownsampler(Aggregators.MAX))));
+        assertEquals(300000, ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(downsampled("sys.cpu", 300))));
+    }
+    
+    @Test
+    public void testNoMetrics() {
+        assertEquals(0, ColumnarJsonResponseWriter.sharedIntervalMillis(Collections.<Metric> emptyList()));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testDifferentIntervals() {
+        ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(downsampled("sys.cpu", 60), downsampled("sys.mem", 300)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testNotDownsampled() {
+        ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(
+                downsampled("sys.cpu", 60), 
+                new Metric("sum:sys.mem", "sys.mem", Aggregators.SUM)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testIntervalWithoutDownsampler() {
+        ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(
+                new Metric("sum:sys.cpu", "sys.cpu", Aggregators.SUM).setDownsampleIntervalSeconds(60)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testDownsamplerWithoutInterval() {
+        ColumnarJsonResponseWriter.sharedIntervalMillis(Arrays.asList(downsampled("sys.cpu", 0)));
+    }
+    
+    private static Metric downsampled(final String name, final int intervalSeconds) {
+        return new Metric("sum:" + name, name, Aggregators.SUM)
+                .setDownsampler(Aggregators.AVG)
+                .setDownsampleIntervalSeconds(intervalSeconds);
+    }
+}
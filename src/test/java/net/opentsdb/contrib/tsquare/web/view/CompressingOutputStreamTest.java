@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class CompressingOutputStreamTest {
+    @Test
+    public void testSmallResponseNotCompressed() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.GZIP, 6, 10);
+        out.write('a');
+        out.write(body(9), 0, 9);
+        out.flush();
+        assertEquals(0, fake.body.size());
+        
+        out.finish();
+        assertNull(fake.headers.get("Content-Encoding"));
+        assertArrayEquals(concat(new byte[] { 'a' }, body(9)), fake.body.toByteArray());
+    }
+    
+    @Test
+    public void testGzip() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.GZIP, 6, 10);
+        final byte[] body = body(100000);
+        out.write(body, 0, 5);
+        out.write(body[5]);
+        out.write(body, 6, body.length - 6);
+        out.finish();
+        
+        assertEquals("gzip", fake.headers.get("Content-Encoding"));
+        assertArrayEquals(body, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(fake.body.toByteArray()))));
+    }
+    
+    @Test
+    public void testDeflate() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.DEFLATE, 1, 10);
+        final byte[] body = body(11);
+        for (final byte b : body) {
+            out.write(b);
+        }
+        out.close();
+        
+        assertEquals("deflate", fake.headers.get("Content-Encoding"));
+        // zlib format, not raw deflate.
+        final InputStream in = new InflaterInputStream(new ByteArrayInputStream(fake.body.toByteArray()));
+        assertArrayEquals(body, ByteStreams.toByteArray(in));
+    }
+    
+    @Test
+    public void testCompressesPastMinSize() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.GZIP, 6, 10);
+        out.write(body(10), 0, 10);
+        assertNull(fake.headers.get("Content-Encoding"));
+        
+        out.write('b');
+        assertEquals("gzip", fake.headers.get("Content-Encoding"));
+        
+        out.finish();
+        assertArrayEquals(concat(body(10), new byte[] { 'b' }), 
+                ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(fake.body.toByteArray()))));
+    }
+    
+    @Test
+    public void testFinishOnlyOnce() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.GZIP, 6, 10);
+        out.write(body(5), 0, 5);
+        out.finish();
+        out.finish();
+        out.end();
+        
+        assertEquals(5, fake.body.size());
+    }
+    
+    @Test
+    public void testEndWritesNothing() throws IOException {
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final CompressingOutputStream out = new CompressingOutputStream(fake.proxy(), ResponseCompression.GZIP, 6, 10);
+        out.write(body(5), 0, 5);
+        out.end();
+        out.finish();
+        
+        assertEquals(0, fake.body.size());
+    }
+    
+    private static byte[] body(final int length) {
+        final byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) ('a' + (i % 7));
+        }
+        return b;
+    }
+    
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
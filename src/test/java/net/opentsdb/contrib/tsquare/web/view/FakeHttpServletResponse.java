@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Records the status, headers and body that reach a response.
+ */
+final class FakeHttpServletResponse implements InvocationHandler {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final Map<String, String> headers = Maps.newLinkedHashMap();
+    int status = 200;
+    Integer contentLength;
+    int resets = 0;
+    int flushes = 0;
+    
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(final int b) {
+            body.write(b);
+        }
+        
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    };
+    
+    HttpServletResponse proxy() {
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, this);
+    }
+    
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final String name = method.getName();
+        if (name.equals("getOutputStream")) {
+            return out;
+        } else if (name.equals("getCharacterEncoding")) {
+            return "UTF-8";
+        } else if (name.equals("setStatus")) {
+            status = (Integer) args[0];
+        } else if (name.equals("setContentLength")) {
+            contentLength = (Integer) args[0];
+        } else if (name.equals("setHeader") || name.equals("addHeader")) {
+            headers.put((String) args[0], (String) args[1]);
+        } else if (name.equals("reset")) {
+            resets++;
+            status = 200;
+            contentLength = null;
+            headers.clear();
+            body.reset();
+        } else if (name.equals("isCommitted")) {
+            return body.size() > 0;
+        } else if (method.getReturnType().equals(boolean.class)) {
+            return false;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class ResponseCompressionTest {
+    @Test
+    public void testNegotiate() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate(""));
+        assertNull(ResponseCompression.negotiate("identity"));
+        assertNull(ResponseCompression.negotiate("br"));
+        
+        assertEquals("gzip", ResponseCompression.negotiate("gzip"));
+        assertEquals("gzip", ResponseCompression.negotiate("GZIP"));
+        assertEquals("gzip", ResponseCompression.negotiate("x-gzip"));
+        assertEquals("deflate", ResponseCompression.negotiate("deflate"));
+        assertEquals("gzip", ResponseCompression.negotiate("deflate, gzip"));
+        assertEquals("gzip", ResponseCompression.negotiate("br, gzip;q=0.8"));
+    }
+    
+    @Test
+    public void testQValues() {
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", ResponseCompression.negotiate("gzip ; q=0.5, deflate;q=0.5"));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, deflate;q=0.1"));
+        assertNull(ResponseCompression.negotiate("gzip;q=0"));
+        assertNull(ResponseCompression.negotiate("gzip;q=nonsense"));
+    }
+    
+    @Test
+    public void testWildcard() {
+        assertEquals("gzip", ResponseCompression.negotiate("*"));
+        assertNull(ResponseCompression.negotiate("*;q=0"));
+        assertEquals("deflate", ResponseCompression.negotiate("deflate, *;q=0"));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, *"));
+    }
+    
+    @Test
+    public void testNewOutputStream() throws IOException {
+        final ResponseCompression compression = new ResponseCompression();
+        
+        FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        HttpServletResponse response = fake.proxy();
+        assertSame(response.getOutputStream(), compression.newOutputStream(request(null), response));
+        assertEquals("Accept-Encoding", fake.headers.get("Vary"));
+        
+        fake = new FakeHttpServletResponse();
+        assertTrue(compression.newOutputStream(request("gzip"), fake.proxy()) instanceof CompressingOutputStream);
+        assertEquals("Accept-Encoding", fake.headers.get("Vary"));
+    }
+    
+    @Test
+    public void testDisabled() throws IOException {
+        final ResponseCompression compression = new ResponseCompression();
+        compression.setEnabled(false);
+        
+        final FakeHttpServletResponse fake = new FakeHttpServletResponse();
+        final HttpServletResponse response = fake.proxy();
+        assertSame(response.getOutputStream(), compression.newOutputStream(request("gzip"), response));
+        assertNull(fake.headers.get("Vary"));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new ResponseCompression().setLevel(10);
+    }
+    
+    private static HttpServletRequest request(final String acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("getHeader") && "Accept-Encoding".equals(args[0])) {
+                    return acceptEncoding;
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.opentsdb.contrib.tsquare.web.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class SpillingOutputStreamTest {
+    @Test
+    public void testInMemory() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(16);
+        out.write('a');
+        out.write(bytes(15), 0, 15);
+        
+        assertEquals(16, out.size());
+        assertFalse(out.isSpilled());
+        assertArrayEquals(concat(new byte[] { 'a' }, bytes(15)), contentsOf(out));
+    }
+    
+    @Test
+    public void testSpillsPastLimit() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(10);
+        final byte[] data = bytes(200000);
+        out.write(data, 0, 7);
+        out.write(data, 7, 100000);
+        out.write(data[100007]);
+        out.write(data, 100008, data.length - 100008);
+        
+        assertTrue(out.isSpilled());
+        assertEquals(data.length, out.size());
+        assertArrayEquals(data, contentsOf(out));
+        
+        // Can be copied out more than once.
+        assertArrayEquals(data, contentsOf(out));
+        out.release();
+    }
+    
+    @Test
+    public void testSingleBytePastLimit() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(1);
+        out.write(1);
+        out.write(2);
+        
+        assertTrue(out.isSpilled());
+        assertArrayEquals(new byte[] { 1, 2 }, contentsOf(out));
+        out.release();
+    }
+    
+    @Test
+    public void testZeroLimitSpillsEverything() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(0);
+        out.write(bytes(5), 0, 5);
+        
+        assertTrue(out.isSpilled());
+        assertArrayEquals(bytes(5), contentsOf(out));
+        out.release();
+    }
+    
+    @Test
+    public void testReset() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(4);
+        out.write(bytes(10), 0, 10);
+        assertTrue(out.isSpilled());
+        
+        out.reset();
+        assertFalse(out.isSpilled());
+        assertEquals(0, out.size());
+        
+        out.write(bytes(6), 0, 6);
+        assertEquals(6, out.size());
+        assertArrayEquals(bytes(6), contentsOf(out));
+        out.release();
+    }
+    
+    @Test
+    public void testRelease() throws IOException {
+        final SpillingOutputStream out = new SpillingOutputStream(4);
+        out.write(bytes(10), 0, 10);
+        out.release();
+        
+        assertFalse(out.isSpilled());
+        assertEquals(0, out.size());
+        assertEquals(0, contentsOf(out).length);
+    }
+    
+    static byte[] bytes(final int length) {
+        final byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + 7);
+        }
+        return b;
+    }
+    
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+    
+    private static byte[] contentsOf(final SpillingOutputStream out) throws IOException {
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        out.writeTo(copy);
+        return copy.toByteArray();
+    }
+}
@@ -109,6 +109,93 @@ def displayGraph(String metricsRawJson, boolean samplingRenderer = true) {
     frame.show()
 }
 
+// Minimal MessagePack decoder for format=msgpack responses (see MessagePackResponseWriter).
+def readMessagePack(DataInputStream input) {
+    def type = input.readUnsignedByte()
+
+    if (type <= 0x7f) return type
+    if (type >= 0xe0) return (type as byte) as long
+    if ((type & 0xe0) == 0xa0) return readMessagePackString(input, type & 0x1f)
+    if ((type & 0xf0) == 0x90) return readMessagePackArray(input, type & 0x0f)
+    if ((type & 0xf0) == 0x80) return readMessagePackMap(input, type & 0x0f)
+
+    switch (type) {
+	case 0xc0: return null
+	case 0xc2: return false
+	case 0xc3: return true
+	case 0xc4: return readMessagePackBinary(input, input.readUnsignedByte())
+	case 0xc5: return readMessagePackBinary(input, input.readUnsignedShort())
+	case 0xc6: return readMessagePackBinary(input, input.readInt())
+	case 0xca: return input.readFloat()
+	case 0xcb: return input.readDouble()
+	case 0xcc: return input.readUnsignedByte()
+	case 0xcd: return input.readUnsignedShort()
+	case 0xce: return input.readInt() & 0xffffffffL
+	case 0xcf: return input.readLong()
+	case 0xd0: return input.readByte()
+	case 0xd1: return input.readShort()
+	case 0xd2: return input.readInt()
+	case 0xd3: return input.readLong()
+	case 0xd9: return readMessagePackString(input, input.readUnsignedByte())
+	case 0xda: return readMessagePackString(input, input.readUnsignedShort())
+	case 0xdb: return readMessagePackString(input, input.readInt())
+	case 0xdc: return readMessagePackArray(input, input.readUnsignedShort())
+	case 0xdd: return readMessagePackArray(input, input.readInt())
+	case 0xde: return readMessagePackMap(input, input.readUnsignedShort())
+	case 0xdf: return readMessagePackMap(input, input.readInt())
+	default: throw new IllegalStateException("Unsupported MessagePack type: ${type}")
+    }
+}
+
+def readMessagePackBinary(DataInputStream input, int length) {
+    def bytes = new byte[length]
+    input.readFully(bytes)
+    return bytes
+}
+
+def readMessagePackString(DataInputStream input, int length) {
+    return new String(readMessagePackBinary(input, length), "UTF-8")
+}
+
+def readMessagePackArray(DataInputStream input, int length) {
+    return (0..<length).collect() { readMessagePack(input) }
+}
+
+def readMessagePackMap(DataInputStream input, int length) {
+    def map = [:]
+    length.times() {
+	def key = readMessagePack(input)
+	map[key] = readMessagePack(input)
+    }
+    return map
+}
+
+// Convert a stream of MessagePack series to the same JSON the default format returns.
+def messagePackToJson(InputStream stream) {
+    def input = new DataInputStream(new BufferedInputStream(stream))
+    def seriesList = []
+
+    while (true) {
+	input.mark(1)
+	if (input.read() < 0) {
+	    break
+	}
+	input.reset()
+
+	def series = readMessagePack(input)
+	def timestamps = java.nio.ByteBuffer.wrap(series.timestamps).asLongBuffer()
+	def values = java.nio.ByteBuffer.wrap(series.values).asDoubleBuffer()
+	def datapoints = (0..<timestamps.remaining()).collect() { i->
+	    def value = values.get(i)
+	    [(value.isNaN() ? null : value), timestamps.get(i)]
+	}
+
+	seriesList << [target: series.target, tags: series.tags, aggregatedTags: series.aggregatedTags, datapoints: datapoints]
+    }
+
+    return JsonOutput.toJson(seriesList)
+}
+
 def displaySummaryInfo(String metricsRawJson, boolean prettyPrint) {
     if (prettyPrint) {
 	println JsonOutput.prettyPrint(metricsRawJson)
@@ -149,6 +236,9 @@ def handleQueryMode(cmdlineOpts) {
     if (cmdlineOpts.'summarize' || cmdlineOpts.'summarize-pretty') {
 	queryParams << "summarize=true"
     }
+    else if (cmdlineOpts.'msgpack') {
+	queryParams << "format=msgpack"
+    }
 
     def urlString = newExtendedQueryEndpoint(TSQUARE_BASEURL)
     urlString += "?${queryParams.join("&")}"
@@ -156,17 +246,19 @@ def handleQueryMode(cmdlineOpts) {
     def url = new URL(urlString)
     printlnVerbose url
 
+    def responseText = queryParams.contains("format=msgpack") ? messagePackToJson(url.openStream()) : url.text
+
     if (cmdlineOpts.'raw') {
-	println url.text
+	println responseText
     }
     else if (cmdlineOpts.'summarize' || cmdlineOpts.'summarize-pretty') {
-	displaySummaryInfo(url.text, cmdlineOpts.'summarize-pretty')
+	displaySummaryInfo(responseText, cmdlineOpts.'summarize-pretty')
     }
     else if (cmdlineOpts.'graph') {
-	displayGraph(url.text, !cmdlineOpts.'no-sampling')
+	displayGraph(responseText, !cmdlineOpts.'no-sampling')
     }
     else {
-	println JsonOutput.prettyPrint(url.text)
+	println JsonOutput.prettyPrint(responseText)
     }
 }
 
@@ -185,31 +277,50 @@ def handleSearchMode(cmdlineOpts) {
 
     queryParams << "q=${java.net.URLEncoder.encode(expression, "UTF-8")}"
 
-    def urlString = newGrepEndpoint(TSQUARE_BASEURL)
-    urlString += "?${queryParams.join("&")}"
-    
-    def url = new URL(urlString)
-    printlnVerbose url
+    // Results are fetched a page at a time; each page resumes the scan where
+    // the previous one stopped.
+    def pageSize = cmdlineOpts.'page-size' ? cmdlineOpts.'page-size'.toInteger() : 1000
+    queryParams << "limit=${pageSize}"
 
-    if (cmdlineOpts.'raw') {
-	println url.text
-    }
-    else {
-	def slurper = new JsonSlurper()
-	def json = slurper.parseText(url.text)
+    def slurper = new JsonSlurper()
+    def numResults = 0
+    def after = null
+
+    while (true) {
+	def urlString = newGrepEndpoint(TSQUARE_BASEURL)
+	urlString += "?${queryParams.join("&")}"
+	if (after) {
+	    urlString += "&after=${after}"
+	}
 
-	if (!json) {
-	    printlnVerbose "No results."
+	def url = new URL(urlString)
+	printlnVerbose url
+
+	def text = url.text
+	def json = slurper.parseText(text)
+
+	if (cmdlineOpts.'raw') {
+	    println text
 	}
 	else {
-	    def numResults = 0
-
-	    // The result is an array with string entries, so iterate over those.
-	    json.each() { entry->
+	    // Each page has an array of names, so iterate over those.
+	    json.names.each() { entry->
 		println entry
 		numResults++
 	    }
+	}
+
+	after = json.next
+	if (!after) {
+	    break
+	}
+    }
 
+    if (!cmdlineOpts.'raw') {
+	if (numResults == 0) {
+	    printlnVerbose "No results."
+	}
+	else {
 	    printlnVerbose "Found ${numResults} results."
 	}
     }
@@ -282,6 +393,9 @@ cli.r(longOpt:"regex",
 	"[search] Instead of searching by wildcard, which is the default default,"
 	+ " search using a regular expression.")
 
+cli._(longOpt:"page-size", args:1, argName:"count",
+	"[search] Number of results to fetch per request.  The default is 1000.")
+
 cli.f(longOpt:"start", args:1, argName:"date/time expression",
 	"[query] Defines the beginning time of the query; e.g. the start time."
 	+ " Can be given in absolute or relative form.  If unspecified, the default"
@@ -307,6 +421,10 @@ cli.g(longOpt:"graph",
 cli._(longOpt:"raw",
 	"Print raw output, as returned by the web service, to standard output.")
 
+cli._(longOpt:"msgpack",
+	"[query] Fetch data points in the compact MessagePack format, which is faster"
+	+ " to transfer and decode for large queries.  Ignored with --summarize.")
+
 cli._(longOpt:"no-sampling",
 	"[query] When drawing the graph, do not sample input points.  Just draw them as given.")
 